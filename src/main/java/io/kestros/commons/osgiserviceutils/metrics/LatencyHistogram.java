@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+
+/**
+ * Low overhead histogram of durations. Durations are counted into power of two microsecond
+ * buckets using striped counters, so concurrent recording does not contend on a single value.
+ * Percentiles are estimated as the upper bound of the bucket they fall into.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Number of buckets. The last bucket holds every duration of 2^30 microseconds (about 18
+   * minutes) or longer.
+   */
+  static final int BUCKET_COUNT = 31;
+
+  private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maximumNanos = new LongAccumulator(Math::max, 0);
+
+  /**
+   * Low overhead histogram of durations.
+   */
+  public LatencyHistogram() {
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      buckets[i] = new LongAdder();
+    }
+  }
+
+  /**
+   * Records a duration.
+   *
+   * @param nanos Duration, in nanoseconds.
+   */
+  public void record(final long nanos) {
+    final long duration = Math.max(0, nanos);
+    buckets[getBucketIndex(duration)].increment();
+    count.increment();
+    totalNanos.add(duration);
+    maximumNanos.accumulate(duration);
+  }
+
+  /**
+   * Number of recorded durations.
+   *
+   * @return Number of recorded durations.
+   */
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * Mean recorded duration, in nanoseconds.
+   *
+   * @return Mean recorded duration, in nanoseconds. 0 if nothing has been recorded.
+   */
+  public long getMeanNanos() {
+    final long recordedCount = getCount();
+    if (recordedCount == 0) {
+      return 0;
+    }
+    return totalNanos.sum() / recordedCount;
+  }
+
+  /**
+   * Longest recorded duration, in nanoseconds.
+   *
+   * @return Longest recorded duration, in nanoseconds.
+   */
+  public long getMaximumNanos() {
+    return maximumNanos.get();
+  }
+
+  /**
+   * Sum of all recorded durations, in nanoseconds.
+   *
+   * @return Sum of all recorded durations, in nanoseconds.
+   */
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  /**
+   * Estimated duration, in nanoseconds, which the specified fraction of recorded durations did
+   * not exceed.
+   *
+   * @param percentile Fraction between 0 and 1, for example 0.99.
+   * @return Estimated duration, in nanoseconds. 0 if nothing has been recorded.
+   */
+  public long getPercentileNanos(final double percentile) {
+    final long[] counts = getBucketCounts();
+    long total = 0;
+    for (final long bucketCount : counts) {
+      total += bucketCount;
+    }
+    if (total == 0) {
+      return 0;
+    }
+    final long threshold = Math.max(1, (long) Math.ceil(total * percentile));
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      if (cumulative >= threshold) {
+        return Math.min(getBucketUpperBoundNanos(i), getMaximumNanos());
+      }
+    }
+    return getMaximumNanos();
+  }
+
+  /**
+   * Snapshot of the number of durations recorded in each bucket.
+   *
+   * @return Snapshot of the number of durations recorded in each bucket.
+   */
+  @Nonnull
+  public long[] getBucketCounts() {
+    final long[] counts = new long[BUCKET_COUNT];
+    for (int i = 0; i < BUCKET_COUNT; i++) {
+      counts[i] = buckets[i].sum();
+    }
+    return counts;
+  }
+
+  /**
+   * Clears all recorded durations.
+   */
+  public void reset() {
+    for (final LongAdder bucket : buckets) {
+      bucket.reset();
+    }
+    count.reset();
+    totalNanos.reset();
+    maximumNanos.reset();
+  }
+
+  /**
+   * Human readable summary, in milliseconds.
+   *
+   * @return Human readable summary, in milliseconds.
+   */
+  @Nonnull
+  @Override
+  public String toString() {
+    return String.format("count=%s, mean=%.3fms, p50=%.3fms, p99=%.3fms, max=%.3fms", getCount(),
+                         toMillis(getMeanNanos()), toMillis(getPercentileNanos(0.5)),
+                         toMillis(getPercentileNanos(0.99)), toMillis(getMaximumNanos()));
+  }
+
+  static int getBucketIndex(final long nanos) {
+    final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+    if (micros <= 1) {
+      return 0;
+    }
+    return Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(micros));
+  }
+
+  static long getBucketUpperBoundNanos(final int index) {
+    if (index >= BUCKET_COUNT - 1) {
+      return Long.MAX_VALUE;
+    }
+    return TimeUnit.MICROSECONDS.toNanos(1L << (index + 1));
+  }
+
+  private static double toMillis(final long nanos) {
+    return nanos / 1_000_000d;
+  }
+}
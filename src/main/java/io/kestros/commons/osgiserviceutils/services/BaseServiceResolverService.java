@@ -22,11 +22,22 @@ package io.kestros.commons.osgiserviceutils.services;
 import static io.kestros.commons.structuredslingmodels.utils.SlingModelUtils.getResourceAsBaseResource;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.kestros.commons.osgiserviceutils.services.async.BoundedTaskExecutor;
+import io.kestros.commons.osgiserviceutils.services.resolvers.LeasedResourceResolver;
+import io.kestros.commons.osgiserviceutils.services.resolvers.LeasedResourceResolver.ReleaseHandler;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResolverScope;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverLeakDetector;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverLeakDetector.TrackedResourceResolver;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverMetrics;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverPool;
+import io.kestros.commons.osgiserviceutils.utils.OsgiServiceUtils;
 import io.kestros.commons.structuredslingmodels.BaseResource;
 import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.felix.hc.api.FormattingResultLog;
@@ -46,6 +57,14 @@ public abstract class BaseServiceResolverService implements ManagedService {
 
   private ComponentContext componentContext;
 
+  private transient ResourceResolverPool serviceResourceResolverPool;
+
+  private transient ResourceResolverLeakDetector serviceResourceResolverLeakDetector;
+
+  private transient BoundedTaskExecutor asyncExecutor;
+
+  private boolean asyncExecutorShutdown;
+
   @Nonnull
   protected abstract String getServiceUserName();
 
@@ -57,19 +76,29 @@ public abstract class BaseServiceResolverService implements ManagedService {
   @Activate
   public void activate(@Nonnull final ComponentContext ctx) {
     componentContext = ctx;
+    synchronized (this) {
+      asyncExecutorShutdown = false;
+    }
   }
 
   /**
-   * Deactivates the Service and closes the Service ResourceResolver.
+   * Deactivates the Service, waits for queued asynchronous tasks, closes any pooled Service
+   * ResourceResolvers and closes ServiceTrackers kept open by {@link OsgiServiceUtils} lookups.
    *
    * @param componentContext ComponentContext.
    */
   @Deactivate
   public void deactivate(@Nonnull ComponentContext componentContext) {
+    shutdownAsyncExecutor();
+    closeServiceResourceResolverPool();
+    OsgiServiceUtils.closeServiceTrackers(componentContext);
   }
 
   /**
-   * Retrieves a resource resolver as the service user.
+   * Retrieves a resource resolver as the service user. When a {@link ResolverScope} is open for the
+   * service user on the current thread, the scope's ResourceResolver is shared instead. When
+   * pooling is enabled (see {@link #getServiceResourceResolverPoolSize()}), the ResourceResolver is
+   * leased from the service's pool and closing it returns it to the pool.
    *
    * @return ResourceResolver.
    *
@@ -77,12 +106,103 @@ public abstract class BaseServiceResolverService implements ManagedService {
    */
   @Nonnull
   public ResourceResolver getServiceResourceResolver() throws LoginException {
+    if (ResolverScope.hasActiveScopes()) {
+      final ResolverScope scope = ResolverScope.getActiveScope(getResourceResolverFactory(),
+                                                               getServiceUserName());
+      if (scope != null) {
+        return scope.lease();
+      }
+    }
+    final ResourceResolver resourceResolver;
+    if (getServiceResourceResolverPoolSize() > 0) {
+      resourceResolver = getServiceResourceResolverPool().lease();
+    } else {
+      resourceResolver = openServiceResourceResolver();
+    }
+    if (isServiceResourceResolverTrackingEnabled()
+        || isServiceResourceResolverLeakDetectionEnabled()) {
+      return trackServiceResourceResolver(resourceResolver);
+    }
+    return resourceResolver;
+  }
+
+  /**
+   * Opens a unit of work for the service user, bound to the current thread. Until the scope is
+   * closed, {@link #getServiceResourceResolver()} calls for the same service user (on this or other
+   * services) share the scope's ResourceResolver, rather than each logging in. Opening a scope
+   * while one is already open joins it.
+   *
+   * <pre>
+   * try (ResolverScope scope = openResolverScope()) {
+   *   doWork(scope.getResourceResolver());
+   * }
+   * </pre>
+   *
+   * @return Open ResolverScope.
+   *
+   * @throws LoginException If unable to login as service user.
+   */
+  @Nonnull
+  public ResolverScope openResolverScope() throws LoginException {
+    return ResolverScope.open(getResourceResolverFactory(), getServiceUserName(),
+                              this::getServiceResourceResolver);
+  }
+
+  /**
+   * Retrieves a resource resolver as the service user on the service's asynchronous executor, so
+   * the calling thread does not block on login. The ResourceResolver must be closed by the caller.
+   *
+   * @return Future completed with the ResourceResolver, or exceptionally with a LoginException,
+   *         or a RejectedExecutionException if the asynchronous executor's queue is full.
+   */
+  @Nonnull
+  public CompletableFuture<ResourceResolver> getServiceResourceResolverAsync() {
+    final CompletableFuture<ResourceResolver> future = new CompletableFuture<>();
+    submitAsync(() -> {
+      if (future.isDone()) {
+        return null;
+      }
+      final ResourceResolver resourceResolver = getServiceResourceResolver();
+      if (!future.complete(resourceResolver)) {
+        // The caller cancelled the future, so nothing else will close the ResourceResolver.
+        resourceResolver.close();
+      }
+      return resourceResolver;
+    }).whenComplete((resourceResolver, throwable) -> {
+      if (throwable != null) {
+        future.completeExceptionally(throwable);
+      }
+    });
+    return future;
+  }
+
+  /**
+   * Logs in and opens a new resource resolver as the service user, bypassing the pool.
+   *
+   * @return ResourceResolver.
+   *
+   * @throws LoginException If unable to login as service user.
+   */
+  @Nonnull
+  protected ResourceResolver openServiceResourceResolver() throws LoginException {
+    final String serviceUserName = getServiceUserName();
     final Map<String, Object> params = Collections.singletonMap(
-            ResourceResolverFactory.SUBSERVICE, getServiceUserName());
+            ResourceResolverFactory.SUBSERVICE, serviceUserName);
     if (getResourceResolverFactory() != null) {
       getLogger().debug("Getting service resource resolver for {}.",
                         getServiceUserName().replaceAll("[\r\n]", ""));
-      return getResourceResolverFactory().getServiceResourceResolver(params);
+      final ResourceResolverMetrics metrics = ResourceResolverMetrics.forServiceUser(
+              serviceUserName);
+      final long startTime = System.nanoTime();
+      try {
+        final ResourceResolver resourceResolver
+                = getResourceResolverFactory().getServiceResourceResolver(params);
+        metrics.recordOpen(System.nanoTime() - startTime);
+        return resourceResolver;
+      } catch (LoginException | RuntimeException e) {
+        metrics.recordOpenFailure(System.nanoTime() - startTime);
+        throw e;
+      }
     } else {
       throw new LoginException(String.format(
               "Unable to get ServiceResourceResolver for %s. ResourceResolverFactory is null.",
@@ -113,7 +233,301 @@ public abstract class BaseServiceResolverService implements ManagedService {
     } catch (LoginException e) {
       log.critical("Unable to get Service ResourceResolver: {}", e.getMessage());
     }
+    runServiceResourceResolverHealthChecks(log);
+  }
 
+  /**
+   * Health checks for the service's ResourceResolver handling (pooling, asynchronous tasks, etc).
+   * Only logs details for features that have been used or enabled.
+   *
+   * @param log HealthCheck log.
+   */
+  protected void runServiceResourceResolverHealthChecks(@Nonnull FormattingResultLog log) {
+    final BoundedTaskExecutor executor = getOpenAsyncExecutor();
+    if (executor != null) {
+      if (executor.getRemainingCapacity() == 0) {
+        log.warn(String.format("Asynchronous task queue is full. %s", executor));
+      } else {
+        log.debug(executor.toString());
+      }
+    }
+    final ResourceResolverPool pool = getOpenServiceResourceResolverPool();
+    if (pool != null) {
+      log.debug(String.format("Service ResourceResolver pool has %s leased and %s idle of %s.",
+                              pool.getLeasedCount(), pool.getIdleCount(),
+                              pool.getMaximumSize()));
+    }
+    if (isServiceResourceResolverTrackingEnabled()) {
+      log.debug(getServiceResourceResolverMetrics().toString());
+    }
+    final ResourceResolverLeakDetector leakDetector = getOpenServiceResourceResolverLeakDetector();
+    if (leakDetector != null) {
+      leakDetector.expungeCollected();
+      if (leakDetector.getLeakedCount() > 0) {
+        log.warn(String.format("%s service ResourceResolvers were never closed.",
+                               leakDetector.getLeakedCount()));
+      }
+      final List<TrackedResourceResolver> openResourceResolvers
+              = leakDetector.logOpenLongerThanThreshold();
+      if (!openResourceResolvers.isEmpty()) {
+        log.warn(String.format(
+                "%s service ResourceResolvers have been open longer than %sms. Longest open for "
+                + "%sms, acquired by thread %s.", openResourceResolvers.size(),
+                leakDetector.getThresholdMillis(), openResourceResolvers.get(0).getOpenMillis(),
+                openResourceResolvers.get(0).getThreadName()));
+      }
+    }
+  }
+
+  /**
+   * Login and usage metrics for the service user. Metrics are shared by all services logging in
+   * as the same service user.
+   *
+   * @return Login and usage metrics for the service user.
+   */
+  @Nonnull
+  public ResourceResolverMetrics getServiceResourceResolverMetrics() {
+    return ResourceResolverMetrics.forServiceUser(getServiceUserName());
+  }
+
+  /**
+   * Whether service ResourceResolvers handed out by {@link #getServiceResourceResolver()} are
+   * tracked until closed, to measure how many are open at once and how long they are held.
+   * Tracking also adds the service user's ResourceResolver metrics to health checks. Disabled by
+   * default; logins are always counted.
+   *
+   * @return Whether service ResourceResolvers are tracked until closed.
+   */
+  protected boolean isServiceResourceResolverTrackingEnabled() {
+    return false;
+  }
+
+  /**
+   * Whether service ResourceResolvers handed out by {@link #getServiceResourceResolver()} are
+   * checked for leaks. Leaked ResourceResolvers (garbage collected without being closed) are
+   * closed and logged, and ResourceResolvers held open longer than {@link
+   * #getServiceResourceResolverLeakThreshold()} are reported by health checks. Disabled by
+   * default.
+   *
+   * @return Whether service ResourceResolvers are checked for leaks.
+   */
+  protected boolean isServiceResourceResolverLeakDetectionEnabled() {
+    return false;
+  }
+
+  /**
+   * Fraction of service ResourceResolver acquisitions, between 0 and 1, which record the caller's
+   * stack trace when leak detection is enabled.
+   *
+   * @return Fraction of acquisitions which record the caller's stack trace.
+   */
+  protected double getServiceResourceResolverLeakDetectionSamplingRate() {
+    return 0.01;
+  }
+
+  /**
+   * Milliseconds a service ResourceResolver can be held open before leak detection reports it.
+   *
+   * @return Milliseconds a service ResourceResolver can be held open before it is reported.
+   */
+  protected long getServiceResourceResolverLeakThreshold() {
+    return 60000;
+  }
+
+  /**
+   * Leak detector tracking service ResourceResolvers, created on first use.
+   *
+   * @return Leak detector tracking service ResourceResolvers.
+   */
+  @Nonnull
+  protected synchronized ResourceResolverLeakDetector getServiceResourceResolverLeakDetector() {
+    if (serviceResourceResolverLeakDetector == null) {
+      serviceResourceResolverLeakDetector = new ResourceResolverLeakDetector(
+              getServiceResourceResolverLeakDetectionSamplingRate(),
+              getServiceResourceResolverLeakThreshold());
+    }
+    return serviceResourceResolverLeakDetector;
+  }
+
+  @Nullable
+  private synchronized ResourceResolverLeakDetector getOpenServiceResourceResolverLeakDetector() {
+    return serviceResourceResolverLeakDetector;
+  }
+
+  @Nonnull
+  private ResourceResolver trackServiceResourceResolver(
+          @Nonnull final ResourceResolver resourceResolver) {
+    final ResourceResolverMetrics metrics = getServiceResourceResolverMetrics();
+    final long acquiredAt = System.nanoTime();
+    metrics.recordAcquired();
+    final ReleaseHandler releaseHandler = trackedResourceResolver -> {
+      try {
+        trackedResourceResolver.close();
+      } finally {
+        metrics.recordReleased(System.nanoTime() - acquiredAt);
+      }
+    };
+    if (isServiceResourceResolverLeakDetectionEnabled()) {
+      return getServiceResourceResolverLeakDetector().track(resourceResolver, releaseHandler);
+    }
+    return new LeasedResourceResolver(resourceResolver, releaseHandler);
+  }
+
+  /**
+   * Runs a task on the service's asynchronous executor. Tasks are rejected, rather than blocking
+   * the calling thread, when the executor's queue is full.
+   *
+   * @param task Task to run.
+   * @param <T> Task result type.
+   * @return Future completed with the task's result, or exceptionally with the exception thrown
+   *         by the task, or a RejectedExecutionException if the executor's queue is full or the
+   *         service has been deactivated.
+   */
+  @Nonnull
+  protected <T> CompletableFuture<T> submitAsync(@Nonnull final Callable<T> task) {
+    return getAsyncExecutor().submit(task);
+  }
+
+  /**
+   * Number of threads running the service's asynchronous tasks.
+   *
+   * @return Number of threads running the service's asynchronous tasks.
+   */
+  protected int getAsyncExecutorThreadCount() {
+    return 1;
+  }
+
+  /**
+   * Number of asynchronous tasks that can wait for a thread before further tasks are rejected.
+   *
+   * @return Number of asynchronous tasks that can wait for a thread.
+   */
+  protected int getAsyncExecutorQueueCapacity() {
+    return 100;
+  }
+
+  /**
+   * Milliseconds to wait for queued asynchronous tasks to finish when the service deactivates.
+   *
+   * @return Milliseconds to wait for queued asynchronous tasks to finish.
+   */
+  protected long getAsyncExecutorShutdownTimeout() {
+    return 10000;
+  }
+
+  /**
+   * Executor for the service's asynchronous tasks, created on first use. Once {@link
+   * #shutdownAsyncExecutor()} has been called, the shut down executor is returned (and rejects
+   * every task) until the service is activated again.
+   *
+   * @return Executor for the service's asynchronous tasks.
+   */
+  @Nonnull
+  protected synchronized BoundedTaskExecutor getAsyncExecutor() {
+    if (asyncExecutor == null || (asyncExecutor.isShutdown() && !asyncExecutorShutdown)) {
+      asyncExecutor = new BoundedTaskExecutor(getClass().getSimpleName(),
+              getAsyncExecutorThreadCount(), getAsyncExecutorQueueCapacity());
+      if (asyncExecutorShutdown) {
+        // No threads have been started yet, so this rejects tasks without waiting.
+        asyncExecutor.shutdown(0);
+      }
+    }
+    return asyncExecutor;
+  }
+
+  /**
+   * Stops accepting asynchronous tasks and waits for queued tasks to finish. Tasks submitted
+   * afterwards are rejected until the service is activated again.
+   */
+  protected void shutdownAsyncExecutor() {
+    final BoundedTaskExecutor executor;
+    synchronized (this) {
+      asyncExecutorShutdown = true;
+      executor = asyncExecutor;
+    }
+    if (executor != null) {
+      executor.shutdown(getAsyncExecutorShutdownTimeout());
+    }
+  }
+
+  @Nullable
+  private synchronized BoundedTaskExecutor getOpenAsyncExecutor() {
+    if (asyncExecutorShutdown) {
+      return null;
+    }
+    return asyncExecutor;
+  }
+
+  /**
+   * Maximum number of pooled service ResourceResolvers. Pooling is disabled when 0, which is the
+   * default, and every call to {@link #getServiceResourceResolver()} logs in a new
+   * ResourceResolver.
+   *
+   * @return Maximum number of pooled service ResourceResolvers.
+   */
+  protected int getServiceResourceResolverPoolSize() {
+    return 0;
+  }
+
+  /**
+   * Milliseconds a pooled service ResourceResolver can sit idle before it is closed.
+   *
+   * @return Milliseconds a pooled service ResourceResolver can sit idle before it is closed.
+   */
+  protected long getServiceResourceResolverPoolMaximumIdleTime() {
+    return 60000;
+  }
+
+  /**
+   * Milliseconds a pooled service ResourceResolver is kept open before it is closed, regardless
+   * of use.
+   *
+   * @return Milliseconds a pooled service ResourceResolver is kept open.
+   */
+  protected long getServiceResourceResolverPoolMaximumLifetime() {
+    return 600000;
+  }
+
+  /**
+   * Milliseconds to wait for a pooled service ResourceResolver when all are leased.
+   *
+   * @return Milliseconds to wait for a pooled service ResourceResolver when all are leased.
+   */
+  protected long getServiceResourceResolverPoolLeaseTimeout() {
+    return 5000;
+  }
+
+  /**
+   * Pool of service ResourceResolvers, created on first use.
+   *
+   * @return Pool of service ResourceResolvers.
+   */
+  @Nonnull
+  protected synchronized ResourceResolverPool getServiceResourceResolverPool() {
+    if (serviceResourceResolverPool == null || serviceResourceResolverPool.isClosed()) {
+      serviceResourceResolverPool = new ResourceResolverPool(this::openServiceResourceResolver,
+              Math.max(1, getServiceResourceResolverPoolSize()),
+              getServiceResourceResolverPoolMaximumIdleTime(),
+              getServiceResourceResolverPoolMaximumLifetime(),
+              getServiceResourceResolverPoolLeaseTimeout());
+    }
+    return serviceResourceResolverPool;
+  }
+
+  /**
+   * Closes idle pooled service ResourceResolvers. Leased ResourceResolvers are closed as they are
+   * returned.
+   */
+  protected synchronized void closeServiceResourceResolverPool() {
+    if (serviceResourceResolverPool != null) {
+      serviceResourceResolverPool.close();
+      serviceResourceResolverPool = null;
+    }
+  }
+
+  @Nullable
+  private synchronized ResourceResolverPool getOpenServiceResourceResolverPool() {
+    return serviceResourceResolverPool;
   }
 
   @Nonnull
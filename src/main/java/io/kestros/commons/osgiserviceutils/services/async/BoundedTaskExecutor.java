@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.async;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a service's background tasks on a fixed number of daemon threads with a bounded queue.
+ * When the queue is full, tasks are rejected immediately rather than blocking the submitting
+ * thread, and the returned future completes with a {@link RejectedExecutionException}, leaving
+ * the caller to decide whether to retry, drop or run the work itself.
+ */
+public class BoundedTaskExecutor {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BoundedTaskExecutor.class);
+
+  private final String name;
+  private final ThreadPoolExecutor executor;
+  private final LongAdder rejectedCount = new LongAdder();
+
+  /**
+   * Runs a service's background tasks on a fixed number of daemon threads with a bounded queue.
+   *
+   * @param name Name used for the executor's threads.
+   * @param threadCount Number of threads.
+   * @param queueCapacity Number of tasks that can wait for a thread before further tasks are
+   *         rejected.
+   */
+  public BoundedTaskExecutor(@Nonnull final String name, final int threadCount,
+          final int queueCapacity) {
+    if (threadCount < 1) {
+      throw new IllegalArgumentException("Thread count must be at least 1.");
+    }
+    if (queueCapacity < 1) {
+      throw new IllegalArgumentException("Queue capacity must be at least 1.");
+    }
+    this.name = name;
+    this.executor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(queueCapacity), new DaemonThreadFactory(name),
+            new ThreadPoolExecutor.AbortPolicy());
+    this.executor.allowCoreThreadTimeOut(true);
+  }
+
+  /**
+   * Submits a task.
+   *
+   * @param task Task to run.
+   * @param <T> Task result type.
+   * @return Future completed with the task's result, or exceptionally with the exception thrown
+   *         by the task, or with a {@link RejectedExecutionException} if the queue is full or the
+   *         executor has been shut down.
+   */
+  @Nonnull
+  public <T> CompletableFuture<T> submit(@Nonnull final Callable<T> task) {
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    try {
+      executor.execute(() -> {
+        if (future.isDone()) {
+          return;
+        }
+        try {
+          future.complete(task.call());
+        } catch (final Exception exception) {
+          future.completeExceptionally(exception);
+        }
+      });
+    } catch (final RejectedExecutionException exception) {
+      rejectedCount.increment();
+      LOG.debug("{} rejected a task. {} tasks queued.", name.replaceAll("[\r\n]", ""),
+                getQueuedCount());
+      future.completeExceptionally(exception);
+    }
+    return future;
+  }
+
+  /**
+   * Number of tasks waiting for a thread.
+   *
+   * @return Number of tasks waiting for a thread.
+   */
+  public int getQueuedCount() {
+    return executor.getQueue().size();
+  }
+
+  /**
+   * Number of additional tasks that can be queued before tasks are rejected.
+   *
+   * @return Number of additional tasks that can be queued.
+   */
+  public int getRemainingCapacity() {
+    return executor.getQueue().remainingCapacity();
+  }
+
+  /**
+   * Approximate number of tasks currently running.
+   *
+   * @return Approximate number of tasks currently running.
+   */
+  public int getActiveCount() {
+    return executor.getActiveCount();
+  }
+
+  /**
+   * Number of tasks rejected because the queue was full or the executor was shut down.
+   *
+   * @return Number of rejected tasks.
+   */
+  public long getRejectedCount() {
+    return rejectedCount.sum();
+  }
+
+  /**
+   * Stops accepting tasks, and waits for queued and running tasks to finish. Tasks still running
+   * after the timeout are interrupted.
+   *
+   * @param timeoutMillis Milliseconds to wait for tasks to finish.
+   */
+  public void shutdown(final long timeoutMillis) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        LOG.warn("{} did not finish its tasks within {}ms. Interrupting remaining tasks.",
+                 name.replaceAll("[\r\n]", ""), timeoutMillis);
+        executor.shutdownNow();
+      }
+    } catch (final InterruptedException exception) {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Whether the executor has been shut down.
+   *
+   * @return Whether the executor has been shut down.
+   */
+  public boolean isShutdown() {
+    return executor.isShutdown();
+  }
+
+  @Nonnull
+  @Override
+  public String toString() {
+    return String.format("%s: %s active, %s queued, %s rejected.", name, getActiveCount(),
+                         getQueuedCount(), getRejectedCount());
+  }
+
+  private static final class DaemonThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final AtomicInteger threadNumber = new AtomicInteger();
+
+    private DaemonThreadFactory(@Nonnull final String name) {
+      this.name = name;
+    }
+
+    @Override
+    public Thread newThread(@Nonnull final Runnable runnable) {
+      final Thread thread = new Thread(runnable,
+              String.format("%s-async-%s", name, threadNumber.incrementAndGet()));
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import javax.annotation.Nonnull;
+
+/**
+ * Writes the content of a cached file to a stream, so large content does not need to be built as
+ * a String.
+ */
+@FunctionalInterface
+public interface CacheContentWriter {
+
+  /**
+   * Writes the content of a cached file. The stream must not be closed.
+   *
+   * @param outputStream Stream to write the content to.
+   * @throws IOException Failed to write the content.
+   * @throws CacheBuilderException Failed to build the content.
+   */
+  void writeTo(@Nonnull OutputStream outputStream) throws IOException, CacheBuilderException;
+
+  /**
+   * Writes text content, encoded as UTF-8.
+   *
+   * @param textWriter Writes the text content.
+   * @return Writes the text content, encoded as UTF-8.
+   */
+  @Nonnull
+  static CacheContentWriter ofText(@Nonnull final TextWriter textWriter) {
+    return outputStream -> {
+      final Writer writer = new OutputStreamWriter(outputStream, UTF_8);
+      textWriter.writeTo(writer);
+      writer.flush();
+    };
+  }
+
+  /**
+   * Writes the text content of a cached file.
+   */
+  @FunctionalInterface
+  interface TextWriter {
+
+    /**
+     * Writes the text content of a cached file. The writer must not be closed.
+     *
+     * @param writer Writer to write the content to.
+     * @throws IOException Failed to write the content.
+     * @throws CacheBuilderException Failed to build the content.
+     */
+    void writeTo(@Nonnull Writer writer) throws IOException, CacheBuilderException;
+  }
+}
@@ -0,0 +1,40 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
+import javax.annotation.Nonnull;
+
+/**
+ * Builds the content of a cached file, when it is not already cached.
+ */
+@FunctionalInterface
+public interface CacheFileBuilder {
+
+  /**
+   * Builds the content of a cached file.
+   *
+   * @return Content of the cached file.
+   * @throws CacheBuilderException Failed to build the content.
+   */
+  @Nonnull
+  String build() throws CacheBuilderException;
+}
@@ -79,4 +79,15 @@ public interface CacheService extends ManagedService {
    */
   void purgeAll(@Nonnull final ResourceResolver resourceResolver) throws CachePurgeException;
 
+  /**
+   * Hit, miss, build, purge and eviction statistics. Implementations which do not record
+   * statistics return empty statistics, which are discarded after use.
+   *
+   * @return Hit, miss, build, purge and eviction statistics.
+   */
+  @Nonnull
+  default CacheStats getCacheStats() {
+    return new CacheStats();
+  }
+
 }
\ No newline at end of file
@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import io.kestros.commons.osgiserviceutils.metrics.LatencyHistogram;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+
+/**
+ * Hit, miss, build, purge and eviction statistics for a single CacheService. Statistics are
+ * collected with striped counters to keep recording cheap on hot paths.
+ */
+public class CacheStats {
+
+  private final LongAdder hitCount = new LongAdder();
+  private final LongAdder missCount = new LongAdder();
+  private final LongAdder staleHitCount = new LongAdder();
+  private final LongAdder buildCount = new LongAdder();
+  private final LongAdder skippedWriteCount = new LongAdder();
+  private final LongAdder purgeCount = new LongAdder();
+  private final LongAdder evictionCount = new LongAdder();
+  private final LongAdder entryCount = new LongAdder();
+  private final LongAdder byteSize = new LongAdder();
+  private final LatencyHistogram buildTime = new LatencyHistogram();
+  private final LatencyHistogram purgeTime = new LatencyHistogram();
+
+  /**
+   * Records a lookup which found a cached value.
+   */
+  public void recordHit() {
+    hitCount.increment();
+  }
+
+  /**
+   * Records a lookup which did not find a cached value.
+   */
+  public void recordMiss() {
+    missCount.increment();
+  }
+
+  /**
+   * Records a lookup which found a stale cached value, served while it is rebuilt. Stale hits are
+   * recorded in addition to the hit.
+   */
+  public void recordStaleHit() {
+    staleHitCount.increment();
+  }
+
+  /**
+   * Records a value being built and added to the cache.
+   *
+   * @param nanos Time the build took, in nanoseconds.
+   * @param bytes Size of the cached value, in bytes.
+   */
+  public void recordBuild(final long nanos, final long bytes) {
+    buildCount.increment();
+    buildTime.record(nanos);
+    entryCount.increment();
+    byteSize.add(bytes);
+  }
+
+  /**
+   * Records a built value which was identical to the cached value, so was not written again.
+   * Skipped writes are recorded in addition to the build.
+   */
+  public void recordSkippedWrite() {
+    skippedWriteCount.increment();
+  }
+
+  /**
+   * Records the entire cache being purged. The entry count and byte size return to 0.
+   *
+   * @param nanos Time the purge took, in nanoseconds.
+   */
+  public void recordPurge(final long nanos) {
+    purgeCount.increment();
+    purgeTime.record(nanos);
+    entryCount.reset();
+    byteSize.reset();
+  }
+
+  /**
+   * Records a cached value being evicted to make room for others.
+   */
+  public void recordEviction() {
+    evictionCount.increment();
+  }
+
+  /**
+   * Number of lookups which found a cached value.
+   *
+   * @return Number of lookups which found a cached value.
+   */
+  public long getHitCount() {
+    return hitCount.sum();
+  }
+
+  /**
+   * Number of lookups which did not find a cached value.
+   *
+   * @return Number of lookups which did not find a cached value.
+   */
+  public long getMissCount() {
+    return missCount.sum();
+  }
+
+  /**
+   * Number of lookups which found a stale cached value.
+   *
+   * @return Number of lookups which found a stale cached value.
+   */
+  public long getStaleHitCount() {
+    return staleHitCount.sum();
+  }
+
+  /**
+   * Fraction of lookups which found a cached value.
+   *
+   * @return Fraction of lookups which found a cached value, between 0 and 1. 0 if there have been
+   *         no lookups.
+   */
+  public double getHitRatio() {
+    final long hits = getHitCount();
+    final long lookups = hits + getMissCount();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /**
+   * Number of values built and added to the cache.
+   *
+   * @return Number of values built and added to the cache.
+   */
+  public long getBuildCount() {
+    return buildCount.sum();
+  }
+
+  /**
+   * Number of built values which were identical to the cached value, so were not written again.
+   *
+   * @return Number of built values which were not written again.
+   */
+  public long getSkippedWriteCount() {
+    return skippedWriteCount.sum();
+  }
+
+  /**
+   * Time taken to build values.
+   *
+   * @return Time taken to build values.
+   */
+  @Nonnull
+  public LatencyHistogram getBuildTime() {
+    return buildTime;
+  }
+
+  /**
+   * Number of times the entire cache has been purged.
+   *
+   * @return Number of times the entire cache has been purged.
+   */
+  public long getPurgeCount() {
+    return purgeCount.sum();
+  }
+
+  /**
+   * Time taken to purge the cache.
+   *
+   * @return Time taken to purge the cache.
+   */
+  @Nonnull
+  public LatencyHistogram getPurgeTime() {
+    return purgeTime;
+  }
+
+  /**
+   * Number of cached values evicted to make room for others.
+   *
+   * @return Number of evicted values.
+   */
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  /**
+   * Number of values added since the cache was last purged. Values built more than once are
+   * counted each time.
+   *
+   * @return Number of values added since the cache was last purged.
+   */
+  public long getEntryCount() {
+    return entryCount.sum();
+  }
+
+  /**
+   * Size, in bytes, of values added since the cache was last purged.
+   *
+   * @return Size, in bytes, of values added since the cache was last purged.
+   */
+  public long getByteSize() {
+    return byteSize.sum();
+  }
+
+  /**
+   * Clears recorded hits, misses, stale hits, builds, skipped writes, purges and evictions. The
+   * entry count and byte size are kept, since they describe the cache's current contents.
+   */
+  public void reset() {
+    hitCount.reset();
+    missCount.reset();
+    staleHitCount.reset();
+    buildCount.reset();
+    skippedWriteCount.reset();
+    buildTime.reset();
+    purgeCount.reset();
+    purgeTime.reset();
+    evictionCount.reset();
+  }
+
+  /**
+   * Human readable summary.
+   *
+   * @return Human readable summary.
+   */
+  @Nonnull
+  @Override
+  public String toString() {
+    return String.format("%s hits, %s misses (%.1f%% hit ratio), %s stale hits, %s entries, %s "
+                         + "bytes, %s evicted, %s unchanged writes skipped. Builds: %s. "
+                         + "Purges: %s.", getHitCount(), getMissCount(), getHitRatio() * 100,
+                         getStaleHitCount(), getEntryCount(), getByteSize(),
+                         getEvictionCount(), getSkippedWriteCount(), buildTime, purgeTime);
+  }
+}
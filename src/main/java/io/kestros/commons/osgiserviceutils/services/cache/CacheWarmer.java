@@ -0,0 +1,39 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
+import javax.annotation.Nonnull;
+
+/**
+ * Rebuilds a frequently accessed cache entry after the cache is purged, before it is next
+ * requested.
+ */
+@FunctionalInterface
+public interface CacheWarmer {
+
+  /**
+   * Rebuilds and caches an entry.
+   *
+   * @param key Key of the entry, as passed to {@code recordAccess}.
+   * @throws CacheBuilderException Failed to rebuild the entry.
+   */
+  void warm(@Nonnull String key) throws CacheBuilderException;
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Content and metadata of a cached file, held in memory. Instances are immutable, and the
+ * content is exposed through read only views rather than copies.
+ *
+ * <p>
+ * Content held off-heap is reference counted, since its memory is reused once released. Each
+ * instance holds one reference, taken with {@link #retain()} and released with {@link #close()},
+ * and its content must not be read after it has been closed. Closing heap content does nothing.
+ * </p>
+ */
+public final class CachedContent implements AutoCloseable {
+
+  private final String relativePath;
+  private final ByteBuffer content;
+  private final String mimeType;
+  private final String contentEncoding;
+  private final AtomicInteger references;
+  private final Runnable releaseAction;
+  private final AtomicBoolean closed = new AtomicBoolean();
+
+  /**
+   * Content and metadata of a cached file. The content array is not copied, and must not be
+   * modified after it is passed in.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param content Content of the cached file.
+   * @param mimeType Mime type of the cached file.
+   */
+  public CachedContent(@Nonnull final String relativePath, @Nonnull final byte[] content,
+          @Nonnull final String mimeType) {
+    this(relativePath, content, mimeType, null);
+  }
+
+  /**
+   * Content and metadata of a cached file, encoded with a content encoding such as gzip. The
+   * content array is not copied, and must not be modified after it is passed in.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param content Encoded content of the cached file.
+   * @param mimeType Mime type of the cached file, before it was encoded.
+   * @param contentEncoding Content encoding, or null if the content is not encoded.
+   */
+  public CachedContent(@Nonnull final String relativePath, @Nonnull final byte[] content,
+          @Nonnull final String mimeType, @Nullable final String contentEncoding) {
+    this(relativePath, ByteBuffer.wrap(content), mimeType, contentEncoding, null);
+  }
+
+  /**
+   * Content and metadata of a cached file, backed by a buffer. The buffer's remaining bytes are
+   * the content, and must not be modified after it is passed in.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param content Content of the cached file.
+   * @param mimeType Mime type of the cached file.
+   * @param releaseAction Called once every reference to the content has been closed, or null
+   *         if the content does not need to be released.
+   */
+  public CachedContent(@Nonnull final String relativePath, @Nonnull final ByteBuffer content,
+          @Nonnull final String mimeType, @Nullable final Runnable releaseAction) {
+    this(relativePath, content, mimeType, null, releaseAction);
+  }
+
+  private CachedContent(@Nonnull final String relativePath, @Nonnull final ByteBuffer content,
+          @Nonnull final String mimeType, @Nullable final String contentEncoding,
+          @Nullable final Runnable releaseAction) {
+    this.relativePath = relativePath;
+    this.content = content.slice().asReadOnlyBuffer();
+    this.mimeType = mimeType;
+    this.contentEncoding = contentEncoding;
+    this.releaseAction = releaseAction;
+    this.references = releaseAction != null ? new AtomicInteger(1) : null;
+  }
+
+  private CachedContent(@Nonnull final CachedContent source) {
+    this.relativePath = source.relativePath;
+    this.content = source.content;
+    this.mimeType = source.mimeType;
+    this.contentEncoding = source.contentEncoding;
+    this.releaseAction = source.releaseAction;
+    this.references = source.references;
+  }
+
+  /**
+   * Path of the cached file, relative to the cache root.
+   *
+   * @return Path of the cached file, relative to the cache root.
+   */
+  @Nonnull
+  public String getRelativePath() {
+    return relativePath;
+  }
+
+  /**
+   * Mime type of the cached file.
+   *
+   * @return Mime type of the cached file.
+   */
+  @Nonnull
+  public String getMimeType() {
+    return mimeType;
+  }
+
+  /**
+   * Content encoding, such as gzip, which must be decoded to read the content.
+   *
+   * @return Content encoding, or null if the content is not encoded.
+   */
+  @Nullable
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  /**
+   * Size of the content, in bytes.
+   *
+   * @return Size of the content, in bytes.
+   */
+  public int getSize() {
+    return content.remaining();
+  }
+
+  /**
+   * Whether the content is held outside the Java heap.
+   *
+   * @return Whether the content is held outside the Java heap.
+   */
+  public boolean isOffHeap() {
+    return content.isDirect();
+  }
+
+  /**
+   * Read only view of the content.
+   *
+   * @return Read only view of the content.
+   */
+  @Nonnull
+  public ByteBuffer getContent() {
+    return content.duplicate();
+  }
+
+  /**
+   * Stream over the content.
+   *
+   * @return Stream over the content.
+   */
+  @Nonnull
+  public InputStream getInputStream() {
+    return new ByteBufferInputStream(content.duplicate());
+  }
+
+  /**
+   * Content decoded as UTF-8 text.
+   *
+   * @return Content decoded as UTF-8 text.
+   */
+  @Nonnull
+  public String getContentAsString() {
+    return UTF_8.decode(content.duplicate()).toString();
+  }
+
+  /**
+   * Takes another reference to the content. The returned instance must be closed once it is no
+   * longer read. Heap content needs no references, and is returned as is.
+   *
+   * @return Instance holding a new reference to the content, or null if the content has already
+   *         been released.
+   */
+  @Nullable
+  public CachedContent retain() {
+    if (references == null) {
+      return this;
+    }
+    int current = references.get();
+    while (current > 0) {
+      if (references.compareAndSet(current, current + 1)) {
+        return new CachedContent(this);
+      }
+      current = references.get();
+    }
+    return null;
+  }
+
+  /**
+   * Releases this instance's reference to the content. The content is released once every
+   * reference has been closed. Closing more than once has no further effect.
+   */
+  @Override
+  public void close() {
+    if (references != null && closed.compareAndSet(false, true)
+        && references.decrementAndGet() == 0) {
+      releaseAction.run();
+    }
+  }
+
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer buffer;
+
+    private ByteBufferInputStream(@Nonnull final ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(@Nonnull final byte[] bytes, final int offset, final int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      final int read = Math.min(length, buffer.remaining());
+      buffer.get(bytes, offset, read);
+      return read;
+    }
+
+    @Override
+    public long skip(final long count) {
+      final int skipped = (int) Math.max(0, Math.min(count, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
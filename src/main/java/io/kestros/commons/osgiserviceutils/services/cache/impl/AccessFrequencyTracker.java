@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nonnull;
+
+/**
+ * Tracks how often cache keys are accessed, to find the hottest keys. Frequencies are estimated
+ * by a {@link FrequencySketch}, and a bounded set of candidate keys is kept. When the candidate
+ * set is full, the least frequently accessed half is dropped to make room for new keys.
+ */
+public class AccessFrequencyTracker {
+
+  private final FrequencySketch sketch;
+  private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+  private final int candidateLimit;
+  private final AtomicBoolean pruning = new AtomicBoolean();
+
+  /**
+   * Tracks how often cache keys are accessed.
+   *
+   * @param candidateLimit Maximum number of keys that can be returned as the hottest keys.
+   */
+  public AccessFrequencyTracker(final int candidateLimit) {
+    this.candidateLimit = Math.max(1, candidateLimit);
+    this.sketch = new FrequencySketch(Math.max(1024, this.candidateLimit * 16));
+  }
+
+  /**
+   * Records an access to a cache key.
+   *
+   * @param key Cache key.
+   */
+  public void recordAccess(@Nonnull final String key) {
+    sketch.increment(key);
+    if (!candidates.contains(key)) {
+      if (candidates.size() >= candidateLimit) {
+        pruneCandidates();
+      }
+      candidates.add(key);
+    }
+  }
+
+  /**
+   * Estimated number of recent accesses to a cache key.
+   *
+   * @param key Cache key.
+   * @return Estimated number of recent accesses, between 0 and 15.
+   */
+  public int estimate(@Nonnull final String key) {
+    return sketch.estimate(key);
+  }
+
+  /**
+   * Most frequently accessed cache keys, hottest first.
+   *
+   * @param limit Maximum number of keys to return.
+   * @return Most frequently accessed cache keys, hottest first.
+   */
+  @Nonnull
+  public List<String> getHottest(final int limit) {
+    final List<String> hottest = new ArrayList<>(candidates);
+    hottest.removeIf(key -> sketch.estimate(key) == 0);
+    hottest.sort(Comparator.comparingInt(sketch::estimate).reversed());
+    return Collections.unmodifiableList(
+            new ArrayList<>(hottest.subList(0, Math.min(Math.max(0, limit), hottest.size()))));
+  }
+
+  /**
+   * Number of candidate keys currently tracked.
+   *
+   * @return Number of candidate keys currently tracked.
+   */
+  public int getCandidateCount() {
+    return candidates.size();
+  }
+
+  /**
+   * Forgets every recorded access.
+   */
+  public void clear() {
+    candidates.clear();
+    sketch.clear();
+  }
+
+  private void pruneCandidates() {
+    if (!pruning.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      final List<String> coldest = new ArrayList<>(candidates);
+      coldest.sort(Comparator.comparingInt(sketch::estimate));
+      for (final String key : coldest.subList(0, coldest.size() / 2)) {
+        candidates.remove(key);
+      }
+    } finally {
+      pruning.set(false);
+    }
+  }
+}
@@ -20,18 +20,31 @@
 package io.kestros.commons.osgiserviceutils.services.cache.impl;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
 import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
 import io.kestros.commons.osgiserviceutils.services.BaseServiceResolverService;
 import io.kestros.commons.osgiserviceutils.services.cache.CacheService;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheStats;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheWarmer;
 import io.kestros.commons.osgiserviceutils.services.cache.ManagedCacheService;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResolverScope;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.commons.lang3.StringUtils;
+import org.apache.felix.hc.api.FormattingResultLog;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.event.jobs.JobManager;
+import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +61,21 @@ public abstract class BaseCacheService extends BaseServiceResolverService
   private boolean isLive = true;
   private Date lastPurged;
   private String lastPurgedBy;
+  private final transient CacheStats cacheStats = new CacheStats();
+  private final AtomicLong cacheWarmingGeneration = new AtomicLong();
+  private transient volatile AccessFrequencyTracker accessFrequencyTracker;
+  private volatile boolean cacheWarmingStopped = false;
+
+  /**
+   * Activates the service. Cache warming stopped when the service was last deactivated resumes.
+   *
+   * @param ctx ComponentContext.
+   */
+  @Override
+  public void activate(@Nonnull final ComponentContext ctx) {
+    super.activate(ctx);
+    cacheWarmingStopped = false;
+  }
 
   protected abstract void doPurge(@Nonnull ResourceResolver resourceResolver) throws
           CachePurgeException;
@@ -81,17 +109,45 @@ public abstract class BaseCacheService extends BaseServiceResolverService
   @Nullable
   protected abstract JobManager getJobManager();
 
-  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE")
   @Override
   public void purgeAll(@Nonnull ResourceResolver resourceResolver) throws CachePurgeException {
+    purgeAllAs(resourceResolver::getUserID);
+  }
+
+  /**
+   * Purges the cache on the service's asynchronous executor, so the calling thread does not block
+   * on repository writes.
+   *
+   * @param resourceResolver ResourceResolver of the user purging the cache. Only used to record
+   *         who purged the cache, so it can be closed before the purge runs.
+   * @return Future completed when the purge finishes, or exceptionally with a CachePurgeException,
+   *         or a RejectedExecutionException if the asynchronous executor's queue is full.
+   */
+  @Nonnull
+  public CompletableFuture<Void> purgeAllAsync(@Nonnull final ResourceResolver resourceResolver) {
+    final String purgedBy = resourceResolver.getUserID();
+    return submitAsync(() -> {
+      purgeAllAs(() -> purgedBy);
+      return null;
+    });
+  }
+
+  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE")
+  private void purgeAllAs(@Nonnull final Supplier<String> purgedBy) throws CachePurgeException {
     if (isCachePurgeTimeoutExpired()) {
-      try (ResourceResolver serviceResourceResolver = getServiceResourceResolver()) {
+      try (ResolverScope scope = openResolverScope()) {
+        final ResourceResolver serviceResourceResolver = scope.getResourceResolver();
         if (serviceResourceResolver.isLive()) {
           this.lastPurged = new Date();
-          this.lastPurgedBy = resourceResolver.getUserID();
+          this.lastPurgedBy = purgedBy.get();
           log.info("{}: Clearing all cached data.", getDisplayName().replaceAll("[\r\n]", ""));
+          final long purgeStartedAt = System.nanoTime();
           doPurge(serviceResourceResolver);
+          cacheStats.recordPurge(System.nanoTime() - purgeStartedAt);
           this.afterCachePurgeComplete(serviceResourceResolver);
+          if (getCacheWarmer() != null) {
+            warmCache();
+          }
         } else {
           log.error(
                   "{}: Failed to clear cached data. Service ResourceResolver was not live or was "
@@ -162,6 +218,157 @@ public abstract class BaseCacheService extends BaseServiceResolverService
     return lastPurgedBy;
   }
 
+  /**
+   * Hit, miss, build, purge and eviction statistics. Reported by {@link
+   * #runCacheStatsHealthChecks(FormattingResultLog)}.
+   *
+   * @return Hit, miss, build, purge and eviction statistics.
+   */
+  @Nonnull
+  @Override
+  public CacheStats getCacheStats() {
+    return cacheStats;
+  }
+
+  /**
+   * Health checks for the cache's statistics.
+   *
+   * @param log HealthCheck log.
+   */
+  protected void runCacheStatsHealthChecks(@Nonnull final FormattingResultLog log) {
+    log.debug(String.format("Cache statistics: %s", cacheStats));
+    final AccessFrequencyTracker currentAccessFrequencyTracker = accessFrequencyTracker;
+    if (currentAccessFrequencyTracker != null) {
+      log.debug(String.format("Tracking access frequency of %s cache keys for warming.",
+                              currentAccessFrequencyTracker.getCandidateCount()));
+    }
+  }
+
+  /**
+   * Rebuilds the most frequently accessed cache entries after the cache is purged, before they
+   * are next requested. Cache warming is disabled when null, which is the default. Services
+   * which enable it report accesses with {@link #recordAccess(String)}.
+   *
+   * @return Rebuilds frequently accessed cache entries after the cache is purged.
+   */
+  @Nullable
+  protected CacheWarmer getCacheWarmer() {
+    return null;
+  }
+
+  /**
+   * Number of the most frequently accessed cache entries rebuilt after the cache is purged.
+   *
+   * @return Number of the most frequently accessed cache entries rebuilt after a purge.
+   */
+  protected int getCacheWarmingEntryCount() {
+    return 100;
+  }
+
+  /**
+   * Maximum number of cache entries rebuilt at once while warming the cache, to limit the load
+   * warming puts on the repository. Rebuilds also share the service's asynchronous executor
+   * threads.
+   *
+   * @return Maximum number of cache entries rebuilt at once while warming the cache.
+   */
+  protected int getCacheWarmingConcurrency() {
+    return 2;
+  }
+
+  /**
+   * Records an access to a cache entry, so the most frequently accessed entries can be rebuilt
+   * after the cache is purged. Does nothing when cache warming is disabled.
+   *
+   * @param key Key of the cache entry, passed to the {@link CacheWarmer} when it is rebuilt.
+   */
+  protected void recordAccess(@Nonnull final String key) {
+    if (getCacheWarmer() != null) {
+      getAccessFrequencyTracker().recordAccess(key);
+    }
+  }
+
+  /**
+   * Tracks how often cache entries are accessed, created on first use.
+   *
+   * @return Tracks how often cache entries are accessed.
+   */
+  @Nonnull
+  protected AccessFrequencyTracker getAccessFrequencyTracker() {
+    final AccessFrequencyTracker currentAccessFrequencyTracker = accessFrequencyTracker;
+    if (currentAccessFrequencyTracker != null) {
+      return currentAccessFrequencyTracker;
+    }
+    synchronized (this) {
+      if (accessFrequencyTracker == null) {
+        accessFrequencyTracker = new AccessFrequencyTracker(getCacheWarmingEntryCount() * 4);
+      }
+      return accessFrequencyTracker;
+    }
+  }
+
+  /**
+   * Rebuilds the most frequently accessed cache entries, hottest first, on the service's
+   * asynchronous executor. Called after the cache is purged, when cache warming is enabled.
+   * Warming still in progress from an earlier call stops.
+   *
+   * @return Future completed with the number of entries rebuilt.
+   */
+  @Nonnull
+  public CompletableFuture<Integer> warmCache() {
+    final CacheWarmer cacheWarmer = getCacheWarmer();
+    if (cacheWarmer == null || cacheWarmingStopped) {
+      return CompletableFuture.completedFuture(0);
+    }
+    final long generation = cacheWarmingGeneration.incrementAndGet();
+    final List<String> hottestKeys = getAccessFrequencyTracker().getHottest(
+            getCacheWarmingEntryCount());
+    if (hottestKeys.isEmpty()) {
+      return CompletableFuture.completedFuture(0);
+    }
+    final Queue<String> keysToWarm = new ConcurrentLinkedQueue<>(hottestKeys);
+    final AtomicInteger warmedCount = new AtomicInteger();
+    final int workerCount = Math.min(Math.max(1, getCacheWarmingConcurrency()),
+                                     hottestKeys.size());
+    final CompletableFuture<?>[] workers = new CompletableFuture<?>[workerCount];
+    for (int i = 0; i < workerCount; i++) {
+      workers[i] = submitAsync(() -> {
+        warmKeys(cacheWarmer, keysToWarm, generation, warmedCount);
+        return null;
+      });
+    }
+    return CompletableFuture.allOf(workers).handle((result, throwable) -> {
+      log.info("{} warmed {} of {} cache entries.", getDisplayName().replaceAll("[\r\n]", ""),
+               warmedCount.get(), hottestKeys.size());
+      return warmedCount.get();
+    });
+  }
+
+  /**
+   * Stops cache warming in progress, and prevents further warming until the service is activated
+   * again. Called when the service deactivates.
+   */
+  protected void stopCacheWarming() {
+    cacheWarmingStopped = true;
+    cacheWarmingGeneration.incrementAndGet();
+  }
+
+  private void warmKeys(@Nonnull final CacheWarmer cacheWarmer,
+          @Nonnull final Queue<String> keysToWarm, final long generation,
+          @Nonnull final AtomicInteger warmedCount) {
+    String key;
+    while (cacheWarmingGeneration.get() == generation && (key = keysToWarm.poll()) != null) {
+      try {
+        cacheWarmer.warm(key);
+        warmedCount.incrementAndGet();
+      } catch (final CacheBuilderException | RuntimeException exception) {
+        log.warn("{} was unable to warm cache entry '{}'. {}",
+                 getDisplayName().replaceAll("[\r\n]", ""), key.replaceAll("[\r\n]", ""),
+                 String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+      }
+    }
+  }
+
   /**
    * Service display name.
    *
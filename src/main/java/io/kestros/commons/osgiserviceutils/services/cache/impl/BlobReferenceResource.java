@@ -0,0 +1,112 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.Iterator;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.sling.api.resource.AbstractResource;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * Deduplicated cache file, at the path of the cache file referencing its blob, holding the blob's
+ * content. Models are adapted from this Resource, so they report the cache file's path and name
+ * rather than the blob's, while content and properties are read from the blob.
+ */
+final class BlobReferenceResource extends AbstractResource {
+
+  private final String path;
+  private final Resource blobResource;
+
+  /**
+   * Deduplicated cache file.
+   *
+   * @param path Path of the cache file referencing the blob.
+   * @param blobResource File Resource of the blob.
+   */
+  BlobReferenceResource(@Nonnull final String path, @Nonnull final Resource blobResource) {
+    this.path = path;
+    this.blobResource = blobResource;
+  }
+
+  @Nonnull
+  @Override
+  public String getPath() {
+    return path;
+  }
+
+  @Nonnull
+  @Override
+  public String getResourceType() {
+    return blobResource.getResourceType();
+  }
+
+  @Nullable
+  @Override
+  public String getResourceSuperType() {
+    return blobResource.getResourceSuperType();
+  }
+
+  @Nonnull
+  @Override
+  public ResourceMetadata getResourceMetadata() {
+    return blobResource.getResourceMetadata();
+  }
+
+  @Nonnull
+  @Override
+  public ResourceResolver getResourceResolver() {
+    return blobResource.getResourceResolver();
+  }
+
+  @Nullable
+  @Override
+  public Resource getChild(@Nonnull final String relativePath) {
+    return blobResource.getChild(relativePath);
+  }
+
+  @Nonnull
+  @Override
+  public Iterator<Resource> listChildren() {
+    return blobResource.listChildren();
+  }
+
+  @Nonnull
+  @Override
+  public Iterable<Resource> getChildren() {
+    return blobResource.getChildren();
+  }
+
+  @Override
+  public boolean hasChildren() {
+    return blobResource.hasChildren();
+  }
+
+  @Nullable
+  @Override
+  public <T> T adaptTo(@Nonnull final Class<T> type) {
+    // Adapter factories, such as Sling Models, adapt this Resource. Adaptations the blob provides
+    // itself, such as its ValueMap or InputStream, are taken from the blob.
+    final T adapter = super.adaptTo(type);
+    return adapter != null ? adapter : blobResource.adaptTo(type);
+  }
+}
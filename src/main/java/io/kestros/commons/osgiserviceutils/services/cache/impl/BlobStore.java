@@ -0,0 +1,375 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static io.kestros.commons.osgiserviceutils.services.cache.impl.JcrFileCacheService.BLOB_PROPERTY;
+import static io.kestros.commons.osgiserviceutils.services.cache.impl.JcrFileCacheService.REFERENCE_COUNT_PROPERTY;
+import static io.kestros.commons.osgiserviceutils.utils.ResourceCreationUtils.createFileResource;
+import static org.apache.jackrabbit.JcrConstants.JCR_CONTENT;
+import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+
+import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
+import java.io.ByteArrayInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import javax.annotation.Nonnull;
+import org.apache.sling.api.resource.ModifiableValueMap;
+import org.apache.sling.api.resource.PersistenceException;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/**
+ * Deduplicated content of a {@link JcrFileCacheService}. Content is stored once, as a blob named
+ * after a SHA-256 hash of the content, in a folder sharded by the first two characters of the
+ * name. Each blob counts the cache files referencing it, and is deleted once none do.
+ *
+ * <p>
+ * Reference counts are read, changed and committed together, so every change to them must be
+ * made through {@link #update(ResourceResolver, int, BlobUpdate)} or {@link
+ * #runExclusively(Supplier)}. These exclude each other within the JVM. Instances of a clustered
+ * repository are not excluded, so a commit the repository rejects as conflicting with another
+ * instance's changes is retried against them.
+ * </p>
+ */
+final class BlobStore {
+
+  private final String rootPath;
+
+  // Guards blob reference counts, which are read, changed and committed together.
+  private final Object lock = new Object();
+
+  /**
+   * Deduplicated content of a cache.
+   *
+   * @param rootPath Path of the folder holding blobs.
+   */
+  BlobStore(@Nonnull final String rootPath) {
+    this.rootPath = rootPath;
+  }
+
+  /**
+   * Path of the folder holding blobs.
+   *
+   * @return Path of the folder holding blobs.
+   */
+  @Nonnull
+  String getRootPath() {
+    return rootPath;
+  }
+
+  /**
+   * Whether a Resource is the folder holding blobs.
+   *
+   * @param resource Resource.
+   * @return Whether the Resource is the folder holding blobs.
+   */
+  boolean isRoot(@Nonnull final Resource resource) {
+    return rootPath.equals(resource.getPath());
+  }
+
+  /**
+   * Name of the blob holding content, from a SHA-256 hash of the content and the extension of
+   * the cache file, so blobs keep the file type of the files referencing them.
+   *
+   * @param contentBytes Content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Name of the blob holding the content.
+   */
+  @Nonnull
+  static String getBlobName(@Nonnull final byte[] contentBytes,
+          @Nonnull final String relativePath) {
+    final byte[] digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256").digest(contentBytes);
+    } catch (final NoSuchAlgorithmException exception) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(exception);
+    }
+    final StringBuilder blobName = new StringBuilder(digest.length * 2 + 8);
+    for (final byte value : digest) {
+      blobName.append(Character.forDigit((value >>> 4) & 0xf, 16)).append(
+              Character.forDigit(value & 0xf, 16));
+    }
+    final int extensionIndex = relativePath.lastIndexOf('.');
+    if (extensionIndex > relativePath.lastIndexOf('/')) {
+      blobName.append(relativePath.substring(extensionIndex));
+    }
+    return blobName.toString();
+  }
+
+  /**
+   * Path of a blob's file Resource.
+   *
+   * @param blobName Name of the blob.
+   * @return Path of the blob's file Resource.
+   */
+  @Nonnull
+  String getBlobPath(@Nonnull final String blobName) {
+    return rootPath + "/" + blobName.substring(0, 2) + "/" + blobName;
+  }
+
+  /**
+   * Applies changes to cache files and blob references, and commits them. No other changes to
+   * reference counts are made in the JVM meanwhile. Changes are reverted if they can not be
+   * applied or committed. When they can not be committed, as when another instance of a
+   * clustered repository changed the same blob, the ResourceResolver is refreshed and the
+   * changes are applied again.
+   *
+   * @param resourceResolver ResourceResolver the changes are made with.
+   * @param attempts Number of attempts to apply and commit the changes.
+   * @param update Changes to make.
+   * @throws ResourceNotFoundException Unable to apply the changes.
+   * @throws PersistenceException Unable to apply or commit the changes in any attempt.
+   */
+  void update(@Nonnull final ResourceResolver resourceResolver, final int attempts,
+          @Nonnull final BlobUpdate update)
+          throws ResourceNotFoundException, PersistenceException {
+    synchronized (lock) {
+      for (int attempt = 1; ; attempt++) {
+        try {
+          update.apply();
+          resourceResolver.commit();
+          return;
+        } catch (final ResourceNotFoundException exception) {
+          resourceResolver.revert();
+          throw exception;
+        } catch (final PersistenceException exception) {
+          resourceResolver.revert();
+          if (attempt >= attempts) {
+            throw exception;
+          }
+          resourceResolver.refresh();
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs a task while no other changes to reference counts are made.
+   *
+   * @param task Task to run.
+   * @param <T> Task result type.
+   * @return Result of the task.
+   */
+  <T> T runExclusively(@Nonnull final Supplier<T> task) {
+    synchronized (lock) {
+      return task.get();
+    }
+  }
+
+  /**
+   * Takes a reference to a blob, creating it if it does not exist. Not committed, so should be
+   * called by a {@link BlobUpdate}.
+   *
+   * @param blobName Name of the blob.
+   * @param contentBytes Content of the blob.
+   * @param mimeType MIME type of the blob.
+   * @param contentProperties Additional properties of a new blob's jcr:content Resource.
+   * @param resourceResolver ResourceResolver the reference is taken with.
+   * @throws ResourceNotFoundException Unable to find the parent of the folder holding blobs.
+   * @throws PersistenceException Unable to reference or create the blob.
+   */
+  void acquire(@Nonnull final String blobName, @Nonnull final byte[] contentBytes,
+          @Nonnull final String mimeType, @Nonnull final Map<String, Object> contentProperties,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws ResourceNotFoundException, PersistenceException {
+    final String blobPath = getBlobPath(blobName);
+    final Resource blobContentResource = resourceResolver.getResource(
+            blobPath + "/" + JCR_CONTENT);
+    if (blobContentResource != null) {
+      final ModifiableValueMap properties = blobContentResource.adaptTo(
+              ModifiableValueMap.class);
+      if (properties == null) {
+        throw new PersistenceException(
+                String.format("Unable to reference blob %s. Blob cannot be modified.", blobPath));
+      }
+      properties.put(REFERENCE_COUNT_PROPERTY,
+                     properties.get(REFERENCE_COUNT_PROPERTY, 0L) + 1);
+      return;
+    }
+    final Map<String, Object> blobProperties = new HashMap<>(contentProperties);
+    blobProperties.put(REFERENCE_COUNT_PROPERTY, 1L);
+    createFileResource(new ByteArrayInputStream(contentBytes), mimeType,
+                       getOrCreateFolder(blobPath.substring(0, blobPath.lastIndexOf('/')),
+                                         resourceResolver), blobName, blobProperties,
+                       resourceResolver);
+  }
+
+  /**
+   * Releases a reference to a blob, deleting the blob once no references remain. Not committed,
+   * so should be called by a {@link BlobUpdate}.
+   *
+   * @param blobName Name of the blob.
+   * @param resourceResolver ResourceResolver the reference is released with.
+   * @throws PersistenceException Unable to delete the blob.
+   */
+  void release(@Nonnull final String blobName,
+          @Nonnull final ResourceResolver resourceResolver) throws PersistenceException {
+    final Resource blobResource = resourceResolver.getResource(getBlobPath(blobName));
+    final Resource blobContentResource = blobResource != null ? blobResource.getChild(
+            JCR_CONTENT) : null;
+    final ModifiableValueMap properties = blobContentResource != null
+                                          ? blobContentResource.adaptTo(ModifiableValueMap.class)
+                                          : null;
+    if (properties == null) {
+      return;
+    }
+    final long referenceCount = properties.get(REFERENCE_COUNT_PROPERTY, 0L) - 1;
+    if (referenceCount > 0) {
+      properties.put(REFERENCE_COUNT_PROPERTY, referenceCount);
+    } else {
+      resourceResolver.delete(blobResource);
+    }
+  }
+
+  /**
+   * Names of the blobs referenced by cache files under a Resource.
+   *
+   * @param resource Cache file, or folder of cache files.
+   * @return Names of the referenced blobs, once for each reference.
+   */
+  @Nonnull
+  static List<String> getReferencedBlobNames(@Nonnull final Resource resource) {
+    final List<String> blobNames = new ArrayList<>();
+    final Deque<Resource> resourcesToVisit = new ArrayDeque<>();
+    resourcesToVisit.push(resource);
+    while (!resourcesToVisit.isEmpty()) {
+      final Resource current = resourcesToVisit.pop();
+      final Resource contentResource = current.getChild(JCR_CONTENT);
+      if (contentResource != null) {
+        final String blobName = contentResource.getValueMap().get(BLOB_PROPERTY, String.class);
+        if (blobName != null) {
+          blobNames.add(blobName);
+        }
+        continue;
+      }
+      for (final Resource child : current.getChildren()) {
+        // Skips system Resources, such as rep:policy.
+        if (child.getName().indexOf(':') < 0) {
+          resourcesToVisit.push(child);
+        }
+      }
+    }
+    return blobNames;
+  }
+
+  /**
+   * Recounts the references to every blob from the cache files, deleting blobs which are no
+   * longer referenced, and commits.
+   *
+   * @param cacheRootResource Cache root Resource.
+   * @param resourceResolver ResourceResolver used to read cache files, and update blobs.
+   * @return Number of unreferenced blobs deleted.
+   * @throws PersistenceException Failed to update blobs.
+   */
+  int rebuildReferenceCounts(@Nonnull final Resource cacheRootResource,
+          @Nonnull final ResourceResolver resourceResolver) throws PersistenceException {
+    synchronized (lock) {
+      final Resource blobRootResource = resourceResolver.getResource(rootPath);
+      if (blobRootResource == null) {
+        return 0;
+      }
+      final Map<String, Long> referenceCounts = new HashMap<>();
+      for (final Resource child : cacheRootResource.getChildren()) {
+        if (child.getName().indexOf(':') < 0 && !isRoot(child)) {
+          for (final String blobName : getReferencedBlobNames(child)) {
+            referenceCounts.merge(blobName, 1L, Long::sum);
+          }
+        }
+      }
+      int deletedCount = 0;
+      for (final Resource blobFolder : blobRootResource.getChildren()) {
+        for (final Resource blobResource : blobFolder.getChildren()) {
+          final Resource blobContentResource = blobResource.getChild(JCR_CONTENT);
+          final ModifiableValueMap properties = blobContentResource != null
+                  ? blobContentResource.adaptTo(ModifiableValueMap.class) : null;
+          final Long referenceCount = referenceCounts.get(blobResource.getName());
+          if (referenceCount == null) {
+            resourceResolver.delete(blobResource);
+            deletedCount++;
+          } else if (properties != null) {
+            properties.put(REFERENCE_COUNT_PROPERTY, referenceCount);
+          }
+        }
+      }
+      resourceResolver.commit();
+      return deletedCount;
+    }
+  }
+
+  /**
+   * Deletes every blob and commits. Should only be called by {@link #runExclusively(Supplier)},
+   * once no cache file references a blob.
+   *
+   * @param resourceResolver ResourceResolver used to delete blobs.
+   * @throws PersistenceException Failed to delete blobs.
+   */
+  void deleteAll(@Nonnull final ResourceResolver resourceResolver) throws PersistenceException {
+    final Resource blobRootResource = resourceResolver.getResource(rootPath);
+    if (blobRootResource != null) {
+      resourceResolver.delete(blobRootResource);
+      resourceResolver.commit();
+    }
+  }
+
+  @Nonnull
+  private static Resource getOrCreateFolder(@Nonnull final String path,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws ResourceNotFoundException, PersistenceException {
+    final Resource folder = resourceResolver.getResource(path);
+    if (folder != null) {
+      return folder;
+    }
+    final int parentIndex = path.lastIndexOf('/');
+    if (parentIndex <= 0) {
+      throw new ResourceNotFoundException(path);
+    }
+    return resourceResolver.create(getOrCreateFolder(path.substring(0, parentIndex),
+                                                     resourceResolver),
+                                   path.substring(parentIndex + 1),
+                                   Collections.<String, Object>singletonMap(JCR_PRIMARYTYPE,
+                                                                            "sling:Folder"));
+  }
+
+  /**
+   * Changes to cache files and blob references, applied by {@link #update(ResourceResolver, int,
+   * BlobUpdate)}. May be applied again after a failed commit, so should read the repository
+   * rather than capture Resources read beforehand.
+   */
+  @FunctionalInterface
+  interface BlobUpdate {
+
+    /**
+     * Makes the changes, without committing them.
+     *
+     * @throws ResourceNotFoundException Unable to make the changes.
+     * @throws PersistenceException Unable to make the changes.
+     */
+    void apply() throws ResourceNotFoundException, PersistenceException;
+  }
+}
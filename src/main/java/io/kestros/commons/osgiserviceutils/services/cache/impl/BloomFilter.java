@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+
+/**
+ * Fixed size Bloom filter of Strings. Answers whether a String might have been added, with no
+ * false negatives and a false positive probability set at construction, using a fraction of the
+ * memory of an exact set. Adding and checking are lock free and safe to call concurrently.
+ */
+public final class BloomFilter {
+
+  private static final double LN2 = Math.log(2);
+
+  private final AtomicLongArray words;
+  private final long bitCount;
+  private final int hashCount;
+
+  /**
+   * Fixed size Bloom filter of Strings.
+   *
+   * @param expectedInsertions Number of Strings expected to be added. The false positive
+   *         probability rises when more are added.
+   * @param falsePositiveProbability False positive probability once the expected number of
+   *         Strings have been added, between 0 and 1 exclusive.
+   */
+  public BloomFilter(final long expectedInsertions, final double falsePositiveProbability) {
+    if (falsePositiveProbability <= 0 || falsePositiveProbability >= 1) {
+      throw new IllegalArgumentException(
+              "False positive probability must be between 0 and 1 exclusive.");
+    }
+    final long insertions = Math.max(1, expectedInsertions);
+    final long optimalBitCount = (long) Math.ceil(
+            -insertions * Math.log(falsePositiveProbability) / (LN2 * LN2));
+    final int wordCount = (int) Math.min(Integer.MAX_VALUE - 8,
+                                         Math.max(1, (optimalBitCount + 63) / 64));
+    this.words = new AtomicLongArray(wordCount);
+    this.bitCount = wordCount * 64L;
+    this.hashCount = Math.max(1, (int) Math.round((double) bitCount / insertions * LN2));
+  }
+
+  /**
+   * Adds a String.
+   *
+   * @param value String to add.
+   */
+  public void put(@Nonnull final String value) {
+    final long hash = hash(value);
+    final long hash1 = hash;
+    final long hash2 = Long.rotateLeft(hash, 32) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      final long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+      final int wordIndex = (int) (bit >>> 6);
+      final long mask = 1L << bit;
+      long word = words.get(wordIndex);
+      while ((word & mask) == 0 && !words.compareAndSet(wordIndex, word, word | mask)) {
+        word = words.get(wordIndex);
+      }
+    }
+  }
+
+  /**
+   * Whether a String might have been added. False means it has definitely not been added.
+   *
+   * @param value String to check.
+   * @return Whether the String might have been added.
+   */
+  public boolean mightContain(@Nonnull final String value) {
+    final long hash = hash(value);
+    final long hash1 = hash;
+    final long hash2 = Long.rotateLeft(hash, 32) | 1;
+    for (int i = 0; i < hashCount; i++) {
+      final long bit = Math.floorMod(hash1 + i * hash2, bitCount);
+      if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Number of bits in the filter.
+   *
+   * @return Number of bits in the filter.
+   */
+  public long getBitCount() {
+    return bitCount;
+  }
+
+  /**
+   * Number of bits set for each added String.
+   *
+   * @return Number of bits set for each added String.
+   */
+  public int getHashCount() {
+    return hashCount;
+  }
+
+  private static long hash(@Nonnull final String value) {
+    // 64 bit FNV-1a over the characters, followed by a MurmurHash3 finalizer to spread the bits.
+    long hash = 0xcbf29ce484222325L;
+    for (int i = 0; i < value.length(); i++) {
+      hash ^= value.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nonnull;
+
+/**
+ * In-memory index of the paths held by a cache, used to answer that a path is not cached without
+ * reading the repository. Paths are held in an exact set until it grows past a limit, after which
+ * a {@link BloomFilter} is used instead.
+ *
+ * <p>
+ * The index only ever holds a superset of the cached paths, so a negative answer is definitive
+ * while a positive answer must still be confirmed. Until the first rebuild completes, every path
+ * is reported as possibly cached. Checks are lock free.
+ * </p>
+ */
+public class CachedPathIndex {
+
+  private final int exactLimit;
+  private final double falsePositiveProbability;
+  private volatile Membership membership;
+  private long rebuildCount = 0;
+  private Set<String> pendingPaths;
+  private boolean clearedDuringRebuild;
+
+  /**
+   * In-memory index of the paths held by a cache.
+   *
+   * @param exactLimit Number of paths held in an exact set, before switching to a Bloom filter.
+   * @param falsePositiveProbability False positive probability of the Bloom filter.
+   */
+  public CachedPathIndex(final int exactLimit, final double falsePositiveProbability) {
+    this.exactLimit = exactLimit;
+    this.falsePositiveProbability = falsePositiveProbability;
+  }
+
+  /**
+   * Whether a path might be cached. False means the path is definitely not cached.
+   *
+   * @param path Path to check.
+   * @return Whether a path might be cached. Always true until the index has been built.
+   */
+  public boolean mightContain(@Nonnull final String path) {
+    final Membership currentMembership = membership;
+    return currentMembership == null || currentMembership.mightContain(path);
+  }
+
+  /**
+   * Whether the index has been built, and can answer that paths are not cached.
+   *
+   * @return Whether the index has been built.
+   */
+  public boolean isReady() {
+    return membership != null;
+  }
+
+  /**
+   * Whether paths are held in an exact set, rather than a Bloom filter.
+   *
+   * @return Whether paths are held in an exact set.
+   */
+  public boolean isExact() {
+    final Membership currentMembership = membership;
+    return currentMembership == null || currentMembership instanceof ExactMembership;
+  }
+
+  /**
+   * Number of paths added since the index was last built or cleared.
+   *
+   * @return Number of paths added since the index was last built or cleared.
+   */
+  public long getSize() {
+    final Membership currentMembership = membership;
+    return currentMembership != null ? currentMembership.getSize() : 0;
+  }
+
+  /**
+   * Adds a newly cached path.
+   *
+   * @param path Cached path.
+   */
+  public synchronized void add(@Nonnull final String path) {
+    if (pendingPaths != null) {
+      pendingPaths.add(path);
+    }
+    if (membership != null) {
+      addToMembership(path);
+    }
+  }
+
+  /**
+   * Clears the index, after every cached path has been removed.
+   */
+  public synchronized void clear() {
+    membership = new ExactMembership();
+    if (pendingPaths != null) {
+      pendingPaths.clear();
+      clearedDuringRebuild = true;
+    }
+  }
+
+  /**
+   * Starts rebuilding the index. Paths added or cleared until the rebuild completes are applied
+   * to the rebuilt index.
+   *
+   * @return Rebuild token, passed to {@link #completeRebuild(long, Collection)}.
+   */
+  public synchronized long startRebuild() {
+    rebuildCount++;
+    pendingPaths = new HashSet<>();
+    clearedDuringRebuild = false;
+    return rebuildCount;
+  }
+
+  /**
+   * Completes a rebuild, replacing the index with the paths read from the repository. Ignored if
+   * another rebuild has started since.
+   *
+   * @param rebuildToken Token returned by {@link #startRebuild()}.
+   * @param paths Paths read from the repository.
+   * @return Whether the index was replaced.
+   */
+  public synchronized boolean completeRebuild(final long rebuildToken,
+          @Nonnull final Collection<String> paths) {
+    if (rebuildToken != rebuildCount || pendingPaths == null) {
+      return false;
+    }
+    final Set<String> rebuiltPaths = new HashSet<>(pendingPaths);
+    if (!clearedDuringRebuild) {
+      rebuiltPaths.addAll(paths);
+    }
+    pendingPaths = null;
+    if (rebuiltPaths.size() > exactLimit) {
+      membership = newBloomMembership(rebuiltPaths);
+    } else {
+      final ExactMembership exactMembership = new ExactMembership();
+      exactMembership.paths.addAll(rebuiltPaths);
+      membership = exactMembership;
+    }
+    return true;
+  }
+
+  /**
+   * Abandons a rebuild which failed. The index is left as it was.
+   *
+   * @param rebuildToken Token returned by {@link #startRebuild()}.
+   */
+  public synchronized void abandonRebuild(final long rebuildToken) {
+    if (rebuildToken == rebuildCount) {
+      pendingPaths = null;
+    }
+  }
+
+  /**
+   * Whether a rebuild is in progress.
+   *
+   * @return Whether a rebuild is in progress.
+   */
+  public synchronized boolean isRebuilding() {
+    return pendingPaths != null;
+  }
+
+  private void addToMembership(@Nonnull final String path) {
+    if (membership instanceof ExactMembership) {
+      final ExactMembership exactMembership = (ExactMembership) membership;
+      exactMembership.paths.add(path);
+      if (exactMembership.paths.size() > exactLimit) {
+        membership = newBloomMembership(exactMembership.paths);
+      }
+    } else {
+      membership.add(path);
+    }
+  }
+
+  @Nonnull
+  private BloomMembership newBloomMembership(@Nonnull final Collection<String> paths) {
+    final BloomMembership bloomMembership = new BloomMembership(
+            new BloomFilter(Math.max(paths.size(), exactLimit) * 2L, falsePositiveProbability));
+    for (final String path : paths) {
+      bloomMembership.add(path);
+    }
+    return bloomMembership;
+  }
+
+  private interface Membership {
+
+    boolean mightContain(@Nonnull String path);
+
+    void add(@Nonnull String path);
+
+    long getSize();
+  }
+
+  private static final class ExactMembership implements Membership {
+
+    private final Set<String> paths = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public boolean mightContain(@Nonnull final String path) {
+      return paths.contains(path);
+    }
+
+    @Override
+    public void add(@Nonnull final String path) {
+      paths.add(path);
+    }
+
+    @Override
+    public long getSize() {
+      return paths.size();
+    }
+  }
+
+  private static final class BloomMembership implements Membership {
+
+    private final BloomFilter bloomFilter;
+    private volatile long size = 0;
+
+    private BloomMembership(@Nonnull final BloomFilter bloomFilter) {
+      this.bloomFilter = bloomFilter;
+    }
+
+    @Override
+    public boolean mightContain(@Nonnull final String path) {
+      return bloomFilter.mightContain(path);
+    }
+
+    @Override
+    public void add(@Nonnull final String path) {
+      bloomFilter.put(path);
+      size++;
+    }
+
+    @Override
+    public long getSize() {
+      return size;
+    }
+  }
+}
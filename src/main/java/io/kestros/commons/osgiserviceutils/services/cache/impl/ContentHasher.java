@@ -0,0 +1,223 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.nio.ByteBuffer;
+import javax.annotation.Nonnull;
+
+/**
+ * Computes a 128 bit MurmurHash3 (x64 variant, seed 0) of content, to cheaply tell whether
+ * content has changed. Content can be hashed in one call, or incrementally as it is streamed.
+ * Not a cryptographic hash, so it must not be relied on where content is untrusted and
+ * collisions could be forced.
+ */
+public final class ContentHasher {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final byte[] block = new byte[16];
+  private int blockLength;
+  private long length;
+  private long h1;
+  private long h2;
+
+  /**
+   * Hash of content.
+   *
+   * @param content Content to hash.
+   * @return Hash of the content, as 32 lower case hexadecimal characters.
+   */
+  @Nonnull
+  public static String hash(@Nonnull final byte[] content) {
+    return new ContentHasher().update(content, 0, content.length).getHash();
+  }
+
+  /**
+   * Adds content to the hash.
+   *
+   * @param content Content to add.
+   * @param offset Offset of the first byte to add.
+   * @param count Number of bytes to add.
+   * @return This hasher.
+   */
+  @Nonnull
+  public ContentHasher update(@Nonnull final byte[] content, final int offset, final int count) {
+    int position = offset;
+    final int end = offset + count;
+    if (blockLength > 0) {
+      final int copied = Math.min(16 - blockLength, count);
+      System.arraycopy(content, position, block, blockLength, copied);
+      blockLength += copied;
+      position += copied;
+      if (blockLength == 16) {
+        processBlock(block, 0);
+        blockLength = 0;
+      }
+    }
+    while (end - position >= 16) {
+      processBlock(content, position);
+      position += 16;
+    }
+    if (position < end) {
+      System.arraycopy(content, position, block, blockLength, end - position);
+      blockLength += end - position;
+    }
+    length += count;
+    return this;
+  }
+
+  /**
+   * Adds a single byte to the hash.
+   *
+   * @param value Byte to add, in the lowest 8 bits.
+   * @return This hasher.
+   */
+  @Nonnull
+  public ContentHasher update(final int value) {
+    block[blockLength++] = (byte) value;
+    if (blockLength == 16) {
+      processBlock(block, 0);
+      blockLength = 0;
+    }
+    length++;
+    return this;
+  }
+
+  /**
+   * Adds the remaining bytes of a buffer to the hash. The buffer's position is not changed.
+   *
+   * @param content Content to add.
+   * @return This hasher.
+   */
+  @Nonnull
+  public ContentHasher update(@Nonnull final ByteBuffer content) {
+    if (content.hasArray()) {
+      return update(content.array(), content.arrayOffset() + content.position(),
+                    content.remaining());
+    }
+    final ByteBuffer view = content.duplicate();
+    final byte[] buffer = new byte[Math.min(8192, view.remaining())];
+    while (view.hasRemaining()) {
+      final int count = Math.min(buffer.length, view.remaining());
+      view.get(buffer, 0, count);
+      update(buffer, 0, count);
+    }
+    return this;
+  }
+
+  /**
+   * Number of bytes hashed so far.
+   *
+   * @return Number of bytes hashed so far.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Hash of the content added so far. More content can still be added afterwards.
+   *
+   * @return Hash of the content added so far, as 32 lower case hexadecimal characters.
+   */
+  @Nonnull
+  public String getHash() {
+    long hash1 = h1;
+    long hash2 = h2;
+    long k1 = 0;
+    long k2 = 0;
+    for (int i = blockLength - 1; i >= 8; i--) {
+      k2 = (k2 << 8) | (block[i] & 0xffL);
+    }
+    for (int i = Math.min(blockLength, 8) - 1; i >= 0; i--) {
+      k1 = (k1 << 8) | (block[i] & 0xffL);
+    }
+    if (blockLength > 8) {
+      hash2 ^= mixK2(k2);
+    }
+    if (blockLength > 0) {
+      hash1 ^= mixK1(k1);
+    }
+    hash1 ^= length;
+    hash2 ^= length;
+    hash1 += hash2;
+    hash2 += hash1;
+    hash1 = fmix(hash1);
+    hash2 = fmix(hash2);
+    hash1 += hash2;
+    hash2 += hash1;
+    final char[] hex = new char[32];
+    writeHex(hash1, hex, 0);
+    writeHex(hash2, hex, 16);
+    return new String(hex);
+  }
+
+  private void processBlock(@Nonnull final byte[] content, final int offset) {
+    final long k1 = getLittleEndianLong(content, offset);
+    final long k2 = getLittleEndianLong(content, offset + 8);
+    h1 ^= mixK1(k1);
+    h1 = Long.rotateLeft(h1, 27);
+    h1 += h2;
+    h1 = h1 * 5 + 0x52dce729;
+    h2 ^= mixK2(k2);
+    h2 = Long.rotateLeft(h2, 31);
+    h2 += h1;
+    h2 = h2 * 5 + 0x38495ab5;
+  }
+
+  private static long mixK1(final long k1) {
+    return Long.rotateLeft(k1 * C1, 31) * C2;
+  }
+
+  private static long mixK2(final long k2) {
+    return Long.rotateLeft(k2 * C2, 33) * C1;
+  }
+
+  private static long fmix(final long value) {
+    long mixed = value;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xff51afd7ed558ccdL;
+    mixed ^= mixed >>> 33;
+    mixed *= 0xc4ceb9fe1a85ec53L;
+    mixed ^= mixed >>> 33;
+    return mixed;
+  }
+
+  private static long getLittleEndianLong(@Nonnull final byte[] content, final int offset) {
+    long value = 0;
+    for (int i = 7; i >= 0; i--) {
+      value = (value << 8) | (content[offset + i] & 0xffL);
+    }
+    return value;
+  }
+
+  /**
+   * Writes a hash half as little endian bytes, matching the byte order of other MurmurHash3
+   * implementations.
+   */
+  private static void writeHex(final long value, @Nonnull final char[] hex, final int offset) {
+    for (int i = 0; i < 8; i++) {
+      final int octet = (int) (value >>> (i * 8)) & 0xff;
+      hex[offset + i * 2] = HEX_DIGITS[octet >>> 4];
+      hex[offset + i * 2 + 1] = HEX_DIGITS[octet & 0xf];
+    }
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Tracks when the cache files of a {@link JcrFileCacheService} expire, and schedules the
+ * background sweeps which delete expired cache files. Sweeps run on a single daemon thread,
+ * started by the first sweep scheduled.
+ *
+ * <p>
+ * Until a sweep has scanned the repository, files which do not expire are recorded as they are
+ * read, so each file's expiry time is read from the repository at most once.
+ * </p>
+ */
+final class ExpiryTracker {
+
+  private final ConcurrentMap<String, Long> expiryTimes = new ConcurrentHashMap<>();
+  private final Set<String> nonExpiringPaths = ConcurrentHashMap.newKeySet();
+  private volatile boolean scanned;
+  private volatile ScheduledExecutorService sweeper;
+
+  /**
+   * Records when a cache file expires.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param expiresAt Time the cache file expires, in milliseconds since the epoch.
+   */
+  void track(@Nonnull final String relativePath, final long expiresAt) {
+    expiryTimes.put(relativePath, expiresAt);
+    nonExpiringPaths.remove(relativePath);
+  }
+
+  /**
+   * Records that a cache file does not expire.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   */
+  void untrack(@Nonnull final String relativePath) {
+    expiryTimes.remove(relativePath);
+    if (!scanned) {
+      nonExpiringPaths.add(relativePath);
+    }
+  }
+
+  /**
+   * Stops tracking when a cache file expires, if its expiry time has not changed.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param expiresAt Expiry time of the cache file which was deleted.
+   */
+  void untrack(@Nonnull final String relativePath, final long expiresAt) {
+    expiryTimes.remove(relativePath, expiresAt);
+  }
+
+  /**
+   * Stops tracking when any cache file expires, and forgets which files do not expire.
+   */
+  void clear() {
+    scanned = false;
+    expiryTimes.clear();
+    nonExpiringPaths.clear();
+  }
+
+  /**
+   * Records that a sweep has scanned the repository, so every cache file which expires is
+   * tracked.
+   */
+  void markScanned() {
+    scanned = true;
+    nonExpiringPaths.clear();
+  }
+
+  /**
+   * Whether it is known when a cache file expires, or that it does not expire, without reading
+   * the repository.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Whether it is known when the cache file expires.
+   */
+  boolean isKnown(@Nonnull final String relativePath) {
+    return scanned || expiryTimes.containsKey(relativePath) || nonExpiringPaths.contains(
+            relativePath);
+  }
+
+  /**
+   * Number of cache files whose expiry is tracked.
+   *
+   * @return Number of cache files whose expiry is tracked.
+   */
+  int size() {
+    return expiryTimes.size();
+  }
+
+  /**
+   * Time a cache file expires.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Time the cache file expires, in milliseconds since the epoch, or null if it is not
+   *         tracked.
+   */
+  @Nullable
+  Long getExpiresAt(@Nonnull final String relativePath) {
+    if (expiryTimes.isEmpty()) {
+      return null;
+    }
+    return expiryTimes.get(relativePath);
+  }
+
+  /**
+   * Schedules a sweep, starting the sweeper thread if it is not running.
+   *
+   * @param threadName Name of the sweeper thread, if it is started.
+   * @param delay Milliseconds until the sweep runs.
+   * @param sweep Sweep to run.
+   */
+  synchronized void startSweeper(@Nonnull final String threadName, final long delay,
+          @Nonnull final Runnable sweep) {
+    if (sweeper == null) {
+      final ScheduledThreadPoolExecutor newSweeper = new ScheduledThreadPoolExecutor(1,
+              runnable -> {
+                final Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+              });
+      newSweeper.setRemoveOnCancelPolicy(true);
+      sweeper = newSweeper;
+      scheduleSweep(delay, sweep);
+    }
+  }
+
+  /**
+   * Schedules the next sweep, unless the sweeper has been stopped.
+   *
+   * @param delay Milliseconds until the sweep runs.
+   * @param sweep Sweep to run.
+   * @return Whether the sweep was scheduled.
+   */
+  boolean scheduleSweep(final long delay, @Nonnull final Runnable sweep) {
+    final ScheduledExecutorService currentSweeper = sweeper;
+    if (currentSweeper == null) {
+      return false;
+    }
+    try {
+      currentSweeper.schedule(sweep, delay, TimeUnit.MILLISECONDS);
+      return true;
+    } catch (final RejectedExecutionException exception) {
+      return false;
+    }
+  }
+
+  /**
+   * Stops the sweeper thread, cancelling scheduled sweeps.
+   */
+  synchronized void stopSweeper() {
+    if (sweeper != null) {
+      sweeper.shutdownNow();
+      sweeper = null;
+    }
+  }
+
+  /**
+   * Whether sweeps are scheduled.
+   *
+   * @return Whether sweeps are scheduled.
+   */
+  boolean isSweeperRunning() {
+    return sweeper != null;
+  }
+
+  /**
+   * Delay until the next run of a task, randomly lengthened or shortened by up to a fraction of
+   * the interval.
+   *
+   * @param interval Milliseconds between runs.
+   * @param jitter Fraction, between 0 and 1, of the interval to randomly add or remove.
+   * @return Milliseconds until the next run. At least 1.
+   */
+  static long getJitteredDelay(final long interval, final double jitter) {
+    final double boundedJitter = Math.min(1, Math.max(0, jitter));
+    final double offset = interval * boundedJitter * (2 * ThreadLocalRandom.current().nextDouble()
+                                                      - 1);
+    return Math.max(1, interval + (long) offset);
+  }
+
+  /**
+   * Time to live randomly shortened by up to a fraction of itself.
+   *
+   * @param timeToLive Milliseconds a cache file should be served for.
+   * @param jitter Fraction, between 0 and 1, of the time to live to randomly remove.
+   * @return Shortened time to live. At least 1.
+   */
+  static long getJitteredTimeToLive(final long timeToLive, final double jitter) {
+    final double boundedJitter = Math.min(1, Math.max(0, jitter));
+    final long shortening = (long) (timeToLive * boundedJitter
+                                    * ThreadLocalRandom.current().nextDouble());
+    return Math.max(1, timeToLive - shortening);
+  }
+}
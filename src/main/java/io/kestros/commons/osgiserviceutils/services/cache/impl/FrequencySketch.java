@@ -0,0 +1,170 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nonnull;
+
+/**
+ * Count-min sketch estimating how often Strings have been seen, using 4 bit counters packed 16 to
+ * a long. Counters are halved once the number of recorded Strings reaches a sample size, so
+ * estimates favor recent activity and counters do not saturate. Recording and estimating are
+ * lock free and safe to call concurrently. Estimates are never lower than the true count since
+ * the last halving, apart from counters capped at 15.
+ */
+public final class FrequencySketch {
+
+  /**
+   * Largest value a counter can hold.
+   */
+  static final int MAXIMUM_COUNT = 15;
+
+  private static final int DEPTH = 4;
+  private static final long HALVING_MASK = 0x7777777777777777L;
+  private static final long[] ROW_SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+          0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+  private final AtomicLongArray table;
+  private final int width;
+  private final int sampleSize;
+  private final AtomicInteger recordedCount = new AtomicInteger();
+
+  /**
+   * Count-min sketch estimating how often Strings have been seen.
+   *
+   * @param expectedKeys Number of distinct Strings expected to be recorded between halvings.
+   *         Estimates become less accurate when more are recorded.
+   */
+  public FrequencySketch(final int expectedKeys) {
+    final int boundedKeys = Math.min(1 << 26, Math.max(16, expectedKeys));
+    this.width = Integer.highestOneBit(boundedKeys - 1) << 1;
+    this.table = new AtomicLongArray(width * DEPTH / 16);
+    this.sampleSize = width * 10;
+  }
+
+  /**
+   * Records a String being seen.
+   *
+   * @param value String seen.
+   */
+  public void increment(@Nonnull final String value) {
+    final long hash = hash(value);
+    boolean incremented = false;
+    for (int row = 0; row < DEPTH; row++) {
+      incremented |= incrementCounter(getCounterIndex(hash, row));
+    }
+    if (incremented && recordedCount.incrementAndGet() == sampleSize) {
+      halve();
+    }
+  }
+
+  /**
+   * Estimated number of times a String has been seen, recently weighted.
+   *
+   * @param value String to estimate.
+   * @return Estimated number of times the String has been seen, between 0 and 15.
+   */
+  public int estimate(@Nonnull final String value) {
+    final long hash = hash(value);
+    int estimate = MAXIMUM_COUNT;
+    for (int row = 0; row < DEPTH; row++) {
+      estimate = Math.min(estimate, getCounter(getCounterIndex(hash, row)));
+    }
+    return estimate;
+  }
+
+  /**
+   * Number of counters in each row.
+   *
+   * @return Number of counters in each row.
+   */
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Number of recorded Strings after which counters are halved.
+   *
+   * @return Number of recorded Strings after which counters are halved.
+   */
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  /**
+   * Resets every counter to 0.
+   */
+  public void clear() {
+    for (int i = 0; i < table.length(); i++) {
+      table.set(i, 0);
+    }
+    recordedCount.set(0);
+  }
+
+  /**
+   * Halves every counter, so older activity carries half the weight of newer activity.
+   */
+  void halve() {
+    for (int i = 0; i < table.length(); i++) {
+      long word = table.get(i);
+      while (!table.compareAndSet(i, word, (word >>> 1) & HALVING_MASK)) {
+        word = table.get(i);
+      }
+    }
+    recordedCount.set(sampleSize / 2);
+  }
+
+  private int getCounterIndex(final long hash, final int row) {
+    long rowHash = (hash + ROW_SEEDS[row]) * ROW_SEEDS[row];
+    rowHash += rowHash >>> 32;
+    return row * width + (int) (rowHash & (width - 1));
+  }
+
+  private int getCounter(final int counterIndex) {
+    final int shift = (counterIndex & 15) << 2;
+    return (int) ((table.get(counterIndex >>> 4) >>> shift) & 0xfL);
+  }
+
+  private boolean incrementCounter(final int counterIndex) {
+    final int wordIndex = counterIndex >>> 4;
+    final int shift = (counterIndex & 15) << 2;
+    final long mask = 0xfL << shift;
+    long word = table.get(wordIndex);
+    while ((word & mask) != mask) {
+      if (table.compareAndSet(wordIndex, word, word + (1L << shift))) {
+        return true;
+      }
+      word = table.get(wordIndex);
+    }
+    return false;
+  }
+
+  private static long hash(@Nonnull final String value) {
+    // Spreads String.hashCode with a MurmurHash3 finalizer, so each row gets independent bits.
+    long hash = value.hashCode() * 0x9e3779b97f4a7c15L;
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.felix.hc.api.FormattingResultLog;
+
+/**
+ * In-memory tier of a {@link JcrFileCacheService}, holding the content of recently read cache
+ * files in a {@link WeightedLruCache}. Content can be held on the heap, or copied off-heap into
+ * an {@link OffHeapSlabStore}.
+ */
+final class InMemoryTier {
+
+  private final WeightedLruCache<String, CachedContent> cache;
+  private final OffHeapSlabStore offHeapSlabStore;
+
+  /**
+   * In-memory tier of a cache.
+   *
+   * @param maximumBytes Maximum total size, in bytes, of content held in memory.
+   * @param offHeapSlabSize Size, in bytes, of each off-heap slab, or 0 to hold content on the
+   *         heap.
+   * @param evictionListener Called when content is evicted to stay within the maximum size.
+   */
+  InMemoryTier(final long maximumBytes, final int offHeapSlabSize,
+          @Nonnull final Runnable evictionListener) {
+    if (offHeapSlabSize > 0) {
+      offHeapSlabStore = new OffHeapSlabStore(offHeapSlabSize, maximumBytes);
+      cache = new WeightedLruCache<>(maximumBytes,
+              content -> OffHeapSlabStore.getBlockSize(content.getSize()),
+              (content, evicted) -> {
+                content.close();
+                if (evicted) {
+                  evictionListener.run();
+                }
+              });
+    } else {
+      offHeapSlabStore = null;
+      cache = new WeightedLruCache<>(maximumBytes, CachedContent::getSize,
+              (content, evicted) -> {
+                if (evicted) {
+                  evictionListener.run();
+                }
+              });
+    }
+  }
+
+  /**
+   * Cache holding in-memory content, keyed by path relative to the cache root.
+   *
+   * @return Cache holding in-memory content.
+   */
+  @Nonnull
+  WeightedLruCache<String, CachedContent> getCache() {
+    return cache;
+  }
+
+  /**
+   * Off-heap store holding the cache's content.
+   *
+   * @return Off-heap store, or null if content is held on the heap.
+   */
+  @Nullable
+  OffHeapSlabStore getOffHeapSlabStore() {
+    return offHeapSlabStore;
+  }
+
+  /**
+   * Content held in memory for a cache file.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Content held in memory, or null if it is not held.
+   */
+  @Nullable
+  CachedContent get(@Nonnull final String relativePath) {
+    return cache.get(relativePath);
+  }
+
+  /**
+   * Whether content is held in memory for a cache file, without marking it as recently read.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Whether content is held in memory.
+   */
+  boolean contains(@Nonnull final String relativePath) {
+    return cache.containsKey(relativePath);
+  }
+
+  /**
+   * Current generation, which should be read before loading content to add with {@link
+   * #put(CachedContent, long)}.
+   *
+   * @return Current generation.
+   */
+  long getGeneration() {
+    return cache.getGeneration();
+  }
+
+  /**
+   * Holds content in memory, copying it off-heap if enabled. Content is not held if the tier was
+   * invalidated after the specified generation, or the off-heap store is full.
+   *
+   * @param content Content read from, or written to, the repository.
+   * @param generation Generation read before the content was loaded.
+   */
+  void put(@Nonnull final CachedContent content, final long generation) {
+    CachedContent inMemoryContent = content;
+    if (offHeapSlabStore != null) {
+      // Null when the store is full, in which case the content is not held in memory.
+      inMemoryContent = offHeapSlabStore.store(content.getRelativePath(), content.getContent(),
+                                               content.getMimeType());
+    }
+    if (inMemoryContent != null && !cache.putIfGeneration(content.getRelativePath(),
+                                                           inMemoryContent, generation)) {
+      inMemoryContent.close();
+    }
+  }
+
+  /**
+   * Streams content read from the repository straight into the off-heap store, rather than
+   * reading it onto the heap and copying it off-heap with {@link #put(CachedContent, long)}.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param content Content read from the repository. Read to its end, and not closed.
+   * @param expectedSize Expected size of the content in bytes, or -1 if it is not known.
+   * @param mimeType Mime type of the cache file.
+   * @param generation Generation read before the content was loaded.
+   * @return Content held off-heap, which should be closed by the caller once read. Held in memory
+   *         unless the tier was invalidated after the specified generation. Null if content is
+   *         held on the heap, or there was not enough free space off-heap, in which case the
+   *         content may have been partly read.
+   * @throws IOException Failed to read the content.
+   */
+  @Nullable
+  CachedContent load(@Nonnull final String relativePath, @Nonnull final InputStream content,
+          final int expectedSize, @Nonnull final String mimeType, final long generation)
+          throws IOException {
+    if (offHeapSlabStore == null) {
+      return null;
+    }
+    final CachedContent inMemoryContent = offHeapSlabStore.store(relativePath, content,
+                                                                 expectedSize, mimeType);
+    if (inMemoryContent == null) {
+      return null;
+    }
+    // Retained before it is held, since held content can be evicted and released at any time.
+    final CachedContent loadedContent = inMemoryContent.retain();
+    if (!cache.putIfGeneration(relativePath, inMemoryContent, generation)) {
+      inMemoryContent.close();
+    }
+    return loadedContent;
+  }
+
+  /**
+   * Stops holding a cache file's content.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   */
+  void invalidate(@Nonnull final String relativePath) {
+    cache.invalidate(relativePath);
+  }
+
+  /**
+   * Stops holding any content.
+   */
+  void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  /**
+   * Stops holding any content, and releases the off-heap store.
+   */
+  void close() {
+    cache.invalidateAll();
+    if (offHeapSlabStore != null) {
+      offHeapSlabStore.close();
+    }
+  }
+
+  /**
+   * Logs the tier's size to a health check log.
+   *
+   * @param log HealthCheck log.
+   */
+  void runHealthChecks(@Nonnull final FormattingResultLog log) {
+    log.debug(String.format("In-memory cache holds %s files, %s of %s bytes. %s evicted.",
+                            cache.size(), cache.getWeight(), cache.getMaximumWeight(),
+                            cache.getEvictionCount()));
+    if (offHeapSlabStore != null) {
+      log.debug(String.format(
+              "Off-heap store has reserved %s of %s bytes. %s bytes allocated, holding %s bytes "
+              + "of content.", offHeapSlabStore.getReservedBytes(),
+              offHeapSlabStore.getMaximumBytes(), offHeapSlabStore.getAllocatedBytes(),
+              offHeapSlabStore.getStoredBytes()));
+    }
+  }
+}
@@ -19,32 +19,73 @@
 
 package io.kestros.commons.osgiserviceutils.services.cache.impl;
 
-import static io.kestros.commons.osgiserviceutils.utils.ResourceCreationUtils.createTextFileResourceAndCommit;
+import static io.kestros.commons.osgiserviceutils.utils.ContentEncodingUtils.ANY;
+import static io.kestros.commons.osgiserviceutils.utils.ContentEncodingUtils.GZIP;
+import static io.kestros.commons.osgiserviceutils.utils.ContentEncodingUtils.IDENTITY;
+import static io.kestros.commons.osgiserviceutils.utils.ContentEncodingUtils.getAcceptedEncodings;
+import static io.kestros.commons.osgiserviceutils.utils.ContentEncodingUtils.gzip;
+import static io.kestros.commons.osgiserviceutils.utils.ResourceCreationUtils.createFileResourceAndCommit;
 import static io.kestros.commons.structuredslingmodels.utils.FileModelUtils.adaptToFileType;
 import static io.kestros.commons.structuredslingmodels.utils.SlingModelUtils.adaptToBaseResource;
 import static io.kestros.commons.structuredslingmodels.utils.SlingModelUtils.getChildrenAsBaseResource;
 import static io.kestros.commons.structuredslingmodels.utils.SlingModelUtils.getResourceAsBaseResource;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.jackrabbit.JcrConstants.JCR_CONTENT;
+import static org.apache.jackrabbit.JcrConstants.JCR_DATA;
+import static org.apache.jackrabbit.JcrConstants.JCR_MIMETYPE;
 import static org.apache.jackrabbit.JcrConstants.JCR_PRIMARYTYPE;
+import static org.apache.jackrabbit.JcrConstants.NT_FILE;
+import static org.apache.jackrabbit.JcrConstants.NT_UNSTRUCTURED;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
 import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
+import io.kestros.commons.osgiserviceutils.exceptions.CacheRetrievalException;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheContentWriter;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheFileBuilder;
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResolverScope;
+import io.kestros.commons.osgiserviceutils.services.resolvers.SharedResourceResolver;
 import io.kestros.commons.structuredslingmodels.BaseResource;
 import io.kestros.commons.structuredslingmodels.exceptions.InvalidResourceTypeException;
 import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
 import io.kestros.commons.structuredslingmodels.filetypes.BaseFile;
 import io.kestros.commons.structuredslingmodels.filetypes.FileType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.felix.hc.api.FormattingResultLog;
 import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ModifiableValueMap;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.api.resource.ValueMap;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Deactivate;
@@ -59,8 +100,75 @@ public abstract class JcrFileCacheService extends BaseCacheService {
 
   private static final long serialVersionUID = 1L;
 
+  /**
+   * Property of a cache file's jcr:content Resource holding the time, in milliseconds since the
+   * epoch, at which the file expires.
+   */
+  public static final String EXPIRES_AT_PROPERTY = "expiresAt";
+
+  /**
+   * Maximum number of shard folder levels. See {@link #getShardLevels()}.
+   */
+  static final int MAXIMUM_SHARD_LEVELS = 4;
+
+  /**
+   * Suffix of the jcr:content property holding precompressed content, after the content
+   * encoding, such as gzipData.
+   */
+  static final String ENCODED_DATA_PROPERTY_SUFFIX = "Data";
+
+  /**
+   * Property of a cache file's jcr:content Resource holding a hash of its content, used to skip
+   * rewriting identical content. See {@link #isContentHashEnabled()}.
+   */
+  public static final String CONTENT_HASH_PROPERTY = "contentHash";
+
+  /**
+   * Property of a deduplicated cache file's jcr:content Resource holding the name of the blob
+   * which holds its content. See {@link #isDeduplicationEnabled()}.
+   */
+  public static final String BLOB_PROPERTY = "blob";
+
+  /**
+   * Property of a blob's jcr:content Resource holding the number of cache files referencing it.
+   */
+  public static final String REFERENCE_COUNT_PROPERTY = "referenceCount";
+
+  /**
+   * Name of the folder under the cache root holding deduplicated content. Reserved, so must not
+   * be used as the first segment of a cache file's relative path.
+   */
+  static final String BLOB_FOLDER_NAME = "_blobs";
+
   private final Logger log = LoggerFactory.getLogger(getClass());
 
+  private transient SharedResourceResolver cacheReadResourceResolver;
+
+  private transient InMemoryTier inMemoryTier;
+
+  private transient volatile CachedPathIndex cachedPathIndex;
+
+  private final transient ConcurrentMap<String, CompletableFuture<CachedContent>> inFlightBuilds
+          = new ConcurrentHashMap<>();
+
+  private final transient ThreadLocal<Long> buildStartedAt = new ThreadLocal<>();
+
+  private final ConcurrentMap<String, Long> revalidatedGenerations = new ConcurrentHashMap<>();
+
+  private final AtomicBoolean staleDropScheduled = new AtomicBoolean();
+
+  private volatile long staleGeneration;
+
+  private volatile long staleDeadline;
+
+  private long lastStaleGeneration;
+
+  private Semaphore staleRevalidationPermits;
+
+  private final transient ExpiryTracker expiryTracker = new ExpiryTracker();
+
+  private transient BlobStore blobStore;
+
   /**
    * Root Resource path to build the cache from. If /content/sites/page is cached, it will cache to
    * /var/cache/pages/content/sites/page.html, with /var/cache/pages being the cache root path.
@@ -87,10 +195,18 @@ public abstract class JcrFileCacheService extends BaseCacheService {
   @Activate
   public void activate(@Nonnull ComponentContext componentContext) {
     log.info("Activating {}.", getDisplayName().replaceAll("[\r\n]", ""));
+    super.activate(componentContext);
+    // Starts building the cached path index, if it is enabled.
+    getCachedPathIndex();
+    // Expiry times are read again, and the first sweep scans the repository, finding files
+    // created before the service was activated.
+    expiryTracker.clear();
+    startExpirySweeper();
   }
 
   /**
-   * Deactivates the service and closes the associated service ResourceResolver.
+   * Deactivates the service, waits for queued asynchronous tasks, purges the cache and closes any
+   * pooled service ResourceResolvers.
    *
    * @param componentContext ComponentContext.
    */
@@ -98,8 +214,14 @@ public abstract class JcrFileCacheService extends BaseCacheService {
   @Deactivate
   public void deactivate(@Nonnull ComponentContext componentContext) {
     log.info("Deactivating {}.", getDisplayName().replaceAll("[\r\n]", ""));
-    try (ResourceResolver resourceResolver = getServiceResourceResolver()) {
-      purgeAll(resourceResolver);
+    stopCacheWarming();
+    stopExpirySweeper();
+    // Queued cache writes finish before the purge, so they do not repopulate the cache.
+    shutdownAsyncExecutor();
+    try (ResolverScope scope = openResolverScope()) {
+      purgeAll(scope.getResourceResolver());
+      // Stale files are not served once the service is inactive.
+      dropStaleCacheFiles(scope.getResourceResolver());
     } catch (final CachePurgeException e) {
       if (e.getMessage() != null) {
         log.error(e.getMessage().replaceAll("[\r\n]", ""));
@@ -109,6 +231,10 @@ public abstract class JcrFileCacheService extends BaseCacheService {
     } catch (LoginException e) {
       log.error("Unable to close service ResourceResolver.", e);
     }
+    closeCacheReadResourceResolver();
+    closeInMemoryCache();
+    closeCachedPathIndex();
+    super.deactivate(componentContext);
   }
 
 
@@ -129,15 +255,357 @@ public abstract class JcrFileCacheService extends BaseCacheService {
     } catch (LoginException e) {
       log.critical(String.format("Unable to open service ResourceResolver: %s", e.getMessage()));
     }
+    runServiceResourceResolverHealthChecks(log);
+    runCacheTierHealthChecks(log);
+    runCacheStatsHealthChecks(log);
+  }
+
+  /**
+   * Health checks for the cache's optional tiers. Only logs details for tiers that have been
+   * enabled.
+   *
+   * @param log HealthCheck log.
+   */
+  protected void runCacheTierHealthChecks(@Nonnull final FormattingResultLog log) {
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    if (currentInMemoryTier != null) {
+      currentInMemoryTier.runHealthChecks(log);
+    }
+    if (expiryTracker.size() > 0) {
+      log.debug(String.format("Tracking expiry of %s cache files.", expiryTracker.size()));
+    }
+    final long currentStaleGeneration = staleGeneration;
+    if (currentStaleGeneration != 0) {
+      log.debug(String.format("Serving stale cache files for %sms, %s rebuilt since last purge.",
+                              Math.max(0, staleDeadline - System.currentTimeMillis()),
+                              revalidatedGenerations.size()));
+    }
+    final CachedPathIndex currentCachedPathIndex = getOpenCachedPathIndex();
+    if (currentCachedPathIndex != null) {
+      if (currentCachedPathIndex.isReady()) {
+        log.debug(String.format("Cached path index holds %s paths in %s.",
+                                currentCachedPathIndex.getSize(),
+                                currentCachedPathIndex.isExact() ? "an exact set"
+                                                                 : "a Bloom filter"));
+      } else {
+        log.debug("Cached path index has not been built yet.");
+      }
+    }
   }
 
   protected void createCacheFile(@Nonnull final String content, @Nonnull final String relativePath,
           @Nonnull final FileType type, @Nonnull ResourceResolver resourceResolver) throws
           CacheBuilderException {
-    final String parentPath = getParentPathFromPath(getServiceCacheRootPath() + relativePath);
+    createCacheFile(content, relativePath, type, 0, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file which expires after a time to live. Expired files are treated as not
+   * cached when read, and are deleted by a background sweep (see {@link
+   * #getExpirySweepInterval()}). A stale or expired file at the same path is replaced. When
+   * content hashing is enabled (see {@link #isContentHashEnabled()}), an existing file holding
+   * identical content is kept rather than rewritten.
+   *
+   * @param content Content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param timeToLive Milliseconds until the file expires, shortened by up to {@link
+   *         #getTimeToLiveJitter()}. The file does not expire when 0.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final String content, @Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    createCacheFile(content.getBytes(UTF_8), relativePath, type, timeToLive, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file from binary content.
+   *
+   * @param content Content of the cache file. Must not be modified afterwards, as it may be held
+   *         by the in-memory cache.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final byte[] content, @Nonnull final String relativePath,
+          @Nonnull final FileType type, @Nonnull final ResourceResolver resourceResolver)
+          throws CacheBuilderException {
+    createCacheFile(content, relativePath, type, 0, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file from binary content, which expires after a time to live. See {@link
+   * #createCacheFile(String, String, FileType, long, ResourceResolver)}.
+   *
+   * @param content Content of the cache file. Must not be modified afterwards, as it may be held
+   *         by the in-memory cache.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param timeToLive Milliseconds until the file expires, shortened by up to {@link
+   *         #getTimeToLiveJitter()}. The file does not expire when 0.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final byte[] content, @Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    final long createStartedAt = getCreateStartedAt();
+    final String parentPath = createParentResources(relativePath, resourceResolver);
+    final long expiresAt = getExpiresAt(timeToLive);
+    final String contentHash = isContentHashEnabled() ? ContentHasher.hash(content) : null;
+    try {
+      final Long keptExpiresAt = contentHash != null ? keepIfUnchanged(content, relativePath, type,
+                                                                       contentHash, timeToLive,
+                                                                       expiresAt, resourceResolver)
+                                                     : null;
+      if (keptExpiresAt != null) {
+        getCacheStats().recordSkippedWrite();
+        afterCacheFileCreated(content, content.length, relativePath, type,
+                              System.nanoTime() - createStartedAt, keptExpiresAt);
+        return;
+      }
+      if (isDeduplicationEnabled()) {
+        createCacheFileReference(content, relativePath, type, expiresAt, contentHash,
+                                 resourceResolver);
+      } else {
+        final Map<String, Object> contentProperties = new HashMap<>(
+                getPrecompressedContentProperties(content, relativePath));
+        if (expiresAt > 0) {
+          contentProperties.put(EXPIRES_AT_PROPERTY, expiresAt);
+        }
+        if (contentHash != null) {
+          contentProperties.put(CONTENT_HASH_PROPERTY, contentHash);
+        }
+        deleteIfStaleOrExpired(relativePath, resourceResolver);
+        createFileResourceAndCommit(new ByteArrayInputStream(content),
+                                    type.getOutputContentType(),
+                                    getResourceAsBaseResource(parentPath,
+                                                              resourceResolver).getResource(),
+                                    getCacheFileName(relativePath), contentProperties,
+                                    resourceResolver);
+      }
+      afterCacheFileCreated(content, content.length, relativePath, type,
+                            System.nanoTime() - createStartedAt, expiresAt);
+    } catch (final ResourceNotFoundException | PersistenceException exception) {
+      throw getCreateCacheFileException(relativePath, exception);
+    }
+  }
+
+  /**
+   * Creates a cache file from the remaining content of a ByteBuffer, which does not expire. See
+   * {@link #createCacheFile(ByteBuffer, String, FileType, long, ResourceResolver)}.
+   *
+   * @param content Content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final ByteBuffer content,
+          @Nonnull final String relativePath, @Nonnull final FileType type,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    createCacheFile(content, relativePath, type, 0, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file from the remaining content of a ByteBuffer, without copying it unless
+   * content must be held in memory (see {@link #createCacheFile(InputStream, String, FileType,
+   * long, ResourceResolver)}). The ByteBuffer's position is not changed.
+   *
+   * @param content Content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param timeToLive Milliseconds until the file expires, shortened by up to {@link
+   *         #getTimeToLiveJitter()}. The file does not expire when 0.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final ByteBuffer content,
+          @Nonnull final String relativePath, @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    if (content.hasArray() && content.arrayOffset() == 0 && content.position() == 0
+        && content.remaining() == content.array().length) {
+      createCacheFile(content.array(), relativePath, type, timeToLive, resourceResolver);
+    } else {
+      createCacheFile(new ByteBufferInputStream(content.duplicate()), relativePath, type,
+                      timeToLive, resourceResolver);
+    }
+  }
+
+  /**
+   * Creates a cache file from streamed content, which does not expire. See {@link
+   * #createCacheFile(InputStream, String, FileType, long, ResourceResolver)}.
+   *
+   * @param content Content of the cache file. Read to its end, and not closed.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to read the content, or create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final InputStream content,
+          @Nonnull final String relativePath, @Nonnull final FileType type,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    createCacheFile(content, relativePath, type, 0, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file, streaming its content into the repository. Streamed content is not added
+   * to the in-memory cache until it is first read.
+   *
+   * <p>
+   * When content hashing, deduplication or precompression is enabled, the content is needed before
+   * it is written, so the whole stream is read into a byte array first, regardless of {@link
+   * #getSpoolThreshold()}. Content which may not fit in the heap should not be cached while any of
+   * them are enabled.
+   * </p>
+   *
+   * @param content Content of the cache file. Read to its end, and not closed.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param timeToLive Milliseconds until the file expires, shortened by up to {@link
+   *         #getTimeToLiveJitter()}. The file does not expire when 0.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to read the content, or create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final InputStream content,
+          @Nonnull final String relativePath, @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    if (isContentBufferRequired()) {
+      final byte[] contentBytes;
+      try {
+        contentBytes = readFully(content);
+      } catch (final IOException exception) {
+        throw getCreateCacheFileException(relativePath, exception);
+      }
+      createCacheFile(contentBytes, relativePath, type, timeToLive, resourceResolver);
+      return;
+    }
+    final long createStartedAt = getCreateStartedAt();
+    final String parentPath = createParentResources(relativePath, resourceResolver);
+    final long expiresAt = getExpiresAt(timeToLive);
+    final CountingInputStream countingContent = new CountingInputStream(content);
+    try {
+      deleteIfStaleOrExpired(relativePath, resourceResolver);
+      createFileResourceAndCommit(countingContent, type.getOutputContentType(),
+                                  getResourceAsBaseResource(parentPath,
+                                                            resourceResolver).getResource(),
+                                  getCacheFileName(relativePath),
+                                  expiresAt > 0 ? Collections.<String, Object>singletonMap(
+                                          EXPIRES_AT_PROPERTY, expiresAt)
+                                                : Collections.<String, Object>emptyMap(),
+                                  resourceResolver);
+      afterCacheFileCreated(null, countingContent.getCount(), relativePath, type,
+                            System.nanoTime() - createStartedAt, expiresAt);
+    } catch (final ResourceNotFoundException | PersistenceException exception) {
+      throw getCreateCacheFileException(relativePath, exception);
+    }
+  }
+
+  /**
+   * Creates a cache file from content written to a stream, which does not expire. See {@link
+   * #createCacheFile(CacheContentWriter, String, FileType, long, ResourceResolver)}.
+   *
+   * @param writer Writes the content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to write the content, or create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final CacheContentWriter writer,
+          @Nonnull final String relativePath, @Nonnull final FileType type,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    createCacheFile(writer, relativePath, type, 0, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file from content written to a stream, so large content does not need to be
+   * built as a String. Content is held in memory up to {@link #getSpoolThreshold()} bytes, and
+   * spooled to a temporary file beyond that, then streamed into the repository.
+   *
+   * <p>
+   * When content hashing, deduplication or precompression is enabled, the content is needed before
+   * it is written, so spooled content is read back into a byte array, and is held in the heap in
+   * full. Content which may not fit in the heap should not be cached while any of them are
+   * enabled.
+   * </p>
+   *
+   * @param writer Writes the content of the cache file. See {@link CacheContentWriter#ofText}
+   *         for text content.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @param timeToLive Milliseconds until the file expires, shortened by up to {@link
+   *         #getTimeToLiveJitter()}. The file does not expire when 0.
+   * @param resourceResolver ResourceResolver used to create the cache file.
+   * @throws CacheBuilderException Failed to write the content, or create the cache file.
+   */
+  protected void createCacheFile(@Nonnull final CacheContentWriter writer,
+          @Nonnull final String relativePath, @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    try (SpooledContent spooledContent = new SpooledContent(getSpoolThreshold())) {
+      try (OutputStream outputStream = spooledContent.getOutputStream()) {
+        writer.writeTo(outputStream);
+      }
+      if (isContentBufferRequired()) {
+        createCacheFile(spooledContent.toByteArray(), relativePath, type, timeToLive,
+                        resourceResolver);
+      } else {
+        try (InputStream inputStream = spooledContent.getInputStream()) {
+          createCacheFile(inputStream, relativePath, type, timeToLive, resourceResolver);
+        }
+      }
+    } catch (final IOException exception) {
+      throw getCreateCacheFileException(relativePath, exception);
+    }
+  }
+
+  /**
+   * Maximum size, in bytes, of content written by a {@link CacheContentWriter} which is held in
+   * memory. Larger content is spooled to a temporary file, unless content hashing, deduplication
+   * or precompression is enabled, which read it back into memory. 256KB by default.
+   *
+   * @return Maximum size, in bytes, of written content held in memory.
+   */
+  protected int getSpoolThreshold() {
+    return 256 * 1024;
+  }
+
+  /**
+   * Whether content must be held in memory before it is written, because it is hashed,
+   * deduplicated or precompressed.
+   */
+  private boolean isContentBufferRequired() {
+    return isContentHashEnabled() || isDeduplicationEnabled()
+           || !getPrecompressedEncodings().isEmpty();
+  }
+
+  private long getCreateStartedAt() {
+    final Long readThroughBuildStartedAt = buildStartedAt.get();
+    return readThroughBuildStartedAt != null ? readThroughBuildStartedAt : System.nanoTime();
+  }
+
+  private long getExpiresAt(final long timeToLive) {
+    return timeToLive > 0 ? System.currentTimeMillis() + ExpiryTracker.getJitteredTimeToLive(
+            timeToLive, getTimeToLiveJitter()) : 0;
+  }
+
+  @Nonnull
+  private static String getCacheFileName(@Nonnull final String relativePath) {
     final String[] pathSegments = relativePath.split("/");
-    final String newFileName = pathSegments[pathSegments.length - 1];
+    return pathSegments[pathSegments.length - 1];
+  }
 
+  /**
+   * Creates the parent folders of a cache file, if they do not exist.
+   *
+   * @return Path of the cache file's parent.
+   */
+  @Nonnull
+  private String createParentResources(@Nonnull final String relativePath,
+          @Nonnull final ResourceResolver resourceResolver) throws CacheBuilderException {
+    final String parentPath = getParentPathFromPath(getCacheFilePath(relativePath));
     if (resourceResolver.getResource(parentPath) == null) {
       try {
         createResourcesFromPath(parentPath, resourceResolver);
@@ -149,16 +617,16 @@ public abstract class JcrFileCacheService extends BaseCacheService {
                                         exception);
       }
     }
-    try {
-      final BaseResource parentResource = getResourceAsBaseResource(parentPath, resourceResolver);
-      createTextFileResourceAndCommit(content, type.getOutputContentType(),
-                                      parentResource.getResource(), newFileName, resourceResolver);
-    } catch (final ResourceNotFoundException | PersistenceException exception) {
-      throw new CacheBuilderException(
-              String.format("%s failed to create jcr cache file for '%s'. %s",
-                            getClass().getSimpleName(), relativePath, exception.getMessage()),
-              exception);
-    }
+    return parentPath;
+  }
+
+  @Nonnull
+  private CacheBuilderException getCreateCacheFileException(@Nonnull final String relativePath,
+          @Nonnull final Exception exception) {
+    return new CacheBuilderException(
+            String.format("%s failed to create jcr cache file for '%s'. %s",
+                          getClass().getSimpleName(), relativePath, exception.getMessage()),
+            exception);
   }
 
   @Nonnull
@@ -166,94 +634,1881 @@ public abstract class JcrFileCacheService extends BaseCacheService {
           @Nonnull final Class<T> type, @Nonnull final ResourceResolver resourceResolver)
           throws ResourceNotFoundException, InvalidResourceTypeException {
 
-    final BaseResource cachedFileResource = getResourceAsBaseResource(
-            getServiceCacheRootPath() + path, resourceResolver);
+    recordAccess(path);
+    final BaseResource cachedFileResource;
+    try {
+      if (isExpiredStale(path) || isExpired(path, resourceResolver)) {
+        throw new ResourceNotFoundException(getCacheFilePath(path));
+      }
+      cachedFileResource = getCachedFileResource(path, resourceResolver);
+    } catch (final ResourceNotFoundException exception) {
+      getCacheStats().recordMiss();
+      throw exception;
+    }
+    getCacheStats().recordHit();
+    if (isStale(path)) {
+      getCacheStats().recordStaleHit();
+    }
     return adaptToFileType(cachedFileResource, type);
   }
 
-  protected boolean isFileCached(@Nonnull final String relativePath,
-          @Nonnull final ResourceResolver resourceResolver) {
-    return resourceResolver.getResource(getServiceCacheRootPath() + relativePath)
-            != null;
+  /**
+   * Creates a cache file on the service's asynchronous executor, using a service ResourceResolver,
+   * so the calling thread does not block on repository writes.
+   *
+   * @param content Content of the cache file.
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type.
+   * @return Future completed when the file has been created, or exceptionally with a
+   *         CacheBuilderException, or a RejectedExecutionException if the asynchronous executor's
+   *         queue is full.
+   */
+  @Nonnull
+  protected CompletableFuture<Void> createCacheFileAsync(@Nonnull final String content,
+          @Nonnull final String relativePath, @Nonnull final FileType type) {
+    return submitAsync(() -> {
+      try (ResourceResolver serviceResourceResolver = getServiceResourceResolver()) {
+        createCacheFile(content, relativePath, type, serviceResourceResolver);
+      } catch (final LoginException exception) {
+        throw new CacheBuilderException(String.format(
+                "Unable to create cache file %s. Failed to open service ResourceResolver. %s",
+                relativePath, exception.getMessage()), exception);
+      }
+      return null;
+    });
   }
 
-  @Override
-  protected void doPurge(@Nonnull final ResourceResolver resourceResolver) throws
-          CachePurgeException {
-    final Resource serviceCacheRootResource = resourceResolver.getResource(
-            getServiceCacheRootPath());
-    log.info("{} purging cache.", getClass().getSimpleName().replaceAll("[\r\n]", ""));
-    if (serviceCacheRootResource != null) {
-      List<BaseResource> resourceToPurgeList = getChildrenAsBaseResource(
-              serviceCacheRootResource);
-      log.debug("Purging {} top level resource.", resourceToPurgeList.size());
-      for (final BaseResource cacheRootChild : resourceToPurgeList) {
-        if (!"rep:policy".equals(cacheRootChild.getName())) {
-          try {
-            resourceResolver.delete(cacheRootChild.getResource());
-            resourceResolver.commit();
-          } catch (final PersistenceException exception) {
-            log.warn("Unable to delete {} while purging cache.",
-                     cacheRootChild.getPath().replaceAll("[\r\n]", ""));
-          }
-        }
+  /**
+   * Retrieves the content of a cached file, building and caching it if it is not cached yet.
+   * Concurrent calls for the same uncached file are coalesced, so the content is built and written
+   * by one thread, and the other threads wait for and receive the same content.
+   *
+   * <p>
+   * If the built content can not be written to the cache, it is still returned. The builder must
+   * not call this method for the same path, since it would wait on its own build.
+   * </p>
+   *
+   * <p>
+   * When stale-while-revalidate is enabled (see {@link #getMaximumStaleness()}), stale content is
+   * returned while the builder rebuilds it in the background.
+   * </p>
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param type File type of the cached file.
+   * @param builder Builds the content of the cached file, if it is not cached.
+   * @return Content of the cached file. Should be closed once read.
+   * @throws CacheBuilderException The content could not be built, or the build did not finish
+   *         within {@link #getBuildWaitTimeout()}.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nonnull
+  public CachedContent getOrBuild(@Nonnull final String relativePath,
+          @Nonnull final FileType type, @Nonnull final CacheFileBuilder builder)
+          throws CacheBuilderException, CacheRetrievalException {
+    return getOrBuild(relativePath, type, 0, builder);
+  }
+
+  /**
+   * Retrieves the content of a cached file, building and caching it with a time to live if it is
+   * not cached yet, or has expired. See {@link #getOrBuild(String, FileType, CacheFileBuilder)}.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param type File type of the cached file.
+   * @param timeToLive Milliseconds until a newly built file expires. Built files do not expire
+   *         when 0.
+   * @param builder Builds the content of the cached file, if it is not cached.
+   * @return Content of the cached file. Should be closed once read.
+   * @throws CacheBuilderException The content could not be built, or the build did not finish
+   *         within {@link #getBuildWaitTimeout()}.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nonnull
+  public CachedContent getOrBuild(@Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final CacheFileBuilder builder)
+          throws CacheBuilderException, CacheRetrievalException {
+    if (isFileCached(relativePath)) {
+      if (isStale(relativePath)) {
+        revalidateStaleCacheFile(relativePath, type, timeToLive, builder);
+      }
+      try {
+        return getCachedFileContent(relativePath);
+      } catch (final ResourceNotFoundException exception) {
+        log.debug("{} cached file '{}' was removed before it was read.",
+                  getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                  relativePath.replaceAll("[\r\n]", ""));
       }
-      log.info("{} successfully purged cache.",
-               getClass().getSimpleName().replaceAll("[\r\n]", ""));
     } else {
-      throw new CachePurgeException(
-              "Failed to purge cache " + getClass().getSimpleName() + ". Cache root resource "
-                      + getServiceCacheRootPath() + " not found.");
+      recordAccess(relativePath);
+      getCacheStats().recordMiss();
+    }
+    final CompletableFuture<CachedContent> build = new CompletableFuture<>();
+    final CompletableFuture<CachedContent> inFlightBuild = inFlightBuilds.putIfAbsent(relativePath,
+                                                                                      build);
+    if (inFlightBuild != null) {
+      return awaitBuild(relativePath, inFlightBuild);
+    }
+    try {
+      final CachedContent content = buildAndCache(relativePath, type, timeToLive, builder);
+      build.complete(content);
+      return content;
+    } catch (final CacheBuilderException | CacheRetrievalException | RuntimeException exception) {
+      build.completeExceptionally(exception);
+      throw exception;
+    } finally {
+      inFlightBuilds.remove(relativePath, build);
     }
   }
 
-  protected void doPurge(@Nonnull String resourcePath,
-          @Nonnull final ResourceResolver resourceResolver)
-          throws CachePurgeException {
-    final Resource serviceCacheRootResource = resourceResolver.getResource(
-            getServiceCacheRootPath());
-    log.info("{} purging cache.", getClass().getSimpleName().replaceAll("[\r\n]", ""));
-    if (serviceCacheRootResource != null) {
-      List<BaseResource> resourceToPurgeList = getChildrenAsBaseResource(
-              serviceCacheRootResource);
-      log.debug("Purging {} top level resource.", resourceToPurgeList.size());
-      for (final BaseResource cacheRootChild : resourceToPurgeList) {
-        if (!"rep:policy".equals(cacheRootChild.getName())) {
-          try {
-            resourceResolver.delete(cacheRootChild.getResource());
-            resourceResolver.commit();
-          } catch (final PersistenceException exception) {
-            log.warn("Unable to delete {} while purging cache.",
-                     cacheRootChild.getPath().replaceAll("[\r\n]", ""));
-          }
+  /**
+   * Milliseconds {@link #getOrBuild(String, FileType, CacheFileBuilder)} waits for another
+   * thread's build of the same file.
+   *
+   * @return Milliseconds to wait for another thread's build of the same file.
+   */
+  protected long getBuildWaitTimeout() {
+    return 30000;
+  }
+
+  /**
+   * Number of cached files currently being built by {@link #getOrBuild(String, FileType,
+   * CacheFileBuilder)}.
+   *
+   * @return Number of cached files currently being built.
+   */
+  public int getInFlightBuildCount() {
+    return inFlightBuilds.size();
+  }
+
+  @Nonnull
+  private CachedContent buildAndCache(@Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final CacheFileBuilder builder)
+          throws CacheBuilderException, CacheRetrievalException {
+    // A build for this path may have finished between the miss and claiming the build.
+    if (isFileCached(relativePath) && !isStale(relativePath)) {
+      try {
+        return readCachedFileContent(relativePath);
+      } catch (final ResourceNotFoundException exception) {
+        log.debug("{} cached file '{}' was removed before it was read.",
+                  getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                  relativePath.replaceAll("[\r\n]", ""));
+      }
+    }
+    return buildAndWrite(relativePath, type, timeToLive, builder);
+  }
+
+  @Nonnull
+  private CachedContent buildAndWrite(@Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final CacheFileBuilder builder)
+          throws CacheBuilderException {
+    buildStartedAt.set(System.nanoTime());
+    try {
+      final byte[] content = builder.build().getBytes(UTF_8);
+      if (isLive()) {
+        try (ResourceResolver serviceResourceResolver = getServiceResourceResolver()) {
+          createCacheFile(content, relativePath, type, timeToLive, serviceResourceResolver);
+        } catch (final LoginException | CacheBuilderException exception) {
+          log.warn("{} was unable to cache built file '{}'. {}",
+                   getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                   relativePath.replaceAll("[\r\n]", ""),
+                   String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
         }
       }
-      log.info("{} successfully purged cache.",
-               getClass().getSimpleName().replaceAll("[\r\n]", ""));
-    } else {
-      throw new CachePurgeException(
-              "Failed to purge cache " + getClass().getSimpleName() + ". Cache root resource "
-                      + getServiceCacheRootPath() + " not found.");
+      return new CachedContent(relativePath, content, type.getOutputContentType());
+    } finally {
+      buildStartedAt.remove();
+    }
+  }
+
+  @Nonnull
+  private CachedContent awaitBuild(@Nonnull final String relativePath,
+          @Nonnull final CompletableFuture<CachedContent> inFlightBuild)
+          throws CacheBuilderException, CacheRetrievalException {
+    try {
+      return inFlightBuild.get(getBuildWaitTimeout(), TimeUnit.MILLISECONDS);
+    } catch (final ExecutionException exception) {
+      final Throwable cause = exception.getCause();
+      if (cause instanceof CacheBuilderException) {
+        throw (CacheBuilderException) cause;
+      }
+      if (cause instanceof CacheRetrievalException) {
+        throw (CacheRetrievalException) cause;
+      }
+      throw new CacheBuilderException(
+              String.format("%s failed to build cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, cause.getMessage()), cause);
+    } catch (final TimeoutException exception) {
+      throw new CacheBuilderException(
+              String.format("%s timed out waiting for cached file '%s' to be built.",
+                            getClass().getSimpleName(), relativePath), exception);
+    } catch (final InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new CacheBuilderException(
+              String.format("%s was interrupted waiting for cached file '%s' to be built.",
+                            getClass().getSimpleName(), relativePath), exception);
     }
+  }
 
+  /**
+   * Retrieves a cached file using the service's long-lived cache read ResourceResolver, so cache
+   * hits do not require a login. The returned file is bound to the cache read ResourceResolver,
+   * which must not be closed.
+   *
+   * @param path Path of the cached file, relative to the cache root.
+   * @param type File model type to adapt to.
+   * @param <T> Extends BaseFile.
+   * @return Cached file.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws InvalidResourceTypeException Cached file could not be adapted to the specified
+   *         type.
+   * @throws CacheRetrievalException Unable to open the cache read ResourceResolver.
+   */
+  @Nonnull
+  protected <T extends BaseFile> T getCachedFile(@Nonnull final String path,
+          @Nonnull final Class<T> type)
+          throws ResourceNotFoundException, InvalidResourceTypeException, CacheRetrievalException {
+    try {
+      return getCachedFile(path, type, getCacheReadResourceResolver().get());
+    } catch (final LoginException exception) {
+      throw new CacheRetrievalException(
+              String.format("%s was unable to retrieve cached file '%s'. %s",
+                            getClass().getSimpleName(), path, exception.getMessage()), exception);
+    }
   }
 
+  /**
+   * Retrieves the content of a cached file. When the in-memory cache is enabled (see {@link
+   * #getInMemoryCacheMaximumBytes()}), hot files are served from memory without reading the
+   * repository. Otherwise, and on in-memory misses, content is read using the cache read
+   * ResourceResolver.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @return Content of the cached file. Should be closed once read, so content held off-heap can
+   *         be reused after it is evicted.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
   @Nonnull
-  String getParentPathFromPath(@Nonnull final String path) {
-    return path.substring(0, path.lastIndexOf('/'));
+  protected CachedContent getCachedFileContent(@Nonnull final String relativePath)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    recordAccess(relativePath);
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    checkCachedFileIsReadable(relativePath, currentInMemoryTier);
+    return getUnencodedCachedFileContent(relativePath, currentInMemoryTier);
   }
 
-  void createResourcesFromPath(@Nonnull String path,
-          @Nonnull final ResourceResolver resourceResolver)
-          throws ResourceNotFoundException, PersistenceException {
-    if (path.startsWith(getServiceCacheRootPath())) {
-      path = path.split(getServiceCacheRootPath())[1];
+  /**
+   * Retrieves the content of a cached file, precompressed with the content encoding most
+   * preferred by the client, when one was stored (see {@link #getPrecompressedEncodings()}).
+   * Otherwise, content is retrieved as is, as by {@link #getCachedFileContent(String)}.
+   * Precompressed content is read using the cache read ResourceResolver, and is not held by the
+   * in-memory cache.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param acceptEncoding Accept-Encoding header of the request being served, or null.
+   * @return Content of the cached file. Its content encoding, if any, should be sent as the
+   *         Content-Encoding header of the response. Should be closed once read, so content held
+   *         off-heap can be reused after it is evicted.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nonnull
+  protected CachedContent getCachedFileContent(@Nonnull final String relativePath,
+          @Nullable final String acceptEncoding)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    final List<String> acceptedEncodings = getAcceptedEncodings(acceptEncoding);
+    if (acceptedEncodings.isEmpty() || getPrecompressedEncodings().isEmpty()) {
+      return getCachedFileContent(relativePath);
     }
-    final String[] pathSegments = path.split("/");
-    final Map<String, Object> properties = new HashMap<>();
-    properties.put(JCR_PRIMARYTYPE, "sling:Folder");
-    BaseResource parentResource = getResourceAsBaseResource(getServiceCacheRootPath(),
-                                                            resourceResolver);
+    recordAccess(relativePath);
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    checkCachedFileIsReadable(relativePath, currentInMemoryTier);
+    final CachedContent encodedContent;
+    try {
+      encodedContent = readEncodedCachedFileContent(relativePath, acceptedEncodings);
+    } catch (final ResourceNotFoundException exception) {
+      getCacheStats().recordMiss();
+      throw exception;
+    }
+    if (encodedContent != null) {
+      getCacheStats().recordHit();
+      return encodedContent;
+    }
+    return getUnencodedCachedFileContent(relativePath, currentInMemoryTier);
+  }
+
+  /**
+   * Throws if a cached file is expired, or stale past {@link #getMaximumStaleness()}, recording
+   * the miss.
+   */
+  private void checkCachedFileIsReadable(@Nonnull final String relativePath,
+          @Nullable final InMemoryTier currentInMemoryTier)
+          throws ResourceNotFoundException {
+    if (isExpired(relativePath)) {
+      if (currentInMemoryTier != null) {
+        currentInMemoryTier.invalidate(relativePath);
+      }
+      getCacheStats().recordMiss();
+      throw new ResourceNotFoundException(getCacheFilePath(relativePath));
+    }
+    if (isStale(relativePath)) {
+      if (isExpiredStale(relativePath)) {
+        getCacheStats().recordMiss();
+        throw new ResourceNotFoundException(getCacheFilePath(relativePath));
+      }
+      getCacheStats().recordStaleHit();
+    }
+  }
+
+  @Nonnull
+  private CachedContent getUnencodedCachedFileContent(@Nonnull final String relativePath,
+          @Nullable final InMemoryTier currentInMemoryTier)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    if (currentInMemoryTier != null) {
+      final CachedContent cachedContent = currentInMemoryTier.get(relativePath);
+      if (cachedContent != null) {
+        // Null if the content was evicted and released after it was read from the cache.
+        final CachedContent retainedContent = cachedContent.retain();
+        if (retainedContent != null) {
+          getCacheStats().recordHit();
+          return retainedContent;
+        }
+      }
+    }
+    // Read before loading, so content loaded before a purge is not cached after it.
+    final long generation = currentInMemoryTier != null ? currentInMemoryTier.getGeneration() : 0;
+    final CachedContent loadedContent;
+    try {
+      if (currentInMemoryTier != null && currentInMemoryTier.getOffHeapSlabStore() != null) {
+        final CachedContent offHeapContent = loadCachedFileContentOffHeap(relativePath,
+                                                                          currentInMemoryTier,
+                                                                          generation);
+        if (offHeapContent != null) {
+          getCacheStats().recordHit();
+          return offHeapContent;
+        }
+      }
+      loadedContent = readCachedFileContent(relativePath);
+    } catch (final ResourceNotFoundException exception) {
+      getCacheStats().recordMiss();
+      throw exception;
+    }
+    getCacheStats().recordHit();
+    if (currentInMemoryTier != null) {
+      currentInMemoryTier.put(loadedContent, generation);
+    }
+    return loadedContent;
+  }
+
+  /**
+   * Streams the content of a cached file from the repository straight into the off-heap store.
+   *
+   * @return Content held off-heap, or null if it could not be stored off-heap, so should be read
+   *         onto the heap instead.
+   */
+  @Nullable
+  private CachedContent loadCachedFileContentOffHeap(@Nonnull final String relativePath,
+          @Nonnull final InMemoryTier currentInMemoryTier, final long generation)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    final Resource contentResource = getCachedContentResource(relativePath);
+    final String mimeType = contentResource.getValueMap().get(JCR_MIMETYPE, "");
+    // Known when the resource provider exposes properties as resources, as the JCR provider does.
+    final Resource dataResource = contentResource.getChild(JCR_DATA);
+    final long contentLength = dataResource != null
+                               ? dataResource.getResourceMetadata().getContentLength() : -1;
+    try (InputStream inputStream = contentResource.getValueMap().get(JCR_DATA,
+                                                                      InputStream.class)) {
+      if (inputStream == null || contentLength > Integer.MAX_VALUE) {
+        return null;
+      }
+      return currentInMemoryTier.load(relativePath, inputStream, (int) contentLength, mimeType,
+                                      generation);
+    } catch (final IOException exception) {
+      throw new CacheRetrievalException(
+              String.format("%s was unable to read cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, exception.getMessage()),
+              exception);
+    }
+  }
+
+  /**
+   * Reads the content of a cached file from the repository, using the cache read
+   * ResourceResolver.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @return Content of the cached file.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nonnull
+  protected CachedContent readCachedFileContent(@Nonnull final String relativePath)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    return readCachedContent(getCachedContentResource(relativePath), relativePath, JCR_DATA,
+                             null);
+  }
+
+  /**
+   * Reads the content of a cached file from the repository, precompressed with the most preferred
+   * accepted content encoding which was stored, using the cache read ResourceResolver.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param acceptedEncodings Accepted content encodings, most preferred first.
+   * @return Precompressed content of the cached file, or null if no accepted encoding was stored,
+   *         or unencoded content is preferred.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nullable
+  protected CachedContent readEncodedCachedFileContent(@Nonnull final String relativePath,
+          @Nonnull final List<String> acceptedEncodings)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    final Resource contentResource = getCachedContentResource(relativePath);
+    final ValueMap properties = contentResource.getValueMap();
+    for (final String acceptedEncoding : acceptedEncodings) {
+      if (IDENTITY.equals(acceptedEncoding)) {
+        return null;
+      }
+      for (final String precompressedEncoding : getPrecompressedEncodings()) {
+        if ((ANY.equals(acceptedEncoding) || acceptedEncoding.equals(precompressedEncoding))
+            && properties.containsKey(getEncodedDataPropertyName(precompressedEncoding))) {
+          return readCachedContent(contentResource, relativePath,
+                                   getEncodedDataPropertyName(precompressedEncoding),
+                                   precompressedEncoding);
+        }
+      }
+    }
+    return null;
+  }
+
+  @Nonnull
+  private Resource getCachedContentResource(@Nonnull final String relativePath)
+          throws ResourceNotFoundException, CacheRetrievalException {
+    final ResourceResolver resourceResolver;
+    try {
+      resourceResolver = getCacheReadResourceResolver().get();
+    } catch (final LoginException exception) {
+      throw new CacheRetrievalException(
+              String.format("%s was unable to retrieve cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, exception.getMessage()),
+              exception);
+    }
+    final Resource contentResource = resourceResolver.getResource(
+            getCacheFilePath(relativePath) + "/" + JCR_CONTENT);
+    if (contentResource == null) {
+      throw new ResourceNotFoundException(getCacheFilePath(relativePath));
+    }
+    final Long expiresAt = contentResource.getValueMap().get(EXPIRES_AT_PROPERTY, Long.class);
+    if (expiresAt != null) {
+      // Files created before the service was restarted are only known to expire once read.
+      trackExpiry(relativePath, expiresAt);
+      if (System.currentTimeMillis() >= expiresAt) {
+        throw new ResourceNotFoundException(getCacheFilePath(relativePath));
+      }
+    }
+    final String blobName = contentResource.getValueMap().get(BLOB_PROPERTY, String.class);
+    if (blobName != null) {
+      final Resource blobContentResource = resourceResolver.getResource(
+              getBlobStore().getBlobPath(blobName) + "/" + JCR_CONTENT);
+      if (blobContentResource == null) {
+        throw new ResourceNotFoundException(getCacheFilePath(relativePath));
+      }
+      return blobContentResource;
+    }
+    return contentResource;
+  }
+
+  @Nonnull
+  private CachedContent readCachedContent(@Nonnull final Resource contentResource,
+          @Nonnull final String relativePath, @Nonnull final String dataPropertyName,
+          @Nullable final String contentEncoding) throws CacheRetrievalException {
+    final String mimeType = contentResource.getValueMap().get(JCR_MIMETYPE, "");
+    try (InputStream inputStream = contentResource.getValueMap().get(dataPropertyName,
+                                                                      InputStream.class)) {
+      if (inputStream == null) {
+        throw new CacheRetrievalException(
+                String.format("%s was unable to retrieve cached file '%s'. File has no content.",
+                              getClass().getSimpleName(), relativePath));
+      }
+      return new CachedContent(relativePath, readFully(inputStream), mimeType, contentEncoding);
+    } catch (final IOException exception) {
+      throw new CacheRetrievalException(
+              String.format("%s was unable to read cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, exception.getMessage()),
+              exception);
+    }
+  }
+
+  /**
+   * Content encodings, such as gzip, which cache files are precompressed with when they are
+   * created, so responses can be served compressed without compressing on every request.
+   * Precompressed content is stored alongside the file's content, in a binary property of its
+   * jcr:content Resource, and is served by {@link #getCachedFileContent(String, String)}. Empty
+   * by default, which disables precompression. Encodings not supported by {@link
+   * #encodeContent(byte[], String)} are skipped.
+   *
+   * @return Content encodings cache files are precompressed with, most preferred first.
+   */
+  @Nonnull
+  protected List<String> getPrecompressedEncodings() {
+    return Collections.emptyList();
+  }
+
+  /**
+   * Smallest cache file size, in bytes, which is precompressed. Smaller files gain little from
+   * compression. Defaults to 1024 bytes.
+   *
+   * @return Smallest cache file size, in bytes, which is precompressed.
+   */
+  protected int getPrecompressionMinimumSize() {
+    return 1024;
+  }
+
+  /**
+   * Encodes cache file content with a content encoding. Supports gzip, and can be overridden to
+   * support other encodings, such as brotli, when an encoder is available.
+   *
+   * @param content Content of the cache file.
+   * @param encoding Content encoding.
+   * @return Encoded content, or null if the encoding is not supported.
+   * @throws IOException Failed to encode the content.
+   */
+  @Nullable
+  protected byte[] encodeContent(@Nonnull final byte[] content, @Nonnull final String encoding)
+          throws IOException {
+    if (GZIP.equals(encoding)) {
+      return gzip(content);
+    }
+    return null;
+  }
+
+  /**
+   * Name of the jcr:content property holding content precompressed with an encoding.
+   *
+   * @param encoding Content encoding.
+   * @return Name of the jcr:content property holding content precompressed with the encoding.
+   */
+  @Nonnull
+  static String getEncodedDataPropertyName(@Nonnull final String encoding) {
+    return encoding + ENCODED_DATA_PROPERTY_SUFFIX;
+  }
+
+  @Nonnull
+  private Map<String, Object> getPrecompressedContentProperties(
+          @Nonnull final byte[] contentBytes, @Nonnull final String relativePath) {
+    final List<String> precompressedEncodings = getPrecompressedEncodings();
+    if (precompressedEncodings.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    if (contentBytes.length < getPrecompressionMinimumSize()) {
+      return Collections.emptyMap();
+    }
+    final Map<String, Object> precompressedContentProperties = new HashMap<>();
+    for (final String encoding : precompressedEncodings) {
+      try {
+        final byte[] encodedContent = encodeContent(contentBytes, encoding);
+        if (encodedContent == null) {
+          log.debug("{} does not support precompressing cache files with {}.",
+                    getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                    encoding.replaceAll("[\r\n]", ""));
+        } else if (encodedContent.length < contentBytes.length) {
+          precompressedContentProperties.put(getEncodedDataPropertyName(encoding),
+                                             new ByteArrayInputStream(encodedContent));
+        }
+      } catch (final IOException exception) {
+        log.warn("{} was unable to precompress '{}' with {}. {}",
+                 getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                 relativePath.replaceAll("[\r\n]", ""), encoding.replaceAll("[\r\n]", ""),
+                 String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+      }
+    }
+    return precompressedContentProperties;
+  }
+
+  /**
+   * Maximum total size, in bytes, of cached file content held in memory. The in-memory cache is
+   * disabled when 0, which is the default. The least recently read files are evicted when the
+   * maximum is exceeded. Files created from a String or byte array are held once created, and
+   * streamed files once first read, so enabling the in-memory cache does not stop content being
+   * streamed into the repository. Files held in memory are also known to be cached by {@link
+   * #isFileCached(String)} and {@link #getCachedFile(String, Class, ResourceResolver)} without
+   * reading the repository to check they have not expired.
+   *
+   * @return Maximum total size, in bytes, of cached file content held in memory.
+   */
+  protected long getInMemoryCacheMaximumBytes() {
+    return 0;
+  }
+
+  /**
+   * In-memory tier holding file content, created on first use.
+   *
+   * @return In-memory tier, or null if it is disabled.
+   */
+  @Nullable
+  synchronized InMemoryTier getInMemoryTier() {
+    if (inMemoryTier == null && getInMemoryCacheMaximumBytes() > 0) {
+      inMemoryTier = new InMemoryTier(getInMemoryCacheMaximumBytes(),
+              isInMemoryCacheOffHeap() ? getOffHeapSlabSize() : 0,
+              () -> getCacheStats().recordEviction());
+    }
+    return inMemoryTier;
+  }
+
+  /**
+   * In-memory cache of file content, created on first use.
+   *
+   * @return In-memory cache of file content, or null if it is disabled.
+   */
+  @Nullable
+  protected WeightedLruCache<String, CachedContent> getInMemoryCache() {
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    if (currentInMemoryTier != null) {
+      return currentInMemoryTier.getCache();
+    }
+    return null;
+  }
+
+  /**
+   * Whether the in-memory cache holds file content outside the Java heap, in direct buffer slabs,
+   * so large cached files do not add to garbage collection pressure. Content read from the
+   * repository is streamed straight into a slab, rather than by {@link
+   * #readCachedFileContent(String)}, unless there is not enough free space. Disabled by default.
+   *
+   * @return Whether the in-memory cache holds file content outside the Java heap.
+   */
+  protected boolean isInMemoryCacheOffHeap() {
+    return false;
+  }
+
+  /**
+   * Size, in bytes, of each slab reserved for off-heap content. Files larger than a slab are not
+   * held in memory.
+   *
+   * @return Size, in bytes, of each off-heap slab.
+   */
+  protected int getOffHeapSlabSize() {
+    return 4 * 1024 * 1024;
+  }
+
+  /**
+   * Off-heap store holding the in-memory cache's content, created along with the in-memory
+   * cache.
+   *
+   * @return Off-heap store, or null if the in-memory cache is disabled or held on the heap.
+   */
+  @Nullable
+  protected synchronized OffHeapSlabStore getOffHeapSlabStore() {
+    if (inMemoryTier != null) {
+      return inMemoryTier.getOffHeapSlabStore();
+    }
+    return null;
+  }
+
+  /**
+   * Clears and discards the in-memory cache. A new one is created if it is used again.
+   */
+  protected synchronized void closeInMemoryCache() {
+    if (inMemoryTier != null) {
+      inMemoryTier.close();
+      inMemoryTier = null;
+    }
+  }
+
+  /**
+   * Called after a cache file is created, to keep the cache's tiers coherent with the
+   * repository.
+   *
+   * @param contentBytes Content of the new cache file, or null if it was streamed.
+   * @param contentLength Size of the new cache file, in bytes.
+   * @param relativePath Path of the new cache file, relative to the cache root.
+   * @param type File type of the new cache file.
+   * @param buildNanos Time taken to create the cache file, in nanoseconds.
+   * @param expiresAt Time the cache file expires, in milliseconds since the epoch, or 0.
+   */
+  private void afterCacheFileCreated(@Nullable final byte[] contentBytes,
+          final long contentLength, @Nonnull final String relativePath,
+          @Nonnull final FileType type, final long buildNanos, final long expiresAt) {
+    getCacheStats().recordBuild(buildNanos, contentLength);
+    final long currentStaleGeneration = staleGeneration;
+    if (currentStaleGeneration != 0) {
+      revalidatedGenerations.put(relativePath, currentStaleGeneration);
+    }
+    if (expiresAt > 0) {
+      trackExpiry(relativePath, expiresAt);
+    } else {
+      expiryTracker.untrack(relativePath);
+    }
+    markCacheReadResourceResolverStale();
+    addToCachedPathIndex(relativePath);
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    if (currentInMemoryTier != null) {
+      currentInMemoryTier.invalidate(relativePath);
+      if (contentBytes != null) {
+        currentInMemoryTier.put(new CachedContent(relativePath, contentBytes,
+                                                  type.getOutputContentType()),
+                                currentInMemoryTier.getGeneration());
+      }
+    }
+  }
+
+  /**
+   * Called after cache files are purged from the repository, to keep the cache's tiers coherent
+   * with the repository.
+   *
+   * @param purgedAll Whether every cache file was removed.
+   */
+  private void afterCacheFilesPurged(final boolean purgedAll) {
+    markCacheReadResourceResolverStale();
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    if (currentInMemoryTier != null) {
+      currentInMemoryTier.invalidateAll();
+    }
+    final CachedPathIndex currentCachedPathIndex = getOpenCachedPathIndex();
+    // Files that failed to delete are still cached, so they are kept in the index.
+    if (currentCachedPathIndex != null && purgedAll) {
+      currentCachedPathIndex.clear();
+    }
+    if (purgedAll) {
+      expiryTracker.clear();
+    }
+  }
+
+  /**
+   * Milliseconds stale cache files can be served after a purge. Stale-while-revalidate is
+   * disabled when 0, which is the default, and purges delete every cache file. Otherwise, purges
+   * mark every cache file stale. Stale files are served until they are rebuilt by {@link
+   * #getOrBuild(String, FileType, CacheFileBuilder)}, and are deleted once they have been stale
+   * for longer than this.
+   *
+   * @return Milliseconds stale cache files can be served after a purge.
+   */
+  protected long getMaximumStaleness() {
+    return 0;
+  }
+
+  /**
+   * Maximum number of stale cache files rebuilt in the background at once. Stale files read
+   * while every rebuild slot is taken are served without being rebuilt, and are rebuilt when next
+   * read.
+   *
+   * @return Maximum number of stale cache files rebuilt in the background at once.
+   */
+  protected int getStaleRevalidationConcurrency() {
+    return 2;
+  }
+
+  /**
+   * Whether a cache file was created before the cache was last purged, and has not been rebuilt
+   * since.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Whether the cache file is stale.
+   */
+  protected boolean isStale(@Nonnull final String relativePath) {
+    final long currentStaleGeneration = staleGeneration;
+    return currentStaleGeneration != 0 && isStale(relativePath, currentStaleGeneration);
+  }
+
+  /**
+   * Rebuilds a stale cache file on the service's asynchronous executor. Skipped if the file is
+   * already being built, or every rebuild slot is taken.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param type File type of the cache file.
+   * @param timeToLive Milliseconds until the rebuilt file expires, or 0.
+   * @param builder Builds the content of the cache file.
+   * @return Future completed with the rebuilt content, or null if the rebuild was skipped.
+   */
+  @Nullable
+  CompletableFuture<CachedContent> revalidateStaleCacheFile(@Nonnull final String relativePath,
+          @Nonnull final FileType type, final long timeToLive,
+          @Nonnull final CacheFileBuilder builder) {
+    final Semaphore permits = getStaleRevalidationPermits();
+    if (!permits.tryAcquire()) {
+      return null;
+    }
+    final CompletableFuture<CachedContent> revalidation = new CompletableFuture<>();
+    if (inFlightBuilds.putIfAbsent(relativePath, revalidation) != null) {
+      permits.release();
+      return null;
+    }
+    submitAsync(() -> buildAndWrite(relativePath, type, timeToLive, builder)).whenComplete(
+            (content, throwable) -> {
+              inFlightBuilds.remove(relativePath, revalidation);
+              permits.release();
+              if (throwable != null) {
+                log.warn("{} was unable to rebuild stale cache file '{}'. {}",
+                         getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                         relativePath.replaceAll("[\r\n]", ""),
+                         String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+                revalidation.completeExceptionally(throwable);
+              } else {
+                revalidation.complete(content);
+              }
+            });
+    return revalidation;
+  }
+
+  /**
+   * Deletes stale cache files. Called once stale files have passed {@link #getMaximumStaleness()},
+   * and when the service deactivates.
+   *
+   * @param resourceResolver ResourceResolver used to delete stale cache files.
+   */
+  void dropStaleCacheFiles(@Nonnull final ResourceResolver resourceResolver) {
+    final long droppedStaleGeneration = staleGeneration;
+    if (droppedStaleGeneration == 0) {
+      return;
+    }
+    final Resource cacheRootResource = resourceResolver.getResource(getServiceCacheRootPath());
+    if (cacheRootResource == null) {
+      return;
+    }
+    final List<Resource> staleResources = new ArrayList<>();
+    collectStaleResources(cacheRootResource, cacheRootResource.getPath().length(),
+                          droppedStaleGeneration, staleResources);
+    boolean droppedAll = true;
+    for (final Resource staleResource : staleResources) {
+      try {
+        deleteCacheResource(staleResource, resourceResolver);
+      } catch (final PersistenceException exception) {
+        droppedAll = false;
+        resourceResolver.revert();
+        log.warn("Unable to delete stale {} from cache.",
+                 staleResource.getPath().replaceAll("[\r\n]", ""));
+      }
+    }
+    afterCacheFilesPurged(false);
+    if (droppedAll) {
+      finishStaleDrop(droppedStaleGeneration);
+    }
+    log.info("{} deleted {} stale cache resources.",
+             getClass().getSimpleName().replaceAll("[\r\n]", ""), staleResources.size());
+  }
+
+  /**
+   * Marks every cache file stale, rather than deleting it.
+   */
+  private synchronized void markCacheFilesStale() {
+    if (staleGeneration == 0) {
+      staleDeadline = System.currentTimeMillis() + getMaximumStaleness();
+    }
+    lastStaleGeneration++;
+    staleGeneration = lastStaleGeneration;
+    log.info("{} marked cache files stale.", getClass().getSimpleName().replaceAll("[\r\n]", ""));
+  }
+
+  private synchronized void finishStaleDrop(final long droppedStaleGeneration) {
+    // Files marked stale by a purge during the drop are kept until they expire.
+    if (staleGeneration == droppedStaleGeneration) {
+      staleGeneration = 0;
+      staleDeadline = 0;
+      revalidatedGenerations.clear();
+    }
+  }
+
+  private boolean isStale(@Nonnull final String relativePath, final long currentStaleGeneration) {
+    return revalidatedGenerations.getOrDefault(relativePath, 0L) < currentStaleGeneration;
+  }
+
+  /**
+   * Whether a cache file is stale and has passed {@link #getMaximumStaleness()}, in which case it
+   * is treated as not cached and stale files are deleted in the background.
+   */
+  private boolean isExpiredStale(@Nonnull final String relativePath) {
+    if (!isStale(relativePath) || System.currentTimeMillis() < staleDeadline) {
+      return false;
+    }
+    scheduleStaleCacheFileDrop();
+    return true;
+  }
+
+  private void scheduleStaleCacheFileDrop() {
+    if (!staleDropScheduled.compareAndSet(false, true)) {
+      return;
+    }
+    submitAsync(() -> {
+      try (ResourceResolver resourceResolver = getServiceResourceResolver()) {
+        dropStaleCacheFiles(resourceResolver);
+        return null;
+      }
+    }).whenComplete((result, throwable) -> {
+      staleDropScheduled.set(false);
+      if (throwable != null) {
+        log.warn("{} was unable to delete stale cache files. {}",
+                 getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                 String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+      }
+    });
+  }
+
+  /**
+   * Collects the largest subtrees under a Resource which only hold stale cache files.
+   *
+   * @return Whether every cache file under the Resource is stale.
+   */
+  private boolean collectStaleResources(@Nonnull final Resource resource, final int rootPathLength,
+          final long droppedStaleGeneration, @Nonnull final List<Resource> staleResources) {
+    final boolean isCacheRoot = resource.getPath().length() == rootPathLength;
+    if (!isCacheRoot && resource.getChild(JCR_CONTENT) != null) {
+      return isStale(getRelativePath(resource.getPath(), rootPathLength), droppedStaleGeneration);
+    }
+    final List<Resource> staleChildren = new ArrayList<>();
+    boolean allStale = true;
+    for (final Resource child : resource.getChildren()) {
+      if (isIndexablePath(child.getName()) && !isBlobRoot(child)) {
+        if (collectStaleResources(child, rootPathLength, droppedStaleGeneration,
+                                  staleResources)) {
+          staleChildren.add(child);
+        } else {
+          allStale = false;
+        }
+      }
+    }
+    // The cache root is never deleted, and fully stale folders are deleted by their parent.
+    if (isCacheRoot || !allStale) {
+      staleResources.addAll(staleChildren);
+    }
+    return allStale;
+  }
+
+  @Nonnull
+  private synchronized Semaphore getStaleRevalidationPermits() {
+    if (staleRevalidationPermits == null) {
+      staleRevalidationPermits = new Semaphore(Math.max(1, getStaleRevalidationConcurrency()));
+    }
+    return staleRevalidationPermits;
+  }
+
+  /**
+   * Fraction, between 0 and 1, by which the time to live of cache files is randomly shortened,
+   * so files created together do not all expire and get rebuilt at the same moment. Defaults to
+   * 0.1.
+   *
+   * @return Fraction by which the time to live of cache files is randomly shortened.
+   */
+  protected double getTimeToLiveJitter() {
+    return 0.1;
+  }
+
+  /**
+   * Milliseconds between background sweeps which delete expired cache files. Sweeps start when
+   * the service is activated, or a cache file with a time to live is created or read, and are
+   * disabled when 0. Defaults to 1 minute.
+   *
+   * @return Milliseconds between background sweeps which delete expired cache files.
+   */
+  protected long getExpirySweepInterval() {
+    return 60000;
+  }
+
+  /**
+   * Fraction, between 0 and 1, by which each interval between expiry sweeps is randomly
+   * lengthened or shortened, so sweeps of services and instances started together spread out.
+   * Defaults to 0.2.
+   *
+   * @return Fraction by which each interval between expiry sweeps is randomly changed.
+   */
+  protected double getExpirySweepJitter() {
+    return 0.2;
+  }
+
+  /**
+   * Whether a cache file created with a time to live has expired.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Whether the cache file has expired.
+   */
+  protected boolean isExpired(@Nonnull final String relativePath) {
+    final Long expiresAt = expiryTracker.getExpiresAt(relativePath);
+    return expiresAt != null && System.currentTimeMillis() >= expiresAt;
+  }
+
+  /**
+   * Whether a cache file has expired, reading its expiry time from the repository when it is not
+   * known, as for files created before the service was activated. Each file's expiry time is read
+   * at most once, and not at all once a sweep has scanned the repository.
+   */
+  private boolean isExpired(@Nonnull final String relativePath,
+          @Nonnull final ResourceResolver resourceResolver) {
+    if (isExpired(relativePath)) {
+      return true;
+    }
+    // Files held in memory were created or read by this service, so their expiry is tracked.
+    if (expiryTracker.isKnown(relativePath) || isHeldInMemory(relativePath)) {
+      return false;
+    }
+    final Resource contentResource = resourceResolver.getResource(
+            getCacheFilePath(relativePath) + "/" + JCR_CONTENT);
+    if (contentResource == null) {
+      return false;
+    }
+    final Long expiresAt = contentResource.getValueMap().get(EXPIRES_AT_PROPERTY, Long.class);
+    if (expiresAt == null) {
+      expiryTracker.untrack(relativePath);
+      return false;
+    }
+    trackExpiry(relativePath, expiresAt);
+    return System.currentTimeMillis() >= expiresAt;
+  }
+
+  /**
+   * Deletes expired cache files, and records when the remaining cache files expire.
+   *
+   * @param resourceResolver ResourceResolver used to read and delete cache files.
+   * @return Number of expired cache files deleted.
+   */
+  int sweepExpiredCacheFiles(@Nonnull final ResourceResolver resourceResolver) {
+    final Resource cacheRootResource = resourceResolver.getResource(getServiceCacheRootPath());
+    if (cacheRootResource == null) {
+      return 0;
+    }
+    final long now = System.currentTimeMillis();
+    final int rootPathLength = cacheRootResource.getPath().length();
+    final Map<Resource, Long> expiredResources = new HashMap<>();
+    final Deque<Resource> resourcesToVisit = new ArrayDeque<>();
+    resourcesToVisit.push(cacheRootResource);
+    while (!resourcesToVisit.isEmpty()) {
+      for (final Resource child : resourcesToVisit.pop().getChildren()) {
+        if (!isIndexablePath(child.getName()) || isBlobRoot(child)) {
+          continue;
+        }
+        final Resource contentResource = child.getChild(JCR_CONTENT);
+        if (contentResource == null) {
+          resourcesToVisit.push(child);
+          continue;
+        }
+        final Long expiresAt = contentResource.getValueMap().get(EXPIRES_AT_PROPERTY, Long.class);
+        if (expiresAt != null) {
+          // Expired files stay tracked until deleted, so they are not served if deletion fails.
+          expiryTracker.track(getRelativePath(child.getPath(), rootPathLength), expiresAt);
+          if (now >= expiresAt) {
+            expiredResources.put(child, expiresAt);
+          }
+        }
+      }
+    }
+    expiryTracker.markScanned();
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    int deletedCount = 0;
+    for (final Map.Entry<Resource, Long> expiredResource : expiredResources.entrySet()) {
+      final String relativePath = getRelativePath(expiredResource.getKey().getPath(),
+                                                  rootPathLength);
+      try {
+        deleteCacheResource(expiredResource.getKey(), resourceResolver);
+        deletedCount++;
+        expiryTracker.untrack(relativePath, expiredResource.getValue());
+        if (currentInMemoryTier != null) {
+          currentInMemoryTier.invalidate(relativePath);
+        }
+      } catch (final PersistenceException exception) {
+        resourceResolver.revert();
+        log.warn("Unable to delete expired {} from cache.",
+                 expiredResource.getKey().getPath().replaceAll("[\r\n]", ""));
+      }
+    }
+    if (deletedCount > 0) {
+      markCacheReadResourceResolverStale();
+    }
+    log.debug("{} deleted {} expired cache files.",
+              getClass().getSimpleName().replaceAll("[\r\n]", ""), deletedCount);
+    return deletedCount;
+  }
+
+  /**
+   * Stops background expiry sweeps. Sweeps start again once the service is activated, or a cache
+   * file with a time to live is created or read.
+   */
+  protected void stopExpirySweeper() {
+    expiryTracker.stopSweeper();
+  }
+
+  /**
+   * Whether background expiry sweeps are scheduled.
+   *
+   * @return Whether background expiry sweeps are scheduled.
+   */
+  public boolean isExpirySweeperRunning() {
+    return expiryTracker.isSweeperRunning();
+  }
+
+  private void deleteIfStaleOrExpired(@Nonnull final String relativePath,
+          @Nonnull final ResourceResolver resourceResolver) throws PersistenceException {
+    if (!isStale(relativePath) && !isExpired(relativePath)) {
+      return;
+    }
+    final Resource existingResource = resourceResolver.getResource(
+            getCacheFilePath(relativePath));
+    if (existingResource != null) {
+      // Committed along with the new file.
+      final List<String> blobNames = getReferencedBlobNames(existingResource);
+      resourceResolver.delete(existingResource);
+      for (final String blobName : blobNames) {
+        getBlobStore().release(blobName, resourceResolver);
+      }
+    }
+  }
+
+  private void trackExpiry(@Nonnull final String relativePath, final long expiresAt) {
+    expiryTracker.track(relativePath, expiresAt);
+    if (!expiryTracker.isSweeperRunning()) {
+      startExpirySweeper();
+    }
+  }
+
+  private void startExpirySweeper() {
+    if (getExpirySweepInterval() > 0) {
+      expiryTracker.startSweeper(String.format("%s-expiry-sweeper", getClass().getSimpleName()),
+                                 getNextExpirySweepDelay(), this::runExpirySweep);
+    }
+  }
+
+  private long getNextExpirySweepDelay() {
+    return ExpiryTracker.getJitteredDelay(getExpirySweepInterval(), getExpirySweepJitter());
+  }
+
+  /**
+   * Sweeps on the service's asynchronous executor, so sweeps share its bounded threads, and
+   * schedules the next sweep once this one finishes.
+   */
+  private void runExpirySweep() {
+    submitAsync(() -> {
+      try (ResourceResolver resourceResolver = getServiceResourceResolver()) {
+        return sweepExpiredCacheFiles(resourceResolver);
+      }
+    }).whenComplete((deletedCount, throwable) -> {
+      if (throwable != null) {
+        log.warn("{} was unable to sweep expired cache files. {}",
+                 getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                 String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+      }
+      if (!expiryTracker.scheduleSweep(getNextExpirySweepDelay(), this::runExpirySweep)) {
+        log.debug("{} expiry sweeper was stopped.",
+                  getClass().getSimpleName().replaceAll("[\r\n]", ""));
+      }
+    });
+  }
+
+  /**
+   * Whether the cached path index is used to answer {@link #isFileCached(String)} without reading
+   * the repository for files which are not cached. Disabled by default. Should only be enabled
+   * when the cache root is written to by this service alone, since files created by other means
+   * are not indexed until the index is rebuilt.
+   *
+   * @return Whether the cached path index is enabled.
+   */
+  protected boolean isCachedPathIndexEnabled() {
+    return false;
+  }
+
+  /**
+   * Number of paths the cached path index holds in an exact set, before switching to a Bloom
+   * filter.
+   *
+   * @return Number of paths held in an exact set.
+   */
+  protected int getCachedPathIndexExactLimit() {
+    return 100000;
+  }
+
+  /**
+   * False positive probability of the cached path index, once it has switched to a Bloom filter.
+   * False positives are confirmed against the repository.
+   *
+   * @return False positive probability of the cached path index.
+   */
+  protected double getCachedPathIndexFalsePositiveProbability() {
+    return 0.01;
+  }
+
+  /**
+   * Index of cached paths, created and built from the repository on first use. Until the first
+   * build completes, every path is checked against the repository.
+   *
+   * @return Index of cached paths, or null if it is disabled.
+   */
+  @Nullable
+  protected synchronized CachedPathIndex getCachedPathIndex() {
+    if (cachedPathIndex == null && isCachedPathIndexEnabled()) {
+      cachedPathIndex = new CachedPathIndex(getCachedPathIndexExactLimit(),
+                                            getCachedPathIndexFalsePositiveProbability());
+      rebuildCachedPathIndex();
+    }
+    return cachedPathIndex;
+  }
+
+  /**
+   * Rebuilds the cached path index from the repository, on the service's asynchronous executor.
+   * Files created or purged while the index is rebuilt are applied to the rebuilt index.
+   *
+   * @return Future completed when the index has been rebuilt, or exceptionally if the repository
+   *         could not be read. Completed immediately if the index is disabled.
+   */
+  @Nonnull
+  public CompletableFuture<Void> rebuildCachedPathIndex() {
+    final CachedPathIndex currentCachedPathIndex = getCachedPathIndex();
+    if (currentCachedPathIndex == null) {
+      return CompletableFuture.completedFuture(null);
+    }
+    final long rebuildToken = currentCachedPathIndex.startRebuild();
+    final CompletableFuture<Void> rebuild = submitAsync(() -> {
+      try (ResourceResolver resourceResolver = getServiceResourceResolver()) {
+        final List<String> cachedPaths = readCachedPaths(resourceResolver);
+        if (currentCachedPathIndex.completeRebuild(rebuildToken, cachedPaths)) {
+          log.debug("{} rebuilt cached path index with {} paths.",
+                    getClass().getSimpleName().replaceAll("[\r\n]", ""), cachedPaths.size());
+        }
+        return null;
+      }
+    });
+    rebuild.whenComplete((result, throwable) -> {
+      if (throwable != null) {
+        currentCachedPathIndex.abandonRebuild(rebuildToken);
+        log.warn("{} was unable to rebuild cached path index. {}",
+                 getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                 String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+      }
+    });
+    return rebuild;
+  }
+
+  /**
+   * Discards the cached path index. A new one is created and built if it is used again.
+   */
+  protected synchronized void closeCachedPathIndex() {
+    cachedPathIndex = null;
+  }
+
+  /**
+   * Paths, relative to the cache root, of every indexable Resource under the cache root.
+   *
+   * @param resourceResolver ResourceResolver used to read the cache root.
+   * @return Paths of every indexable Resource under the cache root.
+   */
+  @Nonnull
+  List<String> readCachedPaths(@Nonnull final ResourceResolver resourceResolver) {
+    final List<String> cachedPaths = new ArrayList<>();
+    final Resource cacheRootResource = resourceResolver.getResource(getServiceCacheRootPath());
+    if (cacheRootResource == null) {
+      return cachedPaths;
+    }
+    final int rootPathLength = cacheRootResource.getPath().length();
+    final int shardPathLength = getShardPathLength();
+    final Deque<Resource> resourcesToVisit = new ArrayDeque<>();
+    resourcesToVisit.push(cacheRootResource);
+    while (!resourcesToVisit.isEmpty()) {
+      for (final Resource child : resourcesToVisit.pop().getChildren()) {
+        if (isIndexablePath(child.getName()) && !isBlobRoot(child)) {
+          // Shard folders are not cached paths.
+          if (child.getPath().length() - rootPathLength > shardPathLength) {
+            cachedPaths.add(getRelativePath(child.getPath(), rootPathLength));
+          }
+          resourcesToVisit.push(child);
+        }
+      }
+    }
+    return cachedPaths;
+  }
+
+  /**
+   * Whether the cached path index can answer that a file is not cached, without reading the
+   * repository.
+   *
+   * @param relativePath Path of the file, relative to the cache root.
+   * @return Whether the file is definitely not cached.
+   */
+  private boolean isDefinitelyNotCached(@Nonnull final String relativePath) {
+    final CachedPathIndex currentCachedPathIndex = getOpenCachedPathIndex();
+    return currentCachedPathIndex != null && isIndexablePath(relativePath)
+           && !currentCachedPathIndex.mightContain(relativePath);
+  }
+
+  private void addToCachedPathIndex(@Nonnull final String relativePath) {
+    final CachedPathIndex currentCachedPathIndex = getOpenCachedPathIndex();
+    if (currentCachedPathIndex != null) {
+      // Parent folders are created along with the file, and are reported as cached too.
+      int separatorIndex = relativePath.indexOf('/', 1);
+      while (separatorIndex > 0) {
+        currentCachedPathIndex.add(relativePath.substring(0, separatorIndex));
+        separatorIndex = relativePath.indexOf('/', separatorIndex + 1);
+      }
+      currentCachedPathIndex.add(relativePath);
+    }
+  }
+
+  /**
+   * Whether a path is held by the cached path index. Paths containing namespaced names, such as
+   * jcr:content and rep:policy, are always checked against the repository.
+   */
+  private static boolean isIndexablePath(@Nonnull final String path) {
+    return path.indexOf(':') < 0;
+  }
+
+  @Nullable
+  private CachedPathIndex getOpenCachedPathIndex() {
+    return cachedPathIndex;
+  }
+
+  @Nonnull
+  private static byte[] readFully(@Nonnull final InputStream inputStream) throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[8192];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, read);
+    }
+    return outputStream.toByteArray();
+  }
+
+  protected boolean isFileCached(@Nonnull final String relativePath,
+          @Nonnull final ResourceResolver resourceResolver) {
+    if (isDefinitelyNotCached(relativePath) || isExpiredStale(relativePath) || isExpired(
+            relativePath, resourceResolver)) {
+      return false;
+    }
+    if (isHeldInMemory(relativePath)) {
+      return true;
+    }
+    return resourceResolver.getResource(getCacheFilePath(relativePath)) != null;
+  }
+
+  private boolean isHeldInMemory(@Nonnull final String relativePath) {
+    final InMemoryTier currentInMemoryTier = getInMemoryTier();
+    return currentInMemoryTier != null && currentInMemoryTier.contains(relativePath);
+  }
+
+  /**
+   * Whether a file is cached, checked using the service's long-lived cache read ResourceResolver.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @return Whether a file is cached. False if the cache read ResourceResolver could not be
+   *         opened.
+   */
+  protected boolean isFileCached(@Nonnull final String relativePath) {
+    if (isDefinitelyNotCached(relativePath) || isExpiredStale(relativePath) || isExpired(
+            relativePath)) {
+      return false;
+    }
+    try {
+      return isFileCached(relativePath, getCacheReadResourceResolver().get());
+    } catch (final LoginException exception) {
+      log.warn("{} was unable to check cache for '{}'. {}",
+               getClass().getSimpleName().replaceAll("[\r\n]", ""),
+               relativePath.replaceAll("[\r\n]", ""),
+               String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+      return false;
+    }
+  }
+
+  /**
+   * Milliseconds between refreshes of the cache read ResourceResolver. The cache read
+   * ResourceResolver is also refreshed after this service writes to or purges the cache, or when
+   * {@link #markCacheReadResourceResolverStale()} is called.
+   *
+   * @return Milliseconds between refreshes of the cache read ResourceResolver.
+   */
+  protected long getCacheReadResourceResolverRefreshInterval() {
+    return 1000;
+  }
+
+  /**
+   * Whether each thread gets its own cache read ResourceResolver, rather than sharing one. Enabled
+   * by default, as JCR sessions are not thread-safe.
+   *
+   * @return Whether each thread gets its own cache read ResourceResolver.
+   */
+  protected boolean isCacheReadResourceResolverPerThread() {
+    return true;
+  }
+
+  /**
+   * Long-lived service ResourceResolver used for cache reads, opened on first use and closed when
+   * the service deactivates.
+   *
+   * @return Long-lived service ResourceResolver used for cache reads.
+   */
+  @Nonnull
+  protected synchronized SharedResourceResolver getCacheReadResourceResolver() {
+    if (cacheReadResourceResolver == null || cacheReadResourceResolver.isClosed()) {
+      cacheReadResourceResolver = new SharedResourceResolver(this::openServiceResourceResolver,
+              getCacheReadResourceResolverRefreshInterval(),
+              isCacheReadResourceResolverPerThread());
+    }
+    return cacheReadResourceResolver;
+  }
+
+  /**
+   * Refreshes the cache read ResourceResolver before its next use. Call when changes under the
+   * cache root are observed, for example from a ResourceChangeListener on {@link
+   * #getServiceCacheRootPath()}.
+   */
+  public void markCacheReadResourceResolverStale() {
+    final SharedResourceResolver readResourceResolver = getOpenCacheReadResourceResolver();
+    if (readResourceResolver != null) {
+      readResourceResolver.markStale();
+    }
+  }
+
+  /**
+   * Closes the cache read ResourceResolver.
+   */
+  protected synchronized void closeCacheReadResourceResolver() {
+    if (cacheReadResourceResolver != null) {
+      cacheReadResourceResolver.close();
+      cacheReadResourceResolver = null;
+    }
+  }
+
+  @Nullable
+  private synchronized SharedResourceResolver getOpenCacheReadResourceResolver() {
+    return cacheReadResourceResolver;
+  }
+
+  @Override
+  protected void doPurge(@Nonnull final ResourceResolver resourceResolver) throws
+          CachePurgeException {
+    final Resource serviceCacheRootResource = resourceResolver.getResource(
+            getServiceCacheRootPath());
+    log.info("{} purging cache.", getClass().getSimpleName().replaceAll("[\r\n]", ""));
+    if (serviceCacheRootResource != null) {
+      if (getMaximumStaleness() > 0) {
+        markCacheFilesStale();
+        return;
+      }
+      final boolean purgedAll;
+      if (isDeduplicationEnabled()) {
+        // Blocks new references to blobs until unreferenced blobs have been deleted.
+        purgedAll = getBlobStore().runExclusively(() -> {
+          final boolean purgedAllFiles = deleteCacheRootChildren(serviceCacheRootResource,
+                                                                 resourceResolver);
+          purgeBlobs(purgedAllFiles, resourceResolver);
+          return purgedAllFiles;
+        });
+      } else {
+        purgedAll = deleteCacheRootChildren(serviceCacheRootResource, resourceResolver);
+      }
+      afterCacheFilesPurged(purgedAll);
+      log.info("{} successfully purged cache.",
+               getClass().getSimpleName().replaceAll("[\r\n]", ""));
+    } else {
+      throw new CachePurgeException(
+              "Failed to purge cache " + getClass().getSimpleName() + ". Cache root resource "
+                      + getServiceCacheRootPath() + " not found.");
+    }
+  }
+
+  /**
+   * Purges the cache. Equivalent to {@link #doPurge(ResourceResolver)}, the whole cache is purged
+   * rather than only the specified path.
+   *
+   * @param resourcePath Resource path. Not used.
+   * @param resourceResolver ResourceResolver.
+   * @throws CachePurgeException Cache root resource was not found.
+   */
+  protected void doPurge(@Nonnull String resourcePath,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws CachePurgeException {
+    doPurge(resourceResolver);
+  }
+
+  /**
+   * Whether cache files store a hash of their content, so rebuilding a file with identical
+   * content, mime type and precompressed encodings keeps the existing file rather than writing
+   * and committing it again. This saves repository writes, and the indexing and replication they
+   * trigger, when stale or expired files are rebuilt. Only the expiry time of a kept file is
+   * updated, and only when it differs by more than the time to live jitter. Disabled by
+   * default.
+   *
+   * @return Whether cache files store a hash of their content.
+   */
+  protected boolean isContentHashEnabled() {
+    return false;
+  }
+
+  /**
+   * Keeps an existing cache file if it holds content with the same hash, mime type and
+   * precompressed encodings, updating its expiry time if it changed by more than the time to live
+   * jitter.
+   *
+   * @return Expiry time of the kept cache file, 0 if it does not expire, or null if it was not
+   *         kept.
+   */
+  @Nullable
+  private Long keepIfUnchanged(@Nonnull final byte[] content, @Nonnull final String relativePath,
+          @Nonnull final FileType type, @Nonnull final String contentHash, final long timeToLive,
+          final long expiresAt, @Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    final Resource contentResource = resourceResolver.getResource(
+            getCacheFilePath(relativePath) + "/" + JCR_CONTENT);
+    if (contentResource == null) {
+      return null;
+    }
+    final ValueMap existingProperties = contentResource.getValueMap();
+    if (!contentHash.equals(existingProperties.get(CONTENT_HASH_PROPERTY, String.class))
+        || !type.getOutputContentType().equals(existingProperties.get(JCR_MIMETYPE, String.class))
+        || !hasPrecompressedEncodings(content, relativePath, contentResource,
+                                      resourceResolver)) {
+      return null;
+    }
+    final Long existingExpiresAt = existingProperties.get(EXPIRES_AT_PROPERTY, Long.class);
+    if (existingExpiresAt == null && expiresAt == 0) {
+      return 0L;
+    }
+    // Files rebuilt with the same time to live get expiry times which differ by up to the jitter,
+    // so the existing expiry time is kept, rather than committing a change on every rebuild.
+    // Without jitter, changes of up to 1% of the time to live are skipped.
+    final long tolerance = Math.max((long) (timeToLive * getTimeToLiveJitter()), timeToLive / 100);
+    if (existingExpiresAt != null && expiresAt > 0
+        && Math.abs(existingExpiresAt - expiresAt) <= tolerance) {
+      return existingExpiresAt;
+    }
+    final ModifiableValueMap properties = contentResource.adaptTo(ModifiableValueMap.class);
+    if (properties == null) {
+      return null;
+    }
+    if (expiresAt > 0) {
+      properties.put(EXPIRES_AT_PROPERTY, expiresAt);
+    } else {
+      properties.remove(EXPIRES_AT_PROPERTY);
+    }
+    resourceResolver.commit();
+    return expiresAt;
+  }
+
+  /**
+   * Whether an existing cache file stores the precompressed encodings its content would be
+   * stored with now, which are held by its blob when it is deduplicated.
+   */
+  private boolean hasPrecompressedEncodings(@Nonnull final byte[] content,
+          @Nonnull final String relativePath, @Nonnull final Resource contentResource,
+          @Nonnull final ResourceResolver resourceResolver) {
+    Resource dataResource = contentResource;
+    final String blobName = contentResource.getValueMap().get(BLOB_PROPERTY, String.class);
+    if (blobName != null) {
+      dataResource = resourceResolver.getResource(
+              getBlobStore().getBlobPath(blobName) + "/" + JCR_CONTENT);
+      if (dataResource == null) {
+        return false;
+      }
+    }
+    final Set<String> storedEncodedDataPropertyNames = new HashSet<>();
+    for (final String encoding : getPrecompressedEncodings()) {
+      if (dataResource.getValueMap().containsKey(getEncodedDataPropertyName(encoding))) {
+        storedEncodedDataPropertyNames.add(getEncodedDataPropertyName(encoding));
+      }
+    }
+    if (getPrecompressedEncodings().isEmpty()
+        || content.length < getPrecompressionMinimumSize()) {
+      return storedEncodedDataPropertyNames.isEmpty();
+    }
+    return storedEncodedDataPropertyNames.equals(
+            getPrecompressedContentProperties(content, relativePath).keySet());
+  }
+
+  /**
+   * Whether cache file content is deduplicated. Content is stored once, as a blob named after a
+   * SHA-256 hash of the content, under {@link #getBlobRootPath()}, and each cache file holding
+   * the same content references it. Blobs count their references, and are deleted once no cache
+   * file references them. Reading deduplicated files is transparent to callers, and {@link
+   * #getCachedFile(String, Class)} returns a file at the cache file's path, holding the blob's
+   * content. Disabled by default. The
+   * cache should be purged after enabling or disabling deduplication.
+   *
+   * @return Whether cache file content is deduplicated.
+   */
+  protected boolean isDeduplicationEnabled() {
+    return false;
+  }
+
+  /**
+   * Path of the folder holding deduplicated content.
+   *
+   * @return Path of the folder holding deduplicated content.
+   */
+  @Nonnull
+  protected String getBlobRootPath() {
+    return getServiceCacheRootPath() + "/" + BLOB_FOLDER_NAME;
+  }
+
+  /**
+   * Number of attempts to commit changes to blob reference counts. Instances of a clustered
+   * repository can change the same blob at once, in which case the repository rejects one of the
+   * commits, and its changes are reverted and applied again on top of the other's. Defaults to 3.
+   *
+   * @return Number of attempts to commit changes to blob reference counts.
+   */
+  protected int getBlobCommitAttempts() {
+    return 3;
+  }
+
+  /**
+   * Deduplicated content, created once the blob root path is known.
+   */
+  @Nonnull
+  synchronized BlobStore getBlobStore() {
+    if (blobStore == null) {
+      blobStore = new BlobStore(getBlobRootPath());
+    }
+    return blobStore;
+  }
+
+  private boolean isBlobRoot(@Nonnull final Resource resource) {
+    return isDeduplicationEnabled() && getBlobStore().isRoot(resource);
+  }
+
+  /**
+   * File Resource of a cache file. Deduplicated files are read from their blob, at the cache
+   * file's path.
+   */
+  @Nonnull
+  private BaseResource getCachedFileResource(@Nonnull final String relativePath,
+          @Nonnull final ResourceResolver resourceResolver) throws ResourceNotFoundException {
+    final String cacheFilePath = getCacheFilePath(relativePath);
+    if (isDeduplicationEnabled()) {
+      final Resource contentResource = resourceResolver.getResource(
+              cacheFilePath + "/" + JCR_CONTENT);
+      final String blobName = contentResource != null ? contentResource.getValueMap().get(
+              BLOB_PROPERTY, String.class) : null;
+      if (blobName != null) {
+        final Resource blobResource = resourceResolver.getResource(
+                getBlobStore().getBlobPath(blobName));
+        if (blobResource == null) {
+          throw new ResourceNotFoundException(cacheFilePath);
+        }
+        return adaptToBaseResource(new BlobReferenceResource(cacheFilePath, blobResource));
+      }
+    }
+    return getResourceAsBaseResource(cacheFilePath, resourceResolver);
+  }
+
+  /**
+   * Creates a cache file referencing a blob holding its content, creating the blob if no other
+   * cache file holds the same content.
+   */
+  private void createCacheFileReference(@Nonnull final byte[] contentBytes,
+          @Nonnull final String relativePath,
+          @Nonnull final FileType type, final long expiresAt, @Nullable final String contentHash,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws ResourceNotFoundException, PersistenceException {
+    final String blobName = BlobStore.getBlobName(contentBytes, relativePath);
+    final String cacheFilePath = getCacheFilePath(relativePath);
+    final Map<String, Object> referenceProperties = new HashMap<>();
+    referenceProperties.put(JCR_PRIMARYTYPE, NT_UNSTRUCTURED);
+    referenceProperties.put(JCR_MIMETYPE, type.getOutputContentType());
+    referenceProperties.put(BLOB_PROPERTY, blobName);
+    if (expiresAt > 0) {
+      referenceProperties.put(EXPIRES_AT_PROPERTY, expiresAt);
+    }
+    if (contentHash != null) {
+      referenceProperties.put(CONTENT_HASH_PROPERTY, contentHash);
+    }
+    final BlobStore currentBlobStore = getBlobStore();
+    currentBlobStore.update(resourceResolver, getBlobCommitAttempts(), () -> {
+      // Acquired before the replaced file's blob is released, so an unchanged blob is kept.
+      currentBlobStore.acquire(blobName, contentBytes, type.getOutputContentType(),
+                               getPrecompressedContentProperties(contentBytes, relativePath),
+                               resourceResolver);
+      deleteIfStaleOrExpired(relativePath, resourceResolver);
+      final String parentPath = getParentPathFromPath(cacheFilePath);
+      if (resourceResolver.getResource(parentPath) == null) {
+        // Parent folders created beforehand are reverted along with a failed attempt.
+        createResourcesFromPath(parentPath, resourceResolver);
+      }
+      final Resource fileResource = resourceResolver.create(
+              getResourceAsBaseResource(parentPath, resourceResolver).getResource(),
+              cacheFilePath.substring(cacheFilePath.lastIndexOf('/') + 1),
+              Collections.<String, Object>singletonMap(JCR_PRIMARYTYPE, NT_FILE));
+      resourceResolver.create(fileResource, JCR_CONTENT, referenceProperties);
+    });
+  }
+
+  /**
+   * Names of the blobs referenced by cache files under a Resource. Empty when deduplication is
+   * disabled.
+   */
+  @Nonnull
+  private List<String> getReferencedBlobNames(@Nonnull final Resource resource) {
+    if (!isDeduplicationEnabled()) {
+      return new ArrayList<>();
+    }
+    return BlobStore.getReferencedBlobNames(resource);
+  }
+
+  /**
+   * Deletes a cache file or folder and commits, releasing the blobs referenced by its cache
+   * files.
+   */
+  private void deleteCacheResource(@Nonnull final Resource resource,
+          @Nonnull final ResourceResolver resourceResolver) throws PersistenceException {
+    if (!isDeduplicationEnabled()) {
+      resourceResolver.delete(resource);
+      resourceResolver.commit();
+      return;
+    }
+    final BlobStore currentBlobStore = getBlobStore();
+    try {
+      currentBlobStore.update(resourceResolver, getBlobCommitAttempts(), () -> {
+        final Resource currentResource = resourceResolver.getResource(resource.getPath());
+        if (currentResource == null) {
+          return;
+        }
+        final List<String> blobNames = getReferencedBlobNames(currentResource);
+        resourceResolver.delete(currentResource);
+        for (final String blobName : blobNames) {
+          currentBlobStore.release(blobName, resourceResolver);
+        }
+      });
+    } catch (final ResourceNotFoundException exception) {
+      // Not thrown when deleting.
+      throw new PersistenceException(exception.getMessage(), exception);
+    }
+  }
+
+  /**
+   * Deletes blobs after a purge. Every blob is unreferenced once all cache files are deleted,
+   * otherwise reference counts are rebuilt from the remaining cache files.
+   */
+  private void purgeBlobs(final boolean purgedAll,
+          @Nonnull final ResourceResolver resourceResolver) {
+    try {
+      if (purgedAll) {
+        getBlobStore().deleteAll(resourceResolver);
+      } else {
+        rebuildBlobReferenceCounts(resourceResolver);
+      }
+    } catch (final PersistenceException exception) {
+      resourceResolver.revert();
+      log.warn("{} was unable to delete unreferenced blobs while purging cache. {}",
+               getClass().getSimpleName().replaceAll("[\r\n]", ""),
+               String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+    }
+  }
+
+  /**
+   * Recounts the references to every blob from the cache files, deleting blobs which are no
+   * longer referenced.
+   *
+   * @param resourceResolver ResourceResolver used to read cache files, and update blobs.
+   * @return Number of unreferenced blobs deleted.
+   * @throws PersistenceException Failed to update blobs.
+   */
+  int rebuildBlobReferenceCounts(@Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    final Resource cacheRootResource = resourceResolver.getResource(getServiceCacheRootPath());
+    if (cacheRootResource == null) {
+      return 0;
+    }
+    return getBlobStore().rebuildReferenceCounts(cacheRootResource, resourceResolver);
+  }
+
+  private boolean deleteCacheRootChildren(@Nonnull final Resource serviceCacheRootResource,
+          @Nonnull final ResourceResolver resourceResolver) {
+    List<BaseResource> resourceToPurgeList = getChildrenAsBaseResource(serviceCacheRootResource);
+    log.debug("Purging {} top level resource.", resourceToPurgeList.size());
+    boolean purgedAll = true;
+    for (final BaseResource cacheRootChild : resourceToPurgeList) {
+      if (!"rep:policy".equals(cacheRootChild.getName()) && !isBlobRoot(
+              cacheRootChild.getResource())) {
+        try {
+          resourceResolver.delete(cacheRootChild.getResource());
+          resourceResolver.commit();
+        } catch (final PersistenceException exception) {
+          purgedAll = false;
+          log.warn("Unable to delete {} while purging cache.",
+                   cacheRootChild.getPath().replaceAll("[\r\n]", ""));
+        }
+      }
+    }
+    return purgedAll;
+  }
+
+  /**
+   * Number of hashed folder levels placed between the cache root and each cache file, to keep
+   * folders small when files are keyed by many IDs. Each level holds up to 256 folders, named
+   * from a hash of the file's relative path. The sharded layout is disabled when 0, which is the
+   * default, and is capped at 4 levels. Changing the number of levels orphans files cached with
+   * the previous layout, so the cache should be purged afterwards. Only files, not their parent
+   * folders, can be checked with {@link #isFileCached(String)} while the sharded layout is
+   * enabled.
+   *
+   * @return Number of hashed folder levels between the cache root and each cache file.
+   */
+  protected int getShardLevels() {
+    return 0;
+  }
+
+  /**
+   * Repository path of a cache file, including its shard folders when the sharded layout is
+   * enabled.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @return Repository path of the cache file.
+   */
+  @Nonnull
+  protected String getCacheFilePath(@Nonnull final String relativePath) {
+    return getServiceCacheRootPath() + getShardPath(relativePath, getShardLevels())
+           + relativePath;
+  }
+
+  /**
+   * Shard folders of a cache file, such as /3f/a0 for two levels.
+   *
+   * @param relativePath Path of the cache file, relative to the cache root.
+   * @param shardLevels Number of shard folder levels.
+   * @return Shard folders of the cache file. Empty when sharding is disabled.
+   */
+  @Nonnull
+  static String getShardPath(@Nonnull final String relativePath, final int shardLevels) {
+    final int levels = Math.min(MAXIMUM_SHARD_LEVELS, Math.max(0, shardLevels));
+    if (levels == 0) {
+      return "";
+    }
+    // String.hashCode is stable across JVMs, and is mixed so every byte is evenly distributed.
+    int hash = relativePath.hashCode();
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+    final StringBuilder shardPath = new StringBuilder(levels * 3);
+    for (int level = 0; level < levels; level++) {
+      final int shard = (hash >>> (level * 8)) & 0xff;
+      shardPath.append('/').append(Character.forDigit(shard >>> 4, 16)).append(
+              Character.forDigit(shard & 0xf, 16));
+    }
+    return shardPath.toString();
+  }
+
+  private int getShardPathLength() {
+    return Math.min(MAXIMUM_SHARD_LEVELS, Math.max(0, getShardLevels())) * 3;
+  }
+
+  /**
+   * Path of a cache file relative to the cache root, from its repository path.
+   */
+  @Nonnull
+  private String getRelativePath(@Nonnull final String cacheFilePath, final int rootPathLength) {
+    return cacheFilePath.substring(rootPathLength + getShardPathLength());
+  }
+
+  @Nonnull
+  String getParentPathFromPath(@Nonnull final String path) {
+    return path.substring(0, path.lastIndexOf('/'));
+  }
+
+  void createResourcesFromPath(@Nonnull String path,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws ResourceNotFoundException, PersistenceException {
+    if (path.startsWith(getServiceCacheRootPath())) {
+      path = path.split(getServiceCacheRootPath())[1];
+    }
+    final String[] pathSegments = path.split("/");
+    final Map<String, Object> properties = new HashMap<>();
+    properties.put(JCR_PRIMARYTYPE, "sling:Folder");
+    BaseResource parentResource = getResourceAsBaseResource(getServiceCacheRootPath(),
+                                                            resourceResolver);
     for (final String resourceName : pathSegments) {
       final Resource resourceToCreate = resourceResolver.getResource(
               parentResource.getPath() + "/" + resourceName);
@@ -267,4 +2522,86 @@ public abstract class JcrFileCacheService extends BaseCacheService {
       }
     }
   }
+
+  /**
+   * Counts the bytes read from a stream, so the size of streamed content is known once written.
+   */
+  private static final class CountingInputStream extends FilterInputStream {
+
+    private long count;
+
+    private CountingInputStream(@Nonnull final InputStream inputStream) {
+      super(inputStream);
+    }
+
+    @Override
+    public int read() throws IOException {
+      final int value = super.read();
+      if (value != -1) {
+        count++;
+      }
+      return value;
+    }
+
+    @Override
+    public int read(@Nonnull final byte[] bytes, final int offset, final int length)
+            throws IOException {
+      final int read = super.read(bytes, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(final long length) throws IOException {
+      final long skipped = super.skip(length);
+      count += skipped;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private long getCount() {
+      return count;
+    }
+  }
+
+  /**
+   * Reads the remaining content of a ByteBuffer, without copying it to the heap.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer byteBuffer;
+
+    private ByteBufferInputStream(@Nonnull final ByteBuffer byteBuffer) {
+      this.byteBuffer = byteBuffer;
+    }
+
+    @Override
+    public int read() {
+      return byteBuffer.hasRemaining() ? byteBuffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(@Nonnull final byte[] bytes, final int offset, final int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!byteBuffer.hasRemaining()) {
+        return -1;
+      }
+      final int read = Math.min(length, byteBuffer.remaining());
+      byteBuffer.get(bytes, offset, read);
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return byteBuffer.remaining();
+    }
+  }
 }
\ No newline at end of file
@@ -0,0 +1,419 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
+import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
+import io.kestros.commons.osgiserviceutils.exceptions.CacheRetrievalException;
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
+import io.kestros.commons.structuredslingmodels.filetypes.FileType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.felix.hc.api.FormattingResultLog;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Deactivate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Baseline logic for building a cache on the local disk, for cached output which is disposable
+ * and should not add revisions, garbage or index updates to the repository. Cached files are
+ * written to a generation directory under the cache directory, and large files are read through
+ * memory-mapped buffers.
+ *
+ * <p>
+ * Purging swaps in a new, empty generation directory, so the cache is empty to readers
+ * immediately, and deletes the previous generation in the background. Files are written to a
+ * temporary file and moved into place, so readers never see partially written files.
+ * </p>
+ */
+public abstract class LocalDiskFileCacheService extends BaseCacheService {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Prefix of generation directory names.
+   */
+  static final String GENERATION_DIRECTORY_PREFIX = "generation-";
+
+  private final Logger log = LoggerFactory.getLogger(getClass());
+
+  private transient volatile Path generationDirectory;
+
+  /**
+   * Directory cached files are written to. Only used by this service, since its contents are
+   * deleted when the service activates, deactivates and purges.
+   *
+   * @return Directory cached files are written to.
+   */
+  @Nonnull
+  protected abstract Path getCacheDirectory();
+
+  /**
+   * Activates the cache service. Starts a new generation, and deletes generations left by
+   * previous activations in the background.
+   *
+   * @param componentContext ComponentContext.
+   */
+  @Activate
+  @Override
+  public void activate(@Nonnull final ComponentContext componentContext) {
+    super.activate(componentContext);
+    log.info("Activating {}.", getDisplayName().replaceAll("[\r\n]", ""));
+    final Path currentGenerationDirectory = swapGenerationDirectory();
+    if (currentGenerationDirectory != null) {
+      submitAsync(() -> {
+        deleteStaleGenerationDirectories();
+        return null;
+      });
+    }
+  }
+
+  /**
+   * Deactivates the service, waits for queued asynchronous tasks and deletes every cached file.
+   *
+   * @param componentContext ComponentContext.
+   */
+  @Deactivate
+  @Override
+  public void deactivate(@Nonnull final ComponentContext componentContext) {
+    log.info("Deactivating {}.", getDisplayName().replaceAll("[\r\n]", ""));
+    stopCacheWarming();
+    // Queued cache writes finish before the purge, so they do not repopulate the cache.
+    shutdownAsyncExecutor();
+    synchronized (this) {
+      generationDirectory = null;
+    }
+    deleteStaleGenerationDirectories();
+    super.deactivate(componentContext);
+  }
+
+  @Override
+  public void runAdditionalHealthChecks(@Nonnull final FormattingResultLog log) {
+    super.runAdditionalHealthChecks(log);
+    runCacheStatsHealthChecks(log);
+    final Path currentGenerationDirectory = getGenerationDirectory();
+    if (currentGenerationDirectory == null || !Files.isWritable(currentGenerationDirectory)) {
+      log.critical(String.format("Cache directory %s is not writable.", getCacheDirectory()));
+    } else {
+      try {
+        log.debug(String.format("Cache directory %s has %s bytes of usable space.",
+                                currentGenerationDirectory,
+                                Files.getFileStore(currentGenerationDirectory).getUsableSpace()));
+      } catch (final IOException exception) {
+        log.warn(String.format("Unable to read usable space of cache directory %s. %s",
+                               currentGenerationDirectory, exception.getMessage()));
+      }
+    }
+  }
+
+  /**
+   * Creates a cached file.
+   *
+   * @param content Content of the cached file.
+   * @param relativePath Path of the cached file, relative to the cache directory.
+   * @param type File type.
+   * @throws CacheBuilderException Failed to write the cached file.
+   */
+  public void createCacheFile(@Nonnull final String content, @Nonnull final String relativePath,
+          @Nonnull final FileType type) throws CacheBuilderException {
+    final long buildStartedAt = System.nanoTime();
+    final Path currentGenerationDirectory = getGenerationDirectory();
+    if (currentGenerationDirectory == null) {
+      throw new CacheBuilderException(String.format(
+              "%s failed to create cached file '%s'. Cache directory %s could not be created.",
+              getClass().getSimpleName(), relativePath, getCacheDirectory()));
+    }
+    final Path cacheFile = resolveCacheFile(currentGenerationDirectory, relativePath);
+    if (cacheFile == null) {
+      throw new CacheBuilderException(String.format(
+              "%s failed to create cached file '%s'. Path is outside of the cache directory.",
+              getClass().getSimpleName(), relativePath));
+    }
+    final byte[] contentBytes = content.getBytes(UTF_8);
+    try {
+      writeCacheFile(cacheFile, ByteBuffer.wrap(contentBytes));
+      getCacheStats().recordBuild(System.nanoTime() - buildStartedAt, contentBytes.length);
+    } catch (final IOException exception) {
+      if (currentGenerationDirectory != getGenerationDirectory()) {
+        // The cache was purged while the file was written, so the file is not needed.
+        log.debug("{} discarded cached file '{}' written during a purge.",
+                  getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                  relativePath.replaceAll("[\r\n]", ""));
+        return;
+      }
+      throw new CacheBuilderException(
+              String.format("%s failed to create cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, exception.getMessage()),
+              exception);
+    }
+  }
+
+  /**
+   * Retrieves a cached file. Files of at least {@link #getMemoryMapThreshold()} bytes are
+   * memory-mapped, and smaller files are read onto the heap.
+   *
+   * @param relativePath Path of the cached file, relative to the cache directory.
+   * @param type File type, which provides the mime type.
+   * @return Content of the cached file.
+   * @throws ResourceNotFoundException File is not cached.
+   * @throws CacheRetrievalException Unable to read the cached file.
+   */
+  @Nonnull
+  public CachedContent getCachedFile(@Nonnull final String relativePath,
+          @Nonnull final FileType type) throws ResourceNotFoundException, CacheRetrievalException {
+    recordAccess(relativePath);
+    final Path cacheFile = getCacheFile(relativePath);
+    if (cacheFile == null) {
+      getCacheStats().recordMiss();
+      throw new ResourceNotFoundException(relativePath);
+    }
+    try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      getCacheStats().recordHit();
+      if (size >= getMemoryMapThreshold()) {
+        return new CachedContent(relativePath, channel.map(FileChannel.MapMode.READ_ONLY, 0, size),
+                                 type.getOutputContentType(), null);
+      }
+      final ByteBuffer content = ByteBuffer.allocate((int) size);
+      while (content.hasRemaining() && channel.read(content) >= 0) {
+        // Read until the buffer is full or the end of the file is reached.
+      }
+      content.flip();
+      return new CachedContent(relativePath, content, type.getOutputContentType(), null);
+    } catch (final NoSuchFileException exception) {
+      getCacheStats().recordMiss();
+      throw new ResourceNotFoundException(relativePath);
+    } catch (final IOException | IllegalArgumentException exception) {
+      throw new CacheRetrievalException(
+              String.format("%s was unable to read cached file '%s'. %s",
+                            getClass().getSimpleName(), relativePath, exception.getMessage()),
+              exception);
+    }
+  }
+
+  /**
+   * Whether a file is cached.
+   *
+   * @param relativePath Path of the cached file, relative to the cache directory.
+   * @return Whether a file is cached.
+   */
+  public boolean isFileCached(@Nonnull final String relativePath) {
+    final Path cacheFile = getCacheFile(relativePath);
+    return cacheFile != null && Files.isRegularFile(cacheFile);
+  }
+
+  /**
+   * Minimum size, in bytes, of cached files which are memory-mapped when read. Mapping has a
+   * fixed cost which outweighs copying for small files.
+   *
+   * @return Minimum size, in bytes, of memory-mapped files.
+   */
+  protected long getMemoryMapThreshold() {
+    return 16 * 1024;
+  }
+
+  /**
+   * Directory of the current generation, created on first use.
+   *
+   * @return Directory of the current generation, or null if it could not be created.
+   */
+  @Nullable
+  protected Path getGenerationDirectory() {
+    final Path currentGenerationDirectory = generationDirectory;
+    if (currentGenerationDirectory != null) {
+      return currentGenerationDirectory;
+    }
+    synchronized (this) {
+      if (generationDirectory == null) {
+        swapGenerationDirectory();
+      }
+      return generationDirectory;
+    }
+  }
+
+  @Override
+  protected void doPurge(@Nonnull final ResourceResolver resourceResolver)
+          throws CachePurgeException {
+    log.info("{} purging cache.", getClass().getSimpleName().replaceAll("[\r\n]", ""));
+    final Path previousGenerationDirectory;
+    synchronized (this) {
+      previousGenerationDirectory = generationDirectory;
+      if (swapGenerationDirectory() == null) {
+        throw new CachePurgeException(String.format(
+                "Failed to purge cache %s. Unable to create a new generation in %s.",
+                getClass().getSimpleName(), getCacheDirectory()));
+      }
+    }
+    if (previousGenerationDirectory != null) {
+      submitAsync(() -> {
+        deleteRecursively(previousGenerationDirectory);
+        return null;
+      }).whenComplete((result, throwable) -> {
+        if (throwable != null) {
+          // Left for the next activation to delete.
+          log.warn("{} was unable to delete cache generation {}. {}",
+                   getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                   previousGenerationDirectory,
+                   String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+        }
+      });
+    }
+    log.info("{} successfully purged cache.",
+             getClass().getSimpleName().replaceAll("[\r\n]", ""));
+  }
+
+  /**
+   * Path of a cached file in the current generation, or null if it is outside of the cache
+   * directory.
+   */
+  @Nullable
+  private Path getCacheFile(@Nonnull final String relativePath) {
+    final Path currentGenerationDirectory = getGenerationDirectory();
+    if (currentGenerationDirectory == null) {
+      return null;
+    }
+    return resolveCacheFile(currentGenerationDirectory, relativePath);
+  }
+
+  @Nullable
+  static Path resolveCacheFile(@Nonnull final Path directory, @Nonnull final String relativePath) {
+    final String trimmedPath = relativePath.startsWith("/") ? relativePath.substring(1)
+                                                            : relativePath;
+    final Path cacheFile = directory.resolve(trimmedPath).normalize();
+    if (!cacheFile.startsWith(directory) || cacheFile.equals(directory)) {
+      return null;
+    }
+    return cacheFile;
+  }
+
+  /**
+   * Creates a new, empty generation directory and makes it current.
+   *
+   * @return New generation directory, or null if it could not be created.
+   */
+  @Nullable
+  private synchronized Path swapGenerationDirectory() {
+    try {
+      final Path cacheDirectory = Files.createDirectories(getCacheDirectory());
+      generationDirectory = Files.createTempDirectory(cacheDirectory,
+                                                      GENERATION_DIRECTORY_PREFIX);
+      return generationDirectory;
+    } catch (final IOException exception) {
+      log.error("{} was unable to create cache directory {}. {}",
+                getClass().getSimpleName().replaceAll("[\r\n]", ""), getCacheDirectory(),
+                String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+      return null;
+    }
+  }
+
+  /**
+   * Deletes every generation directory other than the current one.
+   */
+  void deleteStaleGenerationDirectories() {
+    final Path currentGenerationDirectory = generationDirectory;
+    try (DirectoryStream<Path> generationDirectories = Files.newDirectoryStream(
+            getCacheDirectory(), GENERATION_DIRECTORY_PREFIX + "*")) {
+      for (final Path staleGenerationDirectory : generationDirectories) {
+        if (!staleGenerationDirectory.equals(currentGenerationDirectory)) {
+          deleteRecursively(staleGenerationDirectory);
+        }
+      }
+    } catch (final NoSuchFileException exception) {
+      log.debug("{} cache directory does not exist.",
+                getClass().getSimpleName().replaceAll("[\r\n]", ""));
+    } catch (final IOException exception) {
+      log.warn("{} was unable to delete stale cache generations. {}",
+               getClass().getSimpleName().replaceAll("[\r\n]", ""),
+               String.valueOf(exception.getMessage()).replaceAll("[\r\n]", ""));
+    }
+  }
+
+  private static void writeCacheFile(@Nonnull final Path cacheFile,
+          @Nonnull final ByteBuffer content) throws IOException {
+    final Path parentDirectory = Files.createDirectories(cacheFile.getParent());
+    final Path temporaryFile = Files.createTempFile(parentDirectory,
+                                                    "." + cacheFile.getFileName(), ".tmp");
+    try {
+      try (FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE)) {
+        while (content.hasRemaining()) {
+          channel.write(content);
+        }
+      }
+      try {
+        Files.move(temporaryFile, cacheFile, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+      } catch (final AtomicMoveNotSupportedException exception) {
+        Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temporaryFile);
+    }
+  }
+
+  private static void deleteRecursively(@Nonnull final Path directory) throws IOException {
+    if (!Files.exists(directory)) {
+      return;
+    }
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes)
+              throws IOException {
+        Files.deleteIfExists(file);
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(final Path file, final IOException exception)
+              throws IOException {
+        if (exception instanceof NoSuchFileException) {
+          return FileVisitResult.CONTINUE;
+        }
+        throw exception;
+      }
+
+      @Override
+      public FileVisitResult postVisitDirectory(final Path dir, final IOException exception)
+              throws IOException {
+        Files.deleteIfExists(dir);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+}
@@ -0,0 +1,314 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Stores cached file content outside the Java heap, so large cached payloads do not add to
+ * garbage collection pressure. Memory is reserved from the operating system in fixed size direct
+ * buffer slabs, up to a maximum, and handed out in power of two sized blocks. Released blocks are
+ * kept on a free list for their size and reused, so slabs are never returned until the store is
+ * closed.
+ */
+public class OffHeapSlabStore {
+
+  /**
+   * Size, in bytes, of the smallest block handed out.
+   */
+  static final int MINIMUM_BLOCK_SIZE = 1024;
+
+  private final int slabSize;
+  private final long maximumBytes;
+  private final List<ByteBuffer> slabs = new ArrayList<>();
+  private final List<Deque<ByteBuffer>> freeBlocks = new ArrayList<>();
+  private ByteBuffer currentSlab;
+  private long allocatedBytes = 0;
+  private long storedBytes = 0;
+  private boolean closed = false;
+
+  /**
+   * Stores cached file content outside the Java heap.
+   *
+   * @param slabSize Size, in bytes, of each slab reserved from the operating system. Rounded up
+   *         to a power of two. Content larger than a slab is not stored.
+   * @param maximumBytes Maximum number of bytes reserved across all slabs.
+   */
+  public OffHeapSlabStore(final int slabSize, final long maximumBytes) {
+    if (slabSize < MINIMUM_BLOCK_SIZE || slabSize > 1 << 30) {
+      throw new IllegalArgumentException(String.format("Slab size must be between %s and %s bytes.",
+                                                       MINIMUM_BLOCK_SIZE, 1 << 30));
+    }
+    this.slabSize = roundUpToPowerOfTwo(slabSize);
+    this.maximumBytes = maximumBytes;
+    for (int blockSize = MINIMUM_BLOCK_SIZE; blockSize <= this.slabSize; blockSize <<= 1) {
+      freeBlocks.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * Copies content into the store.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param content Content of the cached file. Its remaining bytes are copied.
+   * @param mimeType Mime type of the cached file.
+   * @return Content held by the store, which returns its memory to the store once closed. Null
+   *         if there is not enough free space, or the content is larger than a slab.
+   */
+  @Nullable
+  public CachedContent store(@Nonnull final String relativePath,
+          @Nonnull final ByteBuffer content, @Nonnull final String mimeType) {
+    final int size = content.remaining();
+    final ByteBuffer block = allocate(size);
+    if (block == null) {
+      return null;
+    }
+    block.put(content.duplicate());
+    block.flip();
+    return new CachedContent(relativePath, block, mimeType, () -> free(block, size));
+  }
+
+  /**
+   * Streams content into the store, without reading it onto the heap first. Content is read into
+   * a block for the expected size, and moved to larger blocks if it does not fit.
+   *
+   * @param relativePath Path of the cached file, relative to the cache root.
+   * @param content Content of the cached file. Read to its end, and not closed.
+   * @param expectedSize Expected size of the content in bytes, or -1 if it is not known.
+   * @param mimeType Mime type of the cached file.
+   * @return Content held by the store, which returns its memory to the store once closed. Null
+   *         if there is not enough free space, or the content is larger than a slab, in which case
+   *         the content may have been partly read.
+   * @throws IOException Failed to read the content.
+   */
+  @Nullable
+  public CachedContent store(@Nonnull final String relativePath,
+          @Nonnull final InputStream content, final int expectedSize,
+          @Nonnull final String mimeType) throws IOException {
+    int requestedSize = expectedSize >= 0 ? expectedSize : MINIMUM_BLOCK_SIZE;
+    ByteBuffer block = allocate(requestedSize);
+    if (block == null) {
+      return null;
+    }
+    final ReadableByteChannel channel = Channels.newChannel(content);
+    try {
+      while (true) {
+        if (block.hasRemaining()) {
+          if (channel.read(block) < 0) {
+            break;
+          }
+          continue;
+        }
+        final int nextByte = content.read();
+        if (nextByte < 0) {
+          break;
+        }
+        final int largerSize = block.capacity() * 2;
+        final ByteBuffer largerBlock = allocate(largerSize);
+        if (largerBlock == null) {
+          free(block, requestedSize);
+          return null;
+        }
+        block.flip();
+        largerBlock.put(block);
+        largerBlock.put((byte) nextByte);
+        free(block, requestedSize);
+        block = largerBlock;
+        requestedSize = largerSize;
+      }
+    } catch (final IOException | RuntimeException exception) {
+      free(block, requestedSize);
+      throw exception;
+    }
+    final int size = block.position();
+    block.flip();
+    updateStoredBytes(size - requestedSize);
+    final ByteBuffer storedBlock = block;
+    return new CachedContent(relativePath, storedBlock, mimeType, () -> free(storedBlock, size));
+  }
+
+  /**
+   * Size, in bytes, of the block used to store content of the specified size.
+   *
+   * @param size Size of the content, in bytes.
+   * @return Size of the block, in bytes.
+   */
+  public static int getBlockSize(final int size) {
+    return Math.max(MINIMUM_BLOCK_SIZE, roundUpToPowerOfTwo(Math.max(1, size)));
+  }
+
+  /**
+   * Number of bytes reserved from the operating system.
+   *
+   * @return Number of bytes reserved from the operating system.
+   */
+  public synchronized long getReservedBytes() {
+    return (long) slabs.size() * slabSize;
+  }
+
+  /**
+   * Number of bytes in blocks handed out and not yet released.
+   *
+   * @return Number of bytes in blocks handed out.
+   */
+  public synchronized long getAllocatedBytes() {
+    return allocatedBytes;
+  }
+
+  /**
+   * Number of content bytes held in blocks handed out. The difference from {@link
+   * #getAllocatedBytes()} is lost to rounding block sizes up.
+   *
+   * @return Number of content bytes held.
+   */
+  public synchronized long getStoredBytes() {
+    return storedBytes;
+  }
+
+  /**
+   * Maximum number of bytes reserved across all slabs.
+   *
+   * @return Maximum number of bytes reserved across all slabs.
+   */
+  public long getMaximumBytes() {
+    return maximumBytes;
+  }
+
+  /**
+   * Size, in bytes, of each slab.
+   *
+   * @return Size, in bytes, of each slab.
+   */
+  public int getSlabSize() {
+    return slabSize;
+  }
+
+  /**
+   * Drops every slab, so their memory is returned once garbage collected. Content handed out
+   * must no longer be read, and blocks released afterwards are ignored.
+   */
+  public synchronized void close() {
+    closed = true;
+    slabs.clear();
+    for (final Deque<ByteBuffer> freeBlocksOfSize : freeBlocks) {
+      freeBlocksOfSize.clear();
+    }
+    currentSlab = null;
+    allocatedBytes = 0;
+    storedBytes = 0;
+  }
+
+  /**
+   * Whether the store has been closed.
+   *
+   * @return Whether the store has been closed.
+   */
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  @Nullable
+  synchronized ByteBuffer allocate(final int size) {
+    if (closed || size > slabSize) {
+      return null;
+    }
+    final int blockSize = getBlockSize(size);
+    ByteBuffer block = freeBlocks.get(getSizeClass(blockSize)).poll();
+    if (block == null) {
+      block = carve(blockSize);
+    }
+    if (block == null) {
+      return null;
+    }
+    allocatedBytes += blockSize;
+    storedBytes += size;
+    block.clear();
+    return block;
+  }
+
+  synchronized void free(@Nonnull final ByteBuffer block, final int size) {
+    if (closed) {
+      return;
+    }
+    allocatedBytes -= block.capacity();
+    storedBytes -= size;
+    freeBlocks.get(getSizeClass(block.capacity())).push(block);
+  }
+
+  private synchronized void updateStoredBytes(final int difference) {
+    if (!closed) {
+      storedBytes += difference;
+    }
+  }
+
+  @Nullable
+  private ByteBuffer carve(final int blockSize) {
+    if (currentSlab == null || currentSlab.remaining() < blockSize) {
+      if (getReservedBytes() + slabSize > maximumBytes) {
+        return null;
+      }
+      if (currentSlab != null) {
+        freeRemainder(currentSlab);
+      }
+      currentSlab = ByteBuffer.allocateDirect(slabSize);
+      slabs.add(currentSlab);
+    }
+    return sliceBlock(currentSlab, blockSize);
+  }
+
+  private void freeRemainder(@Nonnull final ByteBuffer slab) {
+    // The remainder is split into the largest blocks that fit, rather than being wasted.
+    for (int blockSize = slabSize; blockSize >= MINIMUM_BLOCK_SIZE; blockSize >>= 1) {
+      while (slab.remaining() >= blockSize) {
+        freeBlocks.get(getSizeClass(blockSize)).push(sliceBlock(slab, blockSize));
+      }
+    }
+  }
+
+  @Nonnull
+  private static ByteBuffer sliceBlock(@Nonnull final ByteBuffer slab, final int blockSize) {
+    final ByteBuffer block = slab.duplicate();
+    block.limit(slab.position() + blockSize);
+    slab.position(slab.position() + blockSize);
+    return block.slice();
+  }
+
+  private static int getSizeClass(final int blockSize) {
+    return Integer.numberOfTrailingZeros(blockSize)
+           - Integer.numberOfTrailingZeros(MINIMUM_BLOCK_SIZE);
+  }
+
+  private static int roundUpToPowerOfTwo(final int value) {
+    final int highestOneBit = Integer.highestOneBit(value);
+    return highestOneBit == value ? value : highestOneBit << 1;
+  }
+}
@@ -0,0 +1,186 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.annotation.Nonnull;
+
+/**
+ * Content written by a CacheContentWriter, held in memory until it exceeds a threshold, then
+ * spooled to a temporary file, so large content does not need to fit in the heap. Closing deletes
+ * the temporary file.
+ */
+final class SpooledContent implements Closeable {
+
+  private final int memoryThreshold;
+  private final SpoolOutputStream outputStream = new SpoolOutputStream();
+  private ExposedByteArrayOutputStream memory = new ExposedByteArrayOutputStream();
+  private Path file;
+  private OutputStream fileOutputStream;
+  private long size;
+
+  /**
+   * Content held in memory until it exceeds a threshold, then spooled to a temporary file.
+   *
+   * @param memoryThreshold Maximum size, in bytes, of content held in memory.
+   */
+  SpooledContent(final int memoryThreshold) {
+    this.memoryThreshold = memoryThreshold;
+  }
+
+  /**
+   * Stream to write the content to. Must be closed before the content is read.
+   *
+   * @return Stream to write the content to.
+   */
+  @Nonnull
+  OutputStream getOutputStream() {
+    return outputStream;
+  }
+
+  /**
+   * Size of the content, in bytes.
+   *
+   * @return Size of the content, in bytes.
+   */
+  long getSize() {
+    return size;
+  }
+
+  /**
+   * Whether the content has been spooled to a temporary file.
+   *
+   * @return Whether the content has been spooled to a temporary file.
+   */
+  boolean isSpooled() {
+    return file != null;
+  }
+
+  /**
+   * Opens a stream reading the content.
+   *
+   * @return Stream reading the content.
+   * @throws IOException Failed to open the temporary file.
+   */
+  @Nonnull
+  InputStream getInputStream() throws IOException {
+    if (file != null) {
+      return Files.newInputStream(file);
+    }
+    return new ByteArrayInputStream(memory.getBuffer(), 0, memory.size());
+  }
+
+  /**
+   * Content, without copying it when it is held in memory and fills its buffer.
+   *
+   * @return Content.
+   * @throws IOException Failed to read the temporary file.
+   */
+  @Nonnull
+  byte[] toByteArray() throws IOException {
+    if (file != null) {
+      return Files.readAllBytes(file);
+    }
+    final byte[] buffer = memory.getBuffer();
+    return buffer.length == memory.size() ? buffer : Arrays.copyOf(buffer, memory.size());
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      outputStream.close();
+    } finally {
+      if (file != null) {
+        Files.deleteIfExists(file);
+      }
+    }
+  }
+
+  private void spoolToFile() throws IOException {
+    file = Files.createTempFile("kestros-cache-", ".tmp");
+    fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file));
+    memory.writeTo(fileOutputStream);
+    memory = null;
+  }
+
+  private final class SpoolOutputStream extends OutputStream {
+
+    private boolean closed = false;
+
+    @Override
+    public void write(final int value) throws IOException {
+      write(new byte[]{(byte) value}, 0, 1);
+    }
+
+    @Override
+    public void write(@Nonnull final byte[] bytes, final int offset, final int length)
+            throws IOException {
+      if (closed) {
+        throw new IOException("Unable to write spooled content. Stream has been closed.");
+      }
+      if (file == null && size + length > memoryThreshold) {
+        spoolToFile();
+      }
+      if (file != null) {
+        fileOutputStream.write(bytes, offset, length);
+      } else {
+        memory.write(bytes, offset, length);
+      }
+      size += length;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (fileOutputStream != null) {
+        fileOutputStream.flush();
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!closed) {
+        closed = true;
+        if (fileOutputStream != null) {
+          fileOutputStream.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Exposes its buffer, so content held in memory is read without being copied.
+   */
+  private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+
+    @Nonnull
+    private byte[] getBuffer() {
+      return buf;
+    }
+  }
+}
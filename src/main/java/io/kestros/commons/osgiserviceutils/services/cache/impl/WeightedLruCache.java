@@ -0,0 +1,256 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * In-memory cache bounded by the total weight of its values, for example their size in bytes.
+ * The least recently used entries are evicted when the maximum weight is exceeded.
+ *
+ * <p>
+ * Every invalidation advances the cache's generation. Values loaded from a slower store should be
+ * added with {@link #putIfGeneration(Object, Object, long)}, using the generation read before the
+ * load started, so a value loaded before an invalidation can not be added after it.
+ * </p>
+ *
+ * @param <K> Key type.
+ * @param <V> Value type.
+ */
+public class WeightedLruCache<K, V> {
+
+  private final long maximumWeight;
+  private final ToLongFunction<V> weigher;
+  private final RemovalListener<V> removalListener;
+  private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private final LongAdder evictionCount = new LongAdder();
+  private long weight = 0;
+  private long generation = 0;
+
+  /**
+   * In-memory cache bounded by the total weight of its values.
+   *
+   * @param maximumWeight Maximum total weight of cached values.
+   * @param weigher Weight of a value.
+   */
+  public WeightedLruCache(final long maximumWeight, @Nonnull final ToLongFunction<V> weigher) {
+    this(maximumWeight, weigher, null);
+  }
+
+  /**
+   * In-memory cache bounded by the total weight of its values, which notifies a listener of
+   * every value it stops holding, whether replaced, invalidated or evicted.
+   *
+   * @param maximumWeight Maximum total weight of cached values.
+   * @param weigher Weight of a value.
+   * @param removalListener Called, while holding the cache's lock, with each value removed from
+   *         the cache. Null if removals do not need to be observed.
+   */
+  public WeightedLruCache(final long maximumWeight, @Nonnull final ToLongFunction<V> weigher,
+          @Nullable final RemovalListener<V> removalListener) {
+    if (maximumWeight < 1) {
+      throw new IllegalArgumentException("Maximum weight must be at least 1.");
+    }
+    this.maximumWeight = maximumWeight;
+    this.weigher = weigher;
+    this.removalListener = removalListener;
+  }
+
+  /**
+   * Cached value, marking it as recently used.
+   *
+   * @param key Key.
+   * @return Cached value, or null if not cached.
+   */
+  @Nullable
+  public synchronized V get(@Nonnull final K key) {
+    return entries.get(key);
+  }
+
+  /**
+   * Whether a value is cached, without marking it as recently used.
+   *
+   * @param key Key.
+   * @return Whether a value is cached.
+   */
+  public synchronized boolean containsKey(@Nonnull final K key) {
+    return entries.containsKey(key);
+  }
+
+  /**
+   * Caches a value. Values heavier than the maximum weight are not cached, and are not passed to
+   * the removal listener.
+   *
+   * @param key Key.
+   * @param value Value.
+   * @return Whether the value was cached.
+   */
+  public synchronized boolean put(@Nonnull final K key, @Nonnull final V value) {
+    final long valueWeight = weigher.applyAsLong(value);
+    if (valueWeight > maximumWeight) {
+      remove(key);
+      return false;
+    }
+    final V previous = entries.put(key, value);
+    if (previous != null) {
+      weight -= weigher.applyAsLong(previous);
+      if (previous != value) {
+        notifyRemoved(previous, false);
+      }
+    }
+    weight += valueWeight;
+    evict();
+    return true;
+  }
+
+  /**
+   * Caches a value, unless the cache has been invalidated since the specified generation.
+   *
+   * @param key Key.
+   * @param value Value.
+   * @param expectedGeneration Generation read before the value was loaded.
+   * @return Whether the value was cached.
+   */
+  public synchronized boolean putIfGeneration(@Nonnull final K key, @Nonnull final V value,
+          final long expectedGeneration) {
+    if (generation != expectedGeneration) {
+      return false;
+    }
+    return put(key, value);
+  }
+
+  /**
+   * Removes a cached value.
+   *
+   * @param key Key.
+   */
+  public synchronized void invalidate(@Nonnull final K key) {
+    generation++;
+    remove(key);
+  }
+
+  /**
+   * Removes all cached values.
+   */
+  public synchronized void invalidateAll() {
+    generation++;
+    if (removalListener != null) {
+      for (final V value : entries.values()) {
+        removalListener.onRemoval(value, false);
+      }
+    }
+    entries.clear();
+    weight = 0;
+  }
+
+  /**
+   * Current generation, advanced by every invalidation.
+   *
+   * @return Current generation.
+   */
+  public synchronized long getGeneration() {
+    return generation;
+  }
+
+  /**
+   * Number of cached values.
+   *
+   * @return Number of cached values.
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /**
+   * Total weight of cached values.
+   *
+   * @return Total weight of cached values.
+   */
+  public synchronized long getWeight() {
+    return weight;
+  }
+
+  /**
+   * Maximum total weight of cached values.
+   *
+   * @return Maximum total weight of cached values.
+   */
+  public long getMaximumWeight() {
+    return maximumWeight;
+  }
+
+  /**
+   * Number of values evicted to stay within the maximum weight.
+   *
+   * @return Number of evicted values.
+   */
+  public long getEvictionCount() {
+    return evictionCount.sum();
+  }
+
+  private void remove(@Nonnull final K key) {
+    final V removed = entries.remove(key);
+    if (removed != null) {
+      weight -= weigher.applyAsLong(removed);
+      notifyRemoved(removed, false);
+    }
+  }
+
+  private void evict() {
+    final Iterator<Map.Entry<K, V>> iterator = entries.entrySet().iterator();
+    while (weight > maximumWeight && iterator.hasNext()) {
+      final Map.Entry<K, V> eldest = iterator.next();
+      weight -= weigher.applyAsLong(eldest.getValue());
+      iterator.remove();
+      evictionCount.increment();
+      notifyRemoved(eldest.getValue(), true);
+    }
+  }
+
+  private void notifyRemoved(@Nonnull final V value, final boolean evicted) {
+    if (removalListener != null) {
+      removalListener.onRemoval(value, evicted);
+    }
+  }
+
+  /**
+   * Notified of values removed from a cache.
+   *
+   * @param <V> Value type.
+   */
+  @FunctionalInterface
+  public interface RemovalListener<V> {
+
+    /**
+     * Called with a value removed from the cache.
+     *
+     * @param value Removed value.
+     * @param evicted Whether the value was evicted to stay within the maximum weight, rather than
+     *         replaced or invalidated.
+     */
+    void onRemoval(@Nonnull V value, boolean evicted);
+  }
+}
@@ -24,6 +24,7 @@ import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
 import io.kestros.commons.osgiserviceutils.services.BaseServiceResolverService;
 import io.kestros.commons.osgiserviceutils.services.cache.CacheService;
 import io.kestros.commons.osgiserviceutils.services.eventlisteners.CachePurgeOnResourceChangeEventListener;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResolverScope;
 import java.util.Collections;
 import java.util.List;
 import javax.annotation.Nonnull;
@@ -58,10 +59,40 @@ public abstract class BaseCachePurgeOnResourceChangeEventListener extends BaseSe
     }
   }
 
-  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE")
+  /**
+   * Whether cache purges run on the listener's asynchronous executor, rather than on the thread
+   * delivering the ResourceChange events. Changes received while the executor's queue is full do
+   * not trigger a purge.
+   *
+   * @return Whether cache purges run on the listener's asynchronous executor.
+   */
+  protected boolean isPurgeAsynchronous() {
+    return false;
+  }
+
   @Override
   public void onChange(@Nonnull final List<ResourceChange> list) {
-    try (ResourceResolver resourceResolver = getServiceResourceResolver()) {
+    if (isPurgeAsynchronous()) {
+      submitAsync(() -> {
+        purgeCacheServices();
+        return null;
+      }).whenComplete((result, throwable) -> {
+        if (throwable != null) {
+          log.warn("{} was unable to queue cache purge. {}",
+                   getClass().getSimpleName().replaceAll("[\r\n]", ""),
+                   String.valueOf(throwable.getMessage()).replaceAll("[\r\n]", ""));
+        }
+      });
+    } else {
+      purgeCacheServices();
+    }
+  }
+
+  @SuppressFBWarnings("RCN_REDUNDANT_NULLCHECK_OF_NONNULL_VALUE")
+  private void purgeCacheServices() {
+    // Cache services logging in as the same service user share this scope's ResourceResolver.
+    try (ResolverScope scope = openResolverScope()) {
+      final ResourceResolver resourceResolver = scope.getResourceResolver();
       for (final CacheService cacheService : getCacheServices()) {
         try {
           if (cacheService != null) {
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nonnull;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ResourceResolverWrapper;
+
+/**
+ * ResourceResolver handed out on lease. Closing a leased ResourceResolver hands the underlying
+ * ResourceResolver back to its {@link ReleaseHandler} instead of logging it out, so leased
+ * ResourceResolvers can still be used within try-with-resources blocks.
+ */
+public class LeasedResourceResolver extends ResourceResolverWrapper {
+
+  private final ResourceResolver resourceResolver;
+  private final ReleaseHandler releaseHandler;
+  private final AtomicBoolean released = new AtomicBoolean(false);
+
+  /**
+   * Handles a leased ResourceResolver once its lease has been closed.
+   */
+  public interface ReleaseHandler {
+
+    /**
+     * Called once, when the lease is closed.
+     *
+     * @param resourceResolver Underlying ResourceResolver.
+     */
+    void release(@Nonnull ResourceResolver resourceResolver);
+  }
+
+  /**
+   * ResourceResolver handed out on lease.
+   *
+   * @param resourceResolver Underlying ResourceResolver.
+   * @param releaseHandler Called when the lease is closed.
+   */
+  public LeasedResourceResolver(@Nonnull final ResourceResolver resourceResolver,
+          @Nonnull final ReleaseHandler releaseHandler) {
+    super(resourceResolver);
+    this.resourceResolver = resourceResolver;
+    this.releaseHandler = releaseHandler;
+  }
+
+  /**
+   * Underlying ResourceResolver.
+   *
+   * @return Underlying ResourceResolver.
+   */
+  @Nonnull
+  public ResourceResolver getLeasedResourceResolver() {
+    return resourceResolver;
+  }
+
+  /**
+   * Whether the lease has been closed.
+   *
+   * @return Whether the lease has been closed.
+   */
+  public boolean isReleased() {
+    return released.get();
+  }
+
+  @Override
+  public boolean isLive() {
+    return !released.get() && resourceResolver.isLive();
+  }
+
+  /**
+   * Ends the lease. Subsequent calls are ignored.
+   */
+  @Override
+  public void close() {
+    if (released.compareAndSet(false, true)) {
+      releaseHandler.release(resourceResolver);
+    }
+  }
+}
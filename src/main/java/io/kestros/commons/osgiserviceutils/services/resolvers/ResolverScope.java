@@ -0,0 +1,227 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverPool.ResourceResolverOpener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+
+/**
+ * Unit of work which binds a single service ResourceResolver to the current thread. While a scope
+ * is open, services logging in as the same service user (through the same
+ * ResourceResolverFactory) share the scope's ResourceResolver instead of opening their own.
+ * Opening a scope while one is already open for the same service user joins the existing scope.
+ * The ResourceResolver is closed when the outermost scope is closed.
+ *
+ * <p>
+ * Nested scopes share the ResourceResolver, so they also share its pending changes. Changes left
+ * uncommitted by a nested scope are committed by the next commit made by any enclosing scope, and
+ * are not reverted when the nested scope is closed. A nested scope which fails should call {@link
+ * #markFailed()} before it is closed, so pending changes are reverted rather than committed by an
+ * enclosing scope.
+ * </p>
+ *
+ * <p>
+ * Scopes are bound to the thread that opened them and must be closed on that thread, ideally with
+ * try-with-resources.
+ * </p>
+ */
+public final class ResolverScope implements AutoCloseable {
+
+  private static final ThreadLocal<Map<ScopeKey, ResolverScope>> ACTIVE_SCOPES
+          = new ThreadLocal<>();
+
+  private final ScopeKey key;
+  private final ResourceResolver resourceResolver;
+  private final Map<ScopeKey, ResolverScope> activeScopes;
+  private int depth = 1;
+  private boolean failed = false;
+
+  private ResolverScope(@Nonnull final ScopeKey key,
+          @Nonnull final ResourceResolver resourceResolver,
+          @Nonnull final Map<ScopeKey, ResolverScope> activeScopes) {
+    this.key = key;
+    this.resourceResolver = resourceResolver;
+    this.activeScopes = activeScopes;
+  }
+
+  /**
+   * Opens a scope for the specified service user, or joins the scope already open on the current
+   * thread.
+   *
+   * @param resourceResolverFactory ResourceResolverFactory used by the service.
+   * @param serviceUserName Service user name.
+   * @param opener Opens the scope's ResourceResolver, if a new scope is needed.
+   * @return Open ResolverScope.
+   * @throws LoginException Failed to open the scope's ResourceResolver.
+   */
+  @Nonnull
+  public static ResolverScope open(@Nullable final ResourceResolverFactory resourceResolverFactory,
+          @Nonnull final String serviceUserName, @Nonnull final ResourceResolverOpener opener)
+          throws LoginException {
+    final ResolverScope activeScope = getActiveScope(resourceResolverFactory, serviceUserName);
+    if (activeScope != null) {
+      activeScope.depth++;
+      return activeScope;
+    }
+    final ResourceResolver resourceResolver = opener.open();
+    Map<ScopeKey, ResolverScope> activeScopes = ACTIVE_SCOPES.get();
+    if (activeScopes == null) {
+      activeScopes = new HashMap<>();
+      ACTIVE_SCOPES.set(activeScopes);
+    }
+    final ScopeKey key = new ScopeKey(resourceResolverFactory, serviceUserName);
+    final ResolverScope scope = new ResolverScope(key, resourceResolver, activeScopes);
+    activeScopes.put(key, scope);
+    return scope;
+  }
+
+  /**
+   * Whether any scope is open on the current thread. Cheap check used before looking up a specific
+   * scope.
+   *
+   * @return Whether any scope is open on the current thread.
+   */
+  public static boolean hasActiveScopes() {
+    final Map<ScopeKey, ResolverScope> activeScopes = ACTIVE_SCOPES.get();
+    return activeScopes != null && !activeScopes.isEmpty();
+  }
+
+  /**
+   * Scope open on the current thread for the specified service user.
+   *
+   * @param resourceResolverFactory ResourceResolverFactory used by the service.
+   * @param serviceUserName Service user name.
+   * @return Scope open on the current thread for the specified service user, or null.
+   */
+  @Nullable
+  public static ResolverScope getActiveScope(
+          @Nullable final ResourceResolverFactory resourceResolverFactory,
+          @Nonnull final String serviceUserName) {
+    final Map<ScopeKey, ResolverScope> activeScopes = ACTIVE_SCOPES.get();
+    if (activeScopes == null || activeScopes.isEmpty()) {
+      return null;
+    }
+    return activeScopes.get(new ScopeKey(resourceResolverFactory, serviceUserName));
+  }
+
+  /**
+   * ResourceResolver shared by the scope. Must not be closed by callers, it is closed when the
+   * scope is closed.
+   *
+   * @return ResourceResolver shared by the scope.
+   */
+  @Nonnull
+  public ResourceResolver getResourceResolver() {
+    return resourceResolver;
+  }
+
+  /**
+   * View of the scope's ResourceResolver for nested calls. Closing the view does not close the
+   * scope's ResourceResolver, so nested callers can keep using try-with-resources.
+   *
+   * @return View of the scope's ResourceResolver.
+   */
+  @Nonnull
+  public ResourceResolver lease() {
+    return new LeasedResourceResolver(resourceResolver, released -> {
+      // The scope owns the ResourceResolver, and closes it when the scope is closed.
+    });
+  }
+
+  /**
+   * Whether the scope is still open.
+   *
+   * @return Whether the scope is still open.
+   */
+  public boolean isOpen() {
+    return depth > 0;
+  }
+
+  /**
+   * Marks the current unit of work as failed, so pending changes on the scope's ResourceResolver
+   * are reverted when the scope is next closed. As nested scopes share the ResourceResolver,
+   * changes not yet committed by enclosing scopes are reverted too.
+   */
+  public void markFailed() {
+    failed = true;
+  }
+
+  /**
+   * Leaves the scope, reverting pending changes if the scope was marked as failed. The scope's
+   * ResourceResolver is closed once the outermost scope has been closed.
+   */
+  @Override
+  public void close() {
+    if (depth <= 0) {
+      return;
+    }
+    depth--;
+    if (failed) {
+      failed = false;
+      if (depth > 0 && resourceResolver.hasChanges()) {
+        resourceResolver.revert();
+      }
+    }
+    if (depth == 0) {
+      activeScopes.remove(key);
+      if (activeScopes.isEmpty() && ACTIVE_SCOPES.get() == activeScopes) {
+        ACTIVE_SCOPES.remove();
+      }
+      resourceResolver.close();
+    }
+  }
+
+  private static final class ScopeKey {
+
+    private final ResourceResolverFactory resourceResolverFactory;
+    private final String serviceUserName;
+
+    private ScopeKey(@Nullable final ResourceResolverFactory resourceResolverFactory,
+            @Nonnull final String serviceUserName) {
+      this.resourceResolverFactory = resourceResolverFactory;
+      this.serviceUserName = serviceUserName;
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+      if (this == object) {
+        return true;
+      }
+      if (!(object instanceof ScopeKey)) {
+        return false;
+      }
+      final ScopeKey other = (ScopeKey) object;
+      return resourceResolverFactory == other.resourceResolverFactory
+             && serviceUserName.equals(other.serviceUserName);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(System.identityHashCode(resourceResolverFactory), serviceUserName);
+    }
+  }
+}
@@ -0,0 +1,270 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import io.kestros.commons.osgiserviceutils.services.resolvers.LeasedResourceResolver.ReleaseHandler;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks ResourceResolvers handed out to callers until they are closed. ResourceResolvers which
+ * are garbage collected without being closed are reported as leaked and their underlying
+ * ResourceResolver is released, and ResourceResolvers held open longer than a threshold can be
+ * listed. A sample of acquisitions record the stack trace of the caller, so leaks can be traced
+ * back to their source while keeping the cost of tracking low.
+ */
+public class ResourceResolverLeakDetector {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceResolverLeakDetector.class);
+
+  private final ReferenceQueue<Object> collectedQueue = new ReferenceQueue<>();
+  private final Set<TrackedResourceResolver> outstanding = ConcurrentHashMap.newKeySet();
+  private final LongAdder leakedCount = new LongAdder();
+  private final double samplingRate;
+  private final long thresholdMillis;
+
+  /**
+   * Tracks ResourceResolvers handed out to callers until they are closed.
+   *
+   * @param samplingRate Fraction of acquisitions, between 0 and 1, which record the caller's
+   *         stack trace.
+   * @param thresholdMillis Milliseconds a ResourceResolver can be held open before it is
+   *         reported.
+   */
+  public ResourceResolverLeakDetector(final double samplingRate, final long thresholdMillis) {
+    this.samplingRate = samplingRate;
+    this.thresholdMillis = thresholdMillis;
+  }
+
+  /**
+   * Starts tracking a ResourceResolver. The returned ResourceResolver must be handed to the
+   * caller in place of the underlying ResourceResolver. Closing it stops tracking and calls the
+   * release handler.
+   *
+   * @param resourceResolver Underlying ResourceResolver.
+   * @param releaseHandler Releases the underlying ResourceResolver when closed, or when found
+   *         to be leaked.
+   * @return Tracked ResourceResolver.
+   */
+  @Nonnull
+  public LeasedResourceResolver track(@Nonnull final ResourceResolver resourceResolver,
+          @Nonnull final ReleaseHandler releaseHandler) {
+    expungeCollected();
+    final Throwable allocationStackTrace;
+    if (samplingRate > 0 && ThreadLocalRandom.current().nextDouble() < samplingRate) {
+      allocationStackTrace = new Throwable("ResourceResolver acquired here");
+    } else {
+      allocationStackTrace = null;
+    }
+    // The handler is only reachable through the returned ResourceResolver, so it is used as the
+    // phantom referent to detect callers dropping the ResourceResolver without closing it.
+    final UntrackingReleaseHandler untrackingReleaseHandler = new UntrackingReleaseHandler();
+    final TrackedResourceResolver tracked = new TrackedResourceResolver(untrackingReleaseHandler,
+            collectedQueue, resourceResolver, releaseHandler, allocationStackTrace);
+    untrackingReleaseHandler.tracked = tracked;
+    outstanding.add(tracked);
+    return new LeasedResourceResolver(resourceResolver, untrackingReleaseHandler);
+  }
+
+  /**
+   * Releases ResourceResolvers which were garbage collected without being closed, logging where
+   * they were acquired if a stack trace was sampled.
+   *
+   * @return Number of leaked ResourceResolvers found.
+   */
+  public int expungeCollected() {
+    int found = 0;
+    Reference<?> reference;
+    while ((reference = collectedQueue.poll()) != null) {
+      final TrackedResourceResolver tracked = (TrackedResourceResolver) reference;
+      if (outstanding.remove(tracked)) {
+        found++;
+        leakedCount.increment();
+        if (tracked.getAllocationStackTrace() != null) {
+          LOG.warn("ResourceResolver acquired by thread {} was never closed.",
+                   tracked.getThreadName().replaceAll("[\r\n]", ""),
+                   tracked.getAllocationStackTrace());
+        } else {
+          LOG.warn("ResourceResolver acquired by thread {} was never closed.",
+                   tracked.getThreadName().replaceAll("[\r\n]", ""));
+        }
+        tracked.release();
+      }
+    }
+    return found;
+  }
+
+  /**
+   * ResourceResolvers which have been open for longer than the threshold, oldest first.
+   *
+   * @return ResourceResolvers which have been open for longer than the threshold.
+   */
+  @Nonnull
+  public List<TrackedResourceResolver> getOpenLongerThanThreshold() {
+    final List<TrackedResourceResolver> openResourceResolvers = new ArrayList<>();
+    for (final TrackedResourceResolver tracked : outstanding) {
+      if (tracked.getOpenMillis() > thresholdMillis) {
+        openResourceResolvers.add(tracked);
+      }
+    }
+    openResourceResolvers.sort(
+            Comparator.comparingLong(TrackedResourceResolver::getOpenMillis).reversed());
+    return Collections.unmodifiableList(openResourceResolvers);
+  }
+
+  /**
+   * Logs ResourceResolvers that have been open longer than the threshold.
+   *
+   * @return ResourceResolvers that have been open longer than the threshold.
+   */
+  @Nonnull
+  public List<TrackedResourceResolver> logOpenLongerThanThreshold() {
+    final List<TrackedResourceResolver> openResourceResolvers = getOpenLongerThanThreshold();
+    for (final TrackedResourceResolver tracked : openResourceResolvers) {
+      if (tracked.getAllocationStackTrace() != null) {
+        LOG.warn("ResourceResolver acquired by thread {} has been open for {}ms.",
+                 tracked.getThreadName().replaceAll("[\r\n]", ""), tracked.getOpenMillis(),
+                 tracked.getAllocationStackTrace());
+      } else {
+        LOG.warn("ResourceResolver acquired by thread {} has been open for {}ms.",
+                 tracked.getThreadName().replaceAll("[\r\n]", ""), tracked.getOpenMillis());
+      }
+    }
+    return openResourceResolvers;
+  }
+
+  /**
+   * Number of ResourceResolvers currently tracked.
+   *
+   * @return Number of ResourceResolvers currently tracked.
+   */
+  public int getOutstandingCount() {
+    return outstanding.size();
+  }
+
+  /**
+   * Number of ResourceResolvers found to be garbage collected without being closed.
+   *
+   * @return Number of ResourceResolvers garbage collected without being closed.
+   */
+  public long getLeakedCount() {
+    return leakedCount.sum();
+  }
+
+  /**
+   * Milliseconds a ResourceResolver can be held open before it is reported.
+   *
+   * @return Milliseconds a ResourceResolver can be held open before it is reported.
+   */
+  public long getThresholdMillis() {
+    return thresholdMillis;
+  }
+
+  private final class UntrackingReleaseHandler implements ReleaseHandler {
+
+    private volatile TrackedResourceResolver tracked;
+
+    @Override
+    public void release(@Nonnull final ResourceResolver resourceResolver) {
+      final TrackedResourceResolver trackedResourceResolver = tracked;
+      if (trackedResourceResolver != null && outstanding.remove(trackedResourceResolver)) {
+        trackedResourceResolver.clear();
+        trackedResourceResolver.release();
+      }
+    }
+  }
+
+  /**
+   * ResourceResolver handed out to a caller which has not been closed yet.
+   */
+  public static final class TrackedResourceResolver extends PhantomReference<Object> {
+
+    private final ResourceResolver resourceResolver;
+    private final ReleaseHandler releaseHandler;
+    private final Throwable allocationStackTrace;
+    private final String threadName;
+    private final long acquiredAt;
+
+    private TrackedResourceResolver(@Nonnull final Object referent,
+            @Nonnull final ReferenceQueue<Object> queue,
+            @Nonnull final ResourceResolver resourceResolver,
+            @Nonnull final ReleaseHandler releaseHandler,
+            @Nullable final Throwable allocationStackTrace) {
+      super(referent, queue);
+      this.resourceResolver = resourceResolver;
+      this.releaseHandler = releaseHandler;
+      this.allocationStackTrace = allocationStackTrace;
+      this.threadName = Thread.currentThread().getName();
+      this.acquiredAt = System.nanoTime();
+    }
+
+    /**
+     * Stack trace of the caller which acquired the ResourceResolver, if it was sampled.
+     *
+     * @return Stack trace of the caller which acquired the ResourceResolver, or null.
+     */
+    @Nullable
+    public Throwable getAllocationStackTrace() {
+      return allocationStackTrace;
+    }
+
+    /**
+     * Name of the thread which acquired the ResourceResolver.
+     *
+     * @return Name of the thread which acquired the ResourceResolver.
+     */
+    @Nonnull
+    public String getThreadName() {
+      return threadName;
+    }
+
+    /**
+     * Milliseconds since the ResourceResolver was acquired.
+     *
+     * @return Milliseconds since the ResourceResolver was acquired.
+     */
+    public long getOpenMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - acquiredAt);
+    }
+
+    private void release() {
+      try {
+        releaseHandler.release(resourceResolver);
+      } catch (final RuntimeException exception) {
+        LOG.debug("Failed to release tracked ResourceResolver. {}", exception.getMessage());
+      }
+    }
+  }
+}
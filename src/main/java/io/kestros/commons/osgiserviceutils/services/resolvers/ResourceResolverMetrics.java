@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import io.kestros.commons.osgiserviceutils.metrics.LatencyHistogram;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.annotation.Nonnull;
+
+/**
+ * Service ResourceResolver login and usage metrics for a single service user. Metrics are shared
+ * by every service logging in as the same service user, and are collected with striped counters
+ * to keep recording cheap on hot paths.
+ */
+public class ResourceResolverMetrics {
+
+  private static final ConcurrentMap<String, ResourceResolverMetrics> METRICS
+          = new ConcurrentHashMap<>();
+
+  private final String serviceUserName;
+  private final LongAdder openCount = new LongAdder();
+  private final LongAdder openFailureCount = new LongAdder();
+  private final LongAdder currentlyOpen = new LongAdder();
+  private final LatencyHistogram openLatency = new LatencyHistogram();
+  private final LatencyHistogram heldTime = new LatencyHistogram();
+  private volatile long recordingStartedAt = System.nanoTime();
+
+  ResourceResolverMetrics(@Nonnull final String serviceUserName) {
+    this.serviceUserName = serviceUserName;
+  }
+
+  /**
+   * Metrics for the specified service user.
+   *
+   * @param serviceUserName Service user name.
+   * @return Metrics for the specified service user.
+   */
+  @Nonnull
+  public static ResourceResolverMetrics forServiceUser(@Nonnull final String serviceUserName) {
+    return METRICS.computeIfAbsent(serviceUserName, ResourceResolverMetrics::new);
+  }
+
+  /**
+   * Metrics for every service user that has logged in, sorted by service user name.
+   *
+   * @return Metrics for every service user that has logged in.
+   */
+  @Nonnull
+  public static Map<String, ResourceResolverMetrics> getAll() {
+    return Collections.unmodifiableMap(new TreeMap<>(METRICS));
+  }
+
+  /**
+   * Service user name.
+   *
+   * @return Service user name.
+   */
+  @Nonnull
+  public String getServiceUserName() {
+    return serviceUserName;
+  }
+
+  /**
+   * Records a successful login.
+   *
+   * @param nanos Time the login took, in nanoseconds.
+   */
+  public void recordOpen(final long nanos) {
+    openCount.increment();
+    openLatency.record(nanos);
+  }
+
+  /**
+   * Records a failed login.
+   *
+   * @param nanos Time the login attempt took, in nanoseconds.
+   */
+  public void recordOpenFailure(final long nanos) {
+    openFailureCount.increment();
+    openLatency.record(nanos);
+  }
+
+  /**
+   * Records a ResourceResolver being handed out to a caller.
+   */
+  public void recordAcquired() {
+    currentlyOpen.increment();
+  }
+
+  /**
+   * Records a ResourceResolver handed out to a caller being closed.
+   *
+   * @param nanos Time the ResourceResolver was held by the caller, in nanoseconds.
+   */
+  public void recordReleased(final long nanos) {
+    currentlyOpen.decrement();
+    heldTime.record(nanos);
+  }
+
+  /**
+   * Number of successful logins.
+   *
+   * @return Number of successful logins.
+   */
+  public long getOpenCount() {
+    return openCount.sum();
+  }
+
+  /**
+   * Number of failed logins.
+   *
+   * @return Number of failed logins.
+   */
+  public long getOpenFailureCount() {
+    return openFailureCount.sum();
+  }
+
+  /**
+   * Average successful logins per second since metrics started recording.
+   *
+   * @return Average successful logins per second.
+   */
+  public double getOpenRate() {
+    final long elapsedNanos = Math.max(1, System.nanoTime() - recordingStartedAt);
+    return getOpenCount() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+  }
+
+  /**
+   * Number of tracked ResourceResolvers handed out and not yet closed.
+   *
+   * @return Number of tracked ResourceResolvers handed out and not yet closed.
+   */
+  public long getCurrentlyOpen() {
+    return currentlyOpen.sum();
+  }
+
+  /**
+   * Time taken to log in.
+   *
+   * @return Time taken to log in.
+   */
+  @Nonnull
+  public LatencyHistogram getOpenLatency() {
+    return openLatency;
+  }
+
+  /**
+   * Time tracked ResourceResolvers were held before being closed.
+   *
+   * @return Time tracked ResourceResolvers were held before being closed.
+   */
+  @Nonnull
+  public LatencyHistogram getHeldTime() {
+    return heldTime;
+  }
+
+  /**
+   * Clears recorded logins and hold times. The currently open count is kept, since those
+   * ResourceResolvers will still be closed later.
+   */
+  public void reset() {
+    openCount.reset();
+    openFailureCount.reset();
+    openLatency.reset();
+    heldTime.reset();
+    recordingStartedAt = System.nanoTime();
+  }
+
+  /**
+   * Human readable summary.
+   *
+   * @return Human readable summary.
+   */
+  @Nonnull
+  @Override
+  public String toString() {
+    return String.format("%s: %s opened (%.2f/s), %s failed, %s currently open. Login time: %s. "
+                         + "Held time: %s.", serviceUserName, getOpenCount(), getOpenRate(),
+                         getOpenFailureCount(), getCurrentlyOpen(), openLatency, heldTime);
+  }
+}
@@ -0,0 +1,286 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded pool of logged in ResourceResolvers. Leased ResourceResolvers are returned to the pool
+ * when closed. Idle ResourceResolvers are validated and refreshed before being leased again, and
+ * are logged out once they have been idle, or open, for longer than the configured limits.
+ */
+public class ResourceResolverPool {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ResourceResolverPool.class);
+
+  private final ResourceResolverOpener opener;
+  private final int maximumSize;
+  private final long maximumIdleNanos;
+  private final long maximumLifetimeNanos;
+  private final long leaseTimeoutMillis;
+  private final Semaphore leases;
+  private final Deque<PooledEntry> idleEntries = new ArrayDeque<>();
+  private volatile boolean closed = false;
+
+  /**
+   * Opens new ResourceResolvers for the pool.
+   */
+  public interface ResourceResolverOpener {
+
+    /**
+     * Opens a new ResourceResolver.
+     *
+     * @return Newly opened ResourceResolver.
+     * @throws LoginException Failed to log in.
+     */
+    @Nonnull
+    ResourceResolver open() throws LoginException;
+  }
+
+  /**
+   * Bounded pool of logged in ResourceResolvers.
+   *
+   * @param opener Opens new ResourceResolvers when no idle ResourceResolver is available.
+   * @param maximumSize Maximum number of ResourceResolvers, leased and idle, held by the pool.
+   * @param maximumIdleTime Milliseconds an idle ResourceResolver is kept before being closed.
+   * @param maximumLifetime Milliseconds a ResourceResolver is kept open before being closed.
+   * @param leaseTimeout Milliseconds to wait for a lease when every ResourceResolver is leased.
+   */
+  public ResourceResolverPool(@Nonnull final ResourceResolverOpener opener, final int maximumSize,
+          final long maximumIdleTime, final long maximumLifetime, final long leaseTimeout) {
+    if (maximumSize < 1) {
+      throw new IllegalArgumentException("ResourceResolverPool maximum size must be at least 1.");
+    }
+    this.opener = opener;
+    this.maximumSize = maximumSize;
+    this.maximumIdleNanos = TimeUnit.MILLISECONDS.toNanos(maximumIdleTime);
+    this.maximumLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(maximumLifetime);
+    this.leaseTimeoutMillis = leaseTimeout;
+    this.leases = new Semaphore(maximumSize, true);
+  }
+
+  /**
+   * Leases a live, refreshed ResourceResolver from the pool, opening a new one if no idle
+   * ResourceResolver is available. Closing the returned ResourceResolver returns it to the pool.
+   *
+   * @return Leased ResourceResolver.
+   * @throws LoginException Pool is closed, no lease became available within the lease
+   *         timeout, or a new ResourceResolver could not be opened.
+   */
+  @Nonnull
+  public LeasedResourceResolver lease() throws LoginException {
+    if (closed) {
+      throw new LoginException("Unable to lease ResourceResolver. Pool has been closed.");
+    }
+    acquireLease();
+    try {
+      PooledEntry entry = takeIdleEntry();
+      if (entry == null) {
+        entry = new PooledEntry(opener.open());
+      }
+      final PooledEntry leasedEntry = entry;
+      return new LeasedResourceResolver(leasedEntry.resourceResolver,
+                                        resourceResolver -> release(leasedEntry));
+    } catch (LoginException | RuntimeException exception) {
+      leases.release();
+      throw exception;
+    }
+  }
+
+  /**
+   * Closes all idle ResourceResolvers. ResourceResolvers which are currently leased are closed
+   * when they are returned.
+   */
+  public void close() {
+    final List<PooledEntry> entriesToClose;
+    synchronized (idleEntries) {
+      // Set under the lock, so returned ResourceResolvers are either drained here or closed.
+      closed = true;
+      entriesToClose = new ArrayList<>(idleEntries);
+      idleEntries.clear();
+    }
+    for (final PooledEntry entry : entriesToClose) {
+      closeQuietly(entry);
+    }
+  }
+
+  /**
+   * Whether the pool has been closed.
+   *
+   * @return Whether the pool has been closed.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Maximum number of ResourceResolvers held by the pool.
+   *
+   * @return Maximum number of ResourceResolvers held by the pool.
+   */
+  public int getMaximumSize() {
+    return maximumSize;
+  }
+
+  /**
+   * Number of ResourceResolvers currently leased.
+   *
+   * @return Number of ResourceResolvers currently leased.
+   */
+  public int getLeasedCount() {
+    return maximumSize - leases.availablePermits();
+  }
+
+  /**
+   * Number of idle ResourceResolvers waiting to be leased.
+   *
+   * @return Number of idle ResourceResolvers waiting to be leased.
+   */
+  public int getIdleCount() {
+    synchronized (idleEntries) {
+      return idleEntries.size();
+    }
+  }
+
+  private void acquireLease() throws LoginException {
+    try {
+      if (!leases.tryAcquire(leaseTimeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new LoginException(String.format(
+                "Unable to lease ResourceResolver. All %s pooled ResourceResolvers were in use "
+                + "for %sms.", maximumSize, leaseTimeoutMillis));
+      }
+    } catch (final InterruptedException exception) {
+      Thread.currentThread().interrupt();
+      throw new LoginException("Interrupted while waiting to lease ResourceResolver.", exception);
+    }
+  }
+
+  @Nullable
+  private PooledEntry takeIdleEntry() {
+    while (true) {
+      final PooledEntry entry;
+      synchronized (idleEntries) {
+        entry = idleEntries.pollFirst();
+      }
+      if (entry == null) {
+        return null;
+      }
+      final long now = System.nanoTime();
+      if (isExpired(entry, now) || !entry.resourceResolver.isLive()) {
+        closeQuietly(entry);
+        continue;
+      }
+      try {
+        entry.resourceResolver.refresh();
+        return entry;
+      } catch (final RuntimeException exception) {
+        LOG.debug("Discarding pooled ResourceResolver which failed to refresh. {}",
+                  exception.getMessage());
+        closeQuietly(entry);
+      }
+    }
+  }
+
+  private void release(@Nonnull final PooledEntry entry) {
+    try {
+      final long now = System.nanoTime();
+      final ResourceResolver resourceResolver = entry.resourceResolver;
+      if (closed || !resourceResolver.isLive() || now - entry.openedAt > maximumLifetimeNanos) {
+        closeQuietly(entry);
+        return;
+      }
+      if (resourceResolver.hasChanges()) {
+        resourceResolver.revert();
+      }
+      entry.returnedAt = now;
+      final boolean pooled;
+      synchronized (idleEntries) {
+        // The pool may have been closed, and drained, since closed was last read.
+        pooled = !closed;
+        if (pooled) {
+          idleEntries.addFirst(entry);
+        }
+      }
+      if (!pooled) {
+        closeQuietly(entry);
+        return;
+      }
+      evictIdleEntries(now);
+    } catch (final RuntimeException exception) {
+      LOG.debug("Discarding pooled ResourceResolver which failed to be returned. {}",
+                exception.getMessage());
+      closeQuietly(entry);
+    } finally {
+      leases.release();
+    }
+  }
+
+  private void evictIdleEntries(final long now) {
+    final List<PooledEntry> evictedEntries = new ArrayList<>();
+    synchronized (idleEntries) {
+      // Idle entries are pushed to the front, so the longest idle entries sit at the back.
+      while (!idleEntries.isEmpty() && isExpired(idleEntries.peekLast(), now)) {
+        evictedEntries.add(idleEntries.pollLast());
+      }
+    }
+    for (final PooledEntry entry : evictedEntries) {
+      closeQuietly(entry);
+    }
+  }
+
+  private boolean isExpired(@Nonnull final PooledEntry entry, final long now) {
+    return now - entry.returnedAt > maximumIdleNanos
+           || now - entry.openedAt > maximumLifetimeNanos;
+  }
+
+  private void closeQuietly(@Nonnull final PooledEntry entry) {
+    try {
+      if (entry.resourceResolver.isLive()) {
+        entry.resourceResolver.close();
+      }
+    } catch (final RuntimeException exception) {
+      LOG.debug("Failed to close pooled ResourceResolver. {}", exception.getMessage());
+    }
+  }
+
+  private static final class PooledEntry {
+
+    private final ResourceResolver resourceResolver;
+    private final long openedAt;
+    private long returnedAt;
+
+    private PooledEntry(@Nonnull final ResourceResolver resourceResolver) {
+      this.resourceResolver = resourceResolver;
+      this.openedAt = System.nanoTime();
+      this.returnedAt = this.openedAt;
+    }
+  }
+}
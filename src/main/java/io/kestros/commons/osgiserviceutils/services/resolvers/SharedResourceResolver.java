@@ -0,0 +1,268 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverPool.ResourceResolverOpener;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Long-lived, read only ResourceResolver which is refreshed on a fixed cadence, or after changes
+ * have been reported with {@link #markStale()}. Either each thread is given its own
+ * ResourceResolver, or a single ResourceResolver is shared by all threads. JCR sessions are not
+ * thread-safe, so a single ResourceResolver should only be shared when its resource provider is.
+ *
+ * <p>
+ * ResourceResolvers returned by {@link #get()} are owned by this class and must not be closed or
+ * used for writes by callers.
+ * </p>
+ */
+public class SharedResourceResolver {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SharedResourceResolver.class);
+
+  private final ResourceResolverOpener opener;
+  private final long refreshIntervalNanos;
+  private final boolean perThread;
+  private final Holder sharedHolder;
+  // Holders are only weakly referenced by threads, and strongly referenced by holders until
+  // closed, or their thread has died, so pooled threads do not keep closed holders, or their
+  // class loader, reachable.
+  private final ThreadLocal<WeakReference<Holder>> threadHolders;
+  private final Set<Holder> holders = ConcurrentHashMap.newKeySet();
+  private final AtomicLong changeCount = new AtomicLong();
+  private final AtomicLong prunedAt = new AtomicLong(System.nanoTime());
+  private volatile boolean closed = false;
+
+  /**
+   * Long-lived, read only ResourceResolver.
+   *
+   * @param opener Opens the ResourceResolver.
+   * @param refreshInterval Milliseconds between refreshes.
+   * @param perThread Whether each thread is given its own ResourceResolver.
+   */
+  public SharedResourceResolver(@Nonnull final ResourceResolverOpener opener,
+          final long refreshInterval, final boolean perThread) {
+    this.opener = opener;
+    this.refreshIntervalNanos = TimeUnit.MILLISECONDS.toNanos(refreshInterval);
+    this.perThread = perThread;
+    if (perThread) {
+      this.sharedHolder = null;
+      this.threadHolders = new ThreadLocal<>();
+    } else {
+      this.sharedHolder = newHolder(null);
+      this.threadHolders = null;
+    }
+  }
+
+  /**
+   * Live ResourceResolver, refreshed if the refresh interval has elapsed or changes have been
+   * reported since the last refresh. When each thread is given its own ResourceResolver, those of
+   * threads which have died are closed once per refresh interval, and whenever a thread is given
+   * a new one.
+   *
+   * @return Live ResourceResolver. Must not be closed by callers.
+   * @throws LoginException Closed, or failed to open the ResourceResolver.
+   */
+  @Nonnull
+  public ResourceResolver get() throws LoginException {
+    if (closed) {
+      throw new LoginException("Unable to get shared ResourceResolver. It has been closed.");
+    }
+    if (perThread) {
+      pruneDeadThreadHoldersIfDue();
+      return getThreadHolder().get();
+    }
+    return sharedHolder.get();
+  }
+
+  /**
+   * Reports a change, so ResourceResolvers are refreshed before they are next used.
+   */
+  public void markStale() {
+    changeCount.incrementAndGet();
+  }
+
+  /**
+   * Whether each thread is given its own ResourceResolver.
+   *
+   * @return Whether each thread is given its own ResourceResolver.
+   */
+  public boolean isPerThread() {
+    return perThread;
+  }
+
+  /**
+   * Number of ResourceResolvers currently open.
+   *
+   * @return Number of ResourceResolvers currently open.
+   */
+  public int getOpenCount() {
+    int openCount = 0;
+    for (final Holder holder : holders) {
+      if (holder.isOpen()) {
+        openCount++;
+      }
+    }
+    return openCount;
+  }
+
+  /**
+   * Closes the ResourceResolvers of every thread.
+   */
+  public void close() {
+    closed = true;
+    for (final Holder holder : holders) {
+      holder.close();
+    }
+    holders.clear();
+    if (threadHolders != null) {
+      threadHolders.remove();
+    }
+  }
+
+  /**
+   * Whether this has been closed.
+   *
+   * @return Whether this has been closed.
+   */
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Nonnull
+  private Holder newHolder(@Nullable final Thread owner) {
+    final Holder holder = new Holder(owner);
+    holders.add(holder);
+    return holder;
+  }
+
+  private void pruneDeadThreadHoldersIfDue() {
+    final long now = System.nanoTime();
+    final long lastPrunedAt = prunedAt.get();
+    if (now - lastPrunedAt >= refreshIntervalNanos && prunedAt.compareAndSet(lastPrunedAt, now)) {
+      pruneDeadThreadHolders();
+    }
+  }
+
+  private void pruneDeadThreadHolders() {
+    int pruned = 0;
+    for (final Holder holder : holders) {
+      if (!holder.isOwnerAlive() && holders.remove(holder)) {
+        holder.close();
+        pruned++;
+      }
+    }
+    if (pruned > 0) {
+      LOG.debug("Closed {} shared ResourceResolvers of threads which have died.", pruned);
+    }
+  }
+
+  @Nonnull
+  private Holder getThreadHolder() throws LoginException {
+    final WeakReference<Holder> holderReference = threadHolders.get();
+    Holder holder = holderReference != null ? holderReference.get() : null;
+    if (holder == null) {
+      pruneDeadThreadHolders();
+      holder = newHolder(Thread.currentThread());
+      threadHolders.set(new WeakReference<>(holder));
+      if (closed) {
+        // Closed while the holder was being added, so it was not closed with the others.
+        holders.remove(holder);
+        threadHolders.remove();
+        throw new LoginException("Unable to get shared ResourceResolver. It has been closed.");
+      }
+    }
+    return holder;
+  }
+
+  private final class Holder {
+
+    // Null for the holder shared by all threads.
+    private final WeakReference<Thread> owner;
+    private volatile ResourceResolver resourceResolver;
+    private volatile long refreshedAt;
+    private volatile long refreshedChangeCount;
+
+    private Holder(@Nullable final Thread owner) {
+      this.owner = owner != null ? new WeakReference<>(owner) : null;
+    }
+
+    @Nonnull
+    private ResourceResolver get() throws LoginException {
+      final ResourceResolver current = resourceResolver;
+      if (current != null && isFresh() && current.isLive()) {
+        return current;
+      }
+      synchronized (this) {
+        final long now = System.nanoTime();
+        final long currentChangeCount = changeCount.get();
+        if (resourceResolver == null || !resourceResolver.isLive()) {
+          resourceResolver = opener.open();
+        } else if (!isFresh()) {
+          resourceResolver.refresh();
+        }
+        refreshedAt = now;
+        refreshedChangeCount = currentChangeCount;
+        return resourceResolver;
+      }
+    }
+
+    private boolean isFresh() {
+      return refreshedChangeCount == changeCount.get()
+             && System.nanoTime() - refreshedAt < refreshIntervalNanos;
+    }
+
+    private boolean isOwnerAlive() {
+      if (owner == null) {
+        return true;
+      }
+      final Thread thread = owner.get();
+      return thread != null && thread.isAlive();
+    }
+
+    private boolean isOpen() {
+      final ResourceResolver current = resourceResolver;
+      return current != null && current.isLive();
+    }
+
+    private synchronized void close() {
+      if (resourceResolver != null) {
+        try {
+          if (resourceResolver.isLive()) {
+            resourceResolver.close();
+          }
+        } catch (final RuntimeException exception) {
+          LOG.debug("Failed to close shared ResourceResolver. {}", exception.getMessage());
+        }
+        resourceResolver = null;
+      }
+    }
+  }
+}
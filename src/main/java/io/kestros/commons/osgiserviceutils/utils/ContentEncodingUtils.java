@@ -0,0 +1,129 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Utility methods for HTTP content encodings.
+ */
+public class ContentEncodingUtils {
+
+  /**
+   * gzip content encoding.
+   */
+  public static final String GZIP = "gzip";
+
+  /**
+   * Content encoding of content which is not encoded.
+   */
+  public static final String IDENTITY = "identity";
+
+  /**
+   * Content encoding matching any encoding.
+   */
+  public static final String ANY = "*";
+
+  private ContentEncodingUtils() {
+    // Do nothing
+  }
+
+  /**
+   * Content encodings accepted by an Accept-Encoding header, most preferred first. Encodings with
+   * a quality of 0 are not accepted, and encodings with equal quality keep the order they were
+   * listed in.
+   *
+   * @param acceptEncoding Accept-Encoding header value.
+   * @return Accepted content encodings, in lower case, most preferred first. Empty if the header
+   *         is null or empty.
+   */
+  @Nonnull
+  public static List<String> getAcceptedEncodings(@Nullable final String acceptEncoding) {
+    if (acceptEncoding == null || acceptEncoding.trim().isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<String> acceptedEncodings = new ArrayList<>();
+    final Map<String, Double> qualities = new HashMap<>();
+    for (final String acceptedEncoding : acceptEncoding.split(",")) {
+      final String[] parameters = acceptedEncoding.split(";");
+      final String encoding = parameters[0].trim().toLowerCase(Locale.ROOT);
+      if (encoding.isEmpty() || qualities.containsKey(encoding)) {
+        continue;
+      }
+      double quality = 1;
+      for (int i = 1; i < parameters.length; i++) {
+        final String parameter = parameters[i].trim().toLowerCase(Locale.ROOT);
+        if (parameter.startsWith("q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2).trim());
+          } catch (final NumberFormatException exception) {
+            quality = 0;
+          }
+        }
+      }
+      qualities.put(encoding, quality);
+      if (quality > 0) {
+        acceptedEncodings.add(encoding);
+      }
+    }
+    acceptedEncodings.sort(
+            Comparator.comparingDouble((String encoding) -> qualities.get(encoding)).reversed());
+    return acceptedEncodings;
+  }
+
+  /**
+   * Compresses content with gzip, at the highest compression level. Intended for content which
+   * is compressed once and served many times.
+   *
+   * @param content Content to compress.
+   * @return gzip compressed content.
+   * @throws IOException Failed to compress the content.
+   */
+  @Nonnull
+  public static byte[] gzip(@Nonnull final byte[] content) throws IOException {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+            Math.max(64, content.length / 4));
+    try (GZIPOutputStream gzipOutputStream = new BestCompressionGzipOutputStream(outputStream)) {
+      gzipOutputStream.write(content);
+    }
+    return outputStream.toByteArray();
+  }
+
+  private static final class BestCompressionGzipOutputStream extends GZIPOutputStream {
+
+    private BestCompressionGzipOutputStream(@Nonnull final ByteArrayOutputStream outputStream)
+            throws IOException {
+      super(outputStream, 8192);
+      def.setLevel(Deflater.BEST_COMPRESSION);
+    }
+  }
+}
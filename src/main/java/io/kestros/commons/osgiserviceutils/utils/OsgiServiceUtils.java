@@ -19,17 +19,29 @@
 
 package io.kestros.commons.osgiserviceutils.utils;
 
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverMetrics;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.api.resource.ResourceResolverFactory;
 import org.osgi.service.component.ComponentContext;
-import org.osgi.util.tracker.ServiceTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,6 +52,8 @@ public class OsgiServiceUtils {
 
   private static final Logger LOG = LoggerFactory.getLogger(OsgiServiceUtils.class);
 
+  private static ScheduledExecutorService awaitServiceScheduler;
+
   private OsgiServiceUtils() {
   }
 
@@ -76,7 +90,16 @@ public class OsgiServiceUtils {
               ResourceResolverFactory.SUBSERVICE, serviceName);
 
       if (resourceResolverFactory != null) {
-        resourceResolver = resourceResolverFactory.getServiceResourceResolver(params);
+        final ResourceResolverMetrics metrics = ResourceResolverMetrics.forServiceUser(
+                serviceName);
+        final long startTime = System.nanoTime();
+        try {
+          resourceResolver = resourceResolverFactory.getServiceResourceResolver(params);
+          metrics.recordOpen(System.nanoTime() - startTime);
+        } catch (LoginException | RuntimeException e) {
+          metrics.recordOpenFailure(System.nanoTime() - startTime);
+          throw e;
+        }
         LOG.info("Opened service user {} resourceResolver for service {}.",
                  serviceName.replaceAll("[\r\n]", ""),
                  service.getClass().getSimpleName().replaceAll("[\r\n]", ""));
@@ -140,7 +163,8 @@ public class OsgiServiceUtils {
   }
 
   /**
-   * Retrieves the top ranked service registered to a specified class.
+   * Retrieves the top ranked service registered to a specified class. The ServiceTracker used for
+   * the lookup is kept open until {@link #closeServiceTrackers(ComponentContext)} is called.
    *
    * @param componentContext Component Context.
    * @param type Service class to retrieve instances of.
@@ -148,74 +172,430 @@ public class OsgiServiceUtils {
    *
    * @return The top ranked service registered to a specified class.
    */
+  @SuppressWarnings("unchecked")
   @Nullable
   public static <T> T getOsgiServiceOfType(@Nonnull ComponentContext componentContext,
           @Nonnull Class<T> type) {
-    final ServiceTracker serviceTracker = new ServiceTracker(componentContext.getBundleContext(),
-                                                             type.getName(), null);
-    serviceTracker.open();
-    try {
-      T service = (T) serviceTracker.getService();
-      return service;
-    } finally {
-      serviceTracker.close();
+    return (T) ServiceTrackerRegistry.lookup(componentContext, type.getName(), null,
+                                             TrackedServices::getService);
+  }
+
+  /**
+   * Retrieves the top ranked service registered to a specified class which matches an LDAP
+   * filter, for example {@code (component.name=com.example.MyCacheService)}. The filter is
+   * compiled once, and the ServiceTracker used for the lookup only tracks matching services and
+   * is kept open until {@link #closeServiceTrackers(ComponentContext)} is called.
+   *
+   * @param componentContext Component Context.
+   * @param type Service class to retrieve instances of.
+   * @param filter LDAP filter the service must match.
+   * @param <T> Generic Type.
+   *
+   * @return The top ranked matching service.
+   *
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  @SuppressWarnings("unchecked")
+  @Nullable
+  public static <T> T getOsgiServiceOfType(@Nonnull final ComponentContext componentContext,
+          @Nonnull final Class<T> type, @Nonnull final String filter) {
+    return (T) ServiceTrackerRegistry.lookup(componentContext, type.getName(), filter,
+                                             TrackedServices::getService);
+  }
+
+  /**
+   * Retrieves the top ranked service registered to a specified class whose service properties
+   * equal the specified values.
+   *
+   * @param componentContext Component Context.
+   * @param type Service class to retrieve instances of.
+   * @param properties Service properties the service must have.
+   * @param <T> Generic Type.
+   *
+   * @return The top ranked matching service.
+   */
+  @Nullable
+  public static <T> T getOsgiServiceOfType(@Nonnull final ComponentContext componentContext,
+          @Nonnull final Class<T> type, @Nonnull final Map<String, ?> properties) {
+    final String filter = toFilter(properties);
+    if (filter == null) {
+      return getOsgiServiceOfType(componentContext, type);
     }
+    return getOsgiServiceOfType(componentContext, type, filter);
   }
 
   /**
-   * Retrieves all Services which are registered to the specified service class.
+   * Retrieves the top ranked service registered to each of several classes. A ServiceTracker is
+   * opened for each class on first use and kept open until {@link
+   * #closeServiceTrackers(ComponentContext)} is called, so later calls are served from the open
+   * trackers without querying the service registry.
+   *
+   * @param componentContext Component Context.
+   * @param types Service classes to retrieve.
+   *
+   * @return Top ranked service for each class which has a registered service. Classes without a
+   *         registered service are omitted.
+   */
+  @Nonnull
+  public static Map<Class<?>, Object> getOsgiServicesOfTypes(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<?>... types) {
+    final Map<Class<?>, Object> services = new LinkedHashMap<>();
+    for (final Class<?> type : types) {
+      final Object service = ServiceTrackerRegistry.lookup(componentContext, type.getName(), null,
+                                                           TrackedServices::getService);
+      if (service != null) {
+        services.put(type, service);
+      }
+    }
+    return Collections.unmodifiableMap(services);
+  }
+
+  /**
+   * Waits for a service to be registered to a type, without blocking the calling thread. The
+   * returned future is completed by the ServiceTracker when a service is registered, rather than
+   * by polling.
+   *
+   * @param componentContext Component Context.
+   * @param type Service class to wait for.
+   * @param timeoutMillis Milliseconds to wait before the future completes exceptionally with a
+   *         TimeoutException.
+   * @param <T> Generic Type.
+   *
+   * @return Future completed with the top ranked service once one is registered, or
+   *         exceptionally with a TimeoutException, or an IllegalStateException if the component's
+   *         ServiceTrackers are, or have already been, closed.
+   */
+  @Nonnull
+  public static <T> CompletableFuture<T> awaitService(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type,
+          final long timeoutMillis) {
+    final TrackedServices trackedServices = ServiceTrackerRegistry.getTrackedServices(
+            componentContext, type.getName());
+    final CompletableFuture<T> future = new CompletableFuture<>();
+    if (trackedServices == null) {
+      future.completeExceptionally(new IllegalStateException(String.format(
+              "Unable to wait for %s service, since the component's service trackers were "
+              + "closed.", type.getName())));
+      return future;
+    }
+    final Runnable completeIfAvailable = () -> {
+      final Object service = trackedServices.getService();
+      if (service != null) {
+        future.complete(type.cast(service));
+      }
+    };
+    final Runnable completeWhenClosed = () -> future.completeExceptionally(
+            new IllegalStateException(String.format(
+                    "Stopped waiting for %s service, since the component's service trackers were "
+                    + "closed.", type.getName())));
+    trackedServices.addServiceAddedListener(completeIfAvailable);
+    trackedServices.addClosedListener(completeWhenClosed);
+    // Checked after the listener is added, so a service registered in between is not missed.
+    completeIfAvailable.run();
+    if (!future.isDone()) {
+      final ScheduledFuture<?> timeout = getAwaitServiceScheduler().schedule(
+              () -> future.completeExceptionally(new TimeoutException(
+                      String.format("No %s service was registered within %sms.", type.getName(),
+                                    timeoutMillis))), timeoutMillis, TimeUnit.MILLISECONDS);
+      future.whenComplete((service, throwable) -> timeout.cancel(false));
+    }
+    future.whenComplete((service, throwable) -> {
+      trackedServices.removeServiceAddedListener(completeIfAvailable);
+      trackedServices.removeClosedListener(completeWhenClosed);
+    });
+    return future;
+  }
+
+  @Nonnull
+  private static synchronized ScheduledExecutorService getAwaitServiceScheduler() {
+    if (awaitServiceScheduler == null) {
+      final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+              runnable -> {
+                final Thread thread = new Thread(runnable, "OsgiServiceUtils-awaitService");
+                thread.setDaemon(true);
+                return thread;
+              });
+      // The thread stops when no timeouts are pending, so the scheduler does not outlive the
+      // bundle.
+      scheduler.setKeepAliveTime(1, TimeUnit.SECONDS);
+      scheduler.allowCoreThreadTimeOut(true);
+      scheduler.setRemoveOnCancelPolicy(true);
+      awaitServiceScheduler = scheduler;
+    }
+    return awaitServiceScheduler;
+  }
+
+  /**
+   * Handle to the top ranked service registered to a type. The service is looked up on first use
+   * and the handle follows services being registered, unregistered or outranked.
+   *
+   * @param componentContext Component Context.
+   * @param type Service class.
+   * @param <T> Generic Type.
+   *
+   * @return Handle to the top ranked service registered to the type.
+   */
+  @Nonnull
+  public static <T> ServiceHandle<T> getServiceHandle(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type) {
+    return new ServiceHandle<>(componentContext, type);
+  }
+
+  /**
+   * Proxy which calls the top ranked service registered to an interface. The service is looked
+   * up on first use, and calls are routed to whichever service currently ranks highest, so the
+   * proxy can be kept for the component's lifetime. Calls made while no service is registered
+   * throw an IllegalStateException.
+   *
+   * @param componentContext Component Context.
+   * @param type Service interface.
+   * @param <T> Generic Type.
+   *
+   * @return Proxy which calls the top ranked service registered to the interface.
+   *
+   * @throws IllegalArgumentException Type is not an interface.
+   */
+  @Nonnull
+  public static <T> T lazyService(@Nonnull final ComponentContext componentContext,
+          @Nonnull final Class<T> type) {
+    if (!type.isInterface()) {
+      throw new IllegalArgumentException(String.format(
+              "Unable to create lazy service for %s. Only interfaces can be proxied, use "
+              + "getServiceHandle instead.", type.getName()));
+    }
+    final ServiceHandle<T> serviceHandle = getServiceHandle(componentContext, type);
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                                            new ServiceHandleInvocationHandler(serviceHandle)));
+  }
+
+  /**
+   * Retrieves all Services which are registered to the specified service class. The
+   * ServiceTracker used for the lookup is kept open until {@link
+   * #closeServiceTrackers(ComponentContext)} is called.
    *
    * @param componentContext componentContext
    * @param type Service class to retrieve instances of.
    * @param <T> Generic type.
    *
-   * @return All Services which are registered to the specified service class.
+   * @return All Services which are registered to the specified service class, highest service
+   *         ranking first.
    */
-  @SuppressWarnings("unchecked")
   @Nonnull
   public static <T> List<T> getAllOsgiServicesOfType(
           @Nonnull final ComponentContext componentContext,
           @Nonnull final Class<T> type) {
-    final ServiceTracker serviceTracker = new ServiceTracker(componentContext.getBundleContext(),
-                                                             type, null);
-    return getAllOsgiServicesOfType(type.getName(), serviceTracker);
+    return getAllOsgiServicesOfType(componentContext, type.getName());
   }
 
   /**
-   * Retrieves all Services which are registered to the specified service class.
+   * Retrieves all Services which are registered to the specified service class. The
+   * ServiceTracker used for the lookup is kept open until {@link
+   * #closeServiceTrackers(ComponentContext)} is called.
    *
    * @param componentContext componentContext
    * @param serviceClassName Service class name to retrieve instances of.
    * @param <T> Generic type.
    *
-   * @return All Services which are registered to the specified service class.
+   * @return All Services which are registered to the specified service class, highest service
+   *         ranking first.
    */
   @SuppressWarnings("unchecked")
   @Nonnull
   public static <T> List<T> getAllOsgiServicesOfType(
           @Nonnull final ComponentContext componentContext,
           @Nonnull final String serviceClassName) {
-    final ServiceTracker serviceTracker = new ServiceTracker(componentContext.getBundleContext(),
-                                                             serviceClassName, null);
+    final List<Object> services = ServiceTrackerRegistry.lookup(componentContext,
+                                                                serviceClassName, null,
+                                                                TrackedServices::getServices);
+    if (services.isEmpty()) {
+      LOG.debug("No services found for '{}'.", serviceClassName.replaceAll("[\r\n]", ""));
+    }
+    return new ArrayList<>((List<T>) services);
+  }
 
-    return getAllOsgiServicesOfType(serviceClassName, serviceTracker);
+  /**
+   * Retrieves all Services registered to the specified service class which match an LDAP filter.
+   * The filter is compiled once, and the ServiceTracker used for the lookup only tracks matching
+   * services and is kept open until {@link #closeServiceTrackers(ComponentContext)} is called.
+   *
+   * @param componentContext componentContext
+   * @param type Service class to retrieve instances of.
+   * @param filter LDAP filter services must match.
+   * @param <T> Generic type.
+   *
+   * @return All matching Services.
+   *
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  @SuppressWarnings("unchecked")
+  @Nonnull
+  public static <T> List<T> getAllOsgiServicesOfType(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type,
+          @Nonnull final String filter) {
+    final List<Object> services = ServiceTrackerRegistry.lookup(componentContext,
+                                                                type.getName(), filter,
+                                                                TrackedServices::getServices);
+    if (services.isEmpty()) {
+      LOG.debug("No services found for '{}' matching '{}'.",
+                type.getName().replaceAll("[\r\n]", ""), filter.replaceAll("[\r\n]", ""));
+    }
+    return new ArrayList<>((List<T>) services);
+  }
+
+  /**
+   * Retrieves all Services registered to the specified service class whose service properties
+   * equal the specified values.
+   *
+   * @param componentContext componentContext
+   * @param type Service class to retrieve instances of.
+   * @param properties Service properties services must have.
+   * @param <T> Generic type.
+   *
+   * @return All matching Services.
+   */
+  @Nonnull
+  public static <T> List<T> getAllOsgiServicesOfType(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type,
+          @Nonnull final Map<String, ?> properties) {
+    final String filter = toFilter(properties);
+    if (filter == null) {
+      return getAllOsgiServicesOfType(componentContext, type);
+    }
+    return getAllOsgiServicesOfType(componentContext, type, filter);
   }
 
+  /**
+   * Retrieves all Services registered to the specified service class, highest service ranking
+   * first. The returned list is an unmodifiable snapshot maintained as services are registered
+   * and unregistered, so repeated lookups do not scan the registry or allocate. Later changes are
+   * not reflected in a list that has already been returned.
+   *
+   * @param componentContext componentContext
+   * @param type Service class to retrieve instances of.
+   * @param <T> Generic type.
+   *
+   * @return Unmodifiable snapshot of all Services registered to the specified service class.
+   */
   @SuppressWarnings("unchecked")
   @Nonnull
-  static <T> List<T> getAllOsgiServicesOfType(@Nonnull final String serviceName,
-          @Nonnull final ServiceTracker serviceTracker) {
-    serviceTracker.open();
-    final List<T> osgiServices = new ArrayList<>();
-    final Object[] services = serviceTracker.getTracked().values().toArray();
-    if (services.length != 0) {
-      for (final Object service : services) {
-        osgiServices.add((T) service);
+  public static <T> List<T> getRankedOsgiServicesOfType(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type) {
+    return (List<T>) ServiceTrackerRegistry.lookup(componentContext, type.getName(), null,
+                                                   TrackedServices::getServices);
+  }
+
+  /**
+   * Retrieves all Services registered to the specified service class which match an LDAP filter,
+   * highest service ranking first. See {@link #getRankedOsgiServicesOfType(ComponentContext,
+   * Class)}.
+   *
+   * @param componentContext componentContext
+   * @param type Service class to retrieve instances of.
+   * @param filter LDAP filter services must match.
+   * @param <T> Generic type.
+   *
+   * @return Unmodifiable snapshot of all matching Services.
+   *
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  @SuppressWarnings("unchecked")
+  @Nonnull
+  public static <T> List<T> getRankedOsgiServicesOfType(
+          @Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type,
+          @Nonnull final String filter) {
+    return (List<T>) ServiceTrackerRegistry.lookup(componentContext, type.getName(), filter,
+                                                   TrackedServices::getServices);
+  }
+
+  /**
+   * Builds an LDAP filter matching services whose properties equal the specified values. Keys
+   * are sorted, so equal maps build equal filters and share a compiled filter and tracker.
+   *
+   * @param properties Service properties.
+   *
+   * @return LDAP filter, or null if no properties were specified.
+   */
+  @Nullable
+  public static String toFilter(@Nonnull final Map<String, ?> properties) {
+    if (properties.isEmpty()) {
+      return null;
+    }
+    final StringBuilder filter = new StringBuilder();
+    if (properties.size() > 1) {
+      filter.append("(&");
+    }
+    for (final Map.Entry<String, ?> property : new TreeMap<>(properties).entrySet()) {
+      filter.append('(').append(escapeFilterValue(property.getKey())).append('=').append(
+              escapeFilterValue(String.valueOf(property.getValue()))).append(')');
+    }
+    if (properties.size() > 1) {
+      filter.append(')');
+    }
+    return filter.toString();
+  }
+
+  @Nonnull
+  private static String escapeFilterValue(@Nonnull final String value) {
+    final StringBuilder escaped = new StringBuilder(value.length());
+    for (final char character : value.toCharArray()) {
+      if (character == '\\' || character == '*' || character == '(' || character == ')') {
+        escaped.append('\\');
+      }
+      escaped.append(character);
+    }
+    return escaped.toString();
+  }
+
+  /**
+   * Closes the ServiceTrackers kept open for lookups made with the component's ComponentContext.
+   * Should be called when the component deactivates. Trackers opened by other
+   * components, including components of the same bundle, are not closed. Pending {@link
+   * #awaitService(ComponentContext, Class, long)} futures complete exceptionally. Trackers are
+   * not kept open for the ComponentContext afterwards, so later lookups made with it open and
+   * close a ServiceTracker each time. Trackers are also closed when the component's bundle
+   * stops, for components which do not call this method.
+   *
+   * @param componentContext Component Context.
+   */
+  public static void closeServiceTrackers(@Nullable final ComponentContext componentContext) {
+    if (componentContext != null) {
+      ServiceTrackerRegistry.closeTrackers(componentContext);
+    }
+  }
+
+  private static final class ServiceHandleInvocationHandler implements InvocationHandler {
+
+    private final ServiceHandle<?> serviceHandle;
+
+    private ServiceHandleInvocationHandler(@Nonnull final ServiceHandle<?> serviceHandle) {
+      this.serviceHandle = serviceHandle;
+    }
+
+    @Override
+    public Object invoke(final Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+      if (method.getDeclaringClass() == Object.class) {
+        switch (method.getName()) {
+          case "equals":
+            return proxy == args[0];
+          case "hashCode":
+            return System.identityHashCode(proxy);
+          case "toString":
+            return serviceHandle.toString();
+          default:
+            break;
+        }
+      }
+      final Object service = serviceHandle.get();
+      if (service == null) {
+        throw new IllegalStateException(String.format("No %s service is registered.",
+                                                      serviceHandle.getType().getName()));
+      }
+      try {
+        return method.invoke(service, args);
+      } catch (final InvocationTargetException exception) {
+        throw exception.getCause();
       }
-    } else {
-      LOG.debug("No services found for '{}'.", serviceName.replaceAll("[\r\n]", ""));
     }
-    serviceTracker.close();
-    return osgiServices;
   }
 }
@@ -29,6 +29,7 @@ import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import javax.annotation.Nonnull;
@@ -65,18 +66,35 @@ public class ResourceCreationUtils {
           @Nonnull final Resource parentResource, @Nonnull final String name,
           @Nonnull final ResourceResolver resourceResolver)
           throws PersistenceException {
-    final Map<String, Object> properties = new HashMap<>();
-    try (InputStream inputStream = new ByteArrayInputStream(content.getBytes(UTF_8))) {
-
-      properties.put(JCR_PRIMARYTYPE, "nt:file");
-
-      final Map<String, Object> jcrContentProperties = new HashMap<>();
-      jcrContentProperties.put(JCR_PRIMARYTYPE, JcrConstants.NT_RESOURCE);
-      jcrContentProperties.put(JCR_DATA, inputStream);
-      jcrContentProperties.put(JCR_MIMETYPE, mimeType);
+    createTextFileResource(content, mimeType, parentResource, name, Collections.emptyMap(),
+                           resourceResolver);
+  }
 
-      final Resource fileResource = resourceResolver.create(parentResource, name, properties);
-      resourceResolver.create(fileResource, JCR_CONTENT, jcrContentProperties);
+  /**
+   * Creates text nt:file resource with specified mimeType, and additional properties on its
+   * jcr:content Resource. When there are additional properties, jcr:content is created as
+   * nt:unstructured, so it can hold them. New file is NOT committed during this method.
+   *
+   * @param content Content of text file.
+   * @param mimeType File mimeType.
+   * @param parentResource Resource to create new file as a child of.
+   * @param name Name of new resource.
+   * @param contentProperties Additional properties of the new file's jcr:content Resource.
+   * @param resourceResolver ResourceResolver used to create new file.
+   *
+   * @throws PersistenceException New file could not be created/persisted by
+   *         resourceResolver.
+   */
+  @SuppressFBWarnings("OPM_OVERLY_PERMISSIVE_METHOD")
+  public static void createTextFileResource(@Nonnull final String content,
+          @Nonnull final String mimeType,
+          @Nonnull final Resource parentResource, @Nonnull final String name,
+          @Nonnull final Map<String, Object> contentProperties,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    try (InputStream inputStream = new ByteArrayInputStream(content.getBytes(UTF_8))) {
+      createFileResource(inputStream, mimeType, parentResource, name, contentProperties,
+                         resourceResolver);
     } catch (IOException e) {
       throw new PersistenceException(
               String.format("Failed to create text file %s as a child of %s", name,
@@ -84,6 +102,69 @@ public class ResourceCreationUtils {
     }
   }
 
+  /**
+   * Creates nt:file resource with specified mimeType, streaming its content from an InputStream,
+   * and additional properties on its jcr:content Resource. The InputStream is read while the file
+   * is created, so content is not held in memory, and is not closed. New file is NOT committed
+   * during this method.
+   *
+   * @param content Content of file.
+   * @param mimeType File mimeType.
+   * @param parentResource Resource to create new file as a child of.
+   * @param name Name of new resource.
+   * @param contentProperties Additional properties of the new file's jcr:content Resource.
+   * @param resourceResolver ResourceResolver used to create new file.
+   *
+   * @throws PersistenceException New file could not be created/persisted by
+   *         resourceResolver.
+   */
+  @SuppressFBWarnings("OPM_OVERLY_PERMISSIVE_METHOD")
+  public static void createFileResource(@Nonnull final InputStream content,
+          @Nonnull final String mimeType,
+          @Nonnull final Resource parentResource, @Nonnull final String name,
+          @Nonnull final Map<String, Object> contentProperties,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    final Map<String, Object> properties = new HashMap<>();
+    properties.put(JCR_PRIMARYTYPE, "nt:file");
+
+    final Map<String, Object> jcrContentProperties = new HashMap<>(contentProperties);
+    jcrContentProperties.put(JCR_PRIMARYTYPE,
+                             contentProperties.isEmpty() ? JcrConstants.NT_RESOURCE
+                                                         : JcrConstants.NT_UNSTRUCTURED);
+    jcrContentProperties.put(JCR_DATA, content);
+    jcrContentProperties.put(JCR_MIMETYPE, mimeType);
+
+    final Resource fileResource = resourceResolver.create(parentResource, name, properties);
+    resourceResolver.create(fileResource, JCR_CONTENT, jcrContentProperties);
+  }
+
+  /**
+   * Creates nt:file resource with specified mimeType, streaming its content from an InputStream,
+   * and additional properties on its jcr:content Resource. The InputStream is not closed. New
+   * file is committed during this method.
+   *
+   * @param content Content of file.
+   * @param mimeType File mimeType.
+   * @param parentResource Resource to create new file as a child of.
+   * @param name Name of new resource.
+   * @param contentProperties Additional properties of the new file's jcr:content Resource.
+   * @param resourceResolver ResourceResolver used to create new file.
+   *
+   * @throws PersistenceException New file could not be created/persisted by
+   *         resourceResolver.
+   */
+  public static void createFileResourceAndCommit(@Nonnull final InputStream content,
+          @Nonnull final String mimeType,
+          @Nonnull final Resource parentResource, @Nonnull final String name,
+          @Nonnull final Map<String, Object> contentProperties,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    createFileResource(content, mimeType, parentResource, name, contentProperties,
+                       resourceResolver);
+    resourceResolver.commit();
+  }
+
   /**
    * Creates text nt:file resource with specified mimeType. New file is committed during this
    * method.
@@ -106,4 +187,29 @@ public class ResourceCreationUtils {
     resourceResolver.commit();
   }
 
+  /**
+   * Creates text nt:file resource with specified mimeType, and additional properties on its
+   * jcr:content Resource. New file is committed during this method.
+   *
+   * @param content Content of text file.
+   * @param mimeType File mimeType.
+   * @param parentResource Resource to create new file as a child of.
+   * @param name Name of new resource.
+   * @param contentProperties Additional properties of the new file's jcr:content Resource.
+   * @param resourceResolver ResourceResolver used to create new file.
+   *
+   * @throws PersistenceException New file could not be created/persisted by
+   *         resourceResolver.
+   */
+  public static void createTextFileResourceAndCommit(@Nonnull final String content,
+          @Nonnull final String mimeType,
+          @Nonnull final Resource parentResource, @Nonnull final String name,
+          @Nonnull final Map<String, Object> contentProperties,
+          @Nonnull final ResourceResolver resourceResolver)
+          throws PersistenceException {
+    createTextFileResource(content, mimeType, parentResource, name, contentProperties,
+                           resourceResolver);
+    resourceResolver.commit();
+  }
+
 }
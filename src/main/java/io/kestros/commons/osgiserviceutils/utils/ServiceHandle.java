@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.utils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.osgi.service.component.ComponentContext;
+
+/**
+ * Handle to the top ranked service registered to a type. The service is looked up on first use
+ * and followed as services are registered and unregistered, so a handle can be kept for the
+ * component's lifetime and read on hot paths without a registry lookup.
+ *
+ * @param <T> Service type.
+ */
+public final class ServiceHandle<T> {
+
+  private final ComponentContext componentContext;
+  private final Class<T> type;
+  private volatile TrackedServices trackedServices;
+
+  ServiceHandle(@Nonnull final ComponentContext componentContext, @Nonnull final Class<T> type) {
+    this.componentContext = componentContext;
+    this.type = type;
+  }
+
+  /**
+   * Current top ranked service.
+   *
+   * @return Current top ranked service, or null if none is registered.
+   */
+  @Nullable
+  public T get() {
+    final TrackedServices current = getTrackedServices();
+    if (current == null) {
+      return type.cast(ServiceTrackerRegistry.lookup(componentContext, type.getName(), null,
+                                                     TrackedServices::getService));
+    }
+    return type.cast(current.getService());
+  }
+
+  /**
+   * Whether a service is currently registered.
+   *
+   * @return Whether a service is currently registered.
+   */
+  public boolean isAvailable() {
+    return get() != null;
+  }
+
+  /**
+   * Service type.
+   *
+   * @return Service type.
+   */
+  @Nonnull
+  public Class<T> getType() {
+    return type;
+  }
+
+  @Nullable
+  private TrackedServices getTrackedServices() {
+    TrackedServices current = trackedServices;
+    // Trackers are closed when the component deactivates, after which services are looked up
+    // without keeping a tracker open.
+    if (current == null || current.isClosed()) {
+      current = ServiceTrackerRegistry.getTrackedServices(componentContext, type.getName());
+      trackedServices = current;
+    }
+    return current;
+  }
+
+  @Nonnull
+  @Override
+  public String toString() {
+    return String.format("ServiceHandle(%s)", type.getName());
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.service.component.ComponentContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps ServiceTrackers open between lookups, so repeated lookups of the same service type are
+ * served from the tracker's cached services rather than scanning the service registry. Trackers
+ * are keyed by the ComponentContext of the component making the lookup, service class name and
+ * optional LDAP filter, and stay open until {@link #closeTrackers(ComponentContext)} is called
+ * for their component, or the component's bundle stops. Components of the same bundle do not
+ * share trackers, so one component deactivating does not close trackers another component is
+ * still using. Once a component's trackers are closed, no trackers are kept open for it again,
+ * and its lookups open and close a tracker each time. Filters are compiled once and cached.
+ */
+final class ServiceTrackerRegistry {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ServiceTrackerRegistry.class);
+
+  private static final ConcurrentMap<TrackerKey, TrackedServices> TRACKERS
+          = new ConcurrentHashMap<>();
+
+  private static final int MAXIMUM_CACHED_FILTERS = 1000;
+
+  private static final ConcurrentMap<String, Filter> FILTERS = new ConcurrentHashMap<>();
+
+  // Guards registering trackers against their component's trackers being closed meanwhile.
+  private static final Object LOCK = new Object();
+
+  // Guarded by LOCK. Weak, so components which have been closed can be garbage collected.
+  private static final Set<ComponentContext> CLOSED_CONTEXTS = Collections.newSetFromMap(
+          new WeakHashMap<>());
+
+  // Guarded by LOCK.
+  private static final Map<BundleContext, SynchronousBundleListener> BUNDLE_LISTENERS
+          = new WeakHashMap<>();
+
+  private ServiceTrackerRegistry() {
+  }
+
+  /**
+   * Open tracker for services registered to the specified class name, opening one if needed.
+   *
+   * @param componentContext ComponentContext of the component the tracker is opened for.
+   * @param serviceClassName Service class name.
+   * @return Open tracker for services registered to the specified class name, or null if the
+   *         component's trackers have been closed.
+   */
+  @Nullable
+  static TrackedServices getTrackedServices(@Nonnull final ComponentContext componentContext,
+          @Nonnull final String serviceClassName) {
+    return getTrackedServices(componentContext, serviceClassName, null);
+  }
+
+  /**
+   * Open tracker for services registered to the specified class name which match an LDAP
+   * filter, opening one if needed.
+   *
+   * @param componentContext ComponentContext of the component the tracker is opened for.
+   * @param serviceClassName Service class name.
+   * @param filter LDAP filter services must match, or null to track every service registered
+   *         to the class name.
+   * @return Open tracker for matching services, or null if the component's trackers have been
+   *         closed.
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  @Nullable
+  static TrackedServices getTrackedServices(@Nonnull final ComponentContext componentContext,
+          @Nonnull final String serviceClassName, @Nullable final String filter) {
+    final TrackerKey key = new TrackerKey(componentContext, serviceClassName, filter);
+    TrackedServices trackedServices = TRACKERS.get(key);
+    if (trackedServices == null) {
+      final TrackedServices newTrackedServices = newTrackedServices(componentContext,
+                                                                    serviceClassName, filter);
+      synchronized (LOCK) {
+        if (CLOSED_CONTEXTS.contains(componentContext)) {
+          return null;
+        }
+        trackedServices = TRACKERS.putIfAbsent(key, newTrackedServices);
+        if (trackedServices == null) {
+          trackedServices = newTrackedServices;
+          addBundleListener(componentContext.getBundleContext());
+        }
+      }
+    }
+    // Trackers are opened outside of the lock, since opening a tracker can activate services
+    // which look up other services.
+    trackedServices.open();
+    // Closed if the component's trackers were closed while it was opened.
+    return trackedServices.isClosed() ? null : trackedServices;
+  }
+
+  /**
+   * Looks up services with the component's open tracker. Once the component's trackers have been
+   * closed, a tracker is opened for the lookup and closed afterwards, so no tracker is left open.
+   *
+   * @param componentContext ComponentContext of the component making the lookup.
+   * @param serviceClassName Service class name.
+   * @param filter LDAP filter services must match, or null to look up every service registered
+   *         to the class name.
+   * @param lookup Reads services from the tracker.
+   * @param <T> Lookup result type.
+   * @return Result of the lookup.
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  static <T> T lookup(@Nonnull final ComponentContext componentContext,
+          @Nonnull final String serviceClassName, @Nullable final String filter,
+          @Nonnull final Function<TrackedServices, T> lookup) {
+    final TrackedServices trackedServices = getTrackedServices(componentContext,
+                                                               serviceClassName, filter);
+    if (trackedServices != null) {
+      return lookup.apply(trackedServices);
+    }
+    final TrackedServices lookupTrackedServices = newTrackedServices(componentContext,
+                                                                     serviceClassName, filter);
+    try {
+      lookupTrackedServices.open();
+      return lookup.apply(lookupTrackedServices);
+    } finally {
+      lookupTrackedServices.close();
+    }
+  }
+
+  @Nonnull
+  private static TrackedServices newTrackedServices(
+          @Nonnull final ComponentContext componentContext, @Nonnull final String serviceClassName,
+          @Nullable final String filter) {
+    final Filter compiledFilter;
+    if (filter == null) {
+      compiledFilter = null;
+    } else {
+      compiledFilter = getFilter(String.format("(&(%s=%s)%s)", Constants.OBJECTCLASS,
+                                               serviceClassName, filter));
+    }
+    return new TrackedServices(componentContext.getBundleContext(), serviceClassName,
+                               compiledFilter);
+  }
+
+  /**
+   * Closes a bundle's trackers once it starts stopping, for components which do not close their
+   * trackers when they deactivate. Must be called holding LOCK.
+   */
+  private static void addBundleListener(@Nonnull final BundleContext bundleContext) {
+    if (BUNDLE_LISTENERS.containsKey(bundleContext)) {
+      return;
+    }
+    final SynchronousBundleListener listener = event -> {
+      if (event.getType() == BundleEvent.STOPPING
+          && event.getBundle().equals(bundleContext.getBundle())) {
+        closeTrackers(bundleContext);
+      }
+    };
+    try {
+      bundleContext.addBundleListener(listener);
+      BUNDLE_LISTENERS.put(bundleContext, listener);
+    } catch (final IllegalStateException exception) {
+      // The bundle has already stopped, so its trackers are closed by the framework.
+      LOG.debug("Unable to listen for bundle stopping. {}", exception.getMessage());
+    }
+  }
+
+  /**
+   * Compiled LDAP filter, compiled on first use and cached.
+   *
+   * @param filter LDAP filter.
+   * @return Compiled LDAP filter.
+   * @throws IllegalArgumentException Filter is not valid LDAP filter syntax.
+   */
+  @Nonnull
+  static Filter getFilter(@Nonnull final String filter) {
+    Filter compiledFilter = FILTERS.get(filter);
+    if (compiledFilter == null) {
+      try {
+        compiledFilter = FrameworkUtil.createFilter(filter);
+      } catch (final InvalidSyntaxException exception) {
+        throw new IllegalArgumentException(
+                String.format("Invalid service filter '%s'. %s", filter, exception.getMessage()),
+                exception);
+      }
+      // Filters built from unbounded input are not cached indefinitely.
+      if (FILTERS.size() < MAXIMUM_CACHED_FILTERS) {
+        FILTERS.putIfAbsent(filter, compiledFilter);
+      }
+    }
+    return compiledFilter;
+  }
+
+  /**
+   * Closes all trackers opened for the specified component. No trackers are kept open for the
+   * component afterwards.
+   *
+   * @param componentContext ComponentContext.
+   * @return Number of trackers closed.
+   */
+  static int closeTrackers(@Nonnull final ComponentContext componentContext) {
+    final List<TrackedServices> trackersToClose = new ArrayList<>();
+    synchronized (LOCK) {
+      CLOSED_CONTEXTS.add(componentContext);
+      for (final Map.Entry<TrackerKey, TrackedServices> entry : TRACKERS.entrySet()) {
+        if (entry.getKey().componentContext == componentContext
+            && TRACKERS.remove(entry.getKey(), entry.getValue())) {
+          trackersToClose.add(entry.getValue());
+        }
+      }
+    }
+    return close(trackersToClose);
+  }
+
+  /**
+   * Closes all trackers opened for components of a bundle, which is stopping.
+   */
+  private static int closeTrackers(@Nonnull final BundleContext bundleContext) {
+    final List<TrackedServices> trackersToClose = new ArrayList<>();
+    final SynchronousBundleListener listener;
+    synchronized (LOCK) {
+      for (final Map.Entry<TrackerKey, TrackedServices> entry : TRACKERS.entrySet()) {
+        final ComponentContext componentContext = entry.getKey().componentContext;
+        if (componentContext.getBundleContext() == bundleContext
+            && TRACKERS.remove(entry.getKey(), entry.getValue())) {
+          CLOSED_CONTEXTS.add(componentContext);
+          trackersToClose.add(entry.getValue());
+        }
+      }
+      listener = BUNDLE_LISTENERS.remove(bundleContext);
+    }
+    if (listener != null) {
+      try {
+        bundleContext.removeBundleListener(listener);
+      } catch (final IllegalStateException exception) {
+        LOG.debug("Unable to stop listening for bundle stopping. {}", exception.getMessage());
+      }
+    }
+    return close(trackersToClose);
+  }
+
+  private static int close(@Nonnull final List<TrackedServices> trackersToClose) {
+    // Trackers are closed outside of the lock, since closing runs listeners.
+    for (final TrackedServices trackedServices : trackersToClose) {
+      trackedServices.close();
+    }
+    if (!trackersToClose.isEmpty()) {
+      LOG.debug("Closed {} service trackers.", trackersToClose.size());
+    }
+    return trackersToClose.size();
+  }
+
+  /**
+   * Number of open trackers.
+   *
+   * @return Number of open trackers.
+   */
+  static int getTrackerCount() {
+    return TRACKERS.size();
+  }
+
+  private static final class TrackerKey {
+
+    private final ComponentContext componentContext;
+    private final String serviceClassName;
+    private final String filter;
+
+    private TrackerKey(@Nonnull final ComponentContext componentContext,
+            @Nonnull final String serviceClassName, @Nullable final String filter) {
+      this.componentContext = componentContext;
+      this.serviceClassName = serviceClassName;
+      this.filter = filter;
+    }
+
+    @Override
+    public boolean equals(final Object object) {
+      if (this == object) {
+        return true;
+      }
+      if (!(object instanceof TrackerKey)) {
+        return false;
+      }
+      final TrackerKey other = (TrackerKey) object;
+      return componentContext == other.componentContext
+             && serviceClassName.equals(other.serviceClassName)
+             && Objects.equals(filter, other.filter);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * (31 * System.identityHashCode(componentContext) + serviceClassName.hashCode())
+             + Objects.hashCode(filter);
+    }
+  }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Services tracked by a ServiceTracker which is opened on first use. Tracked services are kept
+ * in an immutable snapshot sorted by service ranking, highest first, which is rebuilt when
+ * services are added, modified or removed. Readers get the current snapshot without locking or
+ * allocating.
+ */
+final class TrackedServices implements ServiceTrackerCustomizer<Object, Object> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TrackedServices.class);
+
+  private static final Snapshot EMPTY = new Snapshot(new ServiceReference<?>[0], new Object[0]);
+
+  private final BundleContext bundleContext;
+  private final ServiceTracker<Object, Object> serviceTracker;
+  private final Map<ServiceReference<?>, Object> services = new HashMap<>();
+  private final List<Runnable> addedListeners = new CopyOnWriteArrayList<>();
+  private final List<Runnable> closedListeners = new CopyOnWriteArrayList<>();
+  private volatile Snapshot snapshot = EMPTY;
+  private boolean open = false;
+  private volatile boolean closed = false;
+
+  TrackedServices(@Nonnull final BundleContext bundleContext,
+          @Nonnull final String serviceClassName, @Nullable final Filter filter) {
+    this.bundleContext = bundleContext;
+    if (filter == null) {
+      this.serviceTracker = new ServiceTracker<>(bundleContext, serviceClassName, this);
+    } else {
+      this.serviceTracker = new ServiceTracker<>(bundleContext, filter, this);
+    }
+  }
+
+  /**
+   * Top ranked tracked service.
+   *
+   * @return Top ranked tracked service, or null if none are registered.
+   */
+  @Nullable
+  Object getService() {
+    final Object[] currentServices = snapshot.services;
+    if (currentServices.length == 0) {
+      return null;
+    }
+    return currentServices[0];
+  }
+
+  /**
+   * All tracked services, highest ranked first. The returned list is an unmodifiable snapshot,
+   * and is not updated by later changes.
+   *
+   * @return All tracked services, highest ranked first.
+   */
+  @Nonnull
+  List<Object> getServices() {
+    return snapshot.view;
+  }
+
+  /**
+   * Service references of all tracked services, highest ranked first.
+   *
+   * @return Service references of all tracked services, highest ranked first.
+   */
+  @Nonnull
+  List<ServiceReference<?>> getServiceReferences() {
+    return snapshot.referenceView;
+  }
+
+  @Override
+  public Object addingService(@Nonnull final ServiceReference<Object> reference) {
+    final Object service = bundleContext.getService(reference);
+    if (service != null) {
+      synchronized (services) {
+        services.put(reference, service);
+        rebuildSnapshot();
+      }
+      for (final Runnable addedListener : addedListeners) {
+        addedListener.run();
+      }
+    }
+    return service;
+  }
+
+  /**
+   * Adds a listener which is called after a service starts being tracked.
+   *
+   * @param addedListener Listener.
+   */
+  void addServiceAddedListener(@Nonnull final Runnable addedListener) {
+    addedListeners.add(addedListener);
+  }
+
+  /**
+   * Removes a listener added with {@link #addServiceAddedListener(Runnable)}.
+   *
+   * @param addedListener Listener.
+   */
+  void removeServiceAddedListener(@Nonnull final Runnable addedListener) {
+    addedListeners.remove(addedListener);
+  }
+
+  /**
+   * Adds a listener which is called once when the tracker is closed. Listeners added after the
+   * tracker has been closed are called immediately.
+   *
+   * @param closedListener Listener.
+   */
+  void addClosedListener(@Nonnull final Runnable closedListener) {
+    closedListeners.add(closedListener);
+    if (closed && closedListeners.remove(closedListener)) {
+      closedListener.run();
+    }
+  }
+
+  /**
+   * Removes a listener added with {@link #addClosedListener(Runnable)}.
+   *
+   * @param closedListener Listener.
+   */
+  void removeClosedListener(@Nonnull final Runnable closedListener) {
+    closedListeners.remove(closedListener);
+  }
+
+  @Override
+  public void modifiedService(@Nonnull final ServiceReference<Object> reference,
+          @Nonnull final Object service) {
+    // The service's ranking may have changed.
+    synchronized (services) {
+      rebuildSnapshot();
+    }
+  }
+
+  @Override
+  public void removedService(@Nonnull final ServiceReference<Object> reference,
+          @Nonnull final Object service) {
+    synchronized (services) {
+      services.remove(reference);
+      rebuildSnapshot();
+    }
+    try {
+      bundleContext.ungetService(reference);
+    } catch (final IllegalStateException exception) {
+      LOG.debug("Unable to release service. {}", exception.getMessage());
+    }
+  }
+
+  /**
+   * Whether the tracker has been closed. Closed trackers no longer track services.
+   *
+   * @return Whether the tracker has been closed.
+   */
+  boolean isClosed() {
+    return closed;
+  }
+
+  synchronized void open() {
+    if (!open && !closed) {
+      serviceTracker.open();
+      open = true;
+    }
+  }
+
+  void close() {
+    synchronized (this) {
+      if (open && !closed) {
+        try {
+          serviceTracker.close();
+        } catch (final IllegalStateException exception) {
+          // The BundleContext is no longer valid, so its listeners are already gone.
+          LOG.debug("Unable to close service tracker. {}", exception.getMessage());
+        }
+      }
+      closed = true;
+      synchronized (services) {
+        services.clear();
+        snapshot = EMPTY;
+      }
+    }
+    addedListeners.clear();
+    // Listeners are called outside of the lock, since they may complete futures.
+    for (final Runnable closedListener : closedListeners) {
+      if (closedListeners.remove(closedListener)) {
+        closedListener.run();
+      }
+    }
+  }
+
+  private void rebuildSnapshot() {
+    if (services.isEmpty()) {
+      snapshot = EMPTY;
+      return;
+    }
+    final List<ServiceReference<?>> references = new ArrayList<>(services.keySet());
+    // ServiceReferences compare higher when they rank higher.
+    references.sort(Collections.reverseOrder());
+    final ServiceReference<?>[] sortedReferences = references.toArray(
+            new ServiceReference<?>[0]);
+    final Object[] sortedServices = new Object[sortedReferences.length];
+    for (int i = 0; i < sortedReferences.length; i++) {
+      sortedServices[i] = services.get(sortedReferences[i]);
+    }
+    snapshot = new Snapshot(sortedReferences, sortedServices);
+  }
+
+  private static final class Snapshot {
+
+    private final Object[] services;
+    private final List<Object> view;
+    private final List<ServiceReference<?>> referenceView;
+
+    private Snapshot(@Nonnull final ServiceReference<?>[] references,
+            @Nonnull final Object[] services) {
+      this.services = services;
+      this.view = Collections.unmodifiableList(Arrays.asList(services));
+      this.referenceView = Collections.unmodifiableList(Arrays.asList(references));
+    }
+  }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+  private LatencyHistogram histogram;
+
+  @Before
+  public void setUp() throws Exception {
+    histogram = new LatencyHistogram();
+  }
+
+  @Test
+  public void testRecord() {
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(3));
+
+    assertEquals(2, histogram.getCount());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(2), histogram.getMeanNanos());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(3), histogram.getMaximumNanos());
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(4), histogram.getTotalNanos());
+  }
+
+  @Test
+  public void testRecordWhenNegative() {
+    histogram.record(-5);
+
+    assertEquals(1, histogram.getCount());
+    assertEquals(0, histogram.getMaximumNanos());
+    assertEquals(1, histogram.getBucketCounts()[0]);
+  }
+
+  @Test
+  public void testGetPercentileNanos() {
+    for (int i = 0; i < 99; i++) {
+      histogram.record(TimeUnit.MICROSECONDS.toNanos(10));
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(16), histogram.getPercentileNanos(0.5));
+    assertEquals(TimeUnit.MICROSECONDS.toNanos(16), histogram.getPercentileNanos(0.99));
+    assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getPercentileNanos(1));
+  }
+
+  @Test
+  public void testGetPercentileNanosWhenEmpty() {
+    assertEquals(0, histogram.getPercentileNanos(0.99));
+    assertEquals(0, histogram.getMeanNanos());
+  }
+
+  @Test
+  public void testGetBucketIndex() {
+    assertEquals(0, LatencyHistogram.getBucketIndex(0));
+    assertEquals(0, LatencyHistogram.getBucketIndex(1999));
+    assertEquals(1, LatencyHistogram.getBucketIndex(2000));
+    assertEquals(3, LatencyHistogram.getBucketIndex(TimeUnit.MICROSECONDS.toNanos(10)));
+    assertEquals(LatencyHistogram.BUCKET_COUNT - 1,
+                 LatencyHistogram.getBucketIndex(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void testReset() {
+    histogram.record(1000);
+    histogram.reset();
+
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMaximumNanos());
+    assertEquals(0, histogram.getTotalNanos());
+  }
+
+  @Test
+  public void testToString() {
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+    assertTrue(histogram.toString().startsWith("count=1, mean="));
+  }
+}
@@ -20,14 +20,30 @@
 package io.kestros.commons.osgiserviceutils.services;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import io.kestros.commons.osgiserviceutils.services.async.BoundedTaskExecutor;
+import io.kestros.commons.osgiserviceutils.services.resolvers.LeasedResourceResolver;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResolverScope;
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverMetrics;
 import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.apache.felix.hc.api.FormattingResultLog;
 import org.apache.felix.hc.api.Result;
 import org.apache.sling.api.resource.LoginException;
@@ -123,4 +139,213 @@ public class BaseServiceResolverServiceTest {
     serviceResolverService.runAdditionalHealthChecks(log);
     assertEquals(Result.Status.CRITICAL, log.getAggregateStatus());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testGetServiceResourceResolverWhenPooled() throws LoginException {
+    doReturn(2).when(serviceResolverService).getServiceResourceResolverPoolSize();
+
+    ResourceResolver leasedResourceResolver = serviceResolverService.getServiceResourceResolver();
+    assertTrue(leasedResourceResolver instanceof LeasedResourceResolver);
+    assertEquals(resourceResolver,
+            ((LeasedResourceResolver) leasedResourceResolver).getLeasedResourceResolver());
+    leasedResourceResolver.close();
+    assertFalse(leasedResourceResolver.isLive());
+
+    try (ResourceResolver secondResourceResolver =
+                 serviceResolverService.getServiceResourceResolver()) {
+      assertTrue(secondResourceResolver.isLive());
+    }
+
+    verify(resourceResolverFactory, times(1)).getServiceResourceResolver(any());
+    verify(resourceResolver, never()).close();
+    assertEquals(1, serviceResolverService.getServiceResourceResolverPool().getIdleCount());
+  }
+
+  @Test
+  public void testDeactivateWhenPooled() throws LoginException {
+    doReturn(2).when(serviceResolverService).getServiceResourceResolverPoolSize();
+    serviceResolverService.activate(context.componentContext());
+    serviceResolverService.getServiceResourceResolver().close();
+
+    serviceResolverService.deactivate(context.componentContext());
+
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testRunAdditionalHealthChecksWhenPooled() {
+    doReturn(2).when(serviceResolverService).getServiceResourceResolverPoolSize();
+    FormattingResultLog log = new FormattingResultLog();
+    serviceResolverService.runAdditionalHealthChecks(log);
+    assertEquals(Result.Status.OK, log.getAggregateStatus());
+    assertEquals(1, serviceResolverService.getServiceResourceResolverPool().getIdleCount());
+  }
+
+  @Test
+  public void testOpenResolverScope() throws LoginException {
+    try (ResolverScope scope = serviceResolverService.openResolverScope()) {
+      assertEquals(resourceResolver, scope.getResourceResolver());
+      try (ResourceResolver nestedResourceResolver =
+                   serviceResolverService.getServiceResourceResolver()) {
+        assertTrue(nestedResourceResolver.isLive());
+      }
+      try (ResolverScope nestedScope = serviceResolverService.openResolverScope()) {
+        assertEquals(scope, nestedScope);
+      }
+      verify(resourceResolver, never()).close();
+    }
+    verify(resourceResolverFactory, times(1)).getServiceResourceResolver(any());
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testGetServiceResourceResolverRecordsMetrics() throws LoginException {
+    ResourceResolverMetrics metrics = serviceResolverService.getServiceResourceResolverMetrics();
+    metrics.reset();
+
+    serviceResolverService.getServiceResourceResolver();
+
+    assertEquals(1, metrics.getOpenCount());
+    assertEquals(0, metrics.getCurrentlyOpen());
+  }
+
+  @Test
+  public void testGetServiceResourceResolverWhenLoginExceptionRecordsMetrics()
+          throws LoginException {
+    ResourceResolverMetrics metrics = serviceResolverService.getServiceResourceResolverMetrics();
+    metrics.reset();
+    when(resourceResolverFactory.getServiceResourceResolver(any())).thenThrow(
+            new LoginException("Test Exception"));
+    try {
+      serviceResolverService.getServiceResourceResolver();
+    } catch (LoginException e) {
+      assertEquals("Test Exception", e.getMessage());
+    }
+    assertEquals(0, metrics.getOpenCount());
+    assertEquals(1, metrics.getOpenFailureCount());
+  }
+
+  @Test
+  public void testGetServiceResourceResolverWhenTracked() throws LoginException {
+    doReturn(true).when(serviceResolverService).isServiceResourceResolverTrackingEnabled();
+    ResourceResolverMetrics metrics = serviceResolverService.getServiceResourceResolverMetrics();
+    metrics.reset();
+
+    try (ResourceResolver trackedResourceResolver =
+                 serviceResolverService.getServiceResourceResolver()) {
+      assertEquals(1, metrics.getCurrentlyOpen());
+      assertTrue(trackedResourceResolver.isLive());
+    }
+    assertEquals(0, metrics.getCurrentlyOpen());
+    assertEquals(1, metrics.getHeldTime().getCount());
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testRunAdditionalHealthChecksWhenResourceResolverIsHeldOpen()
+          throws LoginException {
+    doReturn(true).when(serviceResolverService).isServiceResourceResolverLeakDetectionEnabled();
+    doReturn(-1L).when(serviceResolverService).getServiceResourceResolverLeakThreshold();
+    ResourceResolver heldResourceResolver = serviceResolverService.getServiceResourceResolver();
+
+    FormattingResultLog log = new FormattingResultLog();
+    serviceResolverService.runAdditionalHealthChecks(log);
+    assertEquals(Result.Status.WARN, log.getAggregateStatus());
+
+    heldResourceResolver.close();
+    log = new FormattingResultLog();
+    serviceResolverService.runAdditionalHealthChecks(log);
+    assertEquals(Result.Status.OK, log.getAggregateStatus());
+    assertEquals(0,
+            serviceResolverService.getServiceResourceResolverLeakDetector().getOutstandingCount());
+  }
+
+  @Test
+  public void testGetServiceResourceResolverAsync() throws Exception {
+    CompletableFuture<ResourceResolver> future
+            = serviceResolverService.getServiceResourceResolverAsync();
+
+    assertEquals(resourceResolver, future.get(5, TimeUnit.SECONDS));
+    verify(resourceResolverFactory, times(1)).getServiceResourceResolver(any());
+  }
+
+  @Test
+  public void testGetServiceResourceResolverAsyncWhenLoginException() throws Exception {
+    doThrow(new LoginException("Test Exception")).when(serviceResolverService)
+            .getServiceResourceResolver();
+
+    CompletableFuture<ResourceResolver> future
+            = serviceResolverService.getServiceResourceResolverAsync();
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException exception) {
+      assertEquals(LoginException.class, exception.getCause().getClass());
+    }
+    assertTrue(future.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testDeactivateShutsDownAsyncExecutor() throws Exception {
+    serviceResolverService.getServiceResourceResolverAsync().get(5, TimeUnit.SECONDS);
+    BoundedTaskExecutor executor = serviceResolverService.getAsyncExecutor();
+
+    serviceResolverService.deactivate(context.componentContext());
+
+    assertTrue(executor.isShutdown());
+  }
+
+  @Test
+  public void testSubmitAsyncAfterDeactivate() throws Exception {
+    serviceResolverService.getServiceResourceResolverAsync().get(5, TimeUnit.SECONDS);
+    BoundedTaskExecutor executor = serviceResolverService.getAsyncExecutor();
+    serviceResolverService.deactivate(context.componentContext());
+
+    CompletableFuture<ResourceResolver> future
+            = serviceResolverService.getServiceResourceResolverAsync();
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException exception) {
+      assertEquals(RejectedExecutionException.class, exception.getCause().getClass());
+    }
+    assertSame(executor, serviceResolverService.getAsyncExecutor());
+  }
+
+  @Test
+  public void testSubmitAsyncAfterDeactivateWhenExecutorWasNeverCreated() throws Exception {
+    serviceResolverService.deactivate(context.componentContext());
+
+    CompletableFuture<ResourceResolver> future
+            = serviceResolverService.getServiceResourceResolverAsync();
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException exception) {
+      assertEquals(RejectedExecutionException.class, exception.getCause().getClass());
+    }
+    assertTrue(serviceResolverService.getAsyncExecutor().isShutdown());
+  }
+
+  @Test
+  public void testSubmitAsyncAfterReactivate() throws Exception {
+    serviceResolverService.activate(context.componentContext());
+    serviceResolverService.deactivate(context.componentContext());
+    serviceResolverService.activate(context.componentContext());
+
+    assertNotNull(
+            serviceResolverService.getServiceResourceResolverAsync().get(5, TimeUnit.SECONDS));
+    assertFalse(serviceResolverService.getAsyncExecutor().isShutdown());
+  }
+
+  @Test
+  public void testRunAdditionalHealthChecksWhenAsyncExecutorUsed() throws Exception {
+    serviceResolverService.getServiceResourceResolverAsync().get(5, TimeUnit.SECONDS);
+
+    FormattingResultLog log = new FormattingResultLog();
+    serviceResolverService.runAdditionalHealthChecks(log);
+    assertEquals(Result.Status.OK, log.getAggregateStatus());
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.async;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BoundedTaskExecutorTest {
+
+  private BoundedTaskExecutor executor;
+
+  private CountDownLatch release;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = new BoundedTaskExecutor("test", 1, 1);
+    release = new CountDownLatch(1);
+  }
+
+  @After
+  public void tearDown() {
+    release.countDown();
+    executor.shutdown(1000);
+  }
+
+  @Test
+  public void testSubmit() throws Exception {
+    CompletableFuture<String> future = executor.submit(() -> Thread.currentThread().getName());
+
+    assertEquals("test-async-1", future.get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSubmitWhenTaskThrowsException() throws Exception {
+    CompletableFuture<String> future = executor.submit(() -> {
+      throw new IllegalStateException("failed");
+    });
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException exception) {
+      assertEquals(IllegalStateException.class, exception.getCause().getClass());
+      assertEquals("failed", exception.getCause().getMessage());
+    }
+    assertTrue(future.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testSubmitWhenQueueIsFull() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CompletableFuture<Object> running = executor.submit(() -> {
+      started.countDown();
+      release.await();
+      return null;
+    });
+    started.await(5, TimeUnit.SECONDS);
+    CompletableFuture<Object> queued = executor.submit(() -> null);
+    CompletableFuture<Object> rejected = executor.submit(() -> null);
+
+    assertEquals(1, executor.getQueuedCount());
+    assertEquals(0, executor.getRemainingCapacity());
+    assertEquals(1, executor.getRejectedCount());
+    assertTrue(rejected.isCompletedExceptionally());
+    try {
+      rejected.get();
+    } catch (ExecutionException exception) {
+      assertEquals(RejectedExecutionException.class, exception.getCause().getClass());
+    }
+
+    release.countDown();
+    running.get(5, TimeUnit.SECONDS);
+    queued.get(5, TimeUnit.SECONDS);
+    assertFalse(queued.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testShutdown() throws Exception {
+    CompletableFuture<Object> queued = executor.submit(() -> null);
+
+    executor.shutdown(5000);
+
+    assertTrue(executor.isShutdown());
+    assertTrue(queued.isDone());
+    assertTrue(executor.submit(() -> null).isCompletedExceptionally());
+    assertEquals(1, executor.getRejectedCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorWhenThreadCountIsZero() {
+    new BoundedTaskExecutor("test", 0, 1);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorWhenQueueCapacityIsZero() {
+    new BoundedTaskExecutor("test", 1, 0);
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CacheStatsTest {
+
+  private CacheStats cacheStats;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheStats = new CacheStats();
+  }
+
+  @Test
+  public void testHitRatio() {
+    cacheStats.recordHit();
+    cacheStats.recordHit();
+    cacheStats.recordHit();
+    cacheStats.recordMiss();
+
+    assertEquals(3, cacheStats.getHitCount());
+    assertEquals(1, cacheStats.getMissCount());
+    assertEquals(0.75, cacheStats.getHitRatio(), 0.001);
+  }
+
+  @Test
+  public void testHitRatioWithoutLookups() {
+    assertEquals(0, cacheStats.getHitRatio(), 0.001);
+  }
+
+  @Test
+  public void testRecordBuild() {
+    cacheStats.recordBuild(1_000_000, 100);
+    cacheStats.recordBuild(3_000_000, 50);
+
+    assertEquals(2, cacheStats.getBuildCount());
+    assertEquals(2, cacheStats.getEntryCount());
+    assertEquals(150, cacheStats.getByteSize());
+    assertEquals(2_000_000, cacheStats.getBuildTime().getMeanNanos());
+  }
+
+  @Test
+  public void testRecordSkippedWrite() {
+    cacheStats.recordBuild(1_000_000, 100);
+    cacheStats.recordSkippedWrite();
+
+    assertEquals(1, cacheStats.getSkippedWriteCount());
+    assertEquals(1, cacheStats.getBuildCount());
+  }
+
+  @Test
+  public void testRecordPurge() {
+    cacheStats.recordBuild(1_000_000, 100);
+
+    cacheStats.recordPurge(5_000_000);
+
+    assertEquals(1, cacheStats.getPurgeCount());
+    assertEquals(5_000_000, cacheStats.getPurgeTime().getMaximumNanos());
+    assertEquals(0, cacheStats.getEntryCount());
+    assertEquals(0, cacheStats.getByteSize());
+    assertEquals(1, cacheStats.getBuildCount());
+  }
+
+  @Test
+  public void testReset() {
+    cacheStats.recordHit();
+    cacheStats.recordMiss();
+    cacheStats.recordBuild(1_000_000, 100);
+    cacheStats.recordEviction();
+    cacheStats.recordSkippedWrite();
+
+    cacheStats.reset();
+
+    assertEquals(0, cacheStats.getHitCount());
+    assertEquals(0, cacheStats.getMissCount());
+    assertEquals(0, cacheStats.getBuildCount());
+    assertEquals(0, cacheStats.getBuildTime().getCount());
+    assertEquals(0, cacheStats.getEvictionCount());
+    assertEquals(0, cacheStats.getSkippedWriteCount());
+    assertEquals(1, cacheStats.getEntryCount());
+    assertEquals(100, cacheStats.getByteSize());
+  }
+
+  @Test
+  public void testToString() {
+    cacheStats.recordHit();
+
+    assertTrue(cacheStats.toString().startsWith("1 hits, 0 misses (100.0% hit ratio)"));
+  }
+
+  @Test
+  public void testGetCacheStatsWhenNotImplemented() {
+    CacheService cacheService = mock(CacheService.class, CALLS_REAL_METHODS);
+
+    cacheService.getCacheStats().recordHit();
+
+    assertEquals(0, cacheService.getCacheStats().getHitCount());
+    assertEquals(0, cacheService.getCacheStats().getMissCount());
+  }
+}
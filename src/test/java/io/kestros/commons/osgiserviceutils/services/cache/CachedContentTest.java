@@ -0,0 +1,113 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedContentTest {
+
+  private CachedContent cachedContent;
+
+  @Before
+  public void setUp() throws Exception {
+    cachedContent = new CachedContent("/resource/file", "Cache Content".getBytes(UTF_8),
+                                      "text/plain");
+  }
+
+  @Test
+  public void testGetters() {
+    assertEquals("/resource/file", cachedContent.getRelativePath());
+    assertEquals("text/plain", cachedContent.getMimeType());
+    assertEquals(13, cachedContent.getSize());
+    assertEquals("Cache Content", cachedContent.getContentAsString());
+  }
+
+  @Test
+  public void testGetContentEncoding() {
+    assertNull(cachedContent.getContentEncoding());
+    assertEquals("gzip", new CachedContent("/resource/file", new byte[]{31, -117}, "text/plain",
+                                           "gzip").getContentEncoding());
+  }
+
+  @Test
+  public void testGetContentIsReadOnly() {
+    final ByteBuffer content = cachedContent.getContent();
+
+    assertTrue(content.isReadOnly());
+    assertEquals(13, content.remaining());
+  }
+
+  @Test
+  public void testGetInputStream() throws Exception {
+    final InputStream inputStream = cachedContent.getInputStream();
+
+    assertEquals('C', inputStream.read());
+    assertEquals(12, inputStream.available());
+  }
+
+  @Test
+  public void testRetainHeapContent() {
+    assertSame(cachedContent, cachedContent.retain());
+    assertFalse(cachedContent.isOffHeap());
+  }
+
+  @Test
+  public void testRetainAndClose() {
+    final int[] releaseCount = new int[1];
+    final CachedContent releasableContent = new CachedContent("/resource/file",
+            ByteBuffer.wrap("Cache Content".getBytes(UTF_8)), "text/plain",
+            () -> releaseCount[0]++);
+
+    final CachedContent retainedContent = releasableContent.retain();
+    releasableContent.close();
+    releasableContent.close();
+
+    assertEquals(0, releaseCount[0]);
+    assertEquals("Cache Content", retainedContent.getContentAsString());
+    retainedContent.close();
+    assertEquals(1, releaseCount[0]);
+    assertNull(releasableContent.retain());
+  }
+
+  @Test
+  public void testGetInputStreamReadsBuffer() throws Exception {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(13);
+    buffer.put("Cache Content".getBytes(UTF_8));
+    buffer.flip();
+    final CachedContent directContent = new CachedContent("/resource/file", buffer,
+                                                          "text/plain", null);
+    final byte[] bytes = new byte[20];
+
+    assertEquals(13, directContent.getInputStream().read(bytes, 0, 20));
+    assertEquals("Cache Content", new String(bytes, 0, 13, UTF_8));
+    assertTrue(directContent.isOffHeap());
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Test;
+
+public class AccessFrequencyTrackerTest {
+
+  @Test
+  public void testGetHottest() {
+    final AccessFrequencyTracker accessFrequencyTracker = new AccessFrequencyTracker(10);
+    for (int i = 0; i < 3; i++) {
+      accessFrequencyTracker.recordAccess("/content/warm-page");
+    }
+    for (int i = 0; i < 6; i++) {
+      accessFrequencyTracker.recordAccess("/content/hot-page");
+    }
+    accessFrequencyTracker.recordAccess("/content/cold-page");
+
+    assertEquals(Arrays.asList("/content/hot-page", "/content/warm-page", "/content/cold-page"),
+            accessFrequencyTracker.getHottest(10));
+    assertEquals(Collections.singletonList("/content/hot-page"),
+            accessFrequencyTracker.getHottest(1));
+  }
+
+  @Test
+  public void testGetHottestWhenEmpty() {
+    assertTrue(new AccessFrequencyTracker(10).getHottest(10).isEmpty());
+  }
+
+  @Test
+  public void testColdKeysArePrunedWhenFull() {
+    final AccessFrequencyTracker accessFrequencyTracker = new AccessFrequencyTracker(4);
+    for (int i = 0; i < 10; i++) {
+      accessFrequencyTracker.recordAccess("/content/hot-page-1");
+    }
+    for (int i = 0; i < 8; i++) {
+      accessFrequencyTracker.recordAccess("/content/hot-page-2");
+    }
+    for (int i = 0; i < 20; i++) {
+      accessFrequencyTracker.recordAccess("/content/cold-page-" + i);
+    }
+
+    assertTrue(accessFrequencyTracker.getCandidateCount() <= 4);
+    assertEquals(Arrays.asList("/content/hot-page-1", "/content/hot-page-2"),
+            accessFrequencyTracker.getHottest(2));
+  }
+
+  @Test
+  public void testClear() {
+    final AccessFrequencyTracker accessFrequencyTracker = new AccessFrequencyTracker(10);
+    accessFrequencyTracker.recordAccess("/content/page");
+
+    accessFrequencyTracker.clear();
+
+    assertEquals(0, accessFrequencyTracker.getCandidateCount());
+    assertEquals(0, accessFrequencyTracker.estimate("/content/page"));
+  }
+}
@@ -28,14 +28,24 @@ import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
 import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheWarmer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.event.jobs.JobManager;
@@ -228,4 +238,115 @@ public class BaseCacheServiceTest {
     baseCacheService.activate(context.componentContext());
     assertEquals(jobManager, baseCacheService.getJobManager());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void testPurgeAllAsync() throws Exception {
+    doReturn(resourceResolver).when(baseCacheService).getServiceResourceResolver();
+
+    baseCacheService.purgeAllAsync(resourceResolver).get(5, TimeUnit.SECONDS);
+
+    verify(baseCacheService, times(1)).doPurge(resourceResolver);
+    assertNotNull(baseCacheService.getLastPurged());
+    assertEquals("test-user", baseCacheService.getLastPurgedBy());
+  }
+
+  @Test
+  public void testPurgeAllAsyncWhenCachePurgeException() throws Exception {
+    doReturn(resourceResolver).when(baseCacheService).getServiceResourceResolver();
+    doThrow(new CachePurgeException("cache purge exception")).when(baseCacheService).doPurge(
+            any());
+
+    CompletableFuture<Void> future = baseCacheService.purgeAllAsync(resourceResolver);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      exception = (Exception) e.getCause();
+    }
+    assertNotNull(exception);
+    assertEquals(CachePurgeException.class, exception.getClass());
+    assertEquals("cache purge exception", exception.getMessage());
+  }
+
+  @Test
+  public void testWarmCache() throws Exception {
+    final List<String> warmedKeys = Collections.synchronizedList(new ArrayList<>());
+    doReturn((CacheWarmer) warmedKeys::add).when(baseCacheService).getCacheWarmer();
+    doReturn(1).when(baseCacheService).getCacheWarmingConcurrency();
+    for (int i = 0; i < 3; i++) {
+      baseCacheService.recordAccess("/content/hot-page");
+    }
+    baseCacheService.recordAccess("/content/cold-page");
+
+    assertEquals(Integer.valueOf(2), baseCacheService.warmCache().get(5, TimeUnit.SECONDS));
+    assertEquals(Arrays.asList("/content/hot-page", "/content/cold-page"), warmedKeys);
+  }
+
+  @Test
+  public void testWarmCacheLimitsEntryCount() throws Exception {
+    final List<String> warmedKeys = Collections.synchronizedList(new ArrayList<>());
+    doReturn((CacheWarmer) warmedKeys::add).when(baseCacheService).getCacheWarmer();
+    doReturn(1).when(baseCacheService).getCacheWarmingEntryCount();
+    for (int i = 0; i < 3; i++) {
+      baseCacheService.recordAccess("/content/hot-page");
+    }
+    baseCacheService.recordAccess("/content/cold-page");
+
+    assertEquals(Integer.valueOf(1), baseCacheService.warmCache().get(5, TimeUnit.SECONDS));
+    assertEquals(Collections.singletonList("/content/hot-page"), warmedKeys);
+  }
+
+  @Test
+  public void testWarmCacheWhenCacheWarmerThrowsCacheBuilderException() throws Exception {
+    doReturn((CacheWarmer) key -> {
+      if (key.equals("/content/hot-page")) {
+        throw new CacheBuilderException("failed to build");
+      }
+    }).when(baseCacheService).getCacheWarmer();
+    for (int i = 0; i < 3; i++) {
+      baseCacheService.recordAccess("/content/hot-page");
+    }
+    baseCacheService.recordAccess("/content/cold-page");
+
+    assertEquals(Integer.valueOf(1), baseCacheService.warmCache().get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testWarmCacheWhenCacheWarmingIsDisabled() throws Exception {
+    baseCacheService.recordAccess("/content/page");
+
+    assertEquals(Integer.valueOf(0), baseCacheService.warmCache().get(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testWarmCacheWhenCacheWarmingIsStopped() throws Exception {
+    final List<String> warmedKeys = Collections.synchronizedList(new ArrayList<>());
+    doReturn((CacheWarmer) warmedKeys::add).when(baseCacheService).getCacheWarmer();
+    baseCacheService.recordAccess("/content/page");
+
+    baseCacheService.stopCacheWarming();
+
+    assertEquals(Integer.valueOf(0), baseCacheService.warmCache().get(5, TimeUnit.SECONDS));
+    assertTrue(warmedKeys.isEmpty());
+  }
+
+  @Test
+  public void testPurgeAllWarmsCache() throws Exception {
+    doReturn(resourceResolver).when(baseCacheService).getServiceResourceResolver();
+    doReturn((CacheWarmer) key -> {
+    }).when(baseCacheService).getCacheWarmer();
+
+    baseCacheService.purgeAll(resourceResolver);
+
+    verify(baseCacheService, times(1)).warmCache();
+  }
+
+  @Test
+  public void testPurgeAllWhenCacheWarmingIsDisabled() throws Exception {
+    doReturn(resourceResolver).when(baseCacheService).getServiceResourceResolver();
+
+    baseCacheService.purgeAll(resourceResolver);
+
+    verify(baseCacheService, never()).warmCache();
+  }
+}
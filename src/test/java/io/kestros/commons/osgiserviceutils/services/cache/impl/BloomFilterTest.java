@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BloomFilterTest {
+
+  @Test
+  public void testMightContain() {
+    final BloomFilter bloomFilter = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      bloomFilter.put("/content/page-" + i);
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      assertTrue(bloomFilter.mightContain("/content/page-" + i));
+    }
+  }
+
+  @Test
+  public void testFalsePositiveProbability() {
+    final BloomFilter bloomFilter = new BloomFilter(1000, 0.01);
+    for (int i = 0; i < 1000; i++) {
+      bloomFilter.put("/content/page-" + i);
+    }
+
+    int falsePositives = 0;
+    for (int i = 0; i < 10000; i++) {
+      if (bloomFilter.mightContain("/content/other-page-" + i)) {
+        falsePositives++;
+      }
+    }
+    assertTrue(falsePositives < 300);
+  }
+
+  @Test
+  public void testMightContainWhenEmpty() {
+    final BloomFilter bloomFilter = new BloomFilter(1000, 0.01);
+
+    assertFalse(bloomFilter.mightContain("/content/page"));
+  }
+
+  @Test
+  public void testSizing() {
+    final BloomFilter bloomFilter = new BloomFilter(1000, 0.01);
+
+    assertEquals(9600, bloomFilter.getBitCount());
+    assertEquals(7, bloomFilter.getHashCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorWhenFalsePositiveProbabilityIsInvalid() {
+    new BloomFilter(1000, 1);
+  }
+}
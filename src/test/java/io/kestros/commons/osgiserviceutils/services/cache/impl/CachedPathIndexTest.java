@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachedPathIndexTest {
+
+  private CachedPathIndex cachedPathIndex;
+
+  @Before
+  public void setUp() throws Exception {
+    cachedPathIndex = new CachedPathIndex(3, 0.01);
+  }
+
+  @Test
+  public void testMightContainBeforeRebuild() {
+    assertFalse(cachedPathIndex.isReady());
+    assertTrue(cachedPathIndex.mightContain("/page"));
+  }
+
+  @Test
+  public void testCompleteRebuild() {
+    assertTrue(cachedPathIndex.completeRebuild(cachedPathIndex.startRebuild(),
+                                               Arrays.asList("/page", "/other-page")));
+
+    assertTrue(cachedPathIndex.isReady());
+    assertTrue(cachedPathIndex.isExact());
+    assertTrue(cachedPathIndex.mightContain("/page"));
+    assertFalse(cachedPathIndex.mightContain("/missing-page"));
+    assertEquals(2, cachedPathIndex.getSize());
+  }
+
+  @Test
+  public void testAddDuringRebuild() {
+    final long rebuildToken = cachedPathIndex.startRebuild();
+    cachedPathIndex.add("/new-page");
+    cachedPathIndex.completeRebuild(rebuildToken, Collections.singletonList("/page"));
+
+    assertTrue(cachedPathIndex.mightContain("/page"));
+    assertTrue(cachedPathIndex.mightContain("/new-page"));
+  }
+
+  @Test
+  public void testClearDuringRebuild() {
+    final long rebuildToken = cachedPathIndex.startRebuild();
+    cachedPathIndex.clear();
+    cachedPathIndex.add("/new-page");
+    cachedPathIndex.completeRebuild(rebuildToken, Collections.singletonList("/page"));
+
+    assertFalse(cachedPathIndex.mightContain("/page"));
+    assertTrue(cachedPathIndex.mightContain("/new-page"));
+  }
+
+  @Test
+  public void testCompleteRebuildWhenSuperseded() {
+    final long rebuildToken = cachedPathIndex.startRebuild();
+    cachedPathIndex.startRebuild();
+
+    assertFalse(cachedPathIndex.completeRebuild(rebuildToken, Collections.emptyList()));
+    assertFalse(cachedPathIndex.isReady());
+    assertTrue(cachedPathIndex.isRebuilding());
+  }
+
+  @Test
+  public void testAbandonRebuild() {
+    cachedPathIndex.abandonRebuild(cachedPathIndex.startRebuild());
+
+    assertFalse(cachedPathIndex.isRebuilding());
+    assertFalse(cachedPathIndex.isReady());
+  }
+
+  @Test
+  public void testClear() {
+    cachedPathIndex.completeRebuild(cachedPathIndex.startRebuild(),
+                                    Collections.singletonList("/page"));
+
+    cachedPathIndex.clear();
+
+    assertFalse(cachedPathIndex.mightContain("/page"));
+    assertEquals(0, cachedPathIndex.getSize());
+  }
+
+  @Test
+  public void testSwitchesToBloomFilterPastExactLimit() {
+    cachedPathIndex.completeRebuild(cachedPathIndex.startRebuild(), Collections.emptyList());
+    for (int i = 0; i < 4; i++) {
+      cachedPathIndex.add("/page-" + i);
+    }
+
+    assertFalse(cachedPathIndex.isExact());
+    assertEquals(4, cachedPathIndex.getSize());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(cachedPathIndex.mightContain("/page-" + i));
+    }
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+
+public class ContentHasherTest {
+
+  @Test
+  public void testHash() {
+    assertEquals("029bbd41b3a7d8cb191dae486a901e5b", ContentHasher.hash("hello".getBytes(UTF_8)));
+    assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", ContentHasher.hash(
+            "The quick brown fox jumps over the lazy dog".getBytes(UTF_8)));
+    assertEquals("00000000000000000000000000000000", ContentHasher.hash(new byte[0]));
+  }
+
+  @Test
+  public void testHashWhenContentChanges() {
+    assertNotEquals(ContentHasher.hash("Cache Content".getBytes(UTF_8)),
+                    ContentHasher.hash("Cache Content.".getBytes(UTF_8)));
+  }
+
+  @Test
+  public void testUpdateIncrementally() {
+    final byte[] content = "The quick brown fox jumps over the lazy dog".getBytes(UTF_8);
+    final ContentHasher contentHasher = new ContentHasher();
+    for (int offset = 0; offset < content.length; offset += 5) {
+      contentHasher.update(content, offset, Math.min(5, content.length - offset));
+    }
+
+    assertEquals(ContentHasher.hash(content), contentHasher.getHash());
+    assertEquals(content.length, contentHasher.getLength());
+  }
+
+  @Test
+  public void testUpdateWithSingleBytes() {
+    final byte[] content = "The quick brown fox jumps over the lazy dog".getBytes(UTF_8);
+    final ContentHasher contentHasher = new ContentHasher();
+    for (final byte value : content) {
+      contentHasher.update(value);
+    }
+
+    assertEquals(ContentHasher.hash(content), contentHasher.getHash());
+  }
+
+  @Test
+  public void testUpdateWithDirectByteBuffer() {
+    final byte[] content = "The quick brown fox jumps over the lazy dog".getBytes(UTF_8);
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(content.length);
+    buffer.put(content).flip();
+
+    assertEquals(ContentHasher.hash(content), new ContentHasher().update(buffer).getHash());
+    assertEquals(0, buffer.position());
+  }
+}
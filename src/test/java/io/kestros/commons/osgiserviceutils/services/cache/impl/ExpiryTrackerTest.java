@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ExpiryTrackerTest {
+
+  private ExpiryTracker expiryTracker;
+
+  @Before
+  public void setUp() throws Exception {
+    expiryTracker = new ExpiryTracker();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    expiryTracker.stopSweeper();
+  }
+
+  @Test
+  public void testTrack() {
+    expiryTracker.track("/file", 1000L);
+
+    assertEquals(Long.valueOf(1000L), expiryTracker.getExpiresAt("/file"));
+    assertNull(expiryTracker.getExpiresAt("/other-file"));
+    assertEquals(1, expiryTracker.size());
+  }
+
+  @Test
+  public void testUntrackWhenExpiryTimeChanged() {
+    expiryTracker.track("/file", 2000L);
+
+    expiryTracker.untrack("/file", 1000L);
+    assertEquals(Long.valueOf(2000L), expiryTracker.getExpiresAt("/file"));
+
+    expiryTracker.untrack("/file", 2000L);
+    assertNull(expiryTracker.getExpiresAt("/file"));
+  }
+
+  @Test
+  public void testClear() {
+    expiryTracker.track("/file", 1000L);
+    expiryTracker.track("/other-file", 1000L);
+
+    expiryTracker.clear();
+
+    assertEquals(0, expiryTracker.size());
+  }
+
+  @Test
+  public void testIsKnown() {
+    assertFalse(expiryTracker.isKnown("/file"));
+
+    expiryTracker.track("/file", 1000L);
+    expiryTracker.untrack("/non-expiring-file");
+
+    assertTrue(expiryTracker.isKnown("/file"));
+    assertTrue(expiryTracker.isKnown("/non-expiring-file"));
+    assertFalse(expiryTracker.isKnown("/other-file"));
+    assertEquals(1, expiryTracker.size());
+  }
+
+  @Test
+  public void testIsKnownOnceScanned() {
+    expiryTracker.markScanned();
+
+    assertTrue(expiryTracker.isKnown("/file"));
+
+    expiryTracker.clear();
+
+    assertFalse(expiryTracker.isKnown("/file"));
+  }
+
+  @Test
+  public void testStartSweeper() throws Exception {
+    CountDownLatch swept = new CountDownLatch(1);
+
+    expiryTracker.startSweeper("test-sweeper", 1, swept::countDown);
+
+    assertTrue(expiryTracker.isSweeperRunning());
+    assertTrue(swept.await(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testScheduleSweepWhenStopped() {
+    expiryTracker.startSweeper("test-sweeper", 60000, () -> {
+    });
+
+    expiryTracker.stopSweeper();
+
+    assertFalse(expiryTracker.isSweeperRunning());
+    assertFalse(expiryTracker.scheduleSweep(1, () -> {
+    }));
+  }
+
+  @Test
+  public void testGetJitteredDelay() {
+    assertEquals(1000, ExpiryTracker.getJitteredDelay(1000, 0));
+    for (int i = 0; i < 100; i++) {
+      long delay = ExpiryTracker.getJitteredDelay(1000, 0.2);
+      assertTrue(delay >= 800);
+      assertTrue(delay <= 1200);
+    }
+  }
+
+  @Test
+  public void testGetJitteredTimeToLive() {
+    assertEquals(1000, ExpiryTracker.getJitteredTimeToLive(1000, 0));
+    for (int i = 0; i < 100; i++) {
+      long timeToLive = ExpiryTracker.getJitteredTimeToLive(1000, 0.1);
+      assertTrue(timeToLive >= 900);
+      assertTrue(timeToLive <= 1000);
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+  @Test
+  public void testEstimate() {
+    final FrequencySketch frequencySketch = new FrequencySketch(1000);
+    for (int i = 0; i < 5; i++) {
+      frequencySketch.increment("/content/hot-page");
+    }
+    frequencySketch.increment("/content/cold-page");
+
+    assertTrue(frequencySketch.estimate("/content/hot-page") >= 5);
+    assertTrue(frequencySketch.estimate("/content/cold-page") >= 1);
+    assertTrue(frequencySketch.estimate("/content/hot-page") > frequencySketch.estimate(
+            "/content/cold-page"));
+  }
+
+  @Test
+  public void testEstimateWhenNotRecorded() {
+    final FrequencySketch frequencySketch = new FrequencySketch(1000);
+
+    assertEquals(0, frequencySketch.estimate("/content/page"));
+  }
+
+  @Test
+  public void testEstimateIsCapped() {
+    final FrequencySketch frequencySketch = new FrequencySketch(1000);
+    for (int i = 0; i < 100; i++) {
+      frequencySketch.increment("/content/page");
+    }
+
+    assertEquals(FrequencySketch.MAXIMUM_COUNT, frequencySketch.estimate("/content/page"));
+  }
+
+  @Test
+  public void testHalve() {
+    final FrequencySketch frequencySketch = new FrequencySketch(1000);
+    for (int i = 0; i < 8; i++) {
+      frequencySketch.increment("/content/page");
+    }
+
+    frequencySketch.halve();
+
+    assertEquals(4, frequencySketch.estimate("/content/page"));
+  }
+
+  @Test
+  public void testClear() {
+    final FrequencySketch frequencySketch = new FrequencySketch(1000);
+    frequencySketch.increment("/content/page");
+
+    frequencySketch.clear();
+
+    assertEquals(0, frequencySketch.estimate("/content/page"));
+  }
+
+  @Test
+  public void testWidth() {
+    assertEquals(1024, new FrequencySketch(1000).getWidth());
+    assertEquals(16, new FrequencySketch(1).getWidth());
+    assertEquals(10240, new FrequencySketch(1000).getSampleSize());
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+public class InMemoryTierTest {
+
+  private final AtomicInteger evictionCount = new AtomicInteger();
+
+  @Test
+  public void testPut() {
+    InMemoryTier inMemoryTier = new InMemoryTier(1024, 0, evictionCount::incrementAndGet);
+
+    inMemoryTier.put(new CachedContent("/file", "Cache Content".getBytes(UTF_8), "text/plain"),
+        inMemoryTier.getGeneration());
+
+    assertEquals("Cache Content", inMemoryTier.get("/file").getContentAsString());
+    assertNull(inMemoryTier.getOffHeapSlabStore());
+  }
+
+  @Test
+  public void testPutWhenInvalidatedAfterGeneration() {
+    InMemoryTier inMemoryTier = new InMemoryTier(1024, 0, evictionCount::incrementAndGet);
+    long generation = inMemoryTier.getGeneration();
+
+    inMemoryTier.invalidateAll();
+    inMemoryTier.put(new CachedContent("/file", "Cache Content".getBytes(UTF_8), "text/plain"),
+        generation);
+
+    assertNull(inMemoryTier.get("/file"));
+  }
+
+  @Test
+  public void testPutWhenEvicted() {
+    InMemoryTier inMemoryTier = new InMemoryTier(16, 0, evictionCount::incrementAndGet);
+
+    inMemoryTier.put(new CachedContent("/first", "0123456789".getBytes(UTF_8), "text/plain"),
+        inMemoryTier.getGeneration());
+    inMemoryTier.put(new CachedContent("/second", "0123456789".getBytes(UTF_8), "text/plain"),
+        inMemoryTier.getGeneration());
+
+    assertNull(inMemoryTier.get("/first"));
+    assertNotNull(inMemoryTier.get("/second"));
+    assertEquals(1, evictionCount.get());
+  }
+
+  @Test
+  public void testPutWhenOffHeap() {
+    InMemoryTier inMemoryTier = new InMemoryTier(8192, 4096, evictionCount::incrementAndGet);
+
+    inMemoryTier.put(new CachedContent("/file", "Cache Content".getBytes(UTF_8), "text/plain"),
+        inMemoryTier.getGeneration());
+
+    assertTrue(inMemoryTier.get("/file").isOffHeap());
+    assertEquals(13, inMemoryTier.getOffHeapSlabStore().getStoredBytes());
+  }
+
+  @Test
+  public void testLoadWhenOffHeap() throws Exception {
+    InMemoryTier inMemoryTier = new InMemoryTier(8192, 4096, evictionCount::incrementAndGet);
+
+    CachedContent loadedContent = inMemoryTier.load("/file",
+        new ByteArrayInputStream("Cache Content".getBytes(UTF_8)), 13, "text/plain",
+        inMemoryTier.getGeneration());
+
+    assertEquals("Cache Content", loadedContent.getContentAsString());
+    assertTrue(inMemoryTier.get("/file").isOffHeap());
+    assertEquals(1024, inMemoryTier.getOffHeapSlabStore().getAllocatedBytes());
+    inMemoryTier.invalidateAll();
+    assertEquals(1024, inMemoryTier.getOffHeapSlabStore().getAllocatedBytes());
+    loadedContent.close();
+    assertEquals(0, inMemoryTier.getOffHeapSlabStore().getAllocatedBytes());
+  }
+
+  @Test
+  public void testLoadWhenOnHeap() throws Exception {
+    InMemoryTier inMemoryTier = new InMemoryTier(1024, 0, evictionCount::incrementAndGet);
+
+    assertNull(inMemoryTier.load("/file",
+        new ByteArrayInputStream("Cache Content".getBytes(UTF_8)), 13, "text/plain",
+        inMemoryTier.getGeneration()));
+    assertNull(inMemoryTier.get("/file"));
+  }
+
+  @Test
+  public void testClose() {
+    InMemoryTier inMemoryTier = new InMemoryTier(8192, 4096, evictionCount::incrementAndGet);
+    inMemoryTier.put(new CachedContent("/file", "Cache Content".getBytes(UTF_8), "text/plain"),
+        inMemoryTier.getGeneration());
+
+    inMemoryTier.close();
+
+    assertNull(inMemoryTier.get("/file"));
+    assertTrue(inMemoryTier.getOffHeapSlabStore().isClosed());
+    assertEquals(0, evictionCount.get());
+  }
+}
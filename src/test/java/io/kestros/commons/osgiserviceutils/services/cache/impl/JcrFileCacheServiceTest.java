@@ -25,7 +25,9 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
@@ -38,13 +40,35 @@ import static org.mockito.Mockito.when;
 import io.kestros.commons.osgiserviceutils.SampleFile;
 import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
 import io.kestros.commons.osgiserviceutils.exceptions.CachePurgeException;
+import io.kestros.commons.osgiserviceutils.exceptions.CacheRetrievalException;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheContentWriter;
+import io.kestros.commons.osgiserviceutils.services.cache.CacheWarmer;
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import io.kestros.commons.osgiserviceutils.services.resolvers.SharedResourceResolver;
+import io.kestros.commons.osgiserviceutils.utils.ResourceCreationUtils;
 import io.kestros.commons.structuredslingmodels.exceptions.InvalidResourceTypeException;
 import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
-
+import io.kestros.commons.structuredslingmodels.filetypes.FileType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.felix.hc.api.FormattingResultLog;
 import org.apache.felix.hc.api.Result;
@@ -527,4 +551,1533 @@ public class JcrFileCacheServiceTest {
 
         verify(resourceResolver, times(2)).commit();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testGetCachedFileWithCacheReadResourceResolver()
+            throws LoginException, CacheBuilderException, ResourceNotFoundException,
+            InvalidResourceTypeException, CacheRetrievalException {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertEquals("/var/cache/test/resource/new-cache-file.sample",
+                jcrFileCacheService.getCachedFile("/resource/new-cache-file.sample",
+                        SampleFile.class).getPath());
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file.sample"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/missing.sample"));
+
+        verify(resourceResolverFactory, times(1)).getServiceResourceResolver(any());
+        verify(jcrFileCacheService, never()).getServiceResourceResolver();
+    }
+
+    @Test
+    public void testCacheReadResourceResolverIsRefreshedAfterCreateCacheFile()
+            throws CacheBuilderException {
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+        verify(resourceResolver, times(1)).refresh();
+    }
+
+    @Test
+    public void testCacheReadResourceResolverIsRefreshedAfterPurge()
+            throws CacheBuilderException, CachePurgeException {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+
+        jcrFileCacheService.doPurge(resourceResolver);
+
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+        verify(resourceResolver, times(1)).refresh();
+    }
+
+    @Test(expected = CacheRetrievalException.class)
+    public void testGetCachedFileWithCacheReadResourceResolverWhenLoginException()
+            throws LoginException, ResourceNotFoundException, InvalidResourceTypeException,
+            CacheRetrievalException {
+        when(resourceResolverFactory.getServiceResourceResolver(any())).thenThrow(
+                LoginException.class);
+
+        jcrFileCacheService.getCachedFile("/resource/new-cache-file.sample", SampleFile.class);
+    }
+
+    @Test
+    public void testIsFileCachedWithCacheReadResourceResolverWhenLoginException()
+            throws LoginException {
+        when(resourceResolverFactory.getServiceResourceResolver(any())).thenThrow(
+                LoginException.class);
+
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+    }
+
+    @Test
+    public void testDeactivateClosesCacheReadResourceResolver() {
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+        SharedResourceResolver cacheReadResourceResolver
+                = jcrFileCacheService.getCacheReadResourceResolver();
+
+        jcrFileCacheService.deactivate(context.componentContext());
+
+        assertTrue(cacheReadResourceResolver.isClosed());
+    }
+
+    @Test
+    public void testCacheReadResourceResolverIsPerThreadByDefault() {
+        assertTrue(jcrFileCacheService.getCacheReadResourceResolver().isPerThread());
+    }
+
+    @Test
+    public void testCreateCacheFileAsync() throws Exception {
+        jcrFileCacheService.createCacheFileAsync("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE).get(5, TimeUnit.SECONDS);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        verify(jcrFileCacheService, times(1)).getServiceResourceResolver();
+        verify(resourceResolver, times(1)).commit();
+    }
+
+    @Test
+    public void testCreateCacheFileAsyncWhenLoginException() throws Exception {
+        doThrow(LoginException.class).when(jcrFileCacheService).getServiceResourceResolver();
+
+        try {
+            jcrFileCacheService.createCacheFileAsync("Cache Content", "/resource/new-cache-file",
+                    SAMPLE_FILE_TYPE).get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            exception = (Exception) e.getCause();
+        }
+        assertNotNull(exception);
+        assertEquals(CacheBuilderException.class, exception.getClass());
+    }
+
+    @Test
+    public void testGetCachedFileContent() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file");
+
+        assertEquals("Cache Content", cachedContent.getContentAsString());
+        assertEquals(13, cachedContent.getSize());
+        assertNull(jcrFileCacheService.getInMemoryCache());
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void testGetCachedFileContentWhenNotCached() throws Exception {
+        jcrFileCacheService.getCachedFileContent("/resource/missing-cache-file");
+    }
+
+    @Test
+    public void testGetCachedFileContentFromInMemoryCache() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file");
+
+        assertEquals("Cache Content", cachedContent.getContentAsString());
+        assertEquals(1, jcrFileCacheService.getInMemoryCache().size());
+        verify(jcrFileCacheService, never()).readCachedFileContent(any());
+    }
+
+    @Test
+    public void testGetCachedFileContentLoadsIntoInMemoryCache() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.getInMemoryCache().invalidateAll();
+
+        jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+
+        verify(jcrFileCacheService, times(1)).readCachedFileContent("/resource/new-cache-file");
+    }
+
+    @Test
+    public void testInMemoryCacheIsClearedAfterPurge() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.doPurge(resourceResolver);
+
+        assertEquals(0, jcrFileCacheService.getInMemoryCache().size());
+        try {
+            jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+        assertNotNull(exception);
+    }
+
+    @Test
+    public void testIsFileCachedFromInMemoryCache() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+        clearInvocations(resourceResolver);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+
+        verify(resourceResolver, never()).getResource("/var/cache/test/resource/new-cache-file");
+        verify(resourceResolver, never()).getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content");
+    }
+
+    @Test
+    public void testCreateCacheFileFromInputStreamWithInMemoryCache() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+
+        jcrFileCacheService.createCacheFile(new ByteArrayInputStream(
+                "Cache Content".getBytes(StandardCharsets.UTF_8)), "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 0, resourceResolver);
+
+        assertEquals(0, jcrFileCacheService.getInMemoryCache().size());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(1, jcrFileCacheService.getInMemoryCache().size());
+    }
+
+    @Test
+    public void testDeactivateClosesInMemoryCache() throws Exception {
+        doReturn(1024L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        WeightedLruCache<String, CachedContent> inMemoryCache
+                = jcrFileCacheService.getInMemoryCache();
+
+        jcrFileCacheService.deactivate(context.componentContext());
+
+        assertEquals(0, inMemoryCache.size());
+    }
+
+    @Test
+    public void testCachedPathIndexIsDisabledByDefault() {
+        jcrFileCacheService.activate(context.componentContext());
+
+        assertNull(jcrFileCacheService.getCachedPathIndex());
+    }
+
+    @Test
+    public void testIsFileCachedWithCachedPathIndex() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isCachedPathIndexEnabled();
+        doReturn(CompletableFuture.completedFuture(null)).when(
+                jcrFileCacheService).rebuildCachedPathIndex();
+        CachedPathIndex cachedPathIndex = jcrFileCacheService.getCachedPathIndex();
+        cachedPathIndex.completeRebuild(cachedPathIndex.startRebuild(), Collections.emptyList());
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+        assertTrue(jcrFileCacheService.isFileCached("/resource"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/missing-cache-file"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/missing-cache-file",
+                resourceResolver));
+        verify(resourceResolver, never()).getResource("/var/cache/test/resource/missing-cache-file");
+    }
+
+    @Test
+    public void testCachedPathIndexIsClearedAfterPurge() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isCachedPathIndexEnabled();
+        doReturn(CompletableFuture.completedFuture(null)).when(
+                jcrFileCacheService).rebuildCachedPathIndex();
+        CachedPathIndex cachedPathIndex = jcrFileCacheService.getCachedPathIndex();
+        cachedPathIndex.completeRebuild(cachedPathIndex.startRebuild(), Collections.emptyList());
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.doPurge(resourceResolver);
+
+        assertTrue(cachedPathIndex.isReady());
+        assertEquals(0, cachedPathIndex.getSize());
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file"));
+    }
+
+    @Test
+    public void testRebuildCachedPathIndex() throws Exception {
+        ResourceResolver rebuildResourceResolver = mock(ResourceResolver.class);
+        doReturn(true).when(jcrFileCacheService).isCachedPathIndexEnabled();
+        doReturn(rebuildResourceResolver).when(jcrFileCacheService).getServiceResourceResolver();
+        doReturn(Arrays.asList("/existing", "/existing/file")).when(
+                jcrFileCacheService).readCachedPaths(rebuildResourceResolver);
+
+        jcrFileCacheService.activate(context.componentContext());
+        jcrFileCacheService.rebuildCachedPathIndex().get(5, TimeUnit.SECONDS);
+
+        CachedPathIndex cachedPathIndex = jcrFileCacheService.getCachedPathIndex();
+        assertTrue(cachedPathIndex.isReady());
+        assertTrue(cachedPathIndex.mightContain("/existing/file"));
+        assertFalse(cachedPathIndex.mightContain("/existing/other-file"));
+        verify(rebuildResourceResolver, times(2)).close();
+    }
+
+    @Test
+    public void testRebuildCachedPathIndexWhenLoginException() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isCachedPathIndexEnabled();
+        doThrow(LoginException.class).when(jcrFileCacheService).getServiceResourceResolver();
+
+        try {
+            jcrFileCacheService.rebuildCachedPathIndex().get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            exception = (Exception) e.getCause();
+        }
+
+        assertNotNull(exception);
+        assertFalse(jcrFileCacheService.getCachedPathIndex().isReady());
+        assertTrue(jcrFileCacheService.getCachedPathIndex().mightContain("/resource"));
+    }
+
+    @Test
+    public void testReadCachedPaths() {
+        context.create().resource("/var/cache/test/existing/file");
+        context.create().resource("/var/cache/test/existing/file/jcr:content");
+
+        List<String> cachedPaths = jcrFileCacheService.readCachedPaths(resourceResolver);
+
+        assertEquals(2, cachedPaths.size());
+        assertTrue(cachedPaths.contains("/existing"));
+        assertTrue(cachedPaths.contains("/existing/file"));
+    }
+
+    @Test
+    public void testGetCachedFileContentFromOffHeapInMemoryCache() throws Exception {
+        doReturn(8192L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        doReturn(true).when(jcrFileCacheService).isInMemoryCacheOffHeap();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        try (CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file")) {
+            assertTrue(cachedContent.isOffHeap());
+            assertEquals("Cache Content", cachedContent.getContentAsString());
+        }
+        OffHeapSlabStore offHeapSlabStore = jcrFileCacheService.getOffHeapSlabStore();
+        assertEquals(1024, offHeapSlabStore.getAllocatedBytes());
+        verify(jcrFileCacheService, never()).readCachedFileContent(any());
+    }
+
+    @Test
+    public void testGetCachedFileContentStreamsIntoOffHeapInMemoryCache() throws Exception {
+        doReturn(8192L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        doReturn(true).when(jcrFileCacheService).isInMemoryCacheOffHeap();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.getInMemoryCache().invalidateAll();
+
+        try (CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file")) {
+            assertTrue(cachedContent.isOffHeap());
+            assertEquals("Cache Content", cachedContent.getContentAsString());
+            assertEquals(SAMPLE_FILE_TYPE.getOutputContentType(), cachedContent.getMimeType());
+        }
+        assertEquals(1, jcrFileCacheService.getInMemoryCache().size());
+        assertEquals(1024, jcrFileCacheService.getOffHeapSlabStore().getAllocatedBytes());
+        verify(jcrFileCacheService, never()).readCachedFileContent(any());
+    }
+
+    @Test
+    public void testOffHeapContentIsReleasedAfterPurge() throws Exception {
+        doReturn(8192L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        doReturn(true).when(jcrFileCacheService).isInMemoryCacheOffHeap();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file");
+
+        jcrFileCacheService.doPurge(resourceResolver);
+
+        OffHeapSlabStore offHeapSlabStore = jcrFileCacheService.getOffHeapSlabStore();
+        assertEquals(1024, offHeapSlabStore.getAllocatedBytes());
+        cachedContent.close();
+        assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+    }
+
+    @Test
+    public void testDeactivateClosesOffHeapSlabStore() throws Exception {
+        doReturn(8192L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        doReturn(true).when(jcrFileCacheService).isInMemoryCacheOffHeap();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        OffHeapSlabStore offHeapSlabStore = jcrFileCacheService.getOffHeapSlabStore();
+
+        jcrFileCacheService.deactivate(context.componentContext());
+
+        assertTrue(offHeapSlabStore.isClosed());
+        assertNull(jcrFileCacheService.getOffHeapSlabStore());
+    }
+
+    @Test
+    public void testOffHeapSlabStoreIsDisabledByDefault() throws Exception {
+        doReturn(8192L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(jcrFileCacheService.getOffHeapSlabStore());
+        assertFalse(jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").isOffHeap());
+    }
+
+    @Test
+    public void testCacheStatsRecordsBuildsHitsAndMisses() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        try {
+            jcrFileCacheService.getCachedFileContent("/resource/missing-cache-file");
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        assertEquals(1, jcrFileCacheService.getCacheStats().getBuildCount());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getEntryCount());
+        assertEquals(13, jcrFileCacheService.getCacheStats().getByteSize());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getHitCount());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getMissCount());
+        assertEquals(0.5, jcrFileCacheService.getCacheStats().getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testCacheStatsRecordsInMemoryCacheHitsAndEvictions() throws Exception {
+        doReturn(20L).when(jcrFileCacheService).getInMemoryCacheMaximumBytes();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/cache-file-1",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/cache-file-2",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.getCachedFileContent("/resource/cache-file-2");
+
+        assertEquals(1, jcrFileCacheService.getCacheStats().getHitCount());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getEvictionCount());
+    }
+
+    @Test
+    public void testCacheStatsRecordsPurge() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.purgeAll(resourceResolver);
+
+        assertEquals(1, jcrFileCacheService.getCacheStats().getPurgeCount());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getPurgeTime().getCount());
+        assertEquals(0, jcrFileCacheService.getCacheStats().getEntryCount());
+        assertEquals(0, jcrFileCacheService.getCacheStats().getByteSize());
+    }
+
+    @Test
+    public void testGetCachedFileRecordsMiss() throws Exception {
+        try {
+            jcrFileCacheService.getCachedFile("/resource/missing-cache-file.sample",
+                    SampleFile.class, resourceResolver);
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        assertEquals(1, jcrFileCacheService.getCacheStats().getMissCount());
+    }
+
+    @Test
+    public void testGetOrBuild() throws Exception {
+        AtomicInteger buildCount = new AtomicInteger();
+
+        CachedContent cachedContent = jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, () -> "Cache Content " + buildCount.incrementAndGet());
+
+        assertEquals("Cache Content 1", cachedContent.getContentAsString());
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertEquals("Cache Content 1", jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, () -> "Cache Content " + buildCount.incrementAndGet())
+                .getContentAsString());
+        assertEquals(1, buildCount.get());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getMissCount());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getHitCount());
+        assertEquals(0, jcrFileCacheService.getInFlightBuildCount());
+    }
+
+    @Test
+    public void testGetOrBuildCoalescesConcurrentMisses() throws Exception {
+        AtomicInteger buildCount = new AtomicInteger();
+        CountDownLatch buildStarted = new CountDownLatch(1);
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        List<String> results = Collections.synchronizedList(new ArrayList<>());
+        Runnable getOrBuild = () -> {
+            try {
+                results.add(jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                        SAMPLE_FILE_TYPE, () -> {
+                            buildCount.incrementAndGet();
+                            buildStarted.countDown();
+                            awaitRelease(releaseBuild);
+                            return "Cache Content";
+                        }).getContentAsString());
+            } catch (Exception e) {
+                exception = e;
+            }
+        };
+
+        Thread leader = new Thread(getOrBuild);
+        leader.start();
+        assertTrue(buildStarted.await(5, TimeUnit.SECONDS));
+        List<Thread> followers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread follower = new Thread(getOrBuild);
+            followers.add(follower);
+            follower.start();
+        }
+        for (Thread follower : followers) {
+            while (follower.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(5);
+            }
+        }
+        releaseBuild.countDown();
+        leader.join(5000);
+        for (Thread follower : followers) {
+            follower.join(5000);
+        }
+
+        assertNull(exception);
+        assertEquals(1, buildCount.get());
+        assertEquals(5, results.size());
+        assertEquals(Collections.nCopies(5, "Cache Content"), results);
+        verify(resourceResolver, times(1)).commit();
+        assertEquals(0, jcrFileCacheService.getInFlightBuildCount());
+    }
+
+    @Test
+    public void testGetOrBuildWhenBuilderThrowsCacheBuilderException() throws Exception {
+        try {
+            jcrFileCacheService.getOrBuild("/resource/new-cache-file", SAMPLE_FILE_TYPE, () -> {
+                throw new CacheBuilderException("Failed to build.");
+            });
+        } catch (CacheBuilderException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        assertEquals("Failed to build.", exception.getMessage());
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertEquals(0, jcrFileCacheService.getInFlightBuildCount());
+    }
+
+    @Test
+    public void testGetOrBuildWhenLoginException() throws Exception {
+        doThrow(LoginException.class).when(jcrFileCacheService).getServiceResourceResolver();
+
+        CachedContent cachedContent = jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, () -> "Cache Content");
+
+        assertEquals("Cache Content", cachedContent.getContentAsString());
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    @Test
+    public void testPurgeMarksCacheFilesStale() throws Exception {
+        doReturn(60000L).when(jcrFileCacheService).getMaximumStaleness();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.purgeAll(resourceResolver);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertTrue(jcrFileCacheService.isStale("/resource/new-cache-file"));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getStaleHitCount());
+    }
+
+    @Test
+    public void testGetOrBuildRevalidatesStaleCacheFile() throws Exception {
+        doReturn(60000L).when(jcrFileCacheService).getMaximumStaleness();
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        jcrFileCacheService.createCacheFile("Stale Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.purgeAll(resourceResolver);
+
+        CachedContent cachedContent = jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, () -> {
+                    awaitRelease(releaseBuild);
+                    return "Fresh Content";
+                });
+        releaseBuild.countDown();
+        for (int i = 0; i < 500 && jcrFileCacheService.getInFlightBuildCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        assertEquals("Stale Content", cachedContent.getContentAsString());
+        assertEquals(0, jcrFileCacheService.getInFlightBuildCount());
+        assertFalse(jcrFileCacheService.isStale("/resource/new-cache-file"));
+        assertEquals("Fresh Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testRevalidateStaleCacheFileWhenAlreadyBuilding() throws Exception {
+        doReturn(60000L).when(jcrFileCacheService).getMaximumStaleness();
+        CountDownLatch releaseBuild = new CountDownLatch(1);
+        jcrFileCacheService.createCacheFile("Stale Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.purgeAll(resourceResolver);
+
+        CompletableFuture<CachedContent> revalidation
+                = jcrFileCacheService.revalidateStaleCacheFile("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 0, () -> {
+                    awaitRelease(releaseBuild);
+                    return "Fresh Content";
+                });
+        assertNotNull(revalidation);
+        assertNull(jcrFileCacheService.revalidateStaleCacheFile("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 0, () -> "Other Content"));
+        assertEquals(1, jcrFileCacheService.getInFlightBuildCount());
+        releaseBuild.countDown();
+
+        assertEquals("Fresh Content",
+                revalidation.get(5, TimeUnit.SECONDS).getContentAsString());
+    }
+
+    @Test
+    public void testExpiredStaleCacheFileIsNotCached() throws Exception {
+        doReturn(1L).when(jcrFileCacheService).getMaximumStaleness();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.purgeAll(resourceResolver);
+        Thread.sleep(10);
+
+        try {
+            jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        assertEquals(1, jcrFileCacheService.getCacheStats().getMissCount());
+    }
+
+    @Test
+    public void testDropStaleCacheFiles() throws Exception {
+        doReturn(60000L).when(jcrFileCacheService).getMaximumStaleness();
+        jcrFileCacheService.createCacheFile("Stale Content", "/stale/stale-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile("Stale Content", "/resource/stale-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.purgeAll(resourceResolver);
+        jcrFileCacheService.createCacheFile("Fresh Content", "/resource/fresh-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.dropStaleCacheFiles(resourceResolver);
+
+        assertNull(resourceResolver.getResource("/var/cache/test/stale"));
+        assertNull(resourceResolver.getResource("/var/cache/test/resource/stale-cache-file"));
+        assertNotNull(resourceResolver.getResource("/var/cache/test/resource/fresh-cache-file"));
+        assertFalse(jcrFileCacheService.isStale("/resource/fresh-cache-file"));
+    }
+
+    @Test
+    public void testCreateCacheFileWithTimeToLive() throws Exception {
+        doReturn(0d).when(jcrFileCacheService).getTimeToLiveJitter();
+        long createdAt = System.currentTimeMillis();
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+
+        Long expiresAt = resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class);
+        assertNotNull(expiresAt);
+        assertTrue(expiresAt >= createdAt + 60000);
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertFalse(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertTrue(jcrFileCacheService.isExpirySweeperRunning());
+    }
+
+    @Test
+    public void testCreateCacheFileWithoutTimeToLiveDoesNotStartExpirySweeper() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class));
+        assertFalse(jcrFileCacheService.isExpirySweeperRunning());
+    }
+
+    @Test
+    public void testExpiredCacheFileIsNotCached() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        assertTrue(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        try {
+            jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+        assertNotNull(exception);
+        assertEquals(1, jcrFileCacheService.getCacheStats().getMissCount());
+    }
+
+    @Test
+    public void testCreateCacheFileReplacesExpiredCacheFile() throws Exception {
+        jcrFileCacheService.createCacheFile("Expired Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertFalse(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testGetOrBuildRebuildsExpiredCacheFile() throws Exception {
+        jcrFileCacheService.createCacheFile("Expired Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        CachedContent cachedContent = jcrFileCacheService.getOrBuild("/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, () -> "Cache Content");
+
+        assertEquals("Cache Content", cachedContent.getContentAsString());
+        assertFalse(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    @Test
+    public void testReadCachedFileContentTracksPersistedExpiry() throws Exception {
+        ResourceCreationUtils.createTextFileResourceAndCommit("Cache Content", "text/plain",
+                context.create().resource("/var/cache/test/resource"), "new-cache-file",
+                Collections.singletonMap(JcrFileCacheService.EXPIRES_AT_PROPERTY, 1000L),
+                resourceResolver);
+
+        try {
+            jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        assertTrue(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    @Test
+    public void testIsFileCachedReadsPersistedExpiryOnce() throws Exception {
+        ResourceCreationUtils.createTextFileResourceAndCommit("Cache Content", "text/plain",
+                context.create().resource("/var/cache/test/resource"), "new-cache-file",
+                Collections.emptyMap(), resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/created-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        clearInvocations(resourceResolver);
+
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertTrue(jcrFileCacheService.isFileCached("/resource/created-cache-file",
+                resourceResolver));
+
+        verify(resourceResolver, times(1)).getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content");
+        verify(resourceResolver, times(2)).getResource("/var/cache/test/resource/new-cache-file");
+        verify(resourceResolver, never()).getResource(
+                "/var/cache/test/resource/created-cache-file/jcr:content");
+    }
+
+    @Test
+    public void testReactivateWithExpiredCacheFilesInRepository() throws Exception {
+        jcrFileCacheService.activate(context.componentContext());
+        jcrFileCacheService.deactivate(context.componentContext());
+        ResourceCreationUtils.createTextFileResourceAndCommit("Cache Content", "text/plain",
+                context.create().resource("/var/cache/test/resource"), "new-cache-file.sample",
+                Collections.singletonMap(JcrFileCacheService.EXPIRES_AT_PROPERTY, 1000L),
+                resourceResolver);
+
+        jcrFileCacheService.activate(context.componentContext());
+
+        assertTrue(jcrFileCacheService.isExpirySweeperRunning());
+        assertFalse(jcrFileCacheService.isExpired("/resource/new-cache-file.sample"));
+        try {
+            jcrFileCacheService.getCachedFile("/resource/new-cache-file.sample", SampleFile.class,
+                    resourceResolver);
+        } catch (ResourceNotFoundException e) {
+            exception = e;
+        }
+        assertNotNull(exception);
+        assertTrue(jcrFileCacheService.isExpired("/resource/new-cache-file.sample"));
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file.sample",
+                resourceResolver));
+        assertEquals(1, jcrFileCacheService.sweepExpiredCacheFiles(resourceResolver));
+        assertNull(resourceResolver.getResource("/var/cache/test/resource/new-cache-file.sample"));
+
+        jcrFileCacheService.deactivate(context.componentContext());
+    }
+
+    @Test
+    public void testSweepExpiredCacheFiles() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/expired-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/live-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        Thread.sleep(10);
+
+        assertEquals(1, jcrFileCacheService.sweepExpiredCacheFiles(resourceResolver));
+
+        assertNull(resourceResolver.getResource("/var/cache/test/resource/expired-cache-file"));
+        assertNotNull(resourceResolver.getResource("/var/cache/test/resource/live-cache-file"));
+        assertNotNull(resourceResolver.getResource("/var/cache/test/resource/cache-file"));
+        assertFalse(jcrFileCacheService.isExpired("/resource/expired-cache-file"));
+    }
+
+    @Test
+    public void testDeactivateStopsExpirySweeper() throws Exception {
+        jcrFileCacheService.activate(context.componentContext());
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+        assertTrue(jcrFileCacheService.isExpirySweeperRunning());
+
+        jcrFileCacheService.deactivate(context.componentContext());
+
+        assertFalse(jcrFileCacheService.isExpirySweeperRunning());
+    }
+
+    @Test
+    public void testGetCachedFileContentRecordsAccessForCacheWarming() throws Exception {
+        List<String> warmedPaths = Collections.synchronizedList(new ArrayList<>());
+        doReturn((CacheWarmer) warmedPaths::add).when(jcrFileCacheService).getCacheWarmer();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+        jcrFileCacheService.getCachedFileContent("/resource/new-cache-file");
+
+        assertEquals(2, jcrFileCacheService.getAccessFrequencyTracker().estimate(
+                "/resource/new-cache-file"));
+        assertEquals(Integer.valueOf(1), jcrFileCacheService.warmCache().get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("/resource/new-cache-file"), warmedPaths);
+    }
+
+    @Test
+    public void testReactivateResumesCacheWarming() throws Exception {
+        List<String> warmedPaths = Collections.synchronizedList(new ArrayList<>());
+        doReturn((CacheWarmer) warmedPaths::add).when(jcrFileCacheService).getCacheWarmer();
+        jcrFileCacheService.activate(context.componentContext());
+        jcrFileCacheService.deactivate(context.componentContext());
+        jcrFileCacheService.recordAccess("/resource/new-cache-file");
+
+        assertEquals(Integer.valueOf(0), jcrFileCacheService.warmCache().get(5, TimeUnit.SECONDS));
+
+        jcrFileCacheService.activate(context.componentContext());
+
+        assertEquals(Integer.valueOf(1), jcrFileCacheService.warmCache().get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("/resource/new-cache-file"), warmedPaths);
+        jcrFileCacheService.deactivate(context.componentContext());
+    }
+
+    @Test
+    public void testCreateCacheFileWithShardedLayout() throws Exception {
+        doReturn(2).when(jcrFileCacheService).getShardLevels();
+        String cacheFilePath = "/var/cache/test" + JcrFileCacheService.getShardPath("/ids/1", 2)
+                + "/ids/1";
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/1", SAMPLE_FILE_TYPE,
+                resourceResolver);
+
+        assertEquals(cacheFilePath, jcrFileCacheService.getCacheFilePath("/ids/1"));
+        assertNotNull(resourceResolver.getResource(cacheFilePath));
+        assertNull(resourceResolver.getResource("/var/cache/test/ids/1"));
+        assertTrue(jcrFileCacheService.isFileCached("/ids/1", resourceResolver));
+        assertTrue(jcrFileCacheService.isFileCached("/ids/1"));
+        assertFalse(jcrFileCacheService.isFileCached("/ids/2"));
+        assertEquals(cacheFilePath,
+                jcrFileCacheService.getCachedFile("/ids/1", SampleFile.class).getPath());
+        assertEquals("Cache Content",
+                jcrFileCacheService.getCachedFileContent("/ids/1").getContentAsString());
+    }
+
+    @Test
+    public void testGetShardPath() {
+        assertEquals("", JcrFileCacheService.getShardPath("/ids/1", 0));
+        assertTrue(JcrFileCacheService.getShardPath("/ids/1", 2).matches("(/[0-9a-f]{2}){2}"));
+        assertEquals(JcrFileCacheService.getShardPath("/ids/1", 2),
+                JcrFileCacheService.getShardPath("/ids/1", 2));
+        assertTrue(JcrFileCacheService.getShardPath("/ids/1", 2).startsWith(
+                JcrFileCacheService.getShardPath("/ids/1", 1)));
+        assertEquals(12, JcrFileCacheService.getShardPath("/ids/1", 10).length());
+    }
+
+    @Test
+    public void testGetShardPathSpreadsFiles() {
+        Set<String> shardPaths = new HashSet<>();
+        for (int i = 0; i < 1000; i++) {
+            shardPaths.add(JcrFileCacheService.getShardPath("/ids/" + i, 1));
+        }
+
+        assertTrue(shardPaths.size() > 200);
+    }
+
+    @Test
+    public void testReadCachedPathsWithShardedLayout() throws Exception {
+        doReturn(2).when(jcrFileCacheService).getShardLevels();
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/1", SAMPLE_FILE_TYPE,
+                resourceResolver);
+
+        List<String> cachedPaths = jcrFileCacheService.readCachedPaths(resourceResolver);
+
+        assertEquals(2, cachedPaths.size());
+        assertTrue(cachedPaths.contains("/ids"));
+        assertTrue(cachedPaths.contains("/ids/1"));
+    }
+
+    @Test
+    public void testSweepExpiredCacheFilesWithShardedLayout() throws Exception {
+        doReturn(1).when(jcrFileCacheService).getShardLevels();
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/1", SAMPLE_FILE_TYPE, 1,
+                resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/2", SAMPLE_FILE_TYPE, 60000,
+                resourceResolver);
+        Thread.sleep(10);
+
+        assertEquals(1, jcrFileCacheService.sweepExpiredCacheFiles(resourceResolver));
+
+        assertNull(resourceResolver.getResource(jcrFileCacheService.getCacheFilePath("/ids/1")));
+        assertNotNull(resourceResolver.getResource(
+                jcrFileCacheService.getCacheFilePath("/ids/2")));
+        assertFalse(jcrFileCacheService.isExpired("/ids/1"));
+        assertTrue(jcrFileCacheService.isFileCached("/ids/2", resourceResolver));
+    }
+
+    @Test
+    public void testCreateCacheFileWithPrecompressedEncodings() throws Exception {
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+        String content = getCompressibleContent();
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                resourceResolver);
+
+        assertNotNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                "gzipData"));
+        CachedContent encodedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file", "br;q=1.0, gzip;q=0.8");
+        assertEquals("gzip", encodedContent.getContentEncoding());
+        assertTrue(encodedContent.getSize() < content.length());
+        assertEquals(content, gunzip(encodedContent));
+        assertEquals(SAMPLE_FILE_TYPE.getOutputContentType(), encodedContent.getMimeType());
+    }
+
+    @Test
+    public void testGetCachedFileContentWhenEncodingIsNotAccepted() throws Exception {
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+        String content = getCompressibleContent();
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                resourceResolver);
+
+        CachedContent cachedContent = jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file", "br");
+
+        assertNull(cachedContent.getContentEncoding());
+        assertEquals(content, cachedContent.getContentAsString());
+        assertNull(jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                "identity, gzip;q=0.5").getContentEncoding());
+        assertNull(jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                null).getContentEncoding());
+        assertEquals("gzip", jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                "*").getContentEncoding());
+    }
+
+    @Test
+    public void testPrecompressionSkipsSmallCacheFiles() throws Exception {
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                "gzip").getContentEncoding());
+    }
+
+    @Test
+    public void testPrecompressionSkipsUnsupportedEncodings() throws Exception {
+        doReturn(Arrays.asList("br", "gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+
+        jcrFileCacheService.createCacheFile(getCompressibleContent(), "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertEquals("gzip", jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                "br, gzip").getContentEncoding());
+    }
+
+    @Test
+    public void testPrecompressionIsDisabledByDefault() throws Exception {
+        jcrFileCacheService.createCacheFile(getCompressibleContent(), "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                "gzipData"));
+        assertNull(jcrFileCacheService.getCachedFileContent("/resource/new-cache-file",
+                "gzip").getContentEncoding());
+    }
+
+    @Test(expected = ResourceNotFoundException.class)
+    public void testGetCachedFileContentWithAcceptEncodingWhenNotCached() throws Exception {
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+
+        jcrFileCacheService.getCachedFileContent("/resource/missing-cache-file", "gzip");
+    }
+
+    @Test
+    public void testCreateCacheFileStoresContentHash() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertEquals(ContentHasher.hash("Cache Content".getBytes(StandardCharsets.UTF_8)),
+                resourceResolver.getResource("/var/cache/test/resource/new-cache-file/jcr:content")
+                        .getValueMap().get(JcrFileCacheService.CONTENT_HASH_PROPERTY));
+    }
+
+    @Test
+    public void testCreateCacheFileSkipsUnchangedContent() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        clearInvocations(resourceResolver);
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        verify(resourceResolver, never()).commit();
+        assertEquals(1, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertEquals(2, jcrFileCacheService.getCacheStats().getBuildCount());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testCreateCacheFileSkipsUnchangedContentWithTimeToLive() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+        Long expiresAt = resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class);
+        clearInvocations(resourceResolver);
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+
+        verify(resourceResolver, never()).commit();
+        assertEquals(1, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertEquals(expiresAt, resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class));
+    }
+
+    @Test
+    public void testCreateCacheFileReplacesExpiredCacheFileWithChangedMimeType()
+            throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        FileType textFileType = mock(FileType.class);
+        when(textFileType.getOutputContentType()).thenReturn("text/plain");
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                textFileType, 60000, resourceResolver);
+
+        assertEquals(0, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertEquals("text/plain", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getMimeType());
+    }
+
+    @Test
+    public void testCreateCacheFileReplacesExpiredCacheFileWithoutPrecompressedEncodings()
+            throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        String content = getCompressibleContent();
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                1, resourceResolver);
+        Thread.sleep(10);
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                60000, resourceResolver);
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                60000, resourceResolver);
+
+        assertEquals(1, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertNotNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                "gzipData"));
+    }
+
+    @Test
+    public void testCreateCacheFileKeepsUnchangedExpiredCacheFile() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+        assertTrue(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+
+        assertEquals(1, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertFalse(jcrFileCacheService.isExpired("/resource/new-cache-file"));
+        assertTrue(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class) > System.currentTimeMillis());
+        assertTrue(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    @Test
+    public void testCreateCacheFileReplacesChangedExpiredCacheFile() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        jcrFileCacheService.createCacheFile("New Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+
+        assertEquals(0, jcrFileCacheService.getCacheStats().getSkippedWriteCount());
+        assertEquals("New Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testContentHashIsDisabledByDefault() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.CONTENT_HASH_PROPERTY));
+    }
+
+    @Test
+    public void testCreateCacheFileWithDeduplication() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-1.css",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-2.css",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        String blobName = BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/resource/file-1.css");
+        assertEquals(blobName, resourceResolver.getResource(
+                "/var/cache/test/resource/file-1.css/jcr:content").getValueMap().get(
+                JcrFileCacheService.BLOB_PROPERTY, String.class));
+        assertNull(resourceResolver.getResource(
+                "/var/cache/test/resource/file-1.css/jcr:content").getValueMap().get("jcr:data"));
+        assertEquals(Long.valueOf(2), getBlobReferenceCount(blobName));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/file-1.css").getContentAsString());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/file-2.css").getContentAsString());
+        List<String> cachedPaths = jcrFileCacheService.readCachedPaths(resourceResolver);
+        assertEquals(3, cachedPaths.size());
+        assertTrue(cachedPaths.contains("/resource"));
+        assertTrue(cachedPaths.contains("/resource/file-1.css"));
+        assertTrue(cachedPaths.contains("/resource/file-2.css"));
+    }
+
+    @Test
+    public void testGetCachedFileWithDeduplication() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-1.sample",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-2.sample",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        SampleFile cachedFile = jcrFileCacheService.getCachedFile("/resource/file-2.sample",
+                SampleFile.class, resourceResolver);
+
+        assertEquals("/var/cache/test/resource/file-2.sample", cachedFile.getPath());
+        assertEquals("file-2.sample", cachedFile.getName());
+        assertEquals(SAMPLE_FILE_TYPE.getOutputContentType(),
+                cachedFile.getResource().getChild("jcr:content").getValueMap().get("jcr:mimeType",
+                        String.class));
+        assertNotNull(cachedFile.getResource().getChild("jcr:content").getValueMap().get(
+                "jcr:data", InputStream.class));
+    }
+
+    @Test
+    public void testCreateCacheFileWithDeduplicationRetriesRejectedCommit() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-1.css",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        doThrow(new PersistenceException("conflict")).doCallRealMethod().when(
+                resourceResolver).commit();
+
+        jcrFileCacheService.createCacheFile("Cache Content", "/other/file-2.css",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertEquals(Long.valueOf(2), getBlobReferenceCount(BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/resource/file-1.css")));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/other/file-2.css").getContentAsString());
+    }
+
+    @Test
+    public void testCreateCacheFileWithDeduplicationWhenCommitIsAlwaysRejected()
+            throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-1.css",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        doThrow(new PersistenceException("conflict")).when(resourceResolver).commit();
+        clearInvocations(resourceResolver);
+
+        try {
+            jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-2.css",
+                    SAMPLE_FILE_TYPE, resourceResolver);
+        } catch (CacheBuilderException e) {
+            exception = e;
+        }
+
+        assertNotNull(exception);
+        verify(resourceResolver, times(3)).commit();
+        assertEquals(Long.valueOf(1), getBlobReferenceCount(BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/resource/file-1.css")));
+        assertNull(resourceResolver.getResource("/var/cache/test/resource/file-2.css"));
+    }
+
+    @Test
+    public void testCreateCacheFileWithDeduplicationReleasesReplacedBlob() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 1, resourceResolver);
+        Thread.sleep(10);
+
+        jcrFileCacheService.createCacheFile("New Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 60000, resourceResolver);
+
+        assertNull(getBlobReferenceCount(BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/resource/new-cache-file")));
+        assertEquals(Long.valueOf(1), getBlobReferenceCount(BlobStore.getBlobName(
+                "New Cache Content".getBytes(StandardCharsets.UTF_8),
+                "/resource/new-cache-file")));
+        assertEquals("New Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testSweepExpiredCacheFilesWithDeduplication() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/1", SAMPLE_FILE_TYPE, 1,
+                resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/ids/2", SAMPLE_FILE_TYPE, 60000,
+                resourceResolver);
+        Thread.sleep(10);
+
+        assertEquals(1, jcrFileCacheService.sweepExpiredCacheFiles(resourceResolver));
+
+        String blobName = BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/ids/2");
+        assertEquals(Long.valueOf(1), getBlobReferenceCount(blobName));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/ids/2").getContentAsString());
+    }
+
+    @Test
+    public void testDoPurgeWithDeduplication() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        assertNotNull(resourceResolver.getResource("/var/cache/test/_blobs"));
+
+        jcrFileCacheService.doPurge(resourceResolver);
+
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+        assertNull(resourceResolver.getResource("/var/cache/test/_blobs"));
+    }
+
+    @Test
+    public void testRebuildBlobReferenceCounts() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isDeduplicationEnabled();
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-1",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/file-2",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        String blobName = BlobStore.getBlobName(
+                "Cache Content".getBytes(StandardCharsets.UTF_8), "/resource/file-1");
+        resourceResolver.delete(resourceResolver.getResource("/var/cache/test/resource/file-1"));
+        resourceResolver.commit();
+
+        assertEquals(0, jcrFileCacheService.rebuildBlobReferenceCounts(resourceResolver));
+        assertEquals(Long.valueOf(1), getBlobReferenceCount(blobName));
+
+        resourceResolver.delete(resourceResolver.getResource("/var/cache/test/resource/file-2"));
+        resourceResolver.commit();
+
+        assertEquals(1, jcrFileCacheService.rebuildBlobReferenceCounts(resourceResolver));
+        assertNull(getBlobReferenceCount(blobName));
+    }
+
+    @Test
+    public void testGetBlobName() {
+        byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824.css",
+                BlobStore.getBlobName(content, "/etc/file.css"));
+        assertEquals("2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824",
+                BlobStore.getBlobName(content, "/etc.folder/file"));
+    }
+
+    @Test
+    public void testDeduplicationIsDisabledByDefault() throws Exception {
+        jcrFileCacheService.createCacheFile("Cache Content", "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertNull(resourceResolver.getResource("/var/cache/test/_blobs"));
+        assertNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.BLOB_PROPERTY));
+    }
+
+    private Long getBlobReferenceCount(String blobName) {
+        Resource blobContentResource = resourceResolver.getResource(
+                "/var/cache/test/_blobs/" + blobName.substring(0, 2) + "/" + blobName
+                + "/jcr:content");
+        if (blobContentResource == null) {
+            return null;
+        }
+        return blobContentResource.getValueMap().get(
+                JcrFileCacheService.REFERENCE_COUNT_PROPERTY, Long.class);
+    }
+
+    @Test
+    public void testCreateCacheFileFromByteArray() throws Exception {
+        byte[] content = "Cache Content".getBytes(StandardCharsets.UTF_8);
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                resourceResolver);
+
+        verify(resourceResolver, times(1)).commit();
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(13, jcrFileCacheService.getCacheStats().getByteSize());
+    }
+
+    @Test
+    public void testCreateCacheFileFromInputStream() throws Exception {
+        InputStream content = new ByteArrayInputStream(
+                "Cache Content".getBytes(StandardCharsets.UTF_8));
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                60000, resourceResolver);
+
+        verify(resourceResolver, times(1)).commit();
+        assertEquals(-1, content.read());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(SAMPLE_FILE_TYPE.getOutputContentType(),
+                jcrFileCacheService.getCachedFileContent("/resource/new-cache-file").getMimeType());
+        assertEquals(1, jcrFileCacheService.getCacheStats().getBuildCount());
+        assertEquals(13, jcrFileCacheService.getCacheStats().getByteSize());
+        assertNotNull(resourceResolver.getResource(
+                "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class));
+    }
+
+    @Test
+    public void testCreateCacheFileFromInputStreamWithContentHash() throws Exception {
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+
+        jcrFileCacheService.createCacheFile(new ByteArrayInputStream(
+                "Cache Content".getBytes(StandardCharsets.UTF_8)), "/resource/new-cache-file",
+                SAMPLE_FILE_TYPE, 0, resourceResolver);
+
+        assertEquals(ContentHasher.hash("Cache Content".getBytes(StandardCharsets.UTF_8)),
+                resourceResolver.getResource(
+                        "/var/cache/test/resource/new-cache-file/jcr:content").getValueMap().get(
+                        JcrFileCacheService.CONTENT_HASH_PROPERTY, String.class));
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testCreateCacheFileFromInputStreamWhenReadFails() throws Exception {
+        InputStream content = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                throw new IOException("read error");
+            }
+        };
+        doReturn(true).when(jcrFileCacheService).isContentHashEnabled();
+
+        try {
+            jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file",
+                    SAMPLE_FILE_TYPE, 0, resourceResolver);
+            fail();
+        } catch (CacheBuilderException exception) {
+            assertTrue(exception.getMessage().startsWith("SampleJcrCacheService"));
+            assertTrue(exception.getMessage().endsWith(
+                    "failed to create jcr cache file for '/resource/new-cache-file'. read error"));
+        }
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    @Test
+    public void testCreateCacheFileFromHeapByteBuffer() throws Exception {
+        ByteBuffer content = ByteBuffer.wrap("Cache Content".getBytes(StandardCharsets.UTF_8));
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                0, resourceResolver);
+
+        assertEquals(0, content.position());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testCreateCacheFileFromDirectByteBuffer() throws Exception {
+        ByteBuffer content = ByteBuffer.allocateDirect(32);
+        content.put("Skipped Cache Content".getBytes(StandardCharsets.UTF_8));
+        content.flip();
+        content.position(8);
+
+        jcrFileCacheService.createCacheFile(content, "/resource/new-cache-file", SAMPLE_FILE_TYPE,
+                0, resourceResolver);
+
+        assertEquals(8, content.position());
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(13, jcrFileCacheService.getCacheStats().getByteSize());
+    }
+
+    @Test
+    public void testCreateCacheFileFromCacheContentWriter() throws Exception {
+        jcrFileCacheService.createCacheFile(
+                outputStream -> outputStream.write(
+                        "Cache Content".getBytes(StandardCharsets.UTF_8)),
+                "/resource/new-cache-file", SAMPLE_FILE_TYPE, 0, resourceResolver);
+
+        verify(resourceResolver, times(1)).commit();
+        assertEquals("Cache Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(13, jcrFileCacheService.getCacheStats().getByteSize());
+    }
+
+    @Test
+    public void testCreateCacheFileWithoutTimeToLiveFromStreamedContent() throws Exception {
+        jcrFileCacheService.createCacheFile(
+                ByteBuffer.wrap("Buffer Content".getBytes(StandardCharsets.UTF_8)),
+                "/resource/buffer-file", SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile(new ByteArrayInputStream(
+                "Stream Content".getBytes(StandardCharsets.UTF_8)), "/resource/stream-file",
+                SAMPLE_FILE_TYPE, resourceResolver);
+        jcrFileCacheService.createCacheFile(
+                outputStream -> outputStream.write(
+                        "Writer Content".getBytes(StandardCharsets.UTF_8)),
+                "/resource/writer-file", SAMPLE_FILE_TYPE, resourceResolver);
+
+        assertEquals("Buffer Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/buffer-file").getContentAsString());
+        assertEquals("Stream Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/stream-file").getContentAsString());
+        assertEquals("Writer Content", jcrFileCacheService.getCachedFileContent(
+                "/resource/writer-file").getContentAsString());
+        for (String fileName : new String[]{"buffer-file", "stream-file", "writer-file"}) {
+            assertNull(resourceResolver.getResource(
+                    "/var/cache/test/resource/" + fileName + "/jcr:content").getValueMap().get(
+                    JcrFileCacheService.EXPIRES_AT_PROPERTY, Long.class));
+        }
+        assertFalse(jcrFileCacheService.isExpirySweeperRunning());
+    }
+
+    @Test
+    public void testCreateCacheFileFromCacheContentWriterLargerThanSpoolThreshold()
+            throws Exception {
+        doReturn(16).when(jcrFileCacheService).getSpoolThreshold();
+        String content = getCompressibleContent();
+
+        jcrFileCacheService.createCacheFile(
+                CacheContentWriter.ofText(writer -> writer.write(content)),
+                "/resource/new-cache-file", SAMPLE_FILE_TYPE, 0, resourceResolver);
+
+        assertEquals(content, jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+        assertEquals(content.length(), jcrFileCacheService.getCacheStats().getByteSize());
+    }
+
+    @Test
+    public void testCreateCacheFileFromCacheContentWriterWithPrecompressedEncodings()
+            throws Exception {
+        doReturn(Collections.singletonList("gzip")).when(
+                jcrFileCacheService).getPrecompressedEncodings();
+        doReturn(16).when(jcrFileCacheService).getSpoolThreshold();
+        String content = getCompressibleContent();
+
+        jcrFileCacheService.createCacheFile(
+                CacheContentWriter.ofText(writer -> writer.write(content)),
+                "/resource/new-cache-file", SAMPLE_FILE_TYPE, 0, resourceResolver);
+
+        assertEquals(content, gunzip(jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file", "gzip")));
+        assertEquals(content, jcrFileCacheService.getCachedFileContent(
+                "/resource/new-cache-file").getContentAsString());
+    }
+
+    @Test
+    public void testCreateCacheFileFromCacheContentWriterWhenWriteFails() throws Exception {
+        try {
+            jcrFileCacheService.createCacheFile(outputStream -> {
+                throw new IOException("write error");
+            }, "/resource/new-cache-file", SAMPLE_FILE_TYPE, 0, resourceResolver);
+            fail();
+        } catch (CacheBuilderException exception) {
+            assertTrue(exception.getMessage().startsWith("SampleJcrCacheService"));
+            assertTrue(exception.getMessage().endsWith(
+                    "failed to create jcr cache file for '/resource/new-cache-file'. write error"));
+        }
+        verify(resourceResolver, never()).commit();
+        assertFalse(jcrFileCacheService.isFileCached("/resource/new-cache-file", resourceResolver));
+    }
+
+    private static String getCompressibleContent() {
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            content.append("Cache Content ");
+        }
+        return content.toString();
+    }
+
+    private static String gunzip(CachedContent cachedContent) throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(cachedContent.getInputStream())) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                outputStream.write(buffer, 0, read);
+            }
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static void awaitRelease(CountDownLatch releaseBuild) throws CacheBuilderException {
+        try {
+            releaseBuild.await();
+        } catch (InterruptedException e) {
+            throw new CacheBuilderException("Interrupted waiting for build to be released.", e);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static io.kestros.commons.osgiserviceutils.SampleFileType.SAMPLE_FILE_TYPE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+import io.kestros.commons.osgiserviceutils.exceptions.CacheBuilderException;
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import io.kestros.commons.structuredslingmodels.exceptions.ResourceNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.testing.mock.sling.junit.SlingContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalDiskFileCacheServiceTest {
+
+  @Rule
+  public SlingContext context = new SlingContext();
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private SampleLocalDiskCacheService cacheService;
+
+  private Path cacheDirectory;
+
+  private ResourceResolver resourceResolver;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDirectory = temporaryFolder.getRoot().toPath().resolve("cache");
+    cacheService = spy(new SampleLocalDiskCacheService(cacheDirectory));
+    resourceResolver = mock(ResourceResolver.class);
+  }
+
+  @Test
+  public void testCreateCacheFile() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+
+    assertTrue(cacheService.isFileCached("/resource/new-cache-file.sample"));
+    assertTrue(Files.isRegularFile(
+            cacheService.getGenerationDirectory().resolve("resource/new-cache-file.sample")));
+  }
+
+  @Test
+  public void testGetCachedFile() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+
+    CachedContent cachedContent = cacheService.getCachedFile("/resource/new-cache-file.sample",
+                                                             SAMPLE_FILE_TYPE);
+
+    assertEquals("Cache Content", cachedContent.getContentAsString());
+    assertEquals(SAMPLE_FILE_TYPE.getOutputContentType(), cachedContent.getMimeType());
+    assertFalse(cachedContent.isOffHeap());
+  }
+
+  @Test
+  public void testGetCachedFileIsMemoryMapped() throws Exception {
+    doReturn(1L).when(cacheService).getMemoryMapThreshold();
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+
+    CachedContent cachedContent = cacheService.getCachedFile("/resource/new-cache-file.sample",
+                                                             SAMPLE_FILE_TYPE);
+
+    assertTrue(cachedContent.isOffHeap());
+    assertEquals("Cache Content", cachedContent.getContentAsString());
+  }
+
+  @Test(expected = ResourceNotFoundException.class)
+  public void testGetCachedFileWhenNotCached() throws Exception {
+    cacheService.getCachedFile("/resource/missing-cache-file.sample", SAMPLE_FILE_TYPE);
+  }
+
+  @Test
+  public void testCreateCacheFileReplacesExistingFile() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+    cacheService.createCacheFile("New Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+
+    assertEquals("New Cache Content", cacheService.getCachedFile(
+            "/resource/new-cache-file.sample", SAMPLE_FILE_TYPE).getContentAsString());
+    assertEquals(1, Files.list(cacheService.getGenerationDirectory().resolve("resource"))
+                         .count());
+  }
+
+  @Test(expected = CacheBuilderException.class)
+  public void testCreateCacheFileWhenOutsideCacheDirectory() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/../../outside.sample", SAMPLE_FILE_TYPE);
+  }
+
+  @Test
+  public void testIsFileCachedWhenOutsideCacheDirectory() {
+    assertFalse(cacheService.isFileCached("/../outside.sample"));
+    assertFalse(cacheService.isFileCached("/"));
+  }
+
+  @Test
+  public void testDoPurge() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+    Path previousGenerationDirectory = cacheService.getGenerationDirectory();
+
+    cacheService.doPurge(resourceResolver);
+
+    assertFalse(cacheService.isFileCached("/resource/new-cache-file.sample"));
+    assertNotEquals(previousGenerationDirectory, cacheService.getGenerationDirectory());
+    cacheService.getAsyncExecutor().shutdown(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(Files.exists(previousGenerationDirectory));
+  }
+
+  @Test
+  public void testActivateDeletesStaleGenerations() throws Exception {
+    Path staleGenerationDirectory = Files.createDirectories(
+            cacheDirectory.resolve(LocalDiskFileCacheService.GENERATION_DIRECTORY_PREFIX + "1"));
+    Files.createFile(staleGenerationDirectory.resolve("stale-file.sample"));
+
+    cacheService.activate(context.componentContext());
+    cacheService.getAsyncExecutor().shutdown(TimeUnit.SECONDS.toMillis(5));
+
+    assertFalse(Files.exists(staleGenerationDirectory));
+    assertNotNull(cacheService.getGenerationDirectory());
+    assertTrue(Files.isDirectory(cacheService.getGenerationDirectory()));
+  }
+
+  @Test
+  public void testDeactivate() throws Exception {
+    cacheService.activate(context.componentContext());
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+    Path generationDirectory = cacheService.getGenerationDirectory();
+
+    cacheService.deactivate(context.componentContext());
+
+    assertFalse(Files.exists(generationDirectory));
+  }
+
+  @Test
+  public void testResolveCacheFile() {
+    Path directory = cacheDirectory.resolve("generation");
+
+    assertEquals(directory.resolve("a/b.css"),
+                 LocalDiskFileCacheService.resolveCacheFile(directory, "/a/b.css"));
+    assertEquals(directory.resolve("a/b.css"),
+                 LocalDiskFileCacheService.resolveCacheFile(directory, "a/./c/../b.css"));
+    assertNull(LocalDiskFileCacheService.resolveCacheFile(directory, "/a/../../b.css"));
+  }
+
+  @Test
+  public void testCacheStats() throws Exception {
+    cacheService.createCacheFile("Cache Content", "/resource/new-cache-file.sample",
+                                 SAMPLE_FILE_TYPE);
+    cacheService.getCachedFile("/resource/new-cache-file.sample", SAMPLE_FILE_TYPE);
+    try {
+      cacheService.getCachedFile("/resource/missing-cache-file.sample", SAMPLE_FILE_TYPE);
+    } catch (ResourceNotFoundException e) {
+      // Expected.
+    }
+
+    assertEquals(1, cacheService.getCacheStats().getBuildCount());
+    assertEquals(13, cacheService.getCacheStats().getByteSize());
+    assertEquals(1, cacheService.getCacheStats().getHitCount());
+    assertEquals(1, cacheService.getCacheStats().getMissCount());
+  }
+}
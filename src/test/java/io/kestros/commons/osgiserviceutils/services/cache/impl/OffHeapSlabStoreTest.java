@@ -0,0 +1,201 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import io.kestros.commons.osgiserviceutils.services.cache.CachedContent;
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OffHeapSlabStoreTest {
+
+  private OffHeapSlabStore offHeapSlabStore;
+
+  @Before
+  public void setUp() throws Exception {
+    offHeapSlabStore = new OffHeapSlabStore(4096, 8192);
+  }
+
+  @Test
+  public void testStore() {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            ByteBuffer.wrap("Cache Content".getBytes(UTF_8)), "text/plain");
+
+    assertNotNull(cachedContent);
+    assertTrue(cachedContent.isOffHeap());
+    assertEquals("Cache Content", cachedContent.getContentAsString());
+    assertEquals("text/plain", cachedContent.getMimeType());
+    assertEquals(4096, offHeapSlabStore.getReservedBytes());
+    assertEquals(1024, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(13, offHeapSlabStore.getStoredBytes());
+  }
+
+  @Test
+  public void testStoreFromInputStream() throws Exception {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            new ByteArrayInputStream("Cache Content".getBytes(UTF_8)), 13, "text/plain");
+
+    assertNotNull(cachedContent);
+    assertTrue(cachedContent.isOffHeap());
+    assertEquals("Cache Content", cachedContent.getContentAsString());
+    assertEquals(1024, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(13, offHeapSlabStore.getStoredBytes());
+    cachedContent.close();
+    assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(0, offHeapSlabStore.getStoredBytes());
+  }
+
+  @Test
+  public void testStoreFromInputStreamWhenSizeIsNotKnown() throws Exception {
+    final byte[] content = new byte[3000];
+    Arrays.fill(content, (byte) 'a');
+
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            new ByteArrayInputStream(content), -1, "text/plain");
+
+    assertNotNull(cachedContent);
+    assertEquals(3000, cachedContent.getSize());
+    assertEquals(new String(content, UTF_8), cachedContent.getContentAsString());
+    assertEquals(4096, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(3000, offHeapSlabStore.getStoredBytes());
+  }
+
+  @Test
+  public void testStoreFromInputStreamWhenLargerThanExpected() throws Exception {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            new ByteArrayInputStream(new byte[1500]), 1024, "text/plain");
+
+    assertNotNull(cachedContent);
+    assertEquals(1500, cachedContent.getSize());
+    assertEquals(2048, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(1500, offHeapSlabStore.getStoredBytes());
+  }
+
+  @Test
+  public void testStoreFromInputStreamWhenLargerThanSlab() throws Exception {
+    assertNull(offHeapSlabStore.store("/file", new ByteArrayInputStream(new byte[5000]), -1,
+            "text/plain"));
+
+    assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(0, offHeapSlabStore.getStoredBytes());
+  }
+
+  @Test
+  public void testCloseReleasesBlock() {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            ByteBuffer.wrap("Cache Content".getBytes(UTF_8)), "text/plain");
+
+    cachedContent.close();
+
+    assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+    assertEquals(0, offHeapSlabStore.getStoredBytes());
+    assertNull(cachedContent.retain());
+  }
+
+  @Test
+  public void testBlockIsReleasedAfterLastReference() {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            ByteBuffer.wrap("Cache Content".getBytes(UTF_8)), "text/plain");
+    final CachedContent retainedContent = cachedContent.retain();
+
+    cachedContent.close();
+    cachedContent.close();
+
+    assertEquals(1024, offHeapSlabStore.getAllocatedBytes());
+    assertEquals("Cache Content", retainedContent.getContentAsString());
+    retainedContent.close();
+    assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+  }
+
+  @Test
+  public void testReleasedBlocksAreReused() {
+    for (int i = 0; i < 100; i++) {
+      offHeapSlabStore.store("/file", ByteBuffer.allocate(3000), "text/plain").close();
+    }
+
+    assertEquals(4096, offHeapSlabStore.getReservedBytes());
+  }
+
+  @Test
+  public void testStoreWhenFull() {
+    assertNotNull(offHeapSlabStore.store("/file-1", ByteBuffer.allocate(4096), "text/plain"));
+    assertNotNull(offHeapSlabStore.store("/file-2", ByteBuffer.allocate(4096), "text/plain"));
+
+    assertNull(offHeapSlabStore.store("/file-3", ByteBuffer.allocate(1), "text/plain"));
+    assertEquals(8192, offHeapSlabStore.getReservedBytes());
+  }
+
+  @Test
+  public void testStoreWhenLargerThanSlab() {
+    assertNull(offHeapSlabStore.store("/file", ByteBuffer.allocate(4097), "text/plain"));
+  }
+
+  @Test
+  public void testSlabRemainderIsReused() {
+    offHeapSlabStore.store("/file-1", ByteBuffer.allocate(1024), "text/plain");
+    offHeapSlabStore.store("/file-2", ByteBuffer.allocate(4096), "text/plain");
+
+    assertNotNull(offHeapSlabStore.store("/file-3", ByteBuffer.allocate(2048), "text/plain"));
+    assertNotNull(offHeapSlabStore.store("/file-4", ByteBuffer.allocate(1024), "text/plain"));
+    assertEquals(8192, offHeapSlabStore.getReservedBytes());
+  }
+
+  @Test
+  public void testClose() {
+    final CachedContent cachedContent = offHeapSlabStore.store("/file",
+            ByteBuffer.wrap("Cache Content".getBytes(UTF_8)), "text/plain");
+
+    offHeapSlabStore.close();
+    cachedContent.close();
+
+    assertTrue(offHeapSlabStore.isClosed());
+    assertEquals(0, offHeapSlabStore.getReservedBytes());
+    assertEquals(0, offHeapSlabStore.getAllocatedBytes());
+    assertNull(offHeapSlabStore.store("/file", ByteBuffer.allocate(1), "text/plain"));
+  }
+
+  @Test
+  public void testGetBlockSize() {
+    assertEquals(1024, OffHeapSlabStore.getBlockSize(0));
+    assertEquals(1024, OffHeapSlabStore.getBlockSize(1024));
+    assertEquals(2048, OffHeapSlabStore.getBlockSize(1025));
+  }
+
+  @Test
+  public void testSlabSizeIsRoundedUp() {
+    assertEquals(8192, new OffHeapSlabStore(5000, 8192).getSlabSize());
+    assertFalse(offHeapSlabStore.isClosed());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorWhenSlabSizeIsTooSmall() {
+    new OffHeapSlabStore(512, 8192);
+  }
+}
@@ -0,0 +1,97 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.apache.sling.event.jobs.JobManager;
+import org.osgi.service.component.annotations.Reference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SampleLocalDiskCacheService extends LocalDiskFileCacheService {
+
+  private static final Logger LOG = LoggerFactory.getLogger(SampleLocalDiskCacheService.class);
+
+  @Reference
+  private ResourceResolverFactory resourceResolverFactory;
+
+  @Reference
+  private JobManager jobManager;
+
+  private final Path cacheDirectory;
+
+  public SampleLocalDiskCacheService(Path cacheDirectory) {
+    this.cacheDirectory = cacheDirectory;
+  }
+
+  @Override
+  protected Path getCacheDirectory() {
+    return cacheDirectory;
+  }
+
+  @Override
+  protected String getServiceUserName() {
+    return "test-local-disk-cache-service-user";
+  }
+
+  @Override
+  protected ResourceResolverFactory getResourceResolverFactory() {
+    return resourceResolverFactory;
+  }
+
+  @Override
+  protected List<String> getRequiredResourcePaths() {
+    return new ArrayList<>();
+  }
+
+  @Override
+  public String getDisplayName() {
+    return "Sample Local Disk Cache Service";
+  }
+
+  @Override
+  protected Logger getLogger() {
+    return LOG;
+  }
+
+  @Override
+  public JobManager getJobManager() {
+    return jobManager;
+  }
+
+  @Override
+  protected void afterCachePurgeComplete(ResourceResolver resourceResolver) {
+    this.getDisplayName();
+  }
+
+  @Override
+  protected long getMinimumTimeBetweenCachePurges() {
+    return 1000;
+  }
+
+  @Override
+  public String getCacheCreationJobName() {
+    return "sample-creation";
+  }
+}
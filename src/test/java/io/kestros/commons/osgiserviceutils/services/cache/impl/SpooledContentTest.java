@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.junit.Test;
+
+public class SpooledContentTest {
+
+  @Test
+  public void testContentHeldInMemory() throws IOException {
+    try (SpooledContent spooledContent = new SpooledContent(16)) {
+      try (OutputStream outputStream = spooledContent.getOutputStream()) {
+        outputStream.write("Cache Content".getBytes(UTF_8));
+      }
+
+      assertFalse(spooledContent.isSpooled());
+      assertEquals(13, spooledContent.getSize());
+      assertArrayEquals("Cache Content".getBytes(UTF_8), spooledContent.toByteArray());
+      assertEquals("Cache Content", read(spooledContent));
+    }
+  }
+
+  @Test
+  public void testContentSpooledToFile() throws IOException {
+    SpooledContent spooledContent = new SpooledContent(8);
+    try (OutputStream outputStream = spooledContent.getOutputStream()) {
+      outputStream.write("Cache ".getBytes(UTF_8));
+      outputStream.write("Content".getBytes(UTF_8));
+      outputStream.write('!');
+    }
+
+    assertTrue(spooledContent.isSpooled());
+    assertEquals(14, spooledContent.getSize());
+    assertArrayEquals("Cache Content!".getBytes(UTF_8), spooledContent.toByteArray());
+    assertEquals("Cache Content!", read(spooledContent));
+
+    spooledContent.close();
+    try {
+      read(spooledContent);
+      fail();
+    } catch (IOException exception) {
+      assertTrue(spooledContent.isSpooled());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void testWriteAfterClose() throws IOException {
+    try (SpooledContent spooledContent = new SpooledContent(8)) {
+      OutputStream outputStream = spooledContent.getOutputStream();
+      outputStream.close();
+      outputStream.write(1);
+    }
+  }
+
+  private static String read(SpooledContent spooledContent) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (InputStream inputStream = spooledContent.getInputStream()) {
+      byte[] buffer = new byte[4];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+    }
+    return new String(outputStream.toByteArray(), UTF_8);
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.cache.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WeightedLruCacheTest {
+
+  private WeightedLruCache<String, String> cache;
+
+  @Before
+  public void setUp() throws Exception {
+    cache = new WeightedLruCache<>(10, String::length);
+  }
+
+  @Test
+  public void testGetAndPut() {
+    cache.put("a", "abc");
+
+    assertEquals("abc", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals(1, cache.size());
+    assertEquals(3, cache.getWeight());
+  }
+
+  @Test
+  public void testPutReplacesValue() {
+    cache.put("a", "abc");
+    cache.put("a", "abcde");
+
+    assertEquals("abcde", cache.get("a"));
+    assertEquals(5, cache.getWeight());
+  }
+
+  @Test
+  public void testContainsKeyDoesNotMarkAsRecentlyUsed() {
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+
+    assertTrue(cache.containsKey("a"));
+    cache.put("c", "cccc");
+
+    assertFalse(cache.containsKey("a"));
+    assertTrue(cache.containsKey("b"));
+    assertTrue(cache.containsKey("c"));
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbb");
+    cache.get("a");
+    cache.put("c", "cccc");
+
+    assertEquals("aaaa", cache.get("a"));
+    assertNull(cache.get("b"));
+    assertEquals("cccc", cache.get("c"));
+    assertEquals(8, cache.getWeight());
+    assertEquals(1, cache.getEvictionCount());
+  }
+
+  @Test
+  public void testPutWhenHeavierThanMaximum() {
+    cache.put("a", "aaaa");
+    cache.put("b", "bbbbbbbbbbb");
+
+    assertNull(cache.get("b"));
+    assertEquals("aaaa", cache.get("a"));
+  }
+
+  @Test
+  public void testPutIfGeneration() {
+    final long generation = cache.getGeneration();
+
+    assertTrue(cache.putIfGeneration("a", "abc", generation));
+    assertEquals("abc", cache.get("a"));
+  }
+
+  @Test
+  public void testPutIfGenerationAfterInvalidation() {
+    final long generation = cache.getGeneration();
+    cache.invalidate("a");
+
+    assertFalse(cache.putIfGeneration("a", "abc", generation));
+    assertNull(cache.get("a"));
+  }
+
+  @Test
+  public void testInvalidateAll() {
+    cache.put("a", "abc");
+    cache.put("b", "def");
+
+    cache.invalidateAll();
+
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getWeight());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testConstructorWhenMaximumWeightIsZero() {
+    new WeightedLruCache<String, String>(0, String::length);
+  }
+
+  @Test
+  public void testRemovalListener() {
+    final List<String> removed = new ArrayList<>();
+    final List<String> evicted = new ArrayList<>();
+    cache = new WeightedLruCache<>(10, String::length, (value, wasEvicted) -> {
+      removed.add(value);
+      if (wasEvicted) {
+        evicted.add(value);
+      }
+    });
+    cache.put("a", "aaaa");
+    cache.put("a", "bbbb");
+    cache.put("b", "cccc");
+    cache.put("c", "dddd");
+    cache.invalidate("b");
+    cache.invalidateAll();
+
+    assertEquals(4, removed.size());
+    assertEquals("aaaa", removed.get(0));
+    assertEquals("bbbb", removed.get(1));
+    assertEquals("cccc", removed.get(2));
+    assertEquals("dddd", removed.get(3));
+    assertEquals(1, evicted.size());
+    assertEquals("bbbb", evicted.get(0));
+  }
+}
@@ -41,6 +41,7 @@ import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -176,4 +177,18 @@ public class BaseCachePurgeOnResourceChangeEventListenerTest {
     verify(cacheService, times(1)).purgeAll(any());
   }
 
-}
\ No newline at end of file
+  @Test
+  public void testOnChangeWhenPurgeAsynchronous() throws Exception {
+    eventListener = spy(new SampleCachePurgeOnResourceChangeEventListener());
+    doReturn(resourceResolverFactory).when(eventListener).getResourceResolverFactory();
+    doReturn(true).when(eventListener).isPurgeAsynchronous();
+    cacheServices.add(cacheService);
+    doReturn(cacheServices).when(eventListener).getCacheServices();
+
+    eventListener.onChange(new ArrayList<>());
+
+    verify(cacheService, timeout(5000).times(1)).purgeAll(serviceResourceResolver);
+    eventListener.deactivate(context.componentContext());
+  }
+
+}
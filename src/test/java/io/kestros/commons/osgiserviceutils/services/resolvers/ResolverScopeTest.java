@@ -0,0 +1,162 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ResourceResolverFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResolverScopeTest {
+
+  private ResourceResolverFactory resourceResolverFactory;
+
+  private ResourceResolver resourceResolver;
+
+  private int openCount;
+
+  @Before
+  public void setUp() throws Exception {
+    resourceResolverFactory = mock(ResourceResolverFactory.class);
+    resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.isLive()).thenReturn(true);
+    openCount = 0;
+  }
+
+  @After
+  public void tearDown() {
+    assertFalse(ResolverScope.hasActiveScopes());
+  }
+
+  @Test
+  public void testOpen() throws LoginException {
+    assertFalse(ResolverScope.hasActiveScopes());
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      assertTrue(scope.isOpen());
+      assertTrue(ResolverScope.hasActiveScopes());
+      assertSame(scope, ResolverScope.getActiveScope(resourceResolverFactory, "user"));
+      assertSame(resourceResolver, scope.getResourceResolver());
+    }
+    assertEquals(1, openCount);
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testOpenWhenNested() throws LoginException {
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      try (ResolverScope nestedScope = ResolverScope.open(resourceResolverFactory, "user",
+                                                          this::open)) {
+        assertSame(scope, nestedScope);
+      }
+      assertTrue(scope.isOpen());
+      verify(resourceResolver, never()).close();
+    }
+    assertEquals(1, openCount);
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testOpenWhenDifferentServiceUser() throws LoginException {
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      assertNull(ResolverScope.getActiveScope(resourceResolverFactory, "other-user"));
+      assertNull(ResolverScope.getActiveScope(mock(ResourceResolverFactory.class), "user"));
+    }
+  }
+
+  @Test
+  public void testOpenWhenLoginException() {
+    Exception exception = null;
+    try {
+      ResolverScope.open(resourceResolverFactory, "user", () -> {
+        throw new LoginException("login failed");
+      });
+    } catch (LoginException e) {
+      exception = e;
+    }
+    assertEquals("login failed", exception.getMessage());
+  }
+
+  @Test
+  public void testLease() throws LoginException {
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      try (ResourceResolver leasedResourceResolver = scope.lease()) {
+        assertTrue(leasedResourceResolver.isLive());
+      }
+      verify(resourceResolver, never()).close();
+    }
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testNestedScopesShareUncommittedChanges() throws LoginException {
+    when(resourceResolver.hasChanges()).thenReturn(true);
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      try (ResolverScope nestedScope = ResolverScope.open(resourceResolverFactory, "user",
+                                                          this::open)) {
+        assertTrue(nestedScope.isOpen());
+      }
+      verify(resourceResolver, never()).revert();
+      assertTrue(scope.getResourceResolver().hasChanges());
+    }
+  }
+
+  @Test
+  public void testCloseNestedScopeWhenFailed() throws LoginException {
+    when(resourceResolver.hasChanges()).thenReturn(true);
+    try (ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open)) {
+      try (ResolverScope nestedScope = ResolverScope.open(resourceResolverFactory, "user",
+                                                          this::open)) {
+        nestedScope.markFailed();
+      }
+      verify(resourceResolver, times(1)).revert();
+      assertTrue(scope.isOpen());
+    }
+    verify(resourceResolver, times(1)).revert();
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testCloseMultipleTimes() throws LoginException {
+    ResolverScope scope = ResolverScope.open(resourceResolverFactory, "user", this::open);
+    scope.close();
+    scope.close();
+
+    assertFalse(scope.isOpen());
+    verify(resourceResolver, times(1)).close();
+  }
+
+  private ResourceResolver open() {
+    openCount++;
+    return resourceResolver;
+  }
+}
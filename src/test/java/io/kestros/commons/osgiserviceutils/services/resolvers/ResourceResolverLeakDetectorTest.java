@@ -0,0 +1,107 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.kestros.commons.osgiserviceutils.services.resolvers.ResourceResolverLeakDetector.TrackedResourceResolver;
+import java.util.List;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceResolverLeakDetectorTest {
+
+  private ResourceResolverLeakDetector leakDetector;
+
+  private ResourceResolver resourceResolver;
+
+  @Before
+  public void setUp() throws Exception {
+    leakDetector = new ResourceResolverLeakDetector(1, -1);
+    resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.isLive()).thenReturn(true);
+  }
+
+  @Test
+  public void testTrack() {
+    ResourceResolver trackedResourceResolver = leakDetector.track(resourceResolver,
+                                                                  ResourceResolver::close);
+
+    assertEquals(1, leakDetector.getOutstandingCount());
+    assertTrue(trackedResourceResolver.isLive());
+
+    trackedResourceResolver.close();
+
+    assertEquals(0, leakDetector.getOutstandingCount());
+    assertEquals(0, leakDetector.getLeakedCount());
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testGetOpenLongerThanThreshold() {
+    ResourceResolver trackedResourceResolver = leakDetector.track(resourceResolver,
+                                                                  ResourceResolver::close);
+
+    List<TrackedResourceResolver> openResourceResolvers
+            = leakDetector.logOpenLongerThanThreshold();
+    assertEquals(1, openResourceResolvers.size());
+    assertEquals(Thread.currentThread().getName(), openResourceResolvers.get(0).getThreadName());
+    assertNotNull(openResourceResolvers.get(0).getAllocationStackTrace());
+    verify(resourceResolver, never()).close();
+
+    trackedResourceResolver.close();
+    assertEquals(0, leakDetector.getOpenLongerThanThreshold().size());
+  }
+
+  @Test
+  public void testGetOpenLongerThanThresholdWhenUnderThreshold() {
+    leakDetector = new ResourceResolverLeakDetector(1, 60000);
+    leakDetector.track(resourceResolver, ResourceResolver::close);
+
+    assertEquals(0, leakDetector.getOpenLongerThanThreshold().size());
+    assertEquals(60000, leakDetector.getThresholdMillis());
+  }
+
+  @Test
+  public void testTrackWhenNotSampled() {
+    leakDetector = new ResourceResolverLeakDetector(0, -1);
+    leakDetector.track(resourceResolver, ResourceResolver::close);
+
+    assertNull(leakDetector.getOpenLongerThanThreshold().get(0).getAllocationStackTrace());
+  }
+
+  @Test
+  public void testExpungeCollectedWhenNothingCollected() {
+    leakDetector.track(resourceResolver, ResourceResolver::close);
+
+    assertEquals(0, leakDetector.expungeCollected());
+    assertEquals(1, leakDetector.getOutstandingCount());
+  }
+}
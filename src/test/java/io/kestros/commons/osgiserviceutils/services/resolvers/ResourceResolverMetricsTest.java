@@ -0,0 +1,84 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceResolverMetricsTest {
+
+  private ResourceResolverMetrics metrics;
+
+  @Before
+  public void setUp() throws Exception {
+    metrics = ResourceResolverMetrics.forServiceUser("metrics-test-user");
+    metrics.reset();
+  }
+
+  @Test
+  public void testForServiceUser() {
+    assertSame(metrics, ResourceResolverMetrics.forServiceUser("metrics-test-user"));
+    assertEquals("metrics-test-user", metrics.getServiceUserName());
+    assertSame(metrics, ResourceResolverMetrics.getAll().get("metrics-test-user"));
+  }
+
+  @Test
+  public void testRecordOpen() {
+    metrics.recordOpen(1000);
+    metrics.recordOpen(3000);
+    metrics.recordOpenFailure(2000);
+
+    assertEquals(2, metrics.getOpenCount());
+    assertEquals(1, metrics.getOpenFailureCount());
+    assertEquals(3, metrics.getOpenLatency().getCount());
+    assertTrue(metrics.getOpenRate() > 0);
+  }
+
+  @Test
+  public void testRecordAcquiredAndReleased() {
+    metrics.recordAcquired();
+    metrics.recordAcquired();
+    assertEquals(2, metrics.getCurrentlyOpen());
+
+    metrics.recordReleased(5000);
+    assertEquals(1, metrics.getCurrentlyOpen());
+    assertEquals(1, metrics.getHeldTime().getCount());
+    metrics.recordReleased(5000);
+  }
+
+  @Test
+  public void testReset() {
+    metrics.recordOpen(1000);
+    metrics.reset();
+
+    assertEquals(0, metrics.getOpenCount());
+    assertEquals(0, metrics.getOpenLatency().getCount());
+  }
+
+  @Test
+  public void testToString() {
+    assertTrue(metrics.toString().startsWith("metrics-test-user: 0 opened"));
+  }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ResourceResolverPoolTest {
+
+  private ResourceResolverPool pool;
+
+  private List<ResourceResolver> openedResourceResolvers;
+
+  @Before
+  public void setUp() throws Exception {
+    openedResourceResolvers = new ArrayList<>();
+    pool = new ResourceResolverPool(this::openResourceResolver, 2, 60000, 600000, 10);
+  }
+
+  @Test
+  public void testLease() throws LoginException {
+    ResourceResolver resourceResolver = pool.lease();
+
+    assertTrue(resourceResolver.isLive());
+    assertEquals(1, openedResourceResolvers.size());
+    assertEquals(1, pool.getLeasedCount());
+    assertEquals(0, pool.getIdleCount());
+  }
+
+  @Test
+  public void testLeaseReusesReturnedResourceResolver() throws LoginException {
+    try (ResourceResolver resourceResolver = pool.lease()) {
+      assertTrue(resourceResolver.isLive());
+    }
+    assertEquals(0, pool.getLeasedCount());
+    assertEquals(1, pool.getIdleCount());
+
+    LeasedResourceResolver resourceResolver = pool.lease();
+
+    assertEquals(1, openedResourceResolvers.size());
+    assertEquals(openedResourceResolvers.get(0), resourceResolver.getLeasedResourceResolver());
+    verify(openedResourceResolvers.get(0), times(1)).refresh();
+    verify(openedResourceResolvers.get(0), never()).close();
+  }
+
+  @Test
+  public void testLeaseWhenIdleResourceResolverIsNotLive() throws LoginException {
+    pool.lease().close();
+    when(openedResourceResolvers.get(0).isLive()).thenReturn(false);
+
+    LeasedResourceResolver resourceResolver = pool.lease();
+
+    assertEquals(2, openedResourceResolvers.size());
+    assertNotEquals(openedResourceResolvers.get(0), resourceResolver.getLeasedResourceResolver());
+  }
+
+  @Test
+  public void testLeaseWhenIdleResourceResolverHasExpired() throws LoginException {
+    pool = new ResourceResolverPool(this::openResourceResolver, 2, -1, 600000, 10);
+    pool.lease().close();
+
+    assertEquals(0, pool.getIdleCount());
+    verify(openedResourceResolvers.get(0), times(1)).close();
+
+    pool.lease();
+    assertEquals(2, openedResourceResolvers.size());
+  }
+
+  @Test(expected = LoginException.class)
+  public void testLeaseWhenPoolIsExhausted() throws LoginException {
+    pool.lease();
+    pool.lease();
+    pool.lease();
+  }
+
+  @Test(expected = LoginException.class)
+  public void testLeaseWhenPoolIsClosed() throws LoginException {
+    pool.close();
+    pool.lease();
+  }
+
+  @Test
+  public void testLeaseWhenOpenerThrowsLoginException() {
+    pool = new ResourceResolverPool(() -> {
+      throw new LoginException("login failed");
+    }, 1, 60000, 600000, 10);
+    Exception exception = null;
+    try {
+      pool.lease();
+    } catch (LoginException e) {
+      exception = e;
+    }
+    assertEquals("login failed", exception.getMessage());
+    assertEquals(0, pool.getLeasedCount());
+  }
+
+  @Test
+  public void testCloseLeasedResourceResolverRevertsChanges() throws LoginException {
+    ResourceResolver resourceResolver = pool.lease();
+    when(openedResourceResolvers.get(0).hasChanges()).thenReturn(true);
+
+    resourceResolver.close();
+
+    verify(openedResourceResolvers.get(0), times(1)).revert();
+    assertFalse(resourceResolver.isLive());
+  }
+
+  @Test
+  public void testCloseLeasedResourceResolverMultipleTimes() throws LoginException {
+    ResourceResolver resourceResolver = pool.lease();
+    resourceResolver.close();
+    resourceResolver.close();
+
+    assertEquals(1, pool.getIdleCount());
+    assertEquals(0, pool.getLeasedCount());
+  }
+
+  @Test
+  public void testClose() throws LoginException {
+    ResourceResolver leased = pool.lease();
+    pool.lease().close();
+
+    pool.close();
+
+    assertTrue(pool.isClosed());
+    assertEquals(0, pool.getIdleCount());
+    verify(openedResourceResolvers.get(1), times(1)).close();
+    verify(openedResourceResolvers.get(0), never()).close();
+
+    leased.close();
+    verify(openedResourceResolvers.get(0), times(1)).close();
+  }
+
+  @Test
+  public void testCloseWhileLeasedResourceResolverIsReturned() throws LoginException {
+    ResourceResolver leased = pool.lease();
+    // Closes the pool after the returned ResourceResolver has been checked, but before it is
+    // added back to the pool.
+    when(openedResourceResolvers.get(0).hasChanges()).thenAnswer(invocation -> {
+      pool.close();
+      return false;
+    });
+
+    leased.close();
+
+    assertEquals(0, pool.getIdleCount());
+    assertEquals(0, pool.getLeasedCount());
+    verify(openedResourceResolvers.get(0), times(1)).close();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testPoolWhenMaximumSizeIsZero() {
+    new ResourceResolverPool(this::openResourceResolver, 0, 60000, 600000, 10);
+  }
+
+  private ResourceResolver openResourceResolver() {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.isLive()).thenReturn(true);
+    openedResourceResolvers.add(resourceResolver);
+    return resourceResolver;
+  }
+}
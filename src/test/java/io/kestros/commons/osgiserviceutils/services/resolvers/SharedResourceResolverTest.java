@@ -0,0 +1,204 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.services.resolvers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SharedResourceResolverTest {
+
+  private SharedResourceResolver sharedResourceResolver;
+
+  private List<ResourceResolver> openedResourceResolvers;
+
+  @Before
+  public void setUp() throws Exception {
+    openedResourceResolvers = new ArrayList<>();
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 60000, false);
+  }
+
+  @Test
+  public void testGet() throws LoginException {
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+
+    assertEquals(resourceResolver, sharedResourceResolver.get());
+    assertEquals(1, openedResourceResolvers.size());
+    assertEquals(1, sharedResourceResolver.getOpenCount());
+    assertFalse(sharedResourceResolver.isPerThread());
+    verify(resourceResolver, never()).refresh();
+  }
+
+  @Test
+  public void testGetWhenMarkedStale() throws LoginException {
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+    sharedResourceResolver.markStale();
+
+    assertEquals(resourceResolver, sharedResourceResolver.get());
+    assertEquals(resourceResolver, sharedResourceResolver.get());
+    assertEquals(1, openedResourceResolvers.size());
+    verify(resourceResolver, times(1)).refresh();
+  }
+
+  @Test
+  public void testGetWhenRefreshIntervalElapsed() throws LoginException {
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 0, false);
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+
+    sharedResourceResolver.get();
+    sharedResourceResolver.get();
+
+    assertEquals(1, openedResourceResolvers.size());
+    verify(resourceResolver, times(2)).refresh();
+  }
+
+  @Test
+  public void testGetWhenResourceResolverIsNotLive() throws LoginException {
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+    when(resourceResolver.isLive()).thenReturn(false);
+
+    assertNotEquals(resourceResolver, sharedResourceResolver.get());
+    assertEquals(2, openedResourceResolvers.size());
+  }
+
+  @Test
+  public void testGetWhenPerThread() throws Exception {
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 60000, true);
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+    AtomicReference<ResourceResolver> otherThreadResourceResolver = new AtomicReference<>();
+
+    Thread thread = new Thread(() -> {
+      try {
+        otherThreadResourceResolver.set(sharedResourceResolver.get());
+      } catch (LoginException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    thread.start();
+    thread.join();
+
+    assertTrue(sharedResourceResolver.isPerThread());
+    assertEquals(resourceResolver, sharedResourceResolver.get());
+    assertNotEquals(resourceResolver, otherThreadResourceResolver.get());
+    assertEquals(2, openedResourceResolvers.size());
+    assertEquals(2, sharedResourceResolver.getOpenCount());
+  }
+
+  @Test
+  public void testGetWhenPerThreadClosesResourceResolversOfDeadThreads() throws Exception {
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 60000, true);
+    Runnable getResourceResolver = () -> {
+      try {
+        sharedResourceResolver.get();
+      } catch (LoginException e) {
+        throw new IllegalStateException(e);
+      }
+    };
+    Thread thread = new Thread(getResourceResolver);
+    thread.start();
+    thread.join();
+    assertEquals(1, sharedResourceResolver.getOpenCount());
+
+    sharedResourceResolver.get();
+
+    assertEquals(2, openedResourceResolvers.size());
+    assertEquals(1, sharedResourceResolver.getOpenCount());
+    verify(openedResourceResolvers.get(0), times(1)).close();
+    verify(openedResourceResolvers.get(1), never()).close();
+  }
+
+  @Test
+  public void testClose() throws LoginException {
+    ResourceResolver resourceResolver = sharedResourceResolver.get();
+
+    sharedResourceResolver.close();
+
+    assertTrue(sharedResourceResolver.isClosed());
+    assertEquals(0, sharedResourceResolver.getOpenCount());
+    verify(resourceResolver, times(1)).close();
+  }
+
+  @Test
+  public void testCloseWhenPerThread() throws Exception {
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 60000, true);
+    sharedResourceResolver.get();
+    Thread thread = new Thread(() -> {
+      try {
+        sharedResourceResolver.get();
+      } catch (LoginException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+    thread.start();
+    thread.join();
+
+    sharedResourceResolver.close();
+
+    assertEquals(0, sharedResourceResolver.getOpenCount());
+    verify(openedResourceResolvers.get(0), times(1)).close();
+    verify(openedResourceResolvers.get(1), times(1)).close();
+  }
+
+  @Test(expected = LoginException.class)
+  public void testGetWhenClosedAndPerThread() throws LoginException {
+    sharedResourceResolver = new SharedResourceResolver(this::openResourceResolver, 60000, true);
+    sharedResourceResolver.get();
+    sharedResourceResolver.close();
+
+    sharedResourceResolver.get();
+  }
+
+  @Test(expected = LoginException.class)
+  public void testGetWhenClosed() throws LoginException {
+    sharedResourceResolver.close();
+
+    sharedResourceResolver.get();
+  }
+
+  @Test(expected = LoginException.class)
+  public void testGetWhenOpenFails() throws LoginException {
+    sharedResourceResolver = new SharedResourceResolver(() -> {
+      throw new LoginException("failed");
+    }, 60000, false);
+
+    sharedResourceResolver.get();
+  }
+
+  private ResourceResolver openResourceResolver() {
+    ResourceResolver resourceResolver = mock(ResourceResolver.class);
+    when(resourceResolver.isLive()).thenReturn(true);
+    openedResourceResolvers.add(resourceResolver);
+    return resourceResolver;
+  }
+}
@@ -0,0 +1,86 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package io.kestros.commons.osgiserviceutils.utils;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.GZIPInputStream;
+import org.junit.Test;
+
+public class ContentEncodingUtilsTest {
+
+  @Test
+  public void testGetAcceptedEncodings() {
+    assertEquals(Arrays.asList("gzip", "deflate", "br"),
+                 ContentEncodingUtils.getAcceptedEncodings("gzip, deflate, br"));
+  }
+
+  @Test
+  public void testGetAcceptedEncodingsOrdersByQuality() {
+    assertEquals(Arrays.asList("br", "gzip", "*"),
+                 ContentEncodingUtils.getAcceptedEncodings("gzip;q=0.8, *;q=0.1, br"));
+  }
+
+  @Test
+  public void testGetAcceptedEncodingsExcludesZeroQuality() {
+    assertEquals(Collections.singletonList("gzip"),
+                 ContentEncodingUtils.getAcceptedEncodings("GZIP, identity;q=0, br;q=invalid"));
+  }
+
+  @Test
+  public void testGetAcceptedEncodingsWhenEmpty() {
+    assertTrue(ContentEncodingUtils.getAcceptedEncodings(null).isEmpty());
+    assertTrue(ContentEncodingUtils.getAcceptedEncodings(" ").isEmpty());
+  }
+
+  @Test
+  public void testGzip() throws Exception {
+    final StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      content.append("Cache Content ");
+    }
+
+    final byte[] compressedContent = ContentEncodingUtils.gzip(
+            content.toString().getBytes(UTF_8));
+
+    assertTrue(compressedContent.length < content.length());
+    assertEquals(content.toString(), gunzip(compressedContent));
+  }
+
+  private static String gunzip(final byte[] compressedContent) throws Exception {
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    try (InputStream inputStream = new GZIPInputStream(
+            new ByteArrayInputStream(compressedContent))) {
+      final byte[] buffer = new byte[1024];
+      int read;
+      while ((read = inputStream.read(buffer)) != -1) {
+        outputStream.write(buffer, 0, read);
+      }
+    }
+    return new String(outputStream.toByteArray(), UTF_8);
+  }
+}
@@ -22,6 +22,7 @@ package io.kestros.commons.osgiserviceutils.utils;
 import static junit.framework.TestCase.assertNotNull;
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.*;
+import static org.mockito.AdditionalAnswers.delegatesTo;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
@@ -38,12 +39,21 @@ import org.apache.sling.testing.mock.sling.junit.SlingContext;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.util.tracker.ServiceTracker;
 
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class OsgiServiceUtilsTest {
 
@@ -159,16 +169,403 @@ public class OsgiServiceUtilsTest {
   }
 
   @Test
-  public void testGetOsgiServicesOfTypeWhenServiceTracker() {
-    ServiceTracker mockServiceTracker = mock(ServiceTracker.class);
-    SortedMap sortedMap = mock(SortedMap.class);
-    List<Object> classes = new ArrayList<>();
-    classes.add(String.class);
-    when(sortedMap.values()).thenReturn(classes);
-    when(mockServiceTracker.getTracked()).thenReturn(sortedMap);
+  public void testGetOsgiServiceOfTypeKeepsServiceTrackerOpen() {
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+    context.registerService(Runnable.class, () -> {
+    });
+
+    assertNotNull(OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class));
+    assertNotNull(OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class));
+    assertEquals(trackerCount + 1, ServiceTrackerRegistry.getTrackerCount());
+
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+  }
+
+  @Test
+  public void testCloseServiceTrackersDoesNotCloseSiblingComponentTrackers() {
+    ComponentContext siblingContext = mock(ComponentContext.class);
+    when(siblingContext.getBundleContext()).thenReturn(context.bundleContext());
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+    ServiceHandle<Runnable> siblingHandle = OsgiServiceUtils.getServiceHandle(siblingContext,
+        Runnable.class);
+    assertEquals(runnable, siblingHandle.get());
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+
+    assertEquals(runnable,
+        OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(), Runnable.class));
+    assertEquals(trackerCount + 1, ServiceTrackerRegistry.getTrackerCount());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+    assertFalse(ServiceTrackerRegistry.getTrackedServices(siblingContext,
+        Runnable.class.getName()).isClosed());
+    assertEquals(runnable, siblingHandle.get());
+    OsgiServiceUtils.closeServiceTrackers(siblingContext);
+  }
+
+  @Test
+  public void testGetOsgiServiceOfTypeAfterServiceTrackersClosed() {
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+
+    assertEquals(runnable,
+        OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(), Runnable.class));
+    assertEquals(1,
+        OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(), Runnable.class)
+            .size());
+    assertNull(ServiceTrackerRegistry.getTrackedServices(context.componentContext(),
+        Runnable.class.getName()));
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+  }
+
+  @Test
+  public void testServiceTrackersClosedWhenBundleStops() {
+    BundleContext bundleContext = mock(BundleContext.class, delegatesTo(context.bundleContext()));
+    ComponentContext componentContext = mock(ComponentContext.class);
+    when(componentContext.getBundleContext()).thenReturn(bundleContext);
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+    ServiceHandle<Runnable> serviceHandle = OsgiServiceUtils.getServiceHandle(componentContext,
+        Runnable.class);
+    assertEquals(runnable, serviceHandle.get());
+    assertEquals(trackerCount + 1, ServiceTrackerRegistry.getTrackerCount());
+    ArgumentCaptor<BundleListener> listener = ArgumentCaptor.forClass(BundleListener.class);
+    verify(bundleContext).addBundleListener(listener.capture());
+
+    listener.getValue().bundleChanged(
+        new BundleEvent(BundleEvent.STOPPING, context.bundleContext().getBundle()));
+
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+    verify(bundleContext).removeBundleListener(listener.getValue());
+    assertEquals(runnable, serviceHandle.get());
+    assertEquals(runnable, OsgiServiceUtils.getOsgiServiceOfType(componentContext,
+        Runnable.class));
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+  }
+
+  @Test
+  public void testAwaitServiceAfterServiceTrackersClosed() throws Exception {
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+
+    CompletableFuture<Runnable> future = OsgiServiceUtils.awaitService(
+        context.componentContext(), Runnable.class, 10000);
+
+    assertTrue(future.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testGetAllOsgiServicesOfTypeWhenServiceRegisteredAfterLookup() {
+    context.registerService(Runnable.class, () -> {
+    });
+    assertEquals(1,
+        OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(), Runnable.class)
+            .size());
+
+    context.registerService(Runnable.class, () -> {
+    });
+
+    assertEquals(2,
+        OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(), Runnable.class)
+            .size());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testCloseServiceTrackersWhenComponentContextIsNull() {
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+
+    OsgiServiceUtils.closeServiceTrackers(null);
+
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+  }
+
+  @Test
+  public void testGetOsgiServiceOfTypeWhenFilter() {
+    Runnable first = () -> {
+    };
+    Runnable second = () -> {
+    };
+    context.registerService(Runnable.class, first, "name", "first");
+    context.registerService(Runnable.class, second, "name", "second");
+
+    assertEquals(second, OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class, "(name=second)"));
+    assertEquals(first, OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class, Collections.singletonMap("name", "first")));
+    assertNull(OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class, "(name=third)"));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testGetAllOsgiServicesOfTypeWhenFilter() {
+    context.registerService(Runnable.class, () -> {
+    }, "group", "a");
+    context.registerService(Runnable.class, () -> {
+    }, "group", "a");
+    context.registerService(Runnable.class, () -> {
+    }, "group", "b");
+
+    assertEquals(2, OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(),
+        Runnable.class, "(group=a)").size());
+    assertEquals(1, OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(),
+        Runnable.class, Collections.singletonMap("group", "b")).size());
+    assertEquals(3, OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(),
+        Runnable.class, Collections.emptyMap()).size());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGetAllOsgiServicesOfTypeWhenInvalidFilter() {
+    OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(), Runnable.class,
+        "(name=");
+  }
+
+  @Test
+  public void testGetFilterIsCached() {
+    assertSame(ServiceTrackerRegistry.getFilter("(name=cached)"),
+        ServiceTrackerRegistry.getFilter("(name=cached)"));
+  }
+
+  @Test
+  public void testToFilter() {
+    Map<String, Object> properties = new HashMap<>();
+    properties.put("b", 2);
+    properties.put("a", "value (1)*");
+
+    assertEquals("(&(a=value \\(1\\)\\*)(b=2))", OsgiServiceUtils.toFilter(properties));
+    assertEquals("(a=1)", OsgiServiceUtils.toFilter(Collections.singletonMap("a", 1)));
+    assertNull(OsgiServiceUtils.toFilter(Collections.emptyMap()));
+  }
+
+  @Test
+  public void testGetRankedOsgiServicesOfType() {
+    Runnable low = () -> {
+    };
+    Runnable high = () -> {
+    };
+    Runnable middle = () -> {
+    };
+    context.registerService(Runnable.class, low, "service.ranking", 1);
+    context.registerService(Runnable.class, high, "service.ranking", 100);
+    context.registerService(Runnable.class, middle, "service.ranking", 50);
+
+    List<Runnable> services = OsgiServiceUtils.getRankedOsgiServicesOfType(
+        context.componentContext(), Runnable.class);
+
+    assertEquals(Arrays.asList(high, middle, low), services);
+    assertSame(services, OsgiServiceUtils.getRankedOsgiServicesOfType(context.componentContext(),
+        Runnable.class));
+    assertEquals(high, OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class));
+    assertEquals(Arrays.asList(high, middle, low),
+        OsgiServiceUtils.getAllOsgiServicesOfType(context.componentContext(), Runnable.class));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testGetRankedOsgiServicesOfTypeWhenServiceUnregistered() {
+    Runnable remaining = () -> {
+    };
+    context.registerService(Runnable.class, remaining, "service.ranking", 1);
+    ServiceRegistration<Runnable> registration = context.bundleContext().registerService(
+        Runnable.class, () -> {
+        }, new Hashtable<>(Collections.singletonMap("service.ranking", 100)));
+    List<Runnable> before = OsgiServiceUtils.getRankedOsgiServicesOfType(
+        context.componentContext(), Runnable.class);
+
+    registration.unregister();
+
+    assertEquals(2, before.size());
+    assertEquals(Collections.singletonList(remaining),
+        OsgiServiceUtils.getRankedOsgiServicesOfType(context.componentContext(), Runnable.class));
+    assertEquals(remaining, OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(),
+        Runnable.class));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testGetRankedOsgiServicesOfTypeIsUnmodifiable() {
+    context.registerService(Runnable.class, () -> {
+    });
+    try {
+      OsgiServiceUtils.getRankedOsgiServicesOfType(context.componentContext(), Runnable.class)
+          .clear();
+    } finally {
+      OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    }
+  }
+
+  @Test
+  public void testLazyService() {
+    List<String> calls = new ArrayList<>();
+    Runnable runnable = OsgiServiceUtils.lazyService(context.componentContext(), Runnable.class);
+    context.registerService(Runnable.class, () -> calls.add("low"), "service.ranking", 1);
+
+    runnable.run();
+    context.registerService(Runnable.class, () -> calls.add("high"), "service.ranking", 100);
+    runnable.run();
+
+    assertEquals(Arrays.asList("low", "high"), calls);
+    assertEquals("ServiceHandle(java.lang.Runnable)", runnable.toString());
+    assertEquals(runnable, runnable);
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
 
-    assertEquals(1, OsgiServiceUtils.getAllOsgiServicesOfType("String", mockServiceTracker).size());
+  @Test(expected = IllegalStateException.class)
+  public void testLazyServiceWhenNoServiceRegistered() {
+    Runnable runnable = OsgiServiceUtils.lazyService(context.componentContext(), Runnable.class);
+    try {
+      runnable.run();
+    } finally {
+      OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLazyServiceWhenTypeIsNotAnInterface() {
+    OsgiServiceUtils.lazyService(context.componentContext(), String.class);
+  }
+
+  @Test
+  public void testGetServiceHandle() {
+    ServiceHandle<Runnable> serviceHandle = OsgiServiceUtils.getServiceHandle(
+        context.componentContext(), Runnable.class);
+    assertFalse(serviceHandle.isAvailable());
+
+    Runnable runnable = () -> {
+    };
+    ServiceRegistration<Runnable> registration = context.bundleContext().registerService(
+        Runnable.class, runnable, new Hashtable<>());
+
+    assertEquals(runnable, serviceHandle.get());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    assertEquals(runnable, serviceHandle.get());
+
+    registration.unregister();
+    assertNull(serviceHandle.get());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
 
+  @Test
+  public void testGetOsgiServicesOfTypes() {
+    Runnable runnable = () -> {
+    };
+    Callable<String> callable = () -> "value";
+    Callable<String> higherRankedCallable = () -> "higher";
+    context.registerService(Runnable.class, runnable);
+    context.registerService(Callable.class, callable, "service.ranking", 1);
+    context.registerService(Callable.class, higherRankedCallable, "service.ranking", 10);
+
+    Map<Class<?>, Object> services = OsgiServiceUtils.getOsgiServicesOfTypes(
+        context.componentContext(), Runnable.class, Callable.class, Comparator.class);
+
+    assertEquals(2, services.size());
+    assertEquals(runnable, services.get(Runnable.class));
+    assertEquals(higherRankedCallable, services.get(Callable.class));
+    assertFalse(services.containsKey(Comparator.class));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testGetOsgiServicesOfTypesWhenTrackerIsOpen() {
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+    OsgiServiceUtils.getOsgiServiceOfType(context.componentContext(), Runnable.class);
+
+    assertEquals(runnable, OsgiServiceUtils.getOsgiServicesOfTypes(context.componentContext(),
+        Runnable.class).get(Runnable.class));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testGetOsgiServicesOfTypesKeepsServiceTrackersOpen() {
+    int trackerCount = ServiceTrackerRegistry.getTrackerCount();
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+
+    for (int i = 0; i < 3; i++) {
+      assertEquals(runnable, OsgiServiceUtils.getOsgiServicesOfTypes(context.componentContext(),
+          Runnable.class, Comparator.class).get(Runnable.class));
+    }
+    assertEquals(trackerCount + 2, ServiceTrackerRegistry.getTrackerCount());
+
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+    assertEquals(trackerCount, ServiceTrackerRegistry.getTrackerCount());
+  }
+
+  @Test
+  public void testAwaitServiceWhenServiceIsRegistered() throws Exception {
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+
+    CompletableFuture<Runnable> future = OsgiServiceUtils.awaitService(
+        context.componentContext(), Runnable.class, 1000);
+
+    assertTrue(future.isDone());
+    assertEquals(runnable, future.get());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testAwaitServiceWhenServiceIsRegisteredLater() throws Exception {
+    CompletableFuture<Runnable> future = OsgiServiceUtils.awaitService(
+        context.componentContext(), Runnable.class, 10000);
+    assertFalse(future.isDone());
+
+    Runnable runnable = () -> {
+    };
+    context.registerService(Runnable.class, runnable);
+
+    assertEquals(runnable, future.get(5, TimeUnit.SECONDS));
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+  }
+
+  @Test
+  public void testAwaitServiceWhenServiceTrackersClosed() throws Exception {
+    CompletableFuture<Runnable> future = OsgiServiceUtils.awaitService(
+        context.componentContext(), Runnable.class, 10000);
+    assertFalse(future.isDone());
+
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
+
+    Exception exception = null;
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      exception = e;
+    }
+    assertNotNull(exception);
+    assertEquals(IllegalStateException.class, exception.getCause().getClass());
+  }
+
+  @Test
+  public void testAwaitServiceWhenTimeout() throws Exception {
+    CompletableFuture<Runnable> future = OsgiServiceUtils.awaitService(
+        context.componentContext(), Runnable.class, 10);
+
+    Exception exception = null;
+    try {
+      future.get(5, TimeUnit.SECONDS);
+    } catch (ExecutionException e) {
+      exception = e;
+    }
+    assertNotNull(exception);
+    assertEquals(TimeoutException.class, exception.getCause().getClass());
+    OsgiServiceUtils.closeServiceTrackers(context.componentContext());
   }
 
-}
\ No newline at end of file
+}
@@ -19,6 +19,7 @@
 
 package io.kestros.commons.osgiserviceutils.utils;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.mockito.Mockito.never;
@@ -26,6 +27,11 @@ import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.sling.api.resource.PersistenceException;
 import org.apache.sling.api.resource.Resource;
@@ -85,4 +91,69 @@ public class ResourceCreationUtilsTest {
     verify(resourceResolver, times(1)).commit();
   }
 
+  @Test
+  public void testCreateTextFileResourceAndCommitWithContentProperties()
+      throws PersistenceException {
+    resource = context.create().resource("/resource");
+    ResourceCreationUtils.createTextFileResourceAndCommit("Text Content", "text/html", resource,
+        "new-text-file", Collections.singletonMap("expiresAt", 1000L), resourceResolver);
+
+    resource = resourceResolver.getResource("/resource/new-text-file");
+    assertNotNull(resource);
+    assertEquals("nt:unstructured", resource.getChild("jcr:content").getResourceType());
+    assertEquals("text/html", resource.getChild("jcr:content").getValueMap().get("jcr:mimeType",
+        StringUtils.EMPTY));
+    assertEquals(Long.valueOf(1000L), resource.getChild("jcr:content").getValueMap().get(
+        "expiresAt", Long.class));
+
+    verify(resourceResolver, times(1)).commit();
+  }
+
+  @Test
+  public void testCreateFileResource() throws Exception {
+    resource = context.create().resource("/resource");
+    byte[] content = new byte[]{0, 1, 2, (byte) 255};
+    InputStream inputStream = new ByteArrayInputStream(content);
+    ResourceCreationUtils.createFileResource(inputStream, "application/octet-stream", resource,
+        "new-file", Collections.emptyMap(), resourceResolver);
+
+    resource = resourceResolver.getResource("/resource/new-file");
+    assertNotNull(resource);
+    assertEquals("nt:resource", resource.getChild("jcr:content").getResourceType());
+    assertEquals("application/octet-stream",
+        resource.getChild("jcr:content").getValueMap().get("jcr:mimeType", StringUtils.EMPTY));
+    assertArrayEquals(content, readFully(
+        resource.getChild("jcr:content").getValueMap().get("jcr:data", InputStream.class)));
+    verify(resourceResolver, never()).commit();
+  }
+
+  @Test
+  public void testCreateFileResourceAndCommitWithContentProperties() throws Exception {
+    resource = context.create().resource("/resource");
+    byte[] content = new byte[]{0, 1, 2, (byte) 255};
+    ResourceCreationUtils.createFileResourceAndCommit(new ByteArrayInputStream(content),
+        "application/octet-stream", resource, "new-file",
+        Collections.singletonMap("expiresAt", 1000L), resourceResolver);
+
+    resource = resourceResolver.getResource("/resource/new-file");
+    assertNotNull(resource);
+    assertEquals("nt:unstructured", resource.getChild("jcr:content").getResourceType());
+    assertEquals(Long.valueOf(1000L), resource.getChild("jcr:content").getValueMap().get(
+        "expiresAt", Long.class));
+    assertArrayEquals(content, readFully(
+        resource.getChild("jcr:content").getValueMap().get("jcr:data", InputStream.class)));
+
+    verify(resourceResolver, times(1)).commit();
+  }
+
+  private static byte[] readFully(InputStream inputStream) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    byte[] buffer = new byte[1024];
+    int read;
+    while ((read = inputStream.read(buffer)) != -1) {
+      outputStream.write(buffer, 0, read);
+    }
+    return outputStream.toByteArray();
+  }
+
 }
\ No newline at end of file